@@ -0,0 +1,63 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mule.transport.amqp.AmqpConstants.DeliveryMode;
+import org.mule.transport.amqp.AmqpMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overrides of publication properties, which rebuild the basic properties of the
+ * AMQP message, as done by the dispatcher for the connector defaults.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AmqpMessageBenchmark
+{
+    private AmqpMessage amqpMessage;
+
+    @Setup
+    public void setUp(final TransportState transport)
+    {
+        // overriding is not conditional so the same message can be reused
+        amqpMessage = transport.newAmqpMessage();
+    }
+
+    @Benchmark
+    public AmqpMessage overrideDeliveryModeAndPriority()
+    {
+        amqpMessage.setDeliveryMode(DeliveryMode.PERSISTENT);
+        amqpMessage.setPriority(9);
+        return amqpMessage;
+    }
+
+    @Benchmark
+    public AmqpMessage overrideReplyTo()
+    {
+        amqpMessage.setReplyTo("amq.gen-reply-queue");
+        return amqpMessage;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mule.DefaultMuleEvent;
+import org.mule.DefaultMuleMessage;
+import org.mule.MessageExchangePattern;
+import org.mule.api.MuleEvent;
+import org.mule.api.endpoint.EndpointBuilder;
+import org.mule.api.endpoint.OutboundEndpoint;
+import org.mule.endpoint.EndpointURIEndpointBuilder;
+import org.mule.transport.amqp.AmqpEndpointUtil;
+import org.mule.transport.amqp.AmqpMessageDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Outbound dispatching of AMQP messages, down to the publication on a stubbed
+ * channel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatcherBenchmark
+{
+    /**
+     * A static routing key or a template rendered for each message.
+     */
+    @Param({"a.b.c", "orders.#[header:region]"})
+    public String routingKey;
+
+    private Stubs.StubChannel stubChannel;
+    private StubbedDispatcher dispatcher;
+    private MuleEvent event;
+
+    @Setup
+    public void setUp(final TransportState transport) throws Exception
+    {
+        final EndpointBuilder endpointBuilder = new EndpointURIEndpointBuilder(
+            "amqp://benchmark-exchange?connector=" + TransportState.CONNECTOR_NAME, transport.muleContext);
+        endpointBuilder.setProperty(AmqpEndpointUtil.ROUTING_KEY, routingKey);
+        final OutboundEndpoint endpoint = transport.muleContext.getEndpointFactory().getOutboundEndpoint(
+            endpointBuilder);
+
+        stubChannel = new Stubs.StubChannel();
+        dispatcher = new StubbedDispatcher(endpoint, stubChannel.getChannel());
+
+        final DefaultMuleMessage message = new DefaultMuleMessage(transport.newAmqpMessage(),
+            transport.muleContext);
+        message.setOutboundProperty("region", "eu-west");
+        event = new DefaultMuleEvent(message, MessageExchangePattern.ONE_WAY, transport.flow);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (stubChannel.getPublishCount() == 0)
+        {
+            throw new IllegalStateException("No message has been published");
+        }
+    }
+
+    @Benchmark
+    public void dispatch() throws Exception
+    {
+        dispatcher.doDispatch(event);
+    }
+
+    private static final class StubbedDispatcher extends AmqpMessageDispatcher
+    {
+        private final Channel channel;
+
+        private StubbedDispatcher(final OutboundEndpoint endpoint, final Channel channel)
+        {
+            super(endpoint);
+            this.channel = channel;
+        }
+
+        @Override
+        protected Channel getChannel()
+        {
+            return channel;
+        }
+
+        @Override
+        protected String getExchange()
+        {
+            return endpointConfig.getExchangeName();
+        }
+
+        @Override
+        protected String getRoutingKey()
+        {
+            return endpointConfig.getOutboundRoutingKey();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mule.api.endpoint.OutboundEndpoint;
+import org.mule.transport.amqp.AmqpEndpointConfig;
+import org.mule.transport.amqp.AmqpEndpointUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of endpoint addresses and lookup of parsed endpoint configurations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EndpointConfigBenchmark
+{
+    private static final String QUEUE_ADDRESS = "amqp://benchmark-exchange/amqp-queue.benchmark-queue";
+    private static final String EXCHANGE_ADDRESS = "amqp://benchmark-exchange";
+
+    private OutboundEndpoint outboundEndpoint;
+
+    @Setup
+    public void setUp(final TransportState transport) throws Exception
+    {
+        outboundEndpoint = transport.muleContext.getEndpointFactory().getOutboundEndpoint(
+            EXCHANGE_ADDRESS + "?routingKey=a.b.c&exchangeType=topic&connector="
+                            + TransportState.CONNECTOR_NAME);
+    }
+
+    @Benchmark
+    public void parseAddresses(final Blackhole blackhole)
+    {
+        blackhole.consume(AmqpEndpointUtil.getExchangeName(QUEUE_ADDRESS));
+        blackhole.consume(AmqpEndpointUtil.getQueueName(QUEUE_ADDRESS));
+        blackhole.consume(AmqpEndpointUtil.getExchangeName(EXCHANGE_ADDRESS));
+        blackhole.consume(AmqpEndpointUtil.getQueueName(EXCHANGE_ADDRESS));
+    }
+
+    @Benchmark
+    public String lookupEndpointConfig()
+    {
+        return AmqpEndpointConfig.forEndpoint(outboundEndpoint).getOutboundRoutingKey();
+    }
+}
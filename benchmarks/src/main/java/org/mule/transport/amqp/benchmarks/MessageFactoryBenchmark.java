@@ -0,0 +1,56 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mule.api.MuleMessage;
+import org.mule.transport.amqp.AmqpMessage;
+import org.mule.transport.amqp.AmqpMuleMessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creation of Mule messages from received AMQP messages, including the mapping of
+ * envelope, basic properties and headers to inbound properties.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageFactoryBenchmark
+{
+    private AmqpMuleMessageFactory messageFactory;
+    private AmqpMessage amqpMessage;
+
+    @Setup
+    public void setUp(final TransportState transport)
+    {
+        messageFactory = new AmqpMuleMessageFactory(transport.muleContext);
+        amqpMessage = transport.newAmqpMessage();
+    }
+
+    @Benchmark
+    public MuleMessage create() throws Exception
+    {
+        return messageFactory.create(amqpMessage, "UTF-8");
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mule.api.MuleEvent;
+import org.mule.api.MuleException;
+import org.mule.api.context.WorkManager;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.api.processor.MessageProcessor;
+import org.mule.transport.amqp.AmqpMessage;
+import org.mule.transport.amqp.AmqpMessageReceiver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Inbound deliveries, from the consumer callback of a stubbed channel to the
+ * routing of the created Mule message to a no-op listener. Works are run in the
+ * delivering thread so that thread hand-offs do not blur the measure.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiverBenchmark
+{
+    private final AtomicLong routedCount = new AtomicLong();
+    private StubbedReceiver receiver;
+    private AmqpMessageReceiver.AmqpConsumer consumer;
+    private AmqpMessage amqpMessage;
+
+    @Setup
+    public void setUp(final TransportState transport) throws Exception
+    {
+        final InboundEndpoint endpoint = transport.muleContext.getEndpointFactory().getInboundEndpoint(
+            "amqp://benchmark-exchange/amqp-queue.benchmark-queue?routingKey=a.b.c&connector="
+                            + TransportState.CONNECTOR_NAME);
+
+        receiver = new StubbedReceiver(transport, endpoint, new Stubs.StubChannel().getChannel());
+        receiver.setListener(new MessageProcessor()
+        {
+            public MuleEvent process(final MuleEvent event) throws MuleException
+            {
+                routedCount.incrementAndGet();
+                return event;
+            }
+        });
+        receiver.initialise();
+
+        consumer = receiver.new AmqpConsumer(receiver.getStubChannel());
+        amqpMessage = transport.newAmqpMessage();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        receiver.dispose();
+
+        if (routedCount.get() == 0)
+        {
+            throw new IllegalStateException("No message has been routed");
+        }
+    }
+
+    @Benchmark
+    public void deliver() throws Exception
+    {
+        consumer.handleDelivery(amqpMessage.getConsumerTag(), amqpMessage.getEnvelope(),
+            amqpMessage.getProperties(), amqpMessage.getBody());
+    }
+
+    private static final class StubbedReceiver extends AmqpMessageReceiver
+    {
+        private final Channel channel;
+        private final WorkManager workManager = Stubs.newCallerRunsWorkManager();
+
+        private StubbedReceiver(final TransportState transport,
+                                final InboundEndpoint endpoint,
+                                final Channel channel) throws Exception
+        {
+            super(transport.connector, transport.flow, endpoint);
+            this.channel = channel;
+        }
+
+        private Channel getStubChannel()
+        {
+            return channel;
+        }
+
+        @Override
+        protected Channel getChannel()
+        {
+            return channel;
+        }
+
+        @Override
+        protected WorkManager getWorkManager()
+        {
+            return workManager;
+        }
+    }
+}
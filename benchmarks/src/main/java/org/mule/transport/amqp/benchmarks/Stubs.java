@@ -0,0 +1,163 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.resource.spi.work.Work;
+
+import org.mule.api.context.WorkManager;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Dynamic proxy stubs standing for the broker side of the transport, so
+ * benchmarks only measure the transport code. Being proxies, they do not need to
+ * follow the evolutions of the stubbed interfaces.
+ */
+public abstract class Stubs
+{
+    /**
+     * A channel that swallows publications, only counting them, and answers all
+     * other calls with default values.
+     */
+    public static final class StubChannel implements InvocationHandler
+    {
+        private final AtomicLong publishCount = new AtomicLong();
+        private final Channel channel = newProxy(Channel.class, this);
+
+        public Channel getChannel()
+        {
+            return channel;
+        }
+
+        public long getPublishCount()
+        {
+            return publishCount.get();
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+        {
+            if ("basicPublish".equals(method.getName()))
+            {
+                publishCount.incrementAndGet();
+                return null;
+            }
+            if ("isOpen".equals(method.getName()))
+            {
+                return Boolean.TRUE;
+            }
+            if ("getChannelNumber".equals(method.getName()))
+            {
+                return Integer.valueOf(1);
+            }
+            return handleObjectMethod(proxy, method, args, "StubChannel");
+        }
+    }
+
+    /**
+     * @return a work manager that runs works synchronously in the calling thread, so
+     *         receiver benchmarks measure the routing of messages and not thread
+     *         hand-offs.
+     */
+    public static WorkManager newCallerRunsWorkManager()
+    {
+        return newProxy(WorkManager.class, new InvocationHandler()
+        {
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                final String methodName = method.getName();
+                if ((args != null) && (args.length > 0) && (args[0] instanceof Work)
+                    && (methodName.endsWith("Work")))
+                {
+                    ((Work) args[0]).run();
+                    return "startWork".equals(methodName) ? Long.valueOf(0L) : null;
+                }
+                if ("execute".equals(methodName))
+                {
+                    ((Runnable) args[0]).run();
+                    return null;
+                }
+                if ("isStarted".equals(methodName))
+                {
+                    return Boolean.TRUE;
+                }
+                return handleObjectMethod(proxy, method, args, "CallerRunsWorkManager");
+            }
+        });
+    }
+
+    private static Object handleObjectMethod(final Object proxy,
+                                             final Method method,
+                                             final Object[] args,
+                                             final String name)
+    {
+        if ("equals".equals(method.getName()))
+        {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        if ("hashCode".equals(method.getName()))
+        {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        if ("toString".equals(method.getName()))
+        {
+            return name;
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private static Object defaultValue(final Class<?> type)
+    {
+        if (!type.isPrimitive() || (type == Void.TYPE))
+        {
+            return null;
+        }
+        if (type == Boolean.TYPE)
+        {
+            return Boolean.FALSE;
+        }
+        if (type == Long.TYPE)
+        {
+            return Long.valueOf(0L);
+        }
+        if (type == Integer.TYPE)
+        {
+            return Integer.valueOf(0);
+        }
+        if (type == Short.TYPE)
+        {
+            return Short.valueOf((short) 0);
+        }
+        if (type == Byte.TYPE)
+        {
+            return Byte.valueOf((byte) 0);
+        }
+        if (type == Character.TYPE)
+        {
+            return Character.valueOf((char) 0);
+        }
+        if (type == Float.TYPE)
+        {
+            return Float.valueOf(0F);
+        }
+        return Double.valueOf(0D);
+    }
+
+    private static <T> T newProxy(final Class<T> type, final InvocationHandler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type},
+            handler));
+    }
+}
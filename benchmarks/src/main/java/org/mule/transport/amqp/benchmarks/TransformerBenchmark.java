@@ -0,0 +1,88 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mule.api.MuleMessage;
+import org.mule.transport.amqp.AmqpMuleMessageFactory;
+import org.mule.transport.amqp.transformers.AmqpMessageToObject;
+import org.mule.transport.amqp.transformers.ObjectToAmqpMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversions between Mule messages and AMQP messages, as performed by the default
+ * transformers of the connector.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformerBenchmark
+{
+    private ObjectToAmqpMessage objectToAmqpMessage;
+    private AmqpMessageToObject amqpMessageToObject;
+    private String textPayload;
+    private byte[] bytesPayload;
+    private MuleMessage receivedMessage;
+
+    @Setup
+    public void setUp(final TransportState transport) throws Exception
+    {
+        objectToAmqpMessage = new ObjectToAmqpMessage();
+        objectToAmqpMessage.setMuleContext(transport.muleContext);
+        objectToAmqpMessage.initialise();
+
+        amqpMessageToObject = new AmqpMessageToObject();
+        amqpMessageToObject.setMuleContext(transport.muleContext);
+        amqpMessageToObject.initialise();
+
+        final StringBuilder text = new StringBuilder(transport.bodySize);
+        while (text.length() < transport.bodySize)
+        {
+            text.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        textPayload = text.substring(0, transport.bodySize);
+        bytesPayload = new byte[transport.bodySize];
+
+        receivedMessage = new AmqpMuleMessageFactory(transport.muleContext).create(
+            transport.newAmqpMessage(), "UTF-8");
+    }
+
+    @Benchmark
+    public Object stringToAmqpMessage() throws Exception
+    {
+        return objectToAmqpMessage.transform(textPayload);
+    }
+
+    @Benchmark
+    public Object bytesToAmqpMessage() throws Exception
+    {
+        return objectToAmqpMessage.transform(bytesPayload);
+    }
+
+    @Benchmark
+    public Object amqpMessageToObject() throws Exception
+    {
+        return amqpMessageToObject.transform(receivedMessage);
+    }
+}
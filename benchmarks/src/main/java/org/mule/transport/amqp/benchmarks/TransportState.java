@@ -0,0 +1,86 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mule.api.MuleContext;
+import org.mule.construct.Flow;
+import org.mule.context.DefaultMuleContextFactory;
+import org.mule.transport.amqp.AmqpConnector;
+import org.mule.transport.amqp.AmqpMessage;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * A Mule context with an AMQP connector that is initialised but never connected,
+ * shared by all the threads of a benchmark.
+ */
+@State(Scope.Benchmark)
+public class TransportState
+{
+    public static final String CONNECTOR_NAME = "amqpBenchmarkConnector";
+
+    @Param({"256", "16384"})
+    public int bodySize;
+
+    public MuleContext muleContext;
+    public AmqpConnector connector;
+    public Flow flow;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        muleContext = new DefaultMuleContextFactory().createMuleContext();
+        connector = new AmqpConnector(muleContext);
+        connector.setName(CONNECTOR_NAME);
+        muleContext.getRegistry().registerConnector(connector);
+        flow = new Flow("benchmarkFlow", muleContext);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        muleContext.dispose();
+    }
+
+    /**
+     * @return a message as received from a broker, with the usual properties and a few
+     *         custom headers.
+     */
+    public AmqpMessage newAmqpMessage()
+    {
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("customerId", "c-123456");
+        headers.put("attempt", Integer.valueOf(1));
+        headers.put("region", "eu-west");
+
+        final BasicProperties properties = new BasicProperties.Builder().contentType("text/plain")
+            .contentEncoding("UTF-8")
+            .correlationId("correlation-1")
+            .messageId("message-1")
+            .deliveryMode(Integer.valueOf(2))
+            .priority(Integer.valueOf(4))
+            .headers(headers)
+            .build();
+
+        return new AmqpMessage("consumer-1", new Envelope(1L, false, "benchmark-exchange", "a.b.c"),
+            properties, new byte[bodySize]);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * A snapshot of the garbage collection and allocation counters of the JVM. Allocations
+ * are only available on JVMs providing <code>com.sun.management.ThreadMXBean</code> and
+ * only account for the threads alive when the snapshot is taken.
+ */
+public class JvmStats
+{
+    private static final Method THREAD_ALLOCATED_BYTES = findThreadAllocatedBytes();
+
+    private final long gcCount;
+    private final long gcTimeMillis;
+    private final long allocatedBytes;
+    private final long heapUsedBytes;
+
+    private JvmStats(final long gcCount,
+                     final long gcTimeMillis,
+                     final long allocatedBytes,
+                     final long heapUsedBytes)
+    {
+        this.gcCount = gcCount;
+        this.gcTimeMillis = gcTimeMillis;
+        this.allocatedBytes = allocatedBytes;
+        this.heapUsedBytes = heapUsedBytes;
+    }
+
+    public static JvmStats capture()
+    {
+        long gcCount = 0;
+        long gcTimeMillis = 0;
+        for (final GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            gcCount += Math.max(0, gcBean.getCollectionCount());
+            gcTimeMillis += Math.max(0, gcBean.getCollectionTime());
+        }
+
+        return new JvmStats(gcCount, gcTimeMillis, captureAllocatedBytes(),
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    public static boolean isAllocationTrackingSupported()
+    {
+        return THREAD_ALLOCATED_BYTES != null;
+    }
+
+    public long getGcCount()
+    {
+        return gcCount;
+    }
+
+    public long getGcTimeMillis()
+    {
+        return gcTimeMillis;
+    }
+
+    public long getAllocatedBytes()
+    {
+        return allocatedBytes;
+    }
+
+    public long getHeapUsedBytes()
+    {
+        return heapUsedBytes;
+    }
+
+    private static long captureAllocatedBytes()
+    {
+        if (THREAD_ALLOCATED_BYTES == null)
+        {
+            return -1;
+        }
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        try
+        {
+            long total = 0;
+            for (final long allocated : (long[]) THREAD_ALLOCATED_BYTES.invoke(threadBean,
+                threadBean.getAllThreadIds()))
+            {
+                total += Math.max(0, allocated);
+            }
+            return total;
+        }
+        catch (final Exception e)
+        {
+            return -1;
+        }
+    }
+
+    private static Method findThreadAllocatedBytes()
+    {
+        try
+        {
+            final Class<?> sunThreadBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunThreadBean.isInstance(ManagementFactory.getThreadMXBean()))
+            {
+                return null;
+            }
+
+            final Method method = sunThreadBean.getMethod("getThreadAllocatedBytes", long[].class);
+            final Method enabledCheck = sunThreadBean.getMethod("isThreadAllocatedMemoryEnabled");
+            final boolean enabled = Boolean.TRUE.equals(enabledCheck.invoke(ManagementFactory.getThreadMXBean()));
+            return enabled ? method : null;
+        }
+        catch (final Exception e)
+        {
+            return null;
+        }
+    }
+}
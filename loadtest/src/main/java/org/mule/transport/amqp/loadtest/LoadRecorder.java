@@ -0,0 +1,71 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mule.api.MuleEvent;
+import org.mule.api.MuleException;
+import org.mule.api.processor.MessageProcessor;
+import org.mule.transport.amqp.management.LatencyHistogram;
+
+/**
+ * Counts the messages received by the consumer flows and records their end-to-end
+ * latencies, from the send time stamped by the producers. Producers and consumers run
+ * in the same JVM so {@link System#nanoTime()} values can be compared.
+ */
+public class LoadRecorder implements MessageProcessor
+{
+    public static final String SENT_NANOS = "loadtestSentNanos";
+
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong consumedBytes = new AtomicLong();
+    private final LatencyHistogram endToEndLatency = new LatencyHistogram("end-to-end latency");
+
+    public MuleEvent process(final MuleEvent event) throws MuleException
+    {
+        final long receivedNanos = System.nanoTime();
+        consumed.incrementAndGet();
+
+        final Object payload = event.getMessage().getPayload();
+        if (payload instanceof byte[])
+        {
+            consumedBytes.addAndGet(((byte[]) payload).length);
+        }
+
+        final Object sentNanos = event.getMessage().getInboundProperty(SENT_NANOS);
+        if (sentNanos instanceof Number)
+        {
+            endToEndLatency.recordNanos(receivedNanos - ((Number) sentNanos).longValue());
+        }
+        else if (sentNanos != null)
+        {
+            endToEndLatency.recordNanos(receivedNanos - Long.parseLong(sentNanos.toString()));
+        }
+
+        return event;
+    }
+
+    public long getConsumed()
+    {
+        return consumed.get();
+    }
+
+    public long getConsumedBytes()
+    {
+        return consumedBytes.get();
+    }
+
+    public LatencyHistogram getEndToEndLatency()
+    {
+        return endToEndLatency;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.loadtest;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mule.DefaultMuleEvent;
+import org.mule.DefaultMuleMessage;
+import org.mule.MessageExchangePattern;
+import org.mule.api.MuleContext;
+import org.mule.api.MuleMessage;
+import org.mule.api.endpoint.OutboundEndpoint;
+import org.mule.api.processor.MessageProcessor;
+import org.mule.api.transaction.TransactionConfig;
+import org.mule.construct.Flow;
+import org.mule.context.DefaultMuleContextFactory;
+import org.mule.endpoint.EndpointURIEndpointBuilder;
+import org.mule.processor.strategy.SynchronousProcessingStrategy;
+import org.mule.transaction.MuleTransactionConfig;
+import org.mule.transport.amqp.AmqpConnector;
+import org.mule.transport.amqp.AmqpConstants.AckMode;
+import org.mule.transport.amqp.AmqpConstants.DeliveryMode;
+import org.mule.transport.amqp.AmqpEndpointUtil;
+import org.mule.transport.amqp.AmqpMessageAcknowledger;
+import org.mule.transport.amqp.AmqpTransactionFactory;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+import org.mule.transport.amqp.management.LatencyHistogram;
+
+/**
+ * Drives a configurable load through an AMQP connector for a fixed duration: producer
+ * threads publish on a queue through an outbound endpoint while consumer flows receive
+ * from it. Throughputs, latency percentiles, garbage collections and allocations are
+ * reported at the end of the run, with interim throughputs for long soak runs.
+ */
+public class LoadTest
+{
+    public static final String CONNECTOR_NAME = "amqpLoadTestConnector";
+
+    private static final long MEBIBYTE = 1024L * 1024L;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000L;
+
+    private final LoadTestOptions options;
+    private final LoadRecorder recorder = new LoadRecorder();
+    private final LatencyHistogram publishLatency = new LatencyHistogram("publish latency");
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+    private final AtomicLong publishErrors = new AtomicLong();
+    private final List<Thread> producerThreads = new ArrayList<Thread>();
+
+    private volatile boolean running;
+    private volatile Exception lastPublishError;
+
+    private MuleContext muleContext;
+    private Flow producerFlow;
+    private OutboundEndpoint outboundEndpoint;
+
+    public LoadTest(final LoadTestOptions options)
+    {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final LoadTestOptions options;
+        try
+        {
+            options = LoadTestOptions.parse(args);
+        }
+        catch (final IllegalArgumentException iae)
+        {
+            System.err.println(iae.getMessage());
+            System.err.println();
+            System.err.println(LoadTestOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if (options.help)
+        {
+            System.out.println(LoadTestOptions.USAGE);
+            return;
+        }
+
+        final LoadTest loadTest = new LoadTest(options);
+        boolean successful = false;
+        try
+        {
+            loadTest.setUp();
+            successful = loadTest.run(System.out);
+        }
+        finally
+        {
+            loadTest.tearDown();
+        }
+
+        // Mule and the AMQP client leave non-daemon threads behind
+        System.exit(successful ? 0 : 1);
+    }
+
+    public void setUp() throws Exception
+    {
+        muleContext = new DefaultMuleContextFactory().createMuleContext();
+
+        final AmqpConnector connector = new AmqpConnector(muleContext);
+        connector.setName(CONNECTOR_NAME);
+        if (options.inMemory)
+        {
+            connector.setConnectionFactory(new InMemoryConnectionFactory());
+        }
+        else
+        {
+            connector.setHost(options.host);
+            connector.setPort(options.port);
+            connector.setVirtualHost(options.virtualHost);
+            connector.setUsername(options.username);
+            connector.setPassword(options.password);
+        }
+        connector.setAckMode(options.ackMode);
+        connector.setPrefetchCount(options.prefetchCount);
+        if (options.persistent)
+        {
+            connector.setDeliveryMode(DeliveryMode.PERSISTENT);
+        }
+        muleContext.getRegistry().registerConnector(connector);
+
+        if (options.consumers > 0)
+        {
+            registerConsumerFlow();
+        }
+
+        muleContext.start();
+
+        if (options.producers > 0)
+        {
+            producerFlow = new Flow("loadTestProducer", muleContext);
+            outboundEndpoint = muleContext.getEndpointFactory().getOutboundEndpoint(newQueueEndpointBuilder());
+        }
+    }
+
+    /**
+     * @return true if the run completed without publication errors nor unconsumed
+     *         messages.
+     */
+    public boolean run(final PrintStream out) throws Exception
+    {
+        out.println("Load test: " + options);
+        startProducers();
+
+        if (options.warmupSeconds > 0)
+        {
+            out.printf("Warming up for %d s%n", options.warmupSeconds);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmupSeconds));
+        }
+
+        publishLatency.snapshotAndReset();
+        recorder.getEndToEndLatency().snapshotAndReset();
+        final long startPublished = published.get();
+        final long startPublishedBytes = publishedBytes.get();
+        final long startPublishErrors = publishErrors.get();
+        final long startConsumed = recorder.getConsumed();
+        final long startConsumedBytes = recorder.getConsumedBytes();
+        final JvmStats startJvmStats = JvmStats.capture();
+        final long startNanos = System.nanoTime();
+
+        out.printf("Measuring for %d s%n", options.durationSeconds);
+        measure(out, startNanos);
+
+        final double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        final JvmStats endJvmStats = JvmStats.capture();
+        final long runPublished = published.get() - startPublished;
+        final long runPublishedBytes = publishedBytes.get() - startPublishedBytes;
+        final long runPublishErrors = publishErrors.get() - startPublishErrors;
+        final long runConsumed = recorder.getConsumed() - startConsumed;
+        final long runConsumedBytes = recorder.getConsumedBytes() - startConsumedBytes;
+        final LatencyHistogram.Snapshot publishLatencySnapshot = publishLatency.snapshot();
+        final LatencyHistogram.Snapshot endToEndLatencySnapshot = recorder.getEndToEndLatency().snapshot();
+
+        stopProducers();
+        final long unconsumed = drain();
+
+        out.printf("%nResults over %.1f s:%n", elapsedSeconds);
+        out.printf("  published: %d messages, %.0f msg/s, %.2f MiB/s, %d errors%n", runPublished,
+            runPublished / elapsedSeconds, runPublishedBytes / elapsedSeconds / MEBIBYTE, runPublishErrors);
+        out.printf("  consumed:  %d messages, %.0f msg/s, %.2f MiB/s%n", runConsumed,
+            runConsumed / elapsedSeconds, runConsumedBytes / elapsedSeconds / MEBIBYTE);
+        out.println("  " + publishLatencySnapshot);
+        out.println("  " + endToEndLatencySnapshot);
+
+        final long gcCount = endJvmStats.getGcCount() - startJvmStats.getGcCount();
+        final long gcTimeMillis = endJvmStats.getGcTimeMillis() - startJvmStats.getGcTimeMillis();
+        out.printf("  gc: %d collections, %d ms, %.2f%% of the run%n", gcCount, gcTimeMillis,
+            gcTimeMillis / (elapsedSeconds * 10));
+
+        if (JvmStats.isAllocationTrackingSupported())
+        {
+            final long allocated = endJvmStats.getAllocatedBytes() - startJvmStats.getAllocatedBytes();
+            final long messages = Math.max(1, runPublished + runConsumed);
+            out.printf("  allocated: %.1f MiB, %.2f MiB/s, %d bytes per message published or consumed%n",
+                (double) allocated / MEBIBYTE, allocated / elapsedSeconds / MEBIBYTE, allocated / messages);
+        }
+        else
+        {
+            out.println("  allocated: not available on this JVM");
+        }
+        out.printf("  heap used: %d MiB%n", endJvmStats.getHeapUsedBytes() / MEBIBYTE);
+
+        if (lastPublishError != null)
+        {
+            out.println("  last publication error: " + lastPublishError);
+        }
+        if (unconsumed > 0)
+        {
+            out.printf("  unconsumed after %d s of drain: %d messages%n",
+                TimeUnit.MILLISECONDS.toSeconds(DRAIN_TIMEOUT_MILLIS), unconsumed);
+        }
+
+        return (publishErrors.get() == 0) && (unconsumed == 0);
+    }
+
+    public void tearDown()
+    {
+        stopProducers();
+
+        if (muleContext != null)
+        {
+            muleContext.dispose();
+        }
+    }
+
+    private void registerConsumerFlow() throws Exception
+    {
+        final EndpointURIEndpointBuilder endpointBuilder = newQueueEndpointBuilder();
+        // the consumers compete for the messages of the queue within a single flow
+        endpointBuilder.setProperty(AmqpEndpointUtil.MIN_CONSUMERS, Integer.toString(options.consumers));
+        if (options.transacted)
+        {
+            final MuleTransactionConfig transactionConfig = new MuleTransactionConfig();
+            transactionConfig.setFactory(new AmqpTransactionFactory());
+            transactionConfig.setAction(TransactionConfig.ACTION_ALWAYS_BEGIN);
+            endpointBuilder.setTransactionConfig(transactionConfig);
+        }
+
+        final List<MessageProcessor> messageProcessors = new ArrayList<MessageProcessor>();
+        messageProcessors.add(recorder);
+        if (options.ackMode == AckMode.MANUAL)
+        {
+            messageProcessors.add(new AmqpMessageAcknowledger());
+        }
+
+        final Flow flow = new Flow("loadTestConsumer", muleContext);
+        flow.setMessageSource(muleContext.getEndpointFactory().getInboundEndpoint(endpointBuilder));
+        flow.setMessageProcessors(messageProcessors);
+        flow.setProcessingStrategy(new SynchronousProcessingStrategy());
+        muleContext.getRegistry().registerFlowConstruct(flow);
+    }
+
+    private EndpointURIEndpointBuilder newQueueEndpointBuilder()
+    {
+        final String address = "amqp://" + AmqpEndpointUtil.QUEUE_PREFIX + options.queueName
+                               + "?connector=" + CONNECTOR_NAME;
+        final EndpointURIEndpointBuilder endpointBuilder = new EndpointURIEndpointBuilder(address, muleContext);
+        endpointBuilder.setProperty(AmqpEndpointUtil.QUEUE_DURABLE, Boolean.toString(options.persistent));
+        endpointBuilder.setProperty(AmqpEndpointUtil.QUEUE_AUTO_DELETE, "false");
+        endpointBuilder.setProperty(AmqpEndpointUtil.QUEUE_EXCLUSIVE, "false");
+        return endpointBuilder;
+    }
+
+    private void measure(final PrintStream out, final long startNanos) throws InterruptedException
+    {
+        final long durationNanos = TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        final long reportIntervalNanos = options.reportIntervalSeconds > 0 ? TimeUnit.SECONDS.toNanos(
+            options.reportIntervalSeconds) : durationNanos;
+        long lastPublished = published.get();
+        long lastConsumed = recorder.getConsumed();
+        long lastNanos = startNanos;
+
+        long remainingNanos;
+        while ((remainingNanos = durationNanos - (System.nanoTime() - startNanos)) > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(Math.min(reportIntervalNanos, remainingNanos));
+
+            if (options.reportIntervalSeconds > 0)
+            {
+                final long nowNanos = System.nanoTime();
+                final long nowPublished = published.get();
+                final long nowConsumed = recorder.getConsumed();
+                final double intervalSeconds = (nowNanos - lastNanos) / 1e9;
+
+                out.printf("[%5d s] published %.0f msg/s, consumed %.0f msg/s, backlog %d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(nowNanos - startNanos),
+                    (nowPublished - lastPublished) / intervalSeconds,
+                    (nowConsumed - lastConsumed) / intervalSeconds,
+                    options.consumers > 0 ? nowPublished - nowConsumed : nowPublished);
+
+                lastPublished = nowPublished;
+                lastConsumed = nowConsumed;
+                lastNanos = nowNanos;
+            }
+        }
+    }
+
+    private void startProducers()
+    {
+        running = true;
+        for (int i = 0; i < options.producers; i++)
+        {
+            final Thread producerThread = new Thread(new Producer(), "loadTestProducer." + i);
+            producerThread.start();
+            producerThreads.add(producerThread);
+        }
+    }
+
+    private void stopProducers()
+    {
+        running = false;
+        for (final Thread producerThread : producerThreads)
+        {
+            try
+            {
+                producerThread.join(TimeUnit.SECONDS.toMillis(10));
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        producerThreads.clear();
+    }
+
+    /**
+     * Waits for the consumers to catch up with the producers.
+     *
+     * @return the number of messages still not consumed.
+     */
+    private long drain() throws InterruptedException
+    {
+        if (options.consumers == 0)
+        {
+            return 0;
+        }
+
+        final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while ((recorder.getConsumed() < published.get()) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(100L);
+        }
+        return Math.max(0, published.get() - recorder.getConsumed());
+    }
+
+    private final class Producer implements Runnable
+    {
+        public void run()
+        {
+            final byte[] body = new byte[options.messageSize];
+            new Random().nextBytes(body);
+
+            final long intervalNanos = options.rate > 0
+                                                       ? TimeUnit.SECONDS.toNanos(options.producers) / options.rate
+                                                       : 0L;
+            long nextNanos = System.nanoTime();
+
+            while (running)
+            {
+                if (intervalNanos > 0)
+                {
+                    // fixed schedule: a late producer catches up instead of lowering the rate
+                    nextNanos += intervalNanos;
+                    final long waitNanos = nextNanos - System.nanoTime();
+                    if (waitNanos > 0)
+                    {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                }
+
+                final MuleMessage message = new DefaultMuleMessage(body, muleContext);
+                final long sentNanos = System.nanoTime();
+                message.setOutboundProperty(LoadRecorder.SENT_NANOS, sentNanos);
+
+                try
+                {
+                    outboundEndpoint.process(new DefaultMuleEvent(message, MessageExchangePattern.ONE_WAY,
+                        producerFlow));
+                    publishLatency.recordNanos(System.nanoTime() - sentNanos);
+                    published.incrementAndGet();
+                    publishedBytes.addAndGet(body.length);
+                }
+                catch (final Exception e)
+                {
+                    publishErrors.incrementAndGet();
+                    lastPublishError = e;
+                    // do not spin while the broker is unreachable
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+            }
+        }
+    }
+}
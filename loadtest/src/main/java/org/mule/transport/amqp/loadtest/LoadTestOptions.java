@@ -0,0 +1,221 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.loadtest;
+
+import org.mule.transport.amqp.AmqpConstants.AckMode;
+
+/**
+ * The command line options of a load test run, as <code>--name value</code> pairs.
+ */
+public class LoadTestOptions
+{
+    public static final String USAGE = "Usage: java -jar loadtest.jar [options]\n\n"
+                                       + "Broker:\n"
+                                       + "  --host <host>             broker host (localhost)\n"
+                                       + "  --port <port>             broker port (5672)\n"
+                                       + "  --vhost <vhost>           virtual host (/)\n"
+                                       + "  --username <username>     user name (guest)\n"
+                                       + "  --password <password>     password (guest)\n"
+                                       + "  --in-memory               use the in-memory broker instead of a real one\n\n"
+                                       + "Traffic:\n"
+                                       + "  --queue <name>            queue to load (mule-amqp-loadtest)\n"
+                                       + "  --producers <n>           producer threads (1)\n"
+                                       + "  --consumers <n>           queue consumers (1)\n"
+                                       + "  --size <bytes>            message body size (1024)\n"
+                                       + "  --rate <msg/s>            total publish rate, 0 for unthrottled (0)\n"
+                                       + "  --persistent              publish persistent messages\n\n"
+                                       + "Consumption:\n"
+                                       + "  --ack-mode <mode>         AMQP_AUTO, MULE_AUTO or MANUAL (MULE_AUTO)\n"
+                                       + "  --prefetch <n>            prefetch count, 0 for unlimited (100)\n"
+                                       + "  --tx                      consume in AMQP transactions\n\n"
+                                       + "Run:\n"
+                                       + "  --warmup <seconds>        warmup, excluded from the results (10)\n"
+                                       + "  --duration <seconds>      measured run (60)\n"
+                                       + "  --report-interval <s>     interim report period, 0 to disable (10)\n"
+                                       + "  --help                    print this message\n";
+
+    String host = "localhost";
+    int port = 5672;
+    String virtualHost = "/";
+    String username = "guest";
+    String password = "guest";
+    boolean inMemory;
+
+    String queueName = "mule-amqp-loadtest";
+    int producers = 1;
+    int consumers = 1;
+    int messageSize = 1024;
+    int rate;
+    boolean persistent;
+
+    AckMode ackMode = AckMode.MULE_AUTO;
+    int prefetchCount = 100;
+    boolean transacted;
+
+    int warmupSeconds = 10;
+    int durationSeconds = 60;
+    int reportIntervalSeconds = 10;
+    boolean help;
+
+    public static LoadTestOptions parse(final String[] args)
+    {
+        final LoadTestOptions options = new LoadTestOptions();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            final String name = args[i];
+
+            if ("--in-memory".equals(name))
+            {
+                options.inMemory = true;
+            }
+            else if ("--persistent".equals(name))
+            {
+                options.persistent = true;
+            }
+            else if ("--tx".equals(name))
+            {
+                options.transacted = true;
+            }
+            else if ("--help".equals(name) || "-h".equals(name))
+            {
+                options.help = true;
+            }
+            else
+            {
+                if (i + 1 == args.length)
+                {
+                    throw new IllegalArgumentException("Missing value for option: " + name);
+                }
+                options.set(name, args[++i]);
+            }
+        }
+
+        options.validate();
+        return options;
+    }
+
+    private void set(final String name, final String value)
+    {
+        if ("--host".equals(name))
+        {
+            host = value;
+        }
+        else if ("--port".equals(name))
+        {
+            port = toInt(name, value);
+        }
+        else if ("--vhost".equals(name))
+        {
+            virtualHost = value;
+        }
+        else if ("--username".equals(name))
+        {
+            username = value;
+        }
+        else if ("--password".equals(name))
+        {
+            password = value;
+        }
+        else if ("--queue".equals(name))
+        {
+            queueName = value;
+        }
+        else if ("--producers".equals(name))
+        {
+            producers = toInt(name, value);
+        }
+        else if ("--consumers".equals(name))
+        {
+            consumers = toInt(name, value);
+        }
+        else if ("--size".equals(name))
+        {
+            messageSize = toInt(name, value);
+        }
+        else if ("--rate".equals(name))
+        {
+            rate = toInt(name, value);
+        }
+        else if ("--ack-mode".equals(name))
+        {
+            try
+            {
+                ackMode = AckMode.valueOf(value.toUpperCase());
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new IllegalArgumentException("Invalid ack mode: " + value);
+            }
+        }
+        else if ("--prefetch".equals(name))
+        {
+            prefetchCount = toInt(name, value);
+        }
+        else if ("--warmup".equals(name))
+        {
+            warmupSeconds = toInt(name, value);
+        }
+        else if ("--duration".equals(name))
+        {
+            durationSeconds = toInt(name, value);
+        }
+        else if ("--report-interval".equals(name))
+        {
+            reportIntervalSeconds = toInt(name, value);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    private void validate()
+    {
+        if ((producers < 0) || (consumers < 0) || (producers + consumers == 0))
+        {
+            throw new IllegalArgumentException("At least one producer or consumer is needed");
+        }
+        if ((messageSize < 8) || (rate < 0) || (prefetchCount < 0) || (warmupSeconds < 0)
+            || (durationSeconds <= 0) || (reportIntervalSeconds < 0))
+        {
+            throw new IllegalArgumentException(
+                "Sizes must be at least 8 bytes, durations positive and counts not negative");
+        }
+        if (transacted && (ackMode != AckMode.MANUAL))
+        {
+            // the transaction commits the acks so the receiver must not send them itself
+            ackMode = AckMode.MANUAL;
+        }
+    }
+
+    private static int toInt(final String name, final String value)
+    {
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (final NumberFormatException nfe)
+        {
+            throw new IllegalArgumentException("Invalid number for option " + name + ": " + value);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "broker=" + (inMemory ? "in-memory" : host + ":" + port + virtualHost) + ", queue="
+               + queueName + ", producers=" + producers + ", consumers=" + consumers + ", size="
+               + messageSize + ", rate=" + (rate == 0 ? "unthrottled" : Integer.toString(rate))
+               + ", persistent=" + persistent + ", ackMode=" + ackMode + ", prefetch=" + prefetchCount
+               + ", tx=" + transacted;
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.util.FileUtils;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.LongString;
+
+/**
+ * Reassembles messages that have been split in chunks by an
+ * {@link AmqpMessageDispatcher}. Chunks of messages smaller than the spool threshold
+ * are gathered in a single exactly-sized array, while larger messages are spooled to
+ * a temporary file and delivered as {@link SpooledAmqpMessage}s. Chunks can arrive in
+ * any order and redelivered chunks are ignored. Chunks whose headers are inconsistent
+ * are rejected along with the rest of their message. Incomplete assemblies are
+ * expired by {@link #expireAssemblies()} after a time-out: their chunks are requeued
+ * the first time, so that a consumer which missed some of them gets another chance,
+ * and rejected without requeuing, hence dead-lettered if the queue has a dead letter
+ * exchange, once they have already been redelivered.
+ * <p>
+ * The deliveries of the chunks are left unacknowledged until the reassembled message
+ * is, see {@link AmqpChunkDeliveries}, so consumers need a prefetch count larger than
+ * the number of chunks of the messages they reassemble.
+ */
+public class AmqpChunkAssembler
+{
+    public static final long DEFAULT_ASSEMBLY_TIMEOUT = 10 * 60 * 1000L;
+
+    private static final String[] CHUNK_HEADERS = {AmqpConstants.CHUNK_ID, AmqpConstants.CHUNK_INDEX,
+        AmqpConstants.CHUNK_COUNT, AmqpConstants.CHUNK_OFFSET, AmqpConstants.CHUNK_TOTAL_SIZE};
+
+    private final Log logger = LogFactory.getLog(getClass());
+    private final Map<String, Assembly> assemblies = new HashMap<String, Assembly>();
+    private final int spoolThreshold;
+    private final long assemblyTimeout;
+
+    private static class Assembly
+    {
+        private final int chunkCount;
+        private final long totalSize;
+        private final BitSet receivedChunks = new BitSet();
+        private final AmqpChunkDeliveries chunkDeliveries = new AmqpChunkDeliveries();
+        private final byte[] body;
+        private final File spoolFile;
+        private final RandomAccessFile spool;
+        private long lastUpdate;
+        private boolean redelivered;
+
+        private Assembly(final int chunkCount, final long totalSize, final int spoolThreshold)
+            throws IOException
+        {
+            this.chunkCount = chunkCount;
+            this.totalSize = totalSize;
+
+            if ((totalSize <= spoolThreshold) && (totalSize <= Integer.MAX_VALUE))
+            {
+                body = new byte[(int) totalSize];
+                spoolFile = null;
+                spool = null;
+            }
+            else
+            {
+                body = null;
+                spoolFile = File.createTempFile("mule-amqp-chunks-", ".spool");
+                spoolFile.deleteOnExit();
+                spool = new RandomAccessFile(spoolFile, "rw");
+                spool.setLength(totalSize);
+            }
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        private void write(final int index, final long offset, final byte[] chunkBody) throws IOException
+        {
+            lastUpdate = System.currentTimeMillis();
+
+            if ((index < 0) || (index >= chunkCount))
+            {
+                throw new IOException("Chunk index " + index + " out of a message of " + chunkCount + " chunks");
+            }
+
+            if (receivedChunks.get(index))
+            {
+                return;
+            }
+
+            if ((offset < 0) || (offset + chunkBody.length > totalSize))
+            {
+                throw new IOException("Chunk " + index + " of size " + chunkBody.length + " at offset "
+                                      + offset + " does not fit in a message of size " + totalSize);
+            }
+
+            if (body != null)
+            {
+                System.arraycopy(chunkBody, 0, body, (int) offset, chunkBody.length);
+            }
+            else
+            {
+                spool.seek(offset);
+                spool.write(chunkBody);
+            }
+
+            receivedChunks.set(index);
+        }
+
+        private boolean isComplete()
+        {
+            return receivedChunks.cardinality() == chunkCount;
+        }
+
+        private AmqpMessage toAmqpMessage(final AmqpMessage lastChunk) throws IOException
+        {
+            final BasicProperties properties = stripChunkHeaders(lastChunk.getProperties());
+
+            final AmqpMessage amqpMessage;
+            if (body != null)
+            {
+                amqpMessage = new AmqpMessage(lastChunk.getConsumerTag(), lastChunk.getEnvelope(), properties,
+                    body);
+            }
+            else
+            {
+                spool.close();
+                amqpMessage = new SpooledAmqpMessage(lastChunk.getConsumerTag(), lastChunk.getEnvelope(),
+                    properties, spoolFile);
+            }
+
+            if (chunkDeliveries.size() > 0)
+            {
+                amqpMessage.setChunkDeliveries(chunkDeliveries);
+            }
+            return amqpMessage;
+        }
+
+        private void reject(final boolean requeue)
+        {
+            try
+            {
+                chunkDeliveries.reject(requeue);
+            }
+            catch (final IOException ioe)
+            {
+                // ignored, the broker redelivers them once their channel is closed
+            }
+            discard();
+        }
+
+        private void discard()
+        {
+            if (spool == null)
+            {
+                return;
+            }
+
+            try
+            {
+                spool.close();
+            }
+            catch (final IOException ioe)
+            {
+                // ignored, the spool file is deleted anyway
+            }
+            FileUtils.deleteQuietly(spoolFile);
+        }
+    }
+
+    public AmqpChunkAssembler(final int spoolThreshold)
+    {
+        this(spoolThreshold, DEFAULT_ASSEMBLY_TIMEOUT);
+    }
+
+    public AmqpChunkAssembler(final int spoolThreshold, final long assemblyTimeout)
+    {
+        this.spoolThreshold = spoolThreshold;
+        this.assemblyTimeout = assemblyTimeout;
+    }
+
+    public static boolean isChunk(final AmqpMessage amqpMessage)
+    {
+        final Map<String, Object> headers = amqpMessage.getProperties().getHeaders();
+        return (headers != null) && (headers.containsKey(AmqpConstants.CHUNK_ID));
+    }
+
+    /**
+     * @return the reassembled message if the provided chunk was the last one missing,
+     *         null otherwise.
+     */
+    public AmqpMessage accept(final AmqpMessage chunk) throws IOException
+    {
+        return accept(chunk, null);
+    }
+
+    /**
+     * @param channel the channel the chunk has been delivered on, if its delivery must
+     *            be acknowledged along with the reassembled message, else null.
+     * @return the reassembled message if the provided chunk was the last one missing,
+     *         null otherwise.
+     * @throws IOException if the chunk is invalid, in which case the chunks already
+     *             received for its message are rejected.
+     */
+    public synchronized AmqpMessage accept(final AmqpMessage chunk, final Channel channel) throws IOException
+    {
+        final Map<String, Object> headers = chunk.getProperties().getHeaders();
+        final String chunkId = getString(headers, AmqpConstants.CHUNK_ID);
+        final long chunkCount = getLong(headers, AmqpConstants.CHUNK_COUNT);
+        final long totalSize = getLong(headers, AmqpConstants.CHUNK_TOTAL_SIZE);
+
+        Assembly assembly = assemblies.get(chunkId);
+        try
+        {
+            if (assembly == null)
+            {
+                validateSizes(chunkId, chunkCount, totalSize);
+                assembly = new Assembly((int) chunkCount, totalSize, spoolThreshold);
+                assemblies.put(chunkId, assembly);
+            }
+            else if ((assembly.chunkCount != chunkCount) || (assembly.totalSize != totalSize))
+            {
+                throw new IOException("Chunk of message: " + chunkId + " announces " + chunkCount
+                                      + " chunks and " + totalSize + " bytes instead of "
+                                      + assembly.chunkCount + " chunks and " + assembly.totalSize + " bytes");
+            }
+
+            final long index = getLong(headers, AmqpConstants.CHUNK_INDEX);
+            assembly.write(index > Integer.MAX_VALUE ? -1 : (int) index,
+                getLong(headers, AmqpConstants.CHUNK_OFFSET), chunk.getBody());
+        }
+        catch (final IOException ioe)
+        {
+            if (assembly != null)
+            {
+                assemblies.remove(chunkId);
+                assembly.reject(false);
+            }
+            throw ioe;
+        }
+
+        if ((chunk.getEnvelope() != null) && (chunk.getEnvelope().isRedeliver()))
+        {
+            assembly.redelivered = true;
+        }
+
+        if (!assembly.isComplete())
+        {
+            if (channel != null)
+            {
+                assembly.chunkDeliveries.add(channel, chunk.getEnvelope().getDeliveryTag());
+            }
+            return null;
+        }
+
+        assemblies.remove(chunkId);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Reassembled message: " + chunkId + " from " + assembly.chunkCount + " chunks");
+        }
+
+        return assembly.toAmqpMessage(chunk);
+    }
+
+    /**
+     * @return the number of chunks received for messages that are not complete yet.
+     */
+    public synchronized int getPendingChunkCount()
+    {
+        int pendingChunkCount = 0;
+        for (final Assembly assembly : assemblies.values())
+        {
+            pendingChunkCount += assembly.receivedChunks.cardinality();
+        }
+        return pendingChunkCount;
+    }
+
+    /**
+     * Discards the incomplete messages, whose chunks are redelivered by the broker once
+     * their channels are closed.
+     */
+    public synchronized void dispose()
+    {
+        for (final Assembly assembly : assemblies.values())
+        {
+            assembly.discard();
+        }
+        assemblies.clear();
+    }
+
+    public long getAssemblyTimeout()
+    {
+        return assemblyTimeout;
+    }
+
+    /**
+     * Discards the incomplete messages that have not received any chunk for longer than
+     * the assembly time-out. Called periodically, so that assemblies expire even if no
+     * more chunks arrive.
+     *
+     * @return the number of expired messages.
+     */
+    public synchronized int expireAssemblies()
+    {
+        final long expiry = System.currentTimeMillis() - assemblyTimeout;
+        int expired = 0;
+
+        for (final Iterator<Map.Entry<String, Assembly>> i = assemblies.entrySet().iterator(); i.hasNext();)
+        {
+            final Map.Entry<String, Assembly> entry = i.next();
+            final Assembly assembly = entry.getValue();
+            if (assembly.lastUpdate < expiry)
+            {
+                if (assembly.redelivered)
+                {
+                    logger.warn("Rejecting incomplete redelivered chunked message: " + entry.getKey());
+                }
+                else
+                {
+                    logger.warn("Requeuing incomplete chunked message: " + entry.getKey());
+                }
+                assembly.reject(!assembly.redelivered);
+                i.remove();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    private void validateSizes(final String chunkId, final long chunkCount, final long totalSize)
+        throws IOException
+    {
+        // chunks are never empty unless the message is, which bounds the chunk count
+        if ((chunkCount < 1) || (chunkCount > Integer.MAX_VALUE) || (totalSize < 0)
+            || (chunkCount > Math.max(totalSize, 1L)))
+        {
+            throw new IOException("Invalid chunked message: " + chunkId + " of " + chunkCount + " chunks and "
+                                  + totalSize + " bytes");
+        }
+    }
+
+    /**
+     * @return the properties of a chunk of a message split by a publisher.
+     */
+    static BasicProperties chunkProperties(final BasicProperties properties,
+                                           final String chunkId,
+                                           final int chunkIndex,
+                                           final int chunkCount,
+                                           final long offset,
+                                           final long totalSize)
+    {
+        final Map<String, Object> headers = properties.getHeaders() == null
+                                                                           ? new HashMap<String, Object>()
+                                                                           : new HashMap<String, Object>(
+                                                                               properties.getHeaders());
+        headers.put(AmqpConstants.CHUNK_ID, chunkId);
+        headers.put(AmqpConstants.CHUNK_INDEX, chunkIndex);
+        headers.put(AmqpConstants.CHUNK_COUNT, chunkCount);
+        headers.put(AmqpConstants.CHUNK_OFFSET, offset);
+        headers.put(AmqpConstants.CHUNK_TOTAL_SIZE, totalSize);
+        return properties.builder().headers(headers).build();
+    }
+
+    static BasicProperties stripChunkHeaders(final BasicProperties properties)
+    {
+        final Map<String, Object> headers = new HashMap<String, Object>(properties.getHeaders());
+        for (final String chunkHeader : CHUNK_HEADERS)
+        {
+            headers.remove(chunkHeader);
+        }
+        return properties.builder().headers(headers.isEmpty() ? null : headers).build();
+    }
+
+    private static String getString(final Map<String, Object> headers, final String key)
+    {
+        final Object value = headers.get(key);
+
+        if (value instanceof LongString)
+        {
+            return new String(((LongString) value).getBytes(), AmqpConstants.LONG_STRING_CHARSET);
+        }
+
+        return String.valueOf(value);
+    }
+
+    private static long getLong(final Map<String, Object> headers, final String key) throws IOException
+    {
+        final Object value = headers.get(key);
+
+        if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+
+        throw new IOException("Missing or invalid chunk header: " + key + "=" + value);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * The deliveries of the chunks of a reassembled message, except the last one. They
+ * are left unacknowledged while the message is reassembled and processed, and are
+ * acknowledged or rejected along with the delivery of the last chunk, so that a
+ * message is never partially acknowledged. Chunks may have been delivered on several
+ * channels when a queue has several consumers.
+ */
+public final class AmqpChunkDeliveries
+{
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private final List<Long> deliveryTags = new ArrayList<Long>();
+    private boolean settled;
+
+    synchronized void add(final Channel channel, final long deliveryTag)
+    {
+        channels.add(channel);
+        deliveryTags.add(deliveryTag);
+    }
+
+    public synchronized int size()
+    {
+        return deliveryTags.size();
+    }
+
+    /**
+     * Acknowledges the deliveries once the delivery of the last chunk has been
+     * acknowledged with <code>multiple</code>, in which case the deliveries it already
+     * covers are not acknowledged again. Deliveries of closed channels are skipped, the
+     * broker having requeued them.
+     */
+    public synchronized void ack(final Channel lastChannel, final long lastDeliveryTag, final boolean multiple)
+        throws IOException
+    {
+        if (settled)
+        {
+            return;
+        }
+        settled = true;
+
+        for (int i = 0; i < deliveryTags.size(); i++)
+        {
+            final Channel channel = channels.get(i);
+            final long deliveryTag = deliveryTags.get(i);
+
+            if ((!channel.isOpen()) || ((multiple) && (channel == lastChannel) && (deliveryTag <= lastDeliveryTag)))
+            {
+                continue;
+            }
+            channel.basicAck(deliveryTag, false);
+        }
+    }
+
+    /**
+     * Rejects the deliveries along with the delivery of the last chunk.
+     */
+    public synchronized void reject(final boolean requeue) throws IOException
+    {
+        if (settled)
+        {
+            return;
+        }
+        settled = true;
+
+        for (int i = 0; i < deliveryTags.size(); i++)
+        {
+            final Channel channel = channels.get(i);
+            if (channel.isOpen())
+            {
+                channel.basicReject(deliveryTags.get(i), requeue);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "AmqpChunkDeliveries[deliveryTags=" + deliveryTags + ", settled=" + settled + "]";
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * A channel in confirm mode shared by concurrent publishers, each of which only waits
+ * for the confirms of its own messages: publications are tracked by their sequence
+ * number, so a nack or a slow confirm only fails the publisher of the message
+ * concerned.
+ */
+public final class AmqpConfirmChannel
+{
+    private final Channel channel;
+
+    // guarded by this
+    private final SortedMap<Long, Confirmation> unconfirmed = new TreeMap<Long, Confirmation>();
+
+    /**
+     * The confirms awaited for the messages of one publisher.
+     */
+    public static final class Confirmation
+    {
+        // guarded by this
+        private int pending;
+        private boolean nacked;
+        private ShutdownSignalException shutdownSignal;
+
+        private synchronized void expect()
+        {
+            pending++;
+        }
+
+        private synchronized void confirmed(final boolean acked)
+        {
+            pending--;
+            nacked |= !acked;
+            notifyAll();
+        }
+
+        private synchronized void failed(final ShutdownSignalException sse)
+        {
+            shutdownSignal = sse;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the broker to confirm all the messages published with this
+         * confirmation.
+         *
+         * @return false if the broker nacked any of them.
+         * @throws IOException if the channel has been closed before all the messages
+         *             were confirmed.
+         */
+        public synchronized boolean await(final long timeout) throws IOException, InterruptedException,
+            TimeoutException
+        {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while ((pending > 0) && (!nacked))
+            {
+                if (shutdownSignal != null)
+                {
+                    final IOException ioe = new IOException("Channel closed before the broker confirmed messages");
+                    ioe.initCause(shutdownSignal);
+                    throw ioe;
+                }
+
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L)
+                {
+                    throw new TimeoutException("Timed out waiting for " + pending + " confirms");
+                }
+                wait(remaining);
+            }
+            return !nacked;
+        }
+    }
+
+    public AmqpConfirmChannel(final Channel channel) throws IOException
+    {
+        this.channel = channel;
+        channel.confirmSelect();
+        channel.addConfirmListener(new ConfirmListener()
+        {
+            public void handleAck(final long deliveryTag, final boolean multiple)
+            {
+                confirm(deliveryTag, multiple, true);
+            }
+
+            public void handleNack(final long deliveryTag, final boolean multiple)
+            {
+                confirm(deliveryTag, multiple, false);
+            }
+        });
+        channel.addShutdownListener(new ShutdownListener()
+        {
+            public void shutdownCompleted(final ShutdownSignalException sse)
+            {
+                failAll(sse);
+            }
+        });
+    }
+
+    public Channel getChannel()
+    {
+        return channel;
+    }
+
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * Publishes a message whose confirm is awaited with <code>confirmation</code>.
+     */
+    public synchronized void publish(final Confirmation confirmation,
+                                     final String exchange,
+                                     final String routingKey,
+                                     final BasicProperties properties,
+                                     final byte[] body) throws IOException
+    {
+        // tracked before publishing so that a confirm can't arrive for an unknown
+        // sequence number
+        final long sequenceNumber = channel.getNextPublishSeqNo();
+        confirmation.expect();
+        unconfirmed.put(sequenceNumber, confirmation);
+        try
+        {
+            channel.basicPublish(exchange, routingKey, properties, body);
+        }
+        catch (final IOException ioe)
+        {
+            unconfirmed.remove(sequenceNumber);
+            confirmation.confirmed(true);
+            throw ioe;
+        }
+    }
+
+    private void confirm(final long deliveryTag, final boolean multiple, final boolean acked)
+    {
+        final List<Confirmation> confirmations = new ArrayList<Confirmation>();
+        synchronized (this)
+        {
+            if (multiple)
+            {
+                final SortedMap<Long, Confirmation> confirmed = unconfirmed.headMap(deliveryTag + 1);
+                confirmations.addAll(confirmed.values());
+                confirmed.clear();
+            }
+            else
+            {
+                final Confirmation confirmation = unconfirmed.remove(deliveryTag);
+                if (confirmation != null)
+                {
+                    confirmations.add(confirmation);
+                }
+            }
+        }
+
+        for (final Confirmation confirmation : confirmations)
+        {
+            confirmation.confirmed(acked);
+        }
+    }
+
+    private void failAll(final ShutdownSignalException sse)
+    {
+        final List<Confirmation> confirmations;
+        synchronized (this)
+        {
+            confirmations = new ArrayList<Confirmation>(unconfirmed.values());
+            unconfirmed.clear();
+        }
+
+        for (final Confirmation confirmation : confirmations)
+        {
+            confirmation.failed(sse);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AmqpConfirmChannel[channel=" + channel + "]";
+    }
+}
@@ -10,10 +10,15 @@
 
 package org.mule.transport.amqp;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
@@ -43,10 +48,15 @@ import org.mule.transport.AbstractConnector;
 import org.mule.transport.ConnectException;
 import org.mule.transport.amqp.AmqpConstants.AckMode;
 import org.mule.transport.amqp.AmqpConstants.DeliveryMode;
+import org.mule.transport.amqp.AmqpConstants.RateLimitPolicy;
+import org.mule.transport.amqp.AmqpConstants.SpoolMode;
+import org.mule.transport.amqp.management.AbstractAmqpStatistics;
+import org.mule.transport.amqp.management.AmqpConnectorStatistics;
 import org.mule.transport.amqp.transformers.AmqpMessageToObject;
 import org.mule.util.NumberUtils;
 import org.mule.util.StringUtils;
 
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Address;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
@@ -64,6 +74,11 @@ public class AmqpConnector extends AbstractConnector
 {
     public static final String AMQP = "amqp";
 
+    public static final int DEFAULT_SPOOL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_SPOOL_MAX_SIZE = 1024L * 1024L * 1024L;
+    public static final long DEFAULT_SPOOL_REPLAY_INTERVAL = 1000L;
+    private static final int SPOOL_REPLAY_BATCH_SIZE = 100;
+
     private final Transformer receiveTransformer;
 
     private String host;
@@ -79,15 +94,68 @@ public class AmqpConnector extends AbstractConnector
     private boolean mandatory;
     private boolean immediate;
     private ReturnListener defaultReturnListener;
+    private final ReturnListener returnCountingListener = new ReturnListener()
+    {
+        public void handleReturn(final int replyCode,
+                                 final String replyText,
+                                 final String exchange,
+                                 final String routingKey,
+                                 final BasicProperties properties,
+                                 final byte[] body) throws IOException
+        {
+            amqpStatistics.messageReturned();
+        }
+    };
+    private final AmqpOutboundSpool.RateLimiterLookup endpointRateLimiterLookup = new AmqpOutboundSpool.RateLimiterLookup()
+    {
+        public AmqpRateLimiter lookup(final String rateLimiterKey)
+        {
+            try
+            {
+                return getRateLimiter(rateLimiterKey);
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                // a corrupted key must not block the replay of the spool
+                logger.warn("Ignoring rate limiter of spooled message", iae);
+                return null;
+            }
+        }
+    };
     private EndpointBuilder defaultReturnEndpointBuilder;
     private int prefetchSize;
     private int prefetchCount;
     private boolean noLocal;
     private boolean exclusiveConsumers;
+    private boolean jmxEnabled;
+    private long latencyReportInterval;
+    private ScheduledFuture<?> latencyReportTask;
+    private String spoolDirectory;
+    private SpoolMode spoolMode = SpoolMode.FALLBACK;
+    private int spoolSegmentSize = DEFAULT_SPOOL_SEGMENT_SIZE;
+    private long spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE;
+    private boolean spoolSync;
+    private long spoolReplayInterval = DEFAULT_SPOOL_REPLAY_INTERVAL;
+    private AmqpOutboundSpool outboundSpool;
+    private ScheduledFuture<?> spoolReplayTask;
+    // guards the spool replay channel, replaced by the replay task and closed on disconnection
+    private final Object spoolReplayLock = new Object();
+    private Channel spoolReplayChannel;
+    // guards the channel on which failed messages are republished for retry, closed on disconnection
+    private final Object retryChannelLock = new Object();
+    private AmqpConfirmChannel retryChannel;
+    private final Object spoolFallbackLock = new Object();
+    private volatile boolean spoolFallback;
+    private int publishRateLimit;
+    private int publishByteRateLimit;
+    private RateLimitPolicy publishRateLimitPolicy = RateLimitPolicy.BLOCK;
+    private AmqpRateLimiter rateLimiter;
+    private final ConcurrentMap<String, AmqpRateLimiter> endpointRateLimiters = new ConcurrentHashMap<String, AmqpRateLimiter>();
 
     private ConnectionFactory connectionFactory;
     private Connection connection;
     private final StackObjectPool connectorConnectionPool;
+    private final AmqpConnectorStatistics amqpStatistics;
 
     /**
      * A fake {@link FlowConstruct} that is used when the events need to be
@@ -131,6 +199,7 @@ public class AmqpConnector extends AbstractConnector
             try
             {
                 final Channel channel = amqpConnector.getConnection().createChannel();
+                amqpConnector.amqpStatistics.channelCreated();
 
                 channel.addShutdownListener(new ShutdownListener()
                 {
@@ -145,6 +214,7 @@ public class AmqpConnector extends AbstractConnector
                         // decide what to do reset the channel so it would later
                         // be lazily reconnected
                         channelRef.set(null);
+                        amqpConnector.amqpStatistics.channelLost();
                         if (logger.isDebugEnabled())
                         {
                             logger.debug("Terminated dead channel: " + channel, sse);
@@ -153,6 +223,7 @@ public class AmqpConnector extends AbstractConnector
                 });
 
                 channel.addReturnListener(amqpConnector.defaultReturnListener);
+                channel.addReturnListener(amqpConnector.returnCountingListener);
 
                 channel.basicQos(amqpConnector.getPrefetchSize(), amqpConnector.getPrefetchCount(), false);
 
@@ -165,6 +236,8 @@ public class AmqpConnector extends AbstractConnector
             }
             catch (final Exception e)
             {
+                amqpConnector.amqpStatistics.errorOccurred(e);
+
                 if ((!amqpConnector.isStopping()) && (amqpConnector.isStarted()))
                 {
                     amqpConnector.getMuleContext()
@@ -222,17 +295,38 @@ public class AmqpConnector extends AbstractConnector
     public static class InboundConnection extends AmqpConnection
     {
         private final String queue;
+        private final List<String> additionalQueues;
 
-        private InboundConnection(final AmqpConnector amqpConnector, final String queue)
+        private InboundConnection(final AmqpConnector amqpConnector,
+                                  final String queue,
+                                  final List<String> additionalQueues)
         {
             super(amqpConnector);
             this.queue = queue;
+            this.additionalQueues = additionalQueues;
         }
 
         public String getQueue()
         {
             return queue;
         }
+
+        /**
+         * @return the queues consumed in addition to the queue of the endpoint address.
+         */
+        public List<String> getAdditionalQueues()
+        {
+            return additionalQueues;
+        }
+
+        /**
+         * @return a connection to the same queues with a channel of its own, for an
+         *         additional consumer.
+         */
+        public InboundConnection duplicate()
+        {
+            return new InboundConnection(getAmqpConnector(), queue, additionalQueues);
+        }
     }
 
     public static class OutboundConnection extends AmqpConnection
@@ -326,6 +420,8 @@ public class AmqpConnector extends AbstractConnector
         final int initIdleCapacity = 0;
         connectorConnectionPool = new StackObjectPool(new ConnectorConnectionPoolableObjectFactory(this),
             maxIdle, initIdleCapacity);
+
+        amqpStatistics = new AmqpConnectorStatistics(this);
     }
 
     @Override
@@ -353,6 +449,27 @@ public class AmqpConnector extends AbstractConnector
             setHost(connectionFactory.getHost());
             setPort(connectionFactory.getPort());
         }
+
+        if (StringUtils.isNotBlank(spoolDirectory))
+        {
+            openOutboundSpool();
+        }
+
+        if ((publishRateLimit > 0) || (publishByteRateLimit > 0))
+        {
+            if ((publishRateLimitPolicy == RateLimitPolicy.SPOOL) && (outboundSpool == null))
+            {
+                throw new InitialisationException(
+                    MessageFactory.createStaticMessage("The SPOOL rate limit policy requires a spool directory"),
+                    this);
+            }
+            rateLimiter = new AmqpRateLimiter(publishRateLimit, publishByteRateLimit);
+        }
+
+        if (jmxEnabled)
+        {
+            amqpStatistics.registerMBeans("Mule." + getMuleContext().getConfiguration().getId());
+        }
     }
 
     @Override
@@ -363,6 +480,7 @@ public class AmqpConnector extends AbstractConnector
         addFallbackAddresses(brokerAddresses);
 
         connectToFirstResponsiveBroker(brokerAddresses);
+        amqpStatistics.connected();
 
         configureDefaultReturnListener();
         // clear any connector connections that could have been created in a previous
@@ -373,18 +491,65 @@ public class AmqpConnector extends AbstractConnector
     @Override
     public void doStart() throws MuleException
     {
-        // NOOP
+        if (latencyReportInterval > 0)
+        {
+            latencyReportTask = getScheduler().scheduleAtFixedRate(new Runnable()
+            {
+                public void run()
+                {
+                    amqpStatistics.reportLatencies();
+                }
+            }, latencyReportInterval, latencyReportInterval, TimeUnit.MILLISECONDS);
+        }
+
+        if (outboundSpool != null)
+        {
+            spoolReplayTask = getScheduler().scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    replayOutboundSpool();
+                }
+            }, 0L, spoolReplayInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void doStop() throws MuleException
     {
-        // NOOP
+        if (latencyReportTask != null)
+        {
+            latencyReportTask.cancel(false);
+            latencyReportTask = null;
+        }
+
+        if (spoolReplayTask != null)
+        {
+            spoolReplayTask.cancel(false);
+            spoolReplayTask = null;
+        }
     }
 
     @Override
     public void doDisconnect() throws Exception
     {
+        final Channel replayChannel;
+        synchronized (spoolReplayLock)
+        {
+            replayChannel = spoolReplayChannel;
+            spoolReplayChannel = null;
+        }
+        closeChannel(replayChannel);
+        final AmqpConfirmChannel confirmChannel;
+        synchronized (retryChannelLock)
+        {
+            confirmChannel = retryChannel;
+            retryChannel = null;
+        }
+        if (confirmChannel != null)
+        {
+            closeChannel(confirmChannel.getChannel());
+        }
         connectorConnectionPool.clear();
         connection.close();
     }
@@ -392,6 +557,14 @@ public class AmqpConnector extends AbstractConnector
     @Override
     public void doDispose()
     {
+        amqpStatistics.unregisterMBeans();
+
+        if (outboundSpool != null)
+        {
+            outboundSpool.close();
+            outboundSpool = null;
+        }
+
         try
         {
             connectorConnectionPool.close();
@@ -404,6 +577,146 @@ public class AmqpConnector extends AbstractConnector
         connectionFactory = null;
     }
 
+    protected void openOutboundSpool() throws InitialisationException
+    {
+        File directory = new File(spoolDirectory);
+        if (!directory.isAbsolute())
+        {
+            directory = new File(getMuleContext().getConfiguration().getWorkingDirectory(), spoolDirectory);
+        }
+
+        try
+        {
+            outboundSpool = new AmqpOutboundSpool(directory, spoolSegmentSize, spoolMaxSize, spoolSync);
+            // messages spooled before a restart must be published before new ones
+            spoolFallback = !outboundSpool.isEmpty();
+            logger.info(String.format("Opened outbound spool: %s in mode: %s with %d pending messages",
+                directory, spoolMode, outboundSpool.getPendingRecords()));
+        }
+        catch (final IOException ioe)
+        {
+            throw new InitialisationException(
+                MessageFactory.createStaticMessage("Failed to open outbound spool: " + directory), ioe, this);
+        }
+    }
+
+    /**
+     * Publishes the spooled messages with publisher confirms, until the spool is empty
+     * or the broker fails. Only called from the scheduled replay task.
+     */
+    protected void replayOutboundSpool()
+    {
+        final Connection replayConnection = connection;
+        if ((outboundSpool.isEmpty()) || (replayConnection == null) || (!replayConnection.isOpen()))
+        {
+            endSpoolFallback();
+            return;
+        }
+
+        long replayed = 0L;
+        try
+        {
+            // a disconnection closes the channel under the replay, which then fails and
+            // is retried with a new channel
+            final Channel replayChannel = getSpoolReplayChannel(replayConnection);
+
+            int batchSize;
+            while ((!isStopping())
+                   && ((batchSize = outboundSpool.replay(replayChannel, mandatory, immediate,
+                       SPOOL_REPLAY_BATCH_SIZE, rateLimiter, endpointRateLimiterLookup)) > 0))
+            {
+                replayed += batchSize;
+                amqpStatistics.messagesReplayed(batchSize);
+            }
+            endSpoolFallback();
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final Exception e)
+        {
+            amqpStatistics.errorOccurred(e);
+            logger.warn("Failed to replay spooled messages, retrying in " + spoolReplayInterval + " ms", e);
+        }
+
+        if (replayed > 0)
+        {
+            logger.info(String.format("Replayed %d spooled messages, %d pending", replayed,
+                outboundSpool.getPendingRecords()));
+        }
+    }
+
+    private Channel getSpoolReplayChannel(final Connection replayConnection) throws IOException
+    {
+        synchronized (spoolReplayLock)
+        {
+            if ((spoolReplayChannel == null) || (!spoolReplayChannel.isOpen()))
+            {
+                spoolReplayChannel = replayConnection.createChannel();
+                amqpStatistics.channelCreated();
+                spoolReplayChannel.addReturnListener(defaultReturnListener);
+                spoolReplayChannel.addReturnListener(returnCountingListener);
+                spoolReplayChannel.confirmSelect();
+            }
+            return spoolReplayChannel;
+        }
+    }
+
+    /**
+     * @return the confirm channel shared by the receivers of the connector to republish
+     *         failed messages for retry, so that their consumer channels are neither put
+     *         in confirm mode nor blocked by the confirms of each other's messages.
+     */
+    public AmqpConfirmChannel getRetryChannel() throws IOException
+    {
+        synchronized (retryChannelLock)
+        {
+            if ((retryChannel == null) || (!retryChannel.isOpen()))
+            {
+                final Channel channel = connection.createChannel();
+                amqpStatistics.channelCreated();
+                channel.addReturnListener(defaultReturnListener);
+                channel.addReturnListener(returnCountingListener);
+                retryChannel = new AmqpConfirmChannel(channel);
+            }
+            return retryChannel;
+        }
+    }
+
+    /**
+     * Makes the dispatchers of the connector spool their messages in fallback mode until
+     * the spool has been replayed, so that they are not published before the messages
+     * spooled because the broker was unavailable. Messages spooled because of a rate
+     * limit don't call this, so that other endpoints keep publishing directly.
+     */
+    public void markSpoolFallback()
+    {
+        synchronized (spoolFallbackLock)
+        {
+            spoolFallback = true;
+        }
+    }
+
+    private void endSpoolFallback()
+    {
+        synchronized (spoolFallbackLock)
+        {
+            if ((spoolFallback) && (outboundSpool.isEmpty()))
+            {
+                spoolFallback = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if messages have been spooled in fallback mode and not replayed yet.
+     */
+    public boolean isSpoolFallback()
+    {
+        return spoolFallback;
+    }
+
     protected void addFallbackAddresses(final List<Address> brokerAddresses)
     {
         if (fallbackAddresses == null) return;
@@ -451,6 +764,7 @@ public class AmqpConnector extends AbstractConnector
                             return;
                         }
 
+                        amqpStatistics.errorOccurred(sse);
                         getMuleContext().getExceptionListener().handleException(
                             new ConnectException(
                                 MessageFactory.createStaticMessage("Connection shutdown detected for: "
@@ -561,13 +875,48 @@ public class AmqpConnector extends AbstractConnector
     {
         try
         {
+            final AmqpEndpointConfig endpointConfig = AmqpEndpointConfig.forEndpoint(inboundEndpoint);
+
             return runConnectorConnectionAction(new ConnectorConnectionAction<InboundConnection>()
             {
                 public InboundConnection run(final ConnectorConnection connectorConnection) throws Exception
                 {
-                    final String queueName = AmqpEndpointUtil.getOrCreateQueue(
-                        connectorConnection.getChannel(), inboundEndpoint, activeDeclarationsOnly);
-                    return new InboundConnection(connectorConnection.getAmqpConnector(), queueName);
+                    final List<String> additionalQueueNames = new ArrayList<String>();
+                    final String queueName;
+                    if (endpointConfig.getShards() > 0)
+                    {
+                        // the shards are consumed as the queue of the endpoint and
+                        // additional queues
+                        final List<String> shardQueueNames = AmqpEndpointUtil.getOrCreateShardQueues(
+                            connectorConnection.getChannel(), endpointConfig, activeDeclarationsOnly);
+                        queueName = shardQueueNames.get(0);
+                        additionalQueueNames.addAll(shardQueueNames.subList(1, shardQueueNames.size()));
+                    }
+                    else
+                    {
+                        queueName = AmqpEndpointUtil.getOrCreateQueue(connectorConnection.getChannel(),
+                            endpointConfig, activeDeclarationsOnly);
+                    }
+
+                    for (final String additionalQueueName : endpointConfig.getAdditionalQueues().keySet())
+                    {
+                        additionalQueueNames.add(AmqpEndpointUtil.getOrCreateQueue(
+                            connectorConnection.getChannel(), endpointConfig, additionalQueueName,
+                            activeDeclarationsOnly));
+                    }
+
+                    if (endpointConfig.getRetryPolicy() != null)
+                    {
+                        endpointConfig.getRetryPolicy().declare(connectorConnection.getChannel(), queueName);
+                        for (final String additionalQueueName : additionalQueueNames)
+                        {
+                            endpointConfig.getRetryPolicy().declare(connectorConnection.getChannel(),
+                                additionalQueueName);
+                        }
+                    }
+
+                    return new InboundConnection(connectorConnection.getAmqpConnector(), queueName,
+                        Collections.unmodifiableList(additionalQueueNames));
                 }
             });
         }
@@ -581,41 +930,40 @@ public class AmqpConnector extends AbstractConnector
 
     public OutboundConnection connect(final MessageDispatcher messageDispatcher) throws ConnectException
     {
+        return connect(messageDispatcher, messageDispatcher.getEndpoint());
+    }
 
-        final OutboundEndpoint outboundEndpoint = messageDispatcher.getEndpoint();
-
+    protected OutboundConnection connect(final Connectable connectable, final OutboundEndpoint outboundEndpoint)
+        throws ConnectException
+    {
         try
         {
+            final AmqpEndpointConfig endpointConfig = AmqpEndpointConfig.forEndpoint(outboundEndpoint);
+
             return runConnectorConnectionAction(new ConnectorConnectionAction<OutboundConnection>()
             {
                 public OutboundConnection run(final ConnectorConnection connectorConnection) throws Exception
                 {
 
                     final String exchange = AmqpEndpointUtil.getOrCreateExchange(
-                        connectorConnection.getChannel(), outboundEndpoint, activeDeclarationsOnly);
+                        connectorConnection.getChannel(), endpointConfig, activeDeclarationsOnly);
 
-                    if (StringUtils.isNotEmpty(AmqpEndpointUtil.getQueueName(outboundEndpoint.getAddress()))
-                        || outboundEndpoint.getProperties().containsKey(AmqpEndpointUtil.QUEUE_DURABLE)
-                        || outboundEndpoint.getProperties().containsKey(AmqpEndpointUtil.QUEUE_AUTO_DELETE)
-                        || outboundEndpoint.getProperties().containsKey(AmqpEndpointUtil.QUEUE_EXCLUSIVE))
+                    if (endpointConfig.getShards() > 0)
                     {
-                        AmqpEndpointUtil.getOrCreateQueue(connectorConnection.getChannel(), outboundEndpoint,
-                            activeDeclarationsOnly);
+                        AmqpEndpointUtil.getOrCreateShardQueues(connectorConnection.getChannel(),
+                            endpointConfig, activeDeclarationsOnly);
                     }
-
-                    String routingKey = AmqpEndpointUtil.getRoutingKey(outboundEndpoint);
-
-                    // handle dispatching to default exchange
-                    if ((StringUtils.isBlank(exchange)) && (StringUtils.isBlank(routingKey)))
+                    else if (StringUtils.isNotEmpty(endpointConfig.getQueueName())
+                             || endpointConfig.isQueueDeclaration())
                     {
-                        final String queueName = AmqpEndpointUtil.getQueueName(outboundEndpoint.getAddress());
-                        if (StringUtils.isNotBlank(queueName))
-                        {
-                            routingKey = queueName;
-                        }
+                        AmqpEndpointUtil.getOrCreateQueue(connectorConnection.getChannel(), endpointConfig,
+                            activeDeclarationsOnly);
                     }
+
+                    // handles dispatching to default exchange
                     final OutboundConnection oc = new OutboundConnection(
-                        connectorConnection.getAmqpConnector(), exchange, routingKey);
+                        connectorConnection.getAmqpConnector(), exchange,
+                        endpointConfig.getOutboundRoutingKey());
                     return oc;
                 }
             });
@@ -624,7 +972,7 @@ public class AmqpConnector extends AbstractConnector
         {
             throw new ConnectException(
                 MessageFactory.createStaticMessage("Error when connecting outbound endpoint: "
-                                                   + outboundEndpoint), e, messageDispatcher);
+                                                   + outboundEndpoint), e, connectable);
         }
     }
 
@@ -644,12 +992,62 @@ public class AmqpConnector extends AbstractConnector
             delivery.getBody());
     }
 
+    /**
+     * Consumes the messages delivered within a timeout.
+     *
+     * @param maxMessages the number of messages after which to stop consuming, 0 to
+     *            consume until the timeout.
+     */
+    public List<AmqpMessage> consume(final Channel channel,
+                                     final String queue,
+                                     final boolean autoAck,
+                                     final int maxMessages,
+                                     final long timeout) throws IOException, InterruptedException
+    {
+        final List<AmqpMessage> amqpMessages = new ArrayList<AmqpMessage>();
+        final QueueingConsumer consumer = new QueueingConsumer(channel);
+        final String consumerTag = channel.basicConsume(queue, autoAck, consumer);
+        try
+        {
+            final long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while ((remaining > 0L) && ((maxMessages == 0) || (amqpMessages.size() < maxMessages)))
+            {
+                final Delivery delivery = consumer.nextDelivery(remaining);
+                if (delivery == null)
+                {
+                    break;
+                }
+                amqpMessages.add(new AmqpMessage(consumerTag, delivery.getEnvelope(),
+                    delivery.getProperties(), delivery.getBody()));
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        finally
+        {
+            channel.basicCancel(consumerTag);
+        }
+        return amqpMessages;
+    }
+
     public void ackMessageIfNecessary(final Channel channel, final AmqpMessage amqpMessage)
         throws IOException
+    {
+        ackMessageIfNecessary(channel, amqpMessage, amqpStatistics);
+    }
+
+    public void ackMessageIfNecessary(final Channel channel,
+                                      final AmqpMessage amqpMessage,
+                                      final AbstractAmqpStatistics statistics) throws IOException
     {
         if (getAckMode() == AckMode.MULE_AUTO)
         {
             channel.basicAck(amqpMessage.getEnvelope().getDeliveryTag(), false);
+            if (amqpMessage.getChunkDeliveries() != null)
+            {
+                amqpMessage.getChunkDeliveries().ack(channel, amqpMessage.getEnvelope().getDeliveryTag(), false);
+            }
+            statistics.messageAcked();
             if (logger.isDebugEnabled())
             {
                 logger.debug("Mule acknowledged message: " + amqpMessage + " on channel: " + channel);
@@ -835,6 +1233,225 @@ public class AmqpConnector extends AbstractConnector
         this.exclusiveConsumers = exclusiveConsumers;
     }
 
+    public boolean isJmxEnabled()
+    {
+        return jmxEnabled;
+    }
+
+    /**
+     * @param jmxEnabled true to register the statistics of the connector and its
+     *            endpoints as MBeans.
+     */
+    public void setJmxEnabled(final boolean jmxEnabled)
+    {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public long getLatencyReportInterval()
+    {
+        return latencyReportInterval;
+    }
+
+    /**
+     * @param latencyReportInterval the interval in milliseconds at which latency
+     *            histograms are logged and reset, 0 to disable reporting.
+     */
+    public void setLatencyReportInterval(final long latencyReportInterval)
+    {
+        this.latencyReportInterval = latencyReportInterval;
+    }
+
+    public String getSpoolDirectory()
+    {
+        return spoolDirectory;
+    }
+
+    /**
+     * @param spoolDirectory the directory of the outbound spool, which stores
+     *            dispatched messages on disk until the broker confirms them. Relative
+     *            paths are resolved against the Mule working directory.
+     */
+    public void setSpoolDirectory(final String spoolDirectory)
+    {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public SpoolMode getSpoolMode()
+    {
+        return spoolMode;
+    }
+
+    public void setSpoolMode(final SpoolMode spoolMode)
+    {
+        this.spoolMode = spoolMode;
+    }
+
+    public int getSpoolSegmentSize()
+    {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(final int spoolSegmentSize)
+    {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxSize()
+    {
+        return spoolMaxSize;
+    }
+
+    /**
+     * @param spoolMaxSize the maximum size in bytes of the spool files, 0 for no
+     *            limit.
+     */
+    public void setSpoolMaxSize(final long spoolMaxSize)
+    {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public boolean isSpoolSync()
+    {
+        return spoolSync;
+    }
+
+    public void setSpoolSync(final boolean spoolSync)
+    {
+        this.spoolSync = spoolSync;
+    }
+
+    public long getSpoolReplayInterval()
+    {
+        return spoolReplayInterval;
+    }
+
+    public void setSpoolReplayInterval(final long spoolReplayInterval)
+    {
+        this.spoolReplayInterval = spoolReplayInterval;
+    }
+
+    public int getPublishRateLimit()
+    {
+        return publishRateLimit;
+    }
+
+    /**
+     * @param publishRateLimit the maximum number of messages published per second by
+     *            all the endpoints of the connector, 0 for no limit.
+     */
+    public void setPublishRateLimit(final int publishRateLimit)
+    {
+        this.publishRateLimit = publishRateLimit;
+    }
+
+    public int getPublishByteRateLimit()
+    {
+        return publishByteRateLimit;
+    }
+
+    /**
+     * @param publishByteRateLimit the maximum number of body bytes published per second
+     *            by all the endpoints of the connector, 0 for no limit.
+     */
+    public void setPublishByteRateLimit(final int publishByteRateLimit)
+    {
+        this.publishByteRateLimit = publishByteRateLimit;
+    }
+
+    public RateLimitPolicy getPublishRateLimitPolicy()
+    {
+        return publishRateLimitPolicy;
+    }
+
+    public void setPublishRateLimitPolicy(final RateLimitPolicy publishRateLimitPolicy)
+    {
+        this.publishRateLimitPolicy = publishRateLimitPolicy;
+    }
+
+    /**
+     * @return the rate limiter shared by all the endpoints of the connector, or null.
+     */
+    public AmqpRateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * @return the key of the rate limiter of an outbound endpoint, made of its limits and
+     *         its address, or null if the endpoint has no rate limit.
+     */
+    public String getRateLimiterKey(final OutboundEndpoint endpoint)
+    {
+        final AmqpEndpointConfig endpointConfig = AmqpEndpointConfig.forEndpoint(endpoint);
+        if ((endpointConfig.getPublishRateLimit() == 0) && (endpointConfig.getPublishByteRateLimit() == 0))
+        {
+            return null;
+        }
+
+        return endpointConfig.getPublishRateLimit() + "/" + endpointConfig.getPublishByteRateLimit() + "@"
+               + endpoint.getEndpointURI().getAddress();
+    }
+
+    /**
+     * @return the rate limiter shared by the dispatchers of the outbound endpoints with
+     *         the same address and limits, or null if the endpoint has no rate limit.
+     */
+    public AmqpRateLimiter getRateLimiter(final OutboundEndpoint endpoint)
+    {
+        final String key = getRateLimiterKey(endpoint);
+        return key == null ? null : getRateLimiter(key);
+    }
+
+    /**
+     * @return the rate limiter of a key returned by
+     *         {@link #getRateLimiterKey(OutboundEndpoint)}, created from the limits of the
+     *         key if no dispatcher uses it yet, as when spooled messages are replayed
+     *         after a restart.
+     */
+    public AmqpRateLimiter getRateLimiter(final String key)
+    {
+        final AmqpRateLimiter endpointRateLimiter = endpointRateLimiters.get(key);
+        if (endpointRateLimiter != null)
+        {
+            return endpointRateLimiter;
+        }
+
+        final int limitsEnd = key.indexOf('@');
+        final int separator = key.indexOf('/');
+        if ((separator < 0) || (limitsEnd < separator))
+        {
+            throw new IllegalArgumentException("Invalid rate limiter key: " + key);
+        }
+
+        final AmqpRateLimiter newRateLimiter = new AmqpRateLimiter(Integer.parseInt(key.substring(0,
+            separator)), Integer.parseInt(key.substring(separator + 1, limitsEnd)));
+        final AmqpRateLimiter existing = endpointRateLimiters.putIfAbsent(key, newRateLimiter);
+        return existing == null ? newRateLimiter : existing;
+    }
+
+    /**
+     * @return the outbound spool, or null if the connector doesn't spool messages.
+     */
+    public AmqpOutboundSpool getOutboundSpool()
+    {
+        return outboundSpool;
+    }
+
+    public AmqpConnectorStatistics getAmqpStatistics()
+    {
+        return amqpStatistics;
+    }
+
+    public int getNumActiveConnectorConnections()
+    {
+        return connectorConnectionPool.getNumActive();
+    }
+
+    public int getNumIdleConnectorConnections()
+    {
+        return connectorConnectionPool.getNumIdle();
+    }
+
     public void setConnectionFactory(final ConnectionFactory connectionFactory)
     {
         this.connectionFactory = connectionFactory;
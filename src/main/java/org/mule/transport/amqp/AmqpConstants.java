@@ -54,6 +54,24 @@ public abstract class AmqpConstants
         }
     }
 
+    public enum SpoolMode
+    {
+        /** Messages are spooled only when they can't be published to the broker. */
+        FALLBACK,
+        /** All dispatched messages are spooled, then published by the replayer. */
+        WRITE_AHEAD;
+    }
+
+    public enum RateLimitPolicy
+    {
+        /** Publishers wait until the rate limit allows the publication. */
+        BLOCK,
+        /** Publications exceeding the rate limit fail. */
+        FAIL,
+        /** Dispatches exceeding the rate limit are spooled, sends wait. */
+        SPOOL;
+    }
+
     // message properties names are consistent with AMQP spec
     // (cluster-id is deprecated and not supported here)
     public static final String APP_ID = "app-id";
@@ -90,6 +108,8 @@ public abstract class AmqpConstants
     public static final String CONSUMER_TAG = "consumer-tag";
     public static final String CHANNEL = AmqpConnector.AMQP + ".channel";
     public static final String RETURN_LISTENER = AmqpConnector.AMQP + ".return.listener";
+    public static final String ENDPOINT_STATISTICS = AmqpConnector.AMQP + ".endpoint.statistics";
+    public static final String CHUNK_DELIVERIES = AmqpConnector.AMQP + ".chunk.deliveries";
 
     public static final String RETURN_CONTEXT_PREFIX = "return.";
     public static final String RETURN_REPLY_CODE = RETURN_CONTEXT_PREFIX + "reply-code";
@@ -97,8 +117,27 @@ public abstract class AmqpConstants
     public static final String RETURN_EXCHANGE = RETURN_CONTEXT_PREFIX + EXCHANGE;
     public static final String RETURN_ROUTING_KEY = RETURN_CONTEXT_PREFIX + ROUTING_KEY;
 
+    // headers carried by the chunks of messages split by the dispatcher
+    public static final String CHUNK_CONTEXT_PREFIX = AmqpConnector.AMQP + ".chunk.";
+    public static final String CHUNK_ID = CHUNK_CONTEXT_PREFIX + "id";
+    public static final String CHUNK_INDEX = CHUNK_CONTEXT_PREFIX + "index";
+    public static final String CHUNK_COUNT = CHUNK_CONTEXT_PREFIX + "count";
+    public static final String CHUNK_OFFSET = CHUNK_CONTEXT_PREFIX + "offset";
+    public static final String CHUNK_TOTAL_SIZE = CHUNK_CONTEXT_PREFIX + "total-size";
+
+    // headers carried by the messages republished by the retry policy of inbound endpoints
+    public static final String RETRY_CONTEXT_PREFIX = AmqpConnector.AMQP + ".retry.";
+    public static final String RETRY_COUNT = RETRY_CONTEXT_PREFIX + "count";
+    public static final String RETRY_EXCEPTION = RETRY_CONTEXT_PREFIX + "exception";
+
+    // header carried by the poison messages sent to a quarantine endpoint
+    public static final String QUARANTINE_FAILED_DELIVERIES = AmqpConnector.AMQP + ".quarantine.failed-deliveries";
+
+    // header carried by compressed messages, whose content-encoding names the codec instead of the charset
+    public static final String CONTENT_CHARSET = AmqpConnector.AMQP + ".content.charset";
+
     private static final String[] AMQP_TRANSPORT_TECHNICAL_PROPERTY_NAMES_ARRAY = new String[]{CONSUMER_TAG,
-        CHANNEL, RETURN_LISTENER, RETURN_REPLY_CODE, RETURN_REPLY_TEXT, RETURN_EXCHANGE, RETURN_ROUTING_KEY};
+        CHANNEL, RETURN_LISTENER, ENDPOINT_STATISTICS, CHUNK_DELIVERIES, RETURN_REPLY_CODE, RETURN_REPLY_TEXT, RETURN_EXCHANGE, RETURN_ROUTING_KEY};
 
     public static final Set<String> AMQP_TRANSPORT_TECHNICAL_PROPERTY_NAMES = Collections.unmodifiableSet(new HashSet<String>(
         Arrays.asList(AMQP_TRANSPORT_TECHNICAL_PROPERTY_NAMES_ARRAY)));
@@ -0,0 +1,104 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+/**
+ * Decides how many consumers an inbound endpoint needs from periodic readings of the
+ * backlog of its queues.
+ * <p>
+ * A consumer is added when the backlog exceeds the target backlog per consumer and the
+ * consumers don't drain it fast enough to absorb it within a few readings, on two
+ * consecutive readings. A consumer is removed when the backlog stays below a quarter of
+ * the target on three consecutive readings. The gap between the two thresholds, the
+ * consecutive readings and the reset of the readings after each change keep the number
+ * of consumers from flapping.
+ */
+public final class AmqpConsumerScaler
+{
+    static final int SCALE_UP_READINGS = 2;
+    static final int SCALE_DOWN_READINGS = 3;
+
+    private final int minConsumers;
+    private final int maxConsumers;
+    private final long backlogPerConsumer;
+
+    private long lastBacklog = -1L;
+    private int scaleUpReadings;
+    private int scaleDownReadings;
+
+    /**
+     * @param backlogPerConsumer the number of ready messages per consumer above which
+     *            consumers are added.
+     */
+    public AmqpConsumerScaler(final int minConsumers, final int maxConsumers, final long backlogPerConsumer)
+    {
+        if ((minConsumers < 1) || (maxConsumers < minConsumers) || (backlogPerConsumer < 1))
+        {
+            throw new IllegalArgumentException("Invalid consumer scaling: " + minConsumers + " to "
+                                               + maxConsumers + " consumers, backlog per consumer: "
+                                               + backlogPerConsumer);
+        }
+
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+        this.backlogPerConsumer = backlogPerConsumer;
+    }
+
+    /**
+     * @param consumers the current number of consumers.
+     * @param backlog the number of messages ready for delivery in the consumed queues.
+     * @return the number of consumers to have, which differs from the current one by
+     *         at most one.
+     */
+    public synchronized int scale(final int consumers, final long backlog)
+    {
+        final long highWatermark = backlogPerConsumer * consumers;
+        // the backlog drained since the last reading, negative if it grew
+        final long drained = lastBacklog < 0L ? 0L : lastBacklog - backlog;
+        lastBacklog = backlog;
+
+        final boolean fallingBehind = (backlog > highWatermark) && (drained * SCALE_UP_READINGS < backlog);
+        scaleUpReadings = fallingBehind ? scaleUpReadings + 1 : 0;
+        scaleDownReadings = backlog < highWatermark / 4 ? scaleDownReadings + 1 : 0;
+
+        if ((scaleUpReadings >= SCALE_UP_READINGS) && (consumers < maxConsumers))
+        {
+            reset();
+            return consumers + 1;
+        }
+
+        if ((scaleDownReadings >= SCALE_DOWN_READINGS) && (consumers > minConsumers))
+        {
+            reset();
+            return consumers - 1;
+        }
+
+        return consumers;
+    }
+
+    private void reset()
+    {
+        // the effect of a change is only visible on the next readings
+        lastBacklog = -1L;
+        scaleUpReadings = 0;
+        scaleDownReadings = 0;
+    }
+
+    public int getMinConsumers()
+    {
+        return minConsumers;
+    }
+
+    public int getMaxConsumers()
+    {
+        return maxConsumers;
+    }
+}
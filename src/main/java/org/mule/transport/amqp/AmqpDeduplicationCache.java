@@ -0,0 +1,275 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.Serializable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.store.ObjectStore;
+import org.mule.api.store.ObjectStoreException;
+
+/**
+ * Remembers the message-ids of the messages processed by an inbound endpoint during a
+ * time window, so that duplicates can be dropped before reaching the flow.
+ * <p>
+ * Ids are kept in memory as 64-bit fingerprints in two generations of compact open
+ * addressing sets: the current one receives new ids and is retired when it gets older
+ * than the window or holds half of the capacity, at which point the previous generation
+ * is dropped. An id is thus remembered for at least one window unless the capacity is
+ * exceeded, and at most two.
+ * <p>
+ * An optional Mule object store backs the in-memory sets, for instance to share ids
+ * between cluster nodes or to survive restarts: it is only queried for ids missing from
+ * memory and its entries hold their processing time so that the window applies to them
+ * too. Store failures are logged and never block consumption.
+ */
+public final class AmqpDeduplicationCache
+{
+    private static final Log LOG = LogFactory.getLog(AmqpDeduplicationCache.class);
+
+    private final long windowMillis;
+    private final int generationCapacity;
+    private final ObjectStore<Serializable> store;
+
+    private FingerprintSet currentGeneration = new FingerprintSet();
+    private FingerprintSet previousGeneration = new FingerprintSet();
+    private long currentGenerationStart;
+
+    /**
+     * @param windowMillis the minimum time during which ids are remembered.
+     * @param capacity the maximum number of ids kept in memory.
+     * @param store an optional object store backing the in-memory sets.
+     */
+    public AmqpDeduplicationCache(final long windowMillis,
+                                  final int capacity,
+                                  final ObjectStore<Serializable> store)
+    {
+        if ((windowMillis <= 0) || (capacity < 2))
+        {
+            throw new IllegalArgumentException("Invalid deduplication cache: window=" + windowMillis
+                                               + ", capacity=" + capacity);
+        }
+
+        this.windowMillis = windowMillis;
+        this.generationCapacity = capacity / 2;
+        this.store = store;
+    }
+
+    /**
+     * @return true if a message with this id has been processed during the window.
+     */
+    public boolean isDuplicate(final String messageId)
+    {
+        return isDuplicate(messageId, System.currentTimeMillis());
+    }
+
+    /**
+     * Remembers the id of a successfully processed message.
+     */
+    public void markProcessed(final String messageId)
+    {
+        markProcessed(messageId, System.currentTimeMillis());
+    }
+
+    boolean isDuplicate(final String messageId, final long now)
+    {
+        final long fingerprint = fingerprint(messageId);
+
+        synchronized (this)
+        {
+            rotateIfNeeded(now);
+            if ((currentGeneration.contains(fingerprint)) || (previousGeneration.contains(fingerprint)))
+            {
+                return true;
+            }
+        }
+
+        return isStoredDuplicate(messageId, now);
+    }
+
+    void markProcessed(final String messageId, final long now)
+    {
+        final long fingerprint = fingerprint(messageId);
+
+        synchronized (this)
+        {
+            rotateIfNeeded(now);
+            if (currentGeneration.size() >= generationCapacity)
+            {
+                retireCurrentGeneration(now);
+            }
+            currentGeneration.add(fingerprint);
+        }
+
+        if (store != null)
+        {
+            try
+            {
+                if (store.contains(messageId))
+                {
+                    store.remove(messageId);
+                }
+                store.store(messageId, now);
+            }
+            catch (final ObjectStoreException ose)
+            {
+                LOG.warn("Failed to store processed message id: " + messageId, ose);
+            }
+        }
+    }
+
+    synchronized int size()
+    {
+        return currentGeneration.size() + previousGeneration.size();
+    }
+
+    private boolean isStoredDuplicate(final String messageId, final long now)
+    {
+        if (store == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            if (!store.contains(messageId))
+            {
+                return false;
+            }
+
+            final Serializable processedAt = store.retrieve(messageId);
+            return (!(processedAt instanceof Long)) || (now - (Long) processedAt < windowMillis);
+        }
+        catch (final ObjectStoreException ose)
+        {
+            LOG.warn("Failed to look up message id: " + messageId, ose);
+            return false;
+        }
+    }
+
+    private void rotateIfNeeded(final long now)
+    {
+        if (currentGenerationStart == 0)
+        {
+            currentGenerationStart = now;
+        }
+        else if (now - currentGenerationStart >= 2 * windowMillis)
+        {
+            // idle for long: both generations are out of the window
+            previousGeneration = new FingerprintSet();
+            currentGeneration = new FingerprintSet();
+            currentGenerationStart = now;
+        }
+        else if (now - currentGenerationStart >= windowMillis)
+        {
+            retireCurrentGeneration(now);
+        }
+    }
+
+    private void retireCurrentGeneration(final long now)
+    {
+        previousGeneration = currentGeneration;
+        currentGeneration = new FingerprintSet();
+        currentGenerationStart = now;
+    }
+
+    /**
+     * 64-bit FNV-1a hash, collisions between ids of the same window are negligible.
+     */
+    static long fingerprint(final String messageId)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++)
+        {
+            final char c = messageId.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        // 0 marks free slots
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Open addressing set of non-zero longs, with linear probing.
+     */
+    static final class FingerprintSet
+    {
+        private static final int INITIAL_SLOTS = 64;
+
+        private long[] slots = new long[INITIAL_SLOTS];
+        private int size;
+
+        boolean contains(final long fingerprint)
+        {
+            final int mask = slots.length - 1;
+            for (int i = mix(fingerprint) & mask; slots[i] != 0; i = (i + 1) & mask)
+            {
+                if (slots[i] == fingerprint)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(final long fingerprint)
+        {
+            if ((size + 1) * 2 > slots.length)
+            {
+                grow();
+            }
+            if (insert(slots, fingerprint))
+            {
+                size++;
+            }
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        private void grow()
+        {
+            final long[] newSlots = new long[slots.length * 2];
+            for (final long fingerprint : slots)
+            {
+                if (fingerprint != 0)
+                {
+                    insert(newSlots, fingerprint);
+                }
+            }
+            slots = newSlots;
+        }
+
+        private static boolean insert(final long[] table, final long fingerprint)
+        {
+            final int mask = table.length - 1;
+            int i = mix(fingerprint) & mask;
+            while (table[i] != 0)
+            {
+                if (table[i] == fingerprint)
+                {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = fingerprint;
+            return true;
+        }
+
+        private static int mix(final long fingerprint)
+        {
+            return (int) (fingerprint ^ (fingerprint >>> 32));
+        }
+    }
+}
@@ -0,0 +1,743 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.mule.api.MuleRuntimeException;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.transport.amqp.AmqpConstants.RateLimitPolicy;
+import org.mule.transport.amqp.transformers.OutboundHeaderMapping;
+import org.mule.util.StringUtils;
+
+/**
+ * Immutable view of the AMQP specific configuration of an endpoint, parsed and
+ * validated once then cached for the lifetime of the endpoint so that connections
+ * and reconnections do not have to re-parse its address and properties.
+ */
+public final class AmqpEndpointConfig
+{
+    // weak keys so that dynamic endpoints can be garbage collected
+    private static final Map<ImmutableEndpoint, AmqpEndpointConfig> CONFIGS = Collections.synchronizedMap(new WeakHashMap<ImmutableEndpoint, AmqpEndpointConfig>());
+
+    private final String endpointName;
+    private final String exchangeName;
+    private final String exchangeType;
+    private final boolean exchangeDurable;
+    private final boolean exchangeAutoDelete;
+    private final String queueName;
+    private final boolean queueDeclaration;
+    private final boolean queueDurable;
+    private final boolean queueExclusive;
+    private final boolean queueAutoDelete;
+    private final String routingKey;
+    private final RoutingTemplate routingKeyTemplate;
+    private final RoutingTemplate exchangeTemplate;
+    private final String consumerTag;
+    private final int chunkSize;
+    private final int chunkSpoolThreshold;
+    private final OutboundHeaderMapping headerMapping;
+    private final AmqpRetryPolicy retryPolicy;
+    private final int poisonThreshold;
+    private final int poisonTrackerCapacity;
+    private final String quarantineEndpoint;
+    private final int deduplicationWindow;
+    private final int deduplicationCapacity;
+    private final String deduplicationStore;
+    private final int publishRateLimit;
+    private final int publishByteRateLimit;
+    private final RateLimitPolicy publishRateLimitPolicy;
+    private final boolean priorityScheduling;
+    private final Map<String, Integer> additionalQueues;
+    private final int queueWeight;
+    private final int shards;
+    private final RoutingTemplate shardKeyTemplate;
+    private final int minConsumers;
+    private final int maxConsumers;
+    private final int consumerScalingInterval;
+    private final int consumerScalingBacklog;
+    private final int drainTimeout;
+    private final boolean virtualThreads;
+    private final boolean scatterGather;
+    private final int expectedReplies;
+
+    /**
+     * @return the configuration of the endpoint, parsed on first access.
+     * @throws MuleRuntimeException if the endpoint configuration is invalid.
+     */
+    public static AmqpEndpointConfig forEndpoint(final ImmutableEndpoint endpoint)
+    {
+        AmqpEndpointConfig config = CONFIGS.get(endpoint);
+        if (config == null)
+        {
+            // parsing is idempotent so concurrent first accesses are harmless
+            config = new AmqpEndpointConfig(endpoint);
+            CONFIGS.put(endpoint, config);
+        }
+        return config;
+    }
+
+    private AmqpEndpointConfig(final ImmutableEndpoint endpoint)
+    {
+        endpointName = endpoint.toString();
+
+        final String address = endpoint.getAddress();
+        exchangeName = AmqpEndpointUtil.getExchangeName(address);
+        queueName = AmqpEndpointUtil.getQueueName(address);
+
+        exchangeType = StringUtils.trimToNull((String) endpoint.getProperty(AmqpEndpointUtil.EXCHANGE_TYPE));
+        exchangeDurable = getBooleanProperty(endpoint, AmqpEndpointUtil.EXCHANGE_DURABLE);
+        exchangeAutoDelete = getBooleanProperty(endpoint, AmqpEndpointUtil.EXCHANGE_AUTO_DELETE);
+
+        final Map<?, ?> properties = endpoint.getProperties();
+        queueDeclaration = properties.containsKey(AmqpEndpointUtil.QUEUE_DURABLE)
+                           || properties.containsKey(AmqpEndpointUtil.QUEUE_AUTO_DELETE)
+                           || properties.containsKey(AmqpEndpointUtil.QUEUE_EXCLUSIVE);
+        queueDurable = getBooleanProperty(endpoint, AmqpEndpointUtil.QUEUE_DURABLE);
+        queueExclusive = getBooleanProperty(endpoint, AmqpEndpointUtil.QUEUE_EXCLUSIVE);
+        queueAutoDelete = getBooleanProperty(endpoint, AmqpEndpointUtil.QUEUE_AUTO_DELETE);
+
+        routingKey = StringUtils.defaultString((String) endpoint.getProperty(AmqpEndpointUtil.ROUTING_KEY));
+        routingKeyTemplate = RoutingTemplate.isTemplate(routingKey)
+                                                                   ? RoutingTemplate.compile(routingKey)
+                                                                   : null;
+        final String exchangeTemplateValue = (String) endpoint.getProperty(AmqpEndpointUtil.EXCHANGE_TEMPLATE);
+        exchangeTemplate = StringUtils.isBlank(exchangeTemplateValue)
+                                                                     ? null
+                                                                     : RoutingTemplate.compile(exchangeTemplateValue.trim());
+        consumerTag = StringUtils.defaultString((String) endpoint.getProperty(AmqpEndpointUtil.CONSUMER_TAG));
+
+        chunkSize = getIntProperty(endpoint, AmqpEndpointUtil.CHUNK_SIZE, 0);
+        chunkSpoolThreshold = getIntProperty(endpoint, AmqpEndpointUtil.CHUNK_SPOOL_THRESHOLD,
+            AmqpEndpointUtil.DEFAULT_CHUNK_SPOOL_THRESHOLD);
+
+        headerMapping = OutboundHeaderMapping.compile(endpoint);
+
+        final int retryAttempts = getIntProperty(endpoint, AmqpEndpointUtil.RETRY_ATTEMPTS, 0);
+        if (retryAttempts > 0)
+        {
+            try
+            {
+                retryPolicy = new AmqpRetryPolicy(retryAttempts, getIntProperty(endpoint,
+                    AmqpEndpointUtil.RETRY_INITIAL_DELAY, AmqpEndpointUtil.DEFAULT_RETRY_INITIAL_DELAY),
+                    getIntProperty(endpoint, AmqpEndpointUtil.RETRY_BACKOFF_MULTIPLIER,
+                        AmqpEndpointUtil.DEFAULT_RETRY_BACKOFF_MULTIPLIER), getIntProperty(endpoint,
+                        AmqpEndpointUtil.RETRY_MAX_DELAY, AmqpEndpointUtil.DEFAULT_RETRY_MAX_DELAY),
+                    (String) endpoint.getProperty(AmqpEndpointUtil.PARKING_QUEUE));
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new MuleRuntimeException(MessageFactory.createStaticMessage(iae.getMessage()
+                                                                                  + " in endpoint: "
+                                                                                  + endpointName), iae);
+            }
+        }
+        else
+        {
+            retryPolicy = null;
+        }
+
+        poisonThreshold = getIntProperty(endpoint, AmqpEndpointUtil.POISON_THRESHOLD, 0);
+        poisonTrackerCapacity = getIntProperty(endpoint, AmqpEndpointUtil.POISON_TRACKER_CAPACITY,
+            AmqpEndpointUtil.DEFAULT_POISON_TRACKER_CAPACITY);
+        quarantineEndpoint = StringUtils.trimToNull((String) endpoint.getProperty(AmqpEndpointUtil.QUARANTINE_ENDPOINT));
+
+        deduplicationWindow = getIntProperty(endpoint, AmqpEndpointUtil.DEDUPLICATION_WINDOW, 0);
+        deduplicationCapacity = getIntProperty(endpoint, AmqpEndpointUtil.DEDUPLICATION_CAPACITY,
+            AmqpEndpointUtil.DEFAULT_DEDUPLICATION_CAPACITY);
+        deduplicationStore = StringUtils.trimToNull((String) endpoint.getProperty(AmqpEndpointUtil.DEDUPLICATION_STORE));
+
+        publishRateLimit = getIntProperty(endpoint, AmqpEndpointUtil.PUBLISH_RATE_LIMIT, 0);
+        publishByteRateLimit = getIntProperty(endpoint, AmqpEndpointUtil.PUBLISH_BYTE_RATE_LIMIT, 0);
+        publishRateLimitPolicy = getRateLimitPolicy(endpoint);
+
+        priorityScheduling = getBooleanProperty(endpoint, AmqpEndpointUtil.PRIORITY_SCHEDULING);
+        virtualThreads = getBooleanProperty(endpoint, AmqpEndpointUtil.VIRTUAL_THREADS);
+
+        try
+        {
+            final String queueNames = (String) endpoint.getProperty(AmqpEndpointUtil.QUEUE_NAMES);
+            additionalQueues = Collections.unmodifiableMap(AmqpEndpointUtil.parseQueueNames(queueNames));
+        }
+        catch (final IllegalArgumentException iae)
+        {
+            throw new MuleRuntimeException(MessageFactory.createStaticMessage(iae.getMessage()
+                                                                              + " in endpoint: "
+                                                                              + endpointName), iae);
+        }
+        queueWeight = getIntProperty(endpoint, AmqpEndpointUtil.QUEUE_WEIGHT,
+            AmqpEndpointUtil.DEFAULT_QUEUE_WEIGHT);
+
+        shards = getIntProperty(endpoint, AmqpEndpointUtil.SHARDS, 0);
+        final String shardKey = StringUtils.trimToNull((String) endpoint.getProperty(AmqpEndpointUtil.SHARD_KEY));
+        if (shardKey == null)
+        {
+            shardKeyTemplate = null;
+        }
+        else if (RoutingTemplate.isTemplate(shardKey))
+        {
+            shardKeyTemplate = RoutingTemplate.compile(shardKey);
+        }
+        else
+        {
+            // a plain name stands for the outbound property of that name
+            shardKeyTemplate = RoutingTemplate.compile("#[header:" + shardKey + "]");
+        }
+
+        if (shards > 0)
+        {
+            validateSharding();
+        }
+
+        minConsumers = getIntProperty(endpoint, AmqpEndpointUtil.MIN_CONSUMERS,
+            AmqpEndpointUtil.DEFAULT_MIN_CONSUMERS);
+        // without a maximum the number of consumers is fixed
+        maxConsumers = Math.max(minConsumers, getIntProperty(endpoint, AmqpEndpointUtil.MAX_CONSUMERS, 0));
+        consumerScalingInterval = getIntProperty(endpoint, AmqpEndpointUtil.CONSUMER_SCALING_INTERVAL,
+            AmqpEndpointUtil.DEFAULT_CONSUMER_SCALING_INTERVAL);
+        consumerScalingBacklog = getIntProperty(endpoint, AmqpEndpointUtil.CONSUMER_SCALING_BACKLOG,
+            AmqpEndpointUtil.DEFAULT_CONSUMER_SCALING_BACKLOG);
+        drainTimeout = getIntProperty(endpoint, AmqpEndpointUtil.DRAIN_TIMEOUT,
+            AmqpEndpointUtil.DEFAULT_DRAIN_TIMEOUT);
+
+        scatterGather = getBooleanProperty(endpoint, AmqpEndpointUtil.SCATTER_GATHER);
+        expectedReplies = getIntProperty(endpoint, AmqpEndpointUtil.EXPECTED_REPLIES, 0);
+        if ((expectedReplies > 0) && (!scatterGather))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("An expected number of replies requires scatter-gather in endpoint: "
+                                                   + endpointName));
+        }
+
+        if (endpoint instanceof InboundEndpoint)
+        {
+            validateInbound();
+        }
+
+        if ((routingKeyTemplate != null)
+            && ((endpoint instanceof InboundEndpoint) || (StringUtils.isNotEmpty(queueName)) || (queueDeclaration)))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("A routing key template can not be used to bind a queue in endpoint: "
+                                                   + endpointName));
+        }
+    }
+
+    private void validateSharding()
+    {
+        if (StringUtils.isBlank(queueName))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("A queue name must be provided to name the shard queues of endpoint: "
+                                                   + endpointName));
+        }
+
+        if (StringUtils.isNotBlank(routingKey))
+        {
+            // messages are routed to the shard queues by their names
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("A routing key can not be used with shard queues in endpoint: "
+                                                   + endpointName));
+        }
+    }
+
+    private void validateInbound()
+    {
+        if ((StringUtils.isBlank(exchangeName)) && (StringUtils.isNotBlank(routingKey)))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("An exchange name must be provided if a routing key is provided in endpoint: "
+                                                   + endpointName));
+        }
+
+        if ((StringUtils.isBlank(exchangeName)) && (StringUtils.isBlank(queueName)))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("No queue can be programmatically bound to the default exchange: "
+                                                   + endpointName));
+        }
+
+        if ((poisonThreshold > 0) && (poisonTrackerCapacity == 0))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The poison message tracker capacity can not be 0 in endpoint: "
+                                                   + endpointName));
+        }
+
+        if ((deduplicationWindow > 0) && (deduplicationCapacity < 2))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The deduplication capacity must be at least 2 in endpoint: "
+                                                   + endpointName));
+        }
+
+        if (additionalQueues.containsKey(queueName))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The queue: " + queueName
+                                                   + " can not be both the endpoint queue and one of its "
+                                                   + AmqpEndpointUtil.QUEUE_NAMES + " in endpoint: "
+                                                   + endpointName));
+        }
+
+        if (queueWeight == 0)
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The queue weight can not be 0 in endpoint: "
+                                                   + endpointName));
+        }
+
+        if (((!additionalQueues.isEmpty()) || (shards > 1)) && (priorityScheduling))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("Priority scheduling can not be combined with "
+                                                   + AmqpEndpointUtil.QUEUE_NAMES + " or "
+                                                   + AmqpEndpointUtil.SHARDS + " in endpoint: "
+                                                   + endpointName));
+        }
+
+        if (minConsumers == 0)
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The minimum number of consumers can not be 0 in endpoint: "
+                                                   + endpointName));
+        }
+
+        if ((maxConsumers > 1) && (StringUtils.isBlank(queueName)) && (shards == 0))
+        {
+            // each consumer would get a private queue of its own
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("A queue name must be provided to have several consumers in endpoint: "
+                                                   + endpointName));
+        }
+
+        if ((maxConsumers > minConsumers) && ((consumerScalingInterval == 0) || (consumerScalingBacklog == 0)))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The consumer scaling interval and backlog can not be 0 in endpoint: "
+                                                   + endpointName));
+        }
+
+        if ((retryPolicy != null) && (StringUtils.isBlank(queueName)))
+        {
+            // retried messages are dead-lettered back by queue name
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("A queue name must be provided to retry messages in endpoint: "
+                                                   + endpointName));
+        }
+    }
+
+    private static RateLimitPolicy getRateLimitPolicy(final ImmutableEndpoint endpoint)
+    {
+        final Object value = endpoint.getProperty(AmqpEndpointUtil.PUBLISH_RATE_LIMIT_POLICY);
+
+        if (value instanceof RateLimitPolicy)
+        {
+            return (RateLimitPolicy) value;
+        }
+
+        if (StringUtils.isBlank((String) value))
+        {
+            return RateLimitPolicy.BLOCK;
+        }
+
+        try
+        {
+            return RateLimitPolicy.valueOf(((String) value).trim());
+        }
+        catch (final IllegalArgumentException iae)
+        {
+            throw new MuleRuntimeException(MessageFactory.createStaticMessage("Invalid "
+                                                                              + AmqpEndpointUtil.PUBLISH_RATE_LIMIT_POLICY
+                                                                              + ": " + value + " in endpoint: "
+                                                                              + endpoint), iae);
+        }
+    }
+
+    private static boolean getBooleanProperty(final ImmutableEndpoint endpoint, final String key)
+    {
+        final Object value = endpoint.getProperty(key);
+
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+
+        return BooleanUtils.toBoolean((String) value);
+    }
+
+    private static int getIntProperty(final ImmutableEndpoint endpoint,
+                                      final String key,
+                                      final int defaultValue)
+    {
+        final Object value = endpoint.getProperty(key);
+
+        if (value instanceof Number)
+        {
+            return validateNonNegative(endpoint, key, ((Number) value).intValue());
+        }
+
+        if (StringUtils.isBlank((String) value))
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return validateNonNegative(endpoint, key, Integer.parseInt(((String) value).trim()));
+        }
+        catch (final NumberFormatException nfe)
+        {
+            throw new MuleRuntimeException(MessageFactory.createStaticMessage("Invalid " + key + ": "
+                                                                              + value + " in endpoint: "
+                                                                              + endpoint), nfe);
+        }
+    }
+
+    private static int validateNonNegative(final ImmutableEndpoint endpoint, final String key, final int value)
+    {
+        if (value < 0)
+        {
+            throw new MuleRuntimeException(MessageFactory.createStaticMessage("Negative " + key + ": "
+                                                                              + value + " in endpoint: "
+                                                                              + endpoint));
+        }
+        return value;
+    }
+
+    public String getEndpointName()
+    {
+        return endpointName;
+    }
+
+    public String getExchangeName()
+    {
+        return exchangeName;
+    }
+
+    public String getExchangeType()
+    {
+        return exchangeType;
+    }
+
+    public boolean isExchangeDurable()
+    {
+        return exchangeDurable;
+    }
+
+    public boolean isExchangeAutoDelete()
+    {
+        return exchangeAutoDelete;
+    }
+
+    public String getQueueName()
+    {
+        return queueName;
+    }
+
+    /**
+     * @return true if any queue declaration parameter has been provided.
+     */
+    public boolean isQueueDeclaration()
+    {
+        return queueDeclaration;
+    }
+
+    public boolean isQueueDurable()
+    {
+        return queueDurable;
+    }
+
+    public boolean isQueueExclusive()
+    {
+        return queueExclusive;
+    }
+
+    public boolean isQueueAutoDelete()
+    {
+        return queueAutoDelete;
+    }
+
+    public String getRoutingKey()
+    {
+        return routingKey;
+    }
+
+    /**
+     * @return the routing key to publish with, which is the queue name when
+     *         publishing to the default exchange without an explicit routing key.
+     */
+    public String getOutboundRoutingKey()
+    {
+        if ((StringUtils.isBlank(exchangeName)) && (StringUtils.isBlank(routingKey))
+            && (StringUtils.isNotBlank(queueName)))
+        {
+            return queueName;
+        }
+        return routingKey;
+    }
+
+    /**
+     * @return the compiled routing key template of outbound endpoints, or null if
+     *         their routing key is static.
+     */
+    public RoutingTemplate getRoutingKeyTemplate()
+    {
+        return routingKeyTemplate;
+    }
+
+    /**
+     * @return the compiled exchange name template of outbound endpoints, or null if
+     *         there is none.
+     */
+    public RoutingTemplate getExchangeTemplate()
+    {
+        return exchangeTemplate;
+    }
+
+    public String getConsumerTag()
+    {
+        return consumerTag;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public int getChunkSpoolThreshold()
+    {
+        return chunkSpoolThreshold;
+    }
+
+    public OutboundHeaderMapping getHeaderMapping()
+    {
+        return headerMapping;
+    }
+
+    /**
+     * @return the retry policy of inbound endpoints, or null if failed messages are
+     *         not retried.
+     */
+    public AmqpRetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * @return the number of failed deliveries from which inbound messages are
+     *         quarantined, 0 if poison messages are not detected.
+     */
+    public int getPoisonThreshold()
+    {
+        return poisonThreshold;
+    }
+
+    public int getPoisonTrackerCapacity()
+    {
+        return poisonTrackerCapacity;
+    }
+
+    /**
+     * @return the name or the address of the endpoint poison messages are sent to, or
+     *         null if they are rejected without requeue.
+     */
+    public String getQuarantineEndpoint()
+    {
+        return quarantineEndpoint;
+    }
+
+    /**
+     * @return the time window in milliseconds during which inbound duplicates are
+     *         dropped, 0 if messages are not deduplicated.
+     */
+    public int getDeduplicationWindow()
+    {
+        return deduplicationWindow;
+    }
+
+    public int getDeduplicationCapacity()
+    {
+        return deduplicationCapacity;
+    }
+
+    /**
+     * @return the name of the object store backing the deduplication cache, or null.
+     */
+    public String getDeduplicationStore()
+    {
+        return deduplicationStore;
+    }
+
+    /**
+     * @return the maximum number of messages published per second, 0 for no limit.
+     */
+    public int getPublishRateLimit()
+    {
+        return publishRateLimit;
+    }
+
+    /**
+     * @return the maximum number of body bytes published per second, 0 for no limit.
+     */
+    public int getPublishByteRateLimit()
+    {
+        return publishByteRateLimit;
+    }
+
+    public RateLimitPolicy getPublishRateLimitPolicy()
+    {
+        return publishRateLimitPolicy;
+    }
+
+    /**
+     * @return true if received messages are routed by priority rather than in arrival
+     *         order.
+     */
+    public boolean isPriorityScheduling()
+    {
+        return priorityScheduling;
+    }
+
+    /**
+     * @return true if received messages are routed on virtual threads, when the JVM
+     *         supports them, rather than on the threads of the work manager.
+     */
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * @return true if synchronous sends gather all the replies received within the
+     *         response timeout instead of returning the first one.
+     */
+    public boolean isScatterGather()
+    {
+        return scatterGather;
+    }
+
+    /**
+     * @return the number of replies after which a scatter-gather send stops waiting,
+     *         0 to wait for the whole response timeout.
+     */
+    public int getExpectedReplies()
+    {
+        return expectedReplies;
+    }
+
+    /**
+     * @return the weights, by name, of the queues consumed in addition to the queue of
+     *         the endpoint address.
+     */
+    public Map<String, Integer> getAdditionalQueues()
+    {
+        return additionalQueues;
+    }
+
+    public int getQueueWeight()
+    {
+        return queueWeight;
+    }
+
+    /**
+     * @return the weights of the queues consumed by inbound endpoints: the queue of the
+     *         address or its shards, then the additional queues.
+     */
+    public int[] getConsumedQueueWeights()
+    {
+        final int mainQueues = shards > 0 ? shards : 1;
+        final int[] weights = new int[mainQueues + additionalQueues.size()];
+        Arrays.fill(weights, 0, mainQueues, queueWeight);
+        int i = mainQueues;
+        for (final Integer weight : additionalQueues.values())
+        {
+            weights[i++] = weight;
+        }
+        return weights;
+    }
+
+    /**
+     * @return the number of queues the queue of the endpoint is sharded onto, 0 if it
+     *         is not sharded.
+     */
+    public int getShards()
+    {
+        return shards;
+    }
+
+    public String getShardQueueName(final int shard)
+    {
+        return queueName + "." + shard;
+    }
+
+    public int getMinConsumers()
+    {
+        return minConsumers;
+    }
+
+    /**
+     * @return the maximum number of consumers of inbound endpoints, which is their
+     *         minimum number when their consumers are not scaled.
+     */
+    public int getMaxConsumers()
+    {
+        return maxConsumers;
+    }
+
+    /**
+     * @return the interval between two readings of the backlog, in milliseconds.
+     */
+    public int getConsumerScalingInterval()
+    {
+        return consumerScalingInterval;
+    }
+
+    /**
+     * @return the number of ready messages per consumer above which consumers are
+     *         added.
+     */
+    public int getConsumerScalingBacklog()
+    {
+        return consumerScalingBacklog;
+    }
+
+    /**
+     * @return how long a stopping receiver waits for the messages it has received to be
+     *         processed before closing its channels, in milliseconds, 0 to not wait.
+     */
+    public int getDrainTimeout()
+    {
+        return drainTimeout;
+    }
+
+    /**
+     * @return the compiled partition key template of sharded outbound endpoints, or
+     *         null if messages are spread over the shards in turn.
+     */
+    public RoutingTemplate getShardKeyTemplate()
+    {
+        return shardKeyTemplate;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AmqpEndpointConfig{endpoint=" + endpointName + ", exchangeName=" + exchangeName
+               + ", queueName=" + queueName + ", routingKey=" + routingKey + "}";
+    }
+}
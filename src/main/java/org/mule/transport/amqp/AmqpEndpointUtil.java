@@ -11,14 +11,17 @@
 package org.mule.transport.amqp;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mule.api.MuleRuntimeException;
-import org.mule.api.endpoint.ImmutableEndpoint;
 import org.mule.config.i18n.MessageFactory;
 import org.mule.util.StringUtils;
 
@@ -42,25 +45,136 @@ public abstract class AmqpEndpointUtil
     public static final String QUEUE_PREFIX = "amqp-queue.";
     public static final String EXCHANGE_TYPE = "exchangeType";
     public static final String ROUTING_KEY = "routingKey";
+    public static final String EXCHANGE_TEMPLATE = "exchangeTemplate";
     public static final String CONSUMER_TAG = "consumerTag";
+    public static final String CHUNK_SIZE = "chunkSize";
+    public static final String CHUNK_SPOOL_THRESHOLD = "chunkSpoolThreshold";
+    public static final String COPY_HEADERS = "copyHeaders";
+    public static final String INCLUDED_HEADERS = "includedHeaders";
+    public static final String EXCLUDED_HEADERS = "excludedHeaders";
+    public static final String HEADER_RENAMES = "headerRenames";
+    public static final String HEADER_TYPES = "headerTypes";
+    public static final String RETRY_ATTEMPTS = "retryAttempts";
+    public static final String RETRY_INITIAL_DELAY = "retryInitialDelay";
+    public static final String RETRY_BACKOFF_MULTIPLIER = "retryBackoffMultiplier";
+    public static final String RETRY_MAX_DELAY = "retryMaxDelay";
+    public static final String PARKING_QUEUE = "parkingQueue";
+    public static final String POISON_THRESHOLD = "poisonThreshold";
+    public static final String POISON_TRACKER_CAPACITY = "poisonTrackerCapacity";
+    public static final String QUARANTINE_ENDPOINT = "quarantineEndpoint";
+    public static final String DEDUPLICATION_WINDOW = "deduplicationWindow";
+    public static final String DEDUPLICATION_CAPACITY = "deduplicationCapacity";
+    public static final String DEDUPLICATION_STORE = "deduplicationStore";
+    public static final String PUBLISH_RATE_LIMIT = "publishRateLimit";
+    public static final String PUBLISH_BYTE_RATE_LIMIT = "publishByteRateLimit";
+    public static final String PUBLISH_RATE_LIMIT_POLICY = "publishRateLimitPolicy";
+    public static final String PRIORITY_SCHEDULING = "priorityScheduling";
+    public static final String QUEUE_NAMES = "queueNames";
+    public static final String QUEUE_WEIGHT = "queueWeight";
+    public static final String SHARDS = "shards";
+    public static final String SHARD_KEY = "shardKey";
+    public static final String MIN_CONSUMERS = "minConsumers";
+    public static final String MAX_CONSUMERS = "maxConsumers";
+    public static final String CONSUMER_SCALING_INTERVAL = "consumerScalingInterval";
+    public static final String CONSUMER_SCALING_BACKLOG = "consumerScalingBacklog";
+    public static final String DRAIN_TIMEOUT = "drainTimeout";
+    public static final String VIRTUAL_THREADS = "virtualThreads";
+    public static final String SCATTER_GATHER = "scatterGather";
+    public static final String EXPECTED_REPLIES = "expectedReplies";
+
+    public static final int DEFAULT_CHUNK_SPOOL_THRESHOLD = 1024 * 1024;
+    public static final int DEFAULT_RETRY_INITIAL_DELAY = 1000;
+    public static final int DEFAULT_RETRY_BACKOFF_MULTIPLIER = 2;
+    public static final int DEFAULT_RETRY_MAX_DELAY = 300000;
+    public static final int DEFAULT_POISON_TRACKER_CAPACITY = 10000;
+    public static final int DEFAULT_DEDUPLICATION_CAPACITY = 100000;
+    public static final int DEFAULT_QUEUE_WEIGHT = 1;
+    public static final int DEFAULT_MIN_CONSUMERS = 1;
+    public static final int DEFAULT_CONSUMER_SCALING_INTERVAL = 10000;
+    public static final int DEFAULT_CONSUMER_SCALING_BACKLOG = 100;
+    public static final int DEFAULT_DRAIN_TIMEOUT = 10000;
+
+    private static final Pattern QUEUE_RANGE_PATTERN = Pattern.compile("\\{(\\d+)\\.\\.(\\d+)\\}");
 
     public static String getOrCreateQueue(final Channel channel,
-                                          final ImmutableEndpoint endpoint,
+                                          final AmqpEndpointConfig endpointConfig,
                                           final boolean activeDeclarationsOnly) throws IOException
     {
-        final String exchangeName = getOrCreateExchange(channel, endpoint, activeDeclarationsOnly);
-        final String routingKey = getRoutingKey(endpoint);
+        final String exchangeName = getOrCreateExchange(channel, endpointConfig, activeDeclarationsOnly);
+        final String routingKey = endpointConfig.getRoutingKey();
 
         if ((StringUtils.isBlank(exchangeName)) && (StringUtils.isNotBlank(routingKey)))
         {
             // no exchange name -> enforce routing key to be empty
             throw new MuleRuntimeException(
                 MessageFactory.createStaticMessage("An exchange name must be provided if a routing key is provided in endpoint: "
-                                                   + endpoint));
+                                                   + endpointConfig.getEndpointName()));
         }
 
-        final String queueName = getQueueName(endpoint.getAddress());
+        return getOrCreateQueue(channel, endpointConfig, endpointConfig.getQueueName(), exchangeName,
+            routingKey, activeDeclarationsOnly);
+    }
+
+    /**
+     * Declares or validates the shard queues of a sharded endpoint. They are bound with
+     * their own name as routing key, so that publishing to a shard is addressed the
+     * same way with the default exchange or with the exchange of the endpoint.
+     *
+     * @return the names of the shard queues.
+     */
+    public static List<String> getOrCreateShardQueues(final Channel channel,
+                                                      final AmqpEndpointConfig endpointConfig,
+                                                      final boolean activeDeclarationsOnly) throws IOException
+    {
+        final String exchangeName = getOrCreateExchange(channel, endpointConfig, activeDeclarationsOnly);
+
+        final List<String> shardQueueNames = new ArrayList<String>(endpointConfig.getShards());
+        for (int shard = 0; shard < endpointConfig.getShards(); shard++)
+        {
+            final String shardQueueName = endpointConfig.getShardQueueName(shard);
+            shardQueueNames.add(getOrCreateQueue(channel, endpointConfig, shardQueueName, exchangeName,
+                StringUtils.isBlank(exchangeName) ? "" : shardQueueName, activeDeclarationsOnly));
+        }
+        return shardQueueNames;
+    }
+
+    /**
+     * @return the shard of a partition key, which only depends on the key and the
+     *         number of shards.
+     */
+    public static int getShard(final String partitionKey, final int shards)
+    {
+        // String.hashCode is specified, so shards are stable across JVMs; the
+        // finalizer of MurmurHash3 spreads keys that only differ by their last chars
+        int hash = partitionKey.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
 
+    /**
+     * Declares or validates one of the additional queues of an endpoint, with the same
+     * declaration parameters and binding as its main queue.
+     */
+    public static String getOrCreateQueue(final Channel channel,
+                                          final AmqpEndpointConfig endpointConfig,
+                                          final String queueName,
+                                          final boolean activeDeclarationsOnly) throws IOException
+    {
+        return getOrCreateQueue(channel, endpointConfig, queueName, endpointConfig.getExchangeName(),
+            endpointConfig.getRoutingKey(), activeDeclarationsOnly);
+    }
+
+    private static String getOrCreateQueue(final Channel channel,
+                                           final AmqpEndpointConfig endpointConfig,
+                                           final String queueName,
+                                           final String exchangeName,
+                                           final String routingKey,
+                                           final boolean activeDeclarationsOnly) throws IOException
+    {
         if (StringUtils.isBlank(queueName))
         {
             // no queue name -> create a private one on the server
@@ -69,25 +183,23 @@ public abstract class AmqpEndpointUtil
             final String privateQueueName = queueDeclareResult.getQueue();
             LOG.info("Declared private queue: " + privateQueueName);
 
-            bindQueue(channel, endpoint, exchangeName, routingKey, privateQueueName);
+            bindQueue(channel, endpointConfig, exchangeName, routingKey, privateQueueName);
             return privateQueueName;
         }
 
         // queue name -> either create or ensure the queue exists
-        if (endpoint.getProperties().containsKey(QUEUE_DURABLE)
-            || endpoint.getProperties().containsKey(QUEUE_AUTO_DELETE)
-            || endpoint.getProperties().containsKey(QUEUE_EXCLUSIVE))
+        if (endpointConfig.isQueueDeclaration())
         {
             // any of the queue declaration parameter provided -> declare the queue
-            final boolean queueDurable = BooleanUtils.toBoolean((String) endpoint.getProperty(QUEUE_DURABLE));
-            final boolean queueExclusive = BooleanUtils.toBoolean((String) endpoint.getProperty(QUEUE_EXCLUSIVE));
-            final boolean queueAutoDelete = BooleanUtils.toBoolean((String) endpoint.getProperty(QUEUE_AUTO_DELETE));
+            final boolean queueDurable = endpointConfig.isQueueDurable();
+            final boolean queueExclusive = endpointConfig.isQueueExclusive();
+            final boolean queueAutoDelete = endpointConfig.isQueueAutoDelete();
 
             channel.queueDeclare(queueName, queueDurable, queueExclusive, queueAutoDelete, NO_ARGS);
             LOG.info("Declared queue: " + queueName + ", durable: " + queueDurable + ", exclusive: "
                      + queueExclusive + ", autoDelete: " + queueAutoDelete);
 
-            bindQueue(channel, endpoint, exchangeName, routingKey, queueName);
+            bindQueue(channel, endpointConfig, exchangeName, routingKey, queueName);
         }
         else if (!activeDeclarationsOnly)
         {
@@ -104,7 +216,7 @@ public abstract class AmqpEndpointUtil
     }
 
     private static void bindQueue(final Channel channel,
-                                  final ImmutableEndpoint endpoint,
+                                  final AmqpEndpointConfig endpointConfig,
                                   final String exchangeName,
                                   final String routingKey,
                                   final String queueName) throws IOException
@@ -114,7 +226,7 @@ public abstract class AmqpEndpointUtil
             // default exchange name -> can not bind a queue to it
             throw new MuleRuntimeException(
                 MessageFactory.createStaticMessage("No queue can be programmatically bound to the default exchange: "
-                                                   + endpoint));
+                                                   + endpointConfig.getEndpointName()));
         }
 
         // bind queue to exchange
@@ -125,24 +237,23 @@ public abstract class AmqpEndpointUtil
     }
 
     public static String getOrCreateExchange(final Channel channel,
-                                             final ImmutableEndpoint endpoint,
+                                             final AmqpEndpointConfig endpointConfig,
                                              final boolean activeDeclarationsOnly) throws IOException
     {
-        final String outboundEndpointAddress = endpoint.getAddress();
-        final String exchangeName = getExchangeName(outboundEndpointAddress);
+        final String exchangeName = endpointConfig.getExchangeName();
 
         if (StringUtils.isBlank(exchangeName))
         {
-            LOG.info("Using default exchange for endpoint: " + endpoint);
+            LOG.info("Using default exchange for endpoint: " + endpointConfig.getEndpointName());
             return exchangeName;
         }
 
-        final String exchangeType = (String) endpoint.getProperty(EXCHANGE_TYPE);
+        final String exchangeType = endpointConfig.getExchangeType();
         if (StringUtils.isNotBlank(exchangeType))
         {
             // an exchange type is provided -> the exchange must be declared
-            final boolean exchangeDurable = BooleanUtils.toBoolean((String) endpoint.getProperty(EXCHANGE_DURABLE));
-            final boolean exchangeAutoDelete = BooleanUtils.toBoolean((String) endpoint.getProperty(EXCHANGE_AUTO_DELETE));
+            final boolean exchangeDurable = endpointConfig.isExchangeDurable();
+            final boolean exchangeAutoDelete = endpointConfig.isExchangeAutoDelete();
 
             channel.exchangeDeclare(exchangeName, exchangeType, exchangeDurable, exchangeAutoDelete, NO_ARGS);
 
@@ -163,16 +274,6 @@ public abstract class AmqpEndpointUtil
         return exchangeName;
     }
 
-    public static String getRoutingKey(final ImmutableEndpoint endpoint)
-    {
-        return StringUtils.defaultString((String) endpoint.getProperty(ROUTING_KEY));
-    }
-
-    public static String getConsumerTag(final ImmutableEndpoint endpoint)
-    {
-        return StringUtils.defaultString((String) endpoint.getProperty(CONSUMER_TAG));
-    }
-
     public static String getQueueName(final String endpointAddress)
     {
         return StringUtils.defaultString(StringUtils.substringAfter(trimQuery(endpointAddress), QUEUE_PREFIX));
@@ -193,6 +294,76 @@ public abstract class AmqpEndpointUtil
         return exchangeName;
     }
 
+    /**
+     * Parses a comma separated list of queue names, each optionally followed by a
+     * colon and a weight. A <code>{from..to}</code> range in a name stands for as many
+     * queues as there are numbers in the range, all with the weight of the entry:
+     * <code>orders-{0..3}:2</code> stands for queues <code>orders-0</code> to
+     * <code>orders-3</code>, each of weight 2.
+     *
+     * @return the weights of the queues by name, in declaration order.
+     * @throws IllegalArgumentException if an entry is invalid.
+     */
+    public static Map<String, Integer> parseQueueNames(final String queueNames)
+    {
+        final Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+
+        for (final String entry : StringUtils.splitAndTrim(StringUtils.defaultString(queueNames), ","))
+        {
+            if (entry.length() == 0)
+            {
+                continue;
+            }
+
+            String name = entry;
+            int weight = DEFAULT_QUEUE_WEIGHT;
+            final int colon = entry.lastIndexOf(':');
+            if (colon >= 0)
+            {
+                name = entry.substring(0, colon).trim();
+                try
+                {
+                    weight = Integer.parseInt(entry.substring(colon + 1).trim());
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    throw new IllegalArgumentException("Invalid queue weight in: " + entry);
+                }
+                if (weight < 1)
+                {
+                    throw new IllegalArgumentException("Queue weights must be positive in: " + entry);
+                }
+            }
+
+            if (name.length() == 0)
+            {
+                throw new IllegalArgumentException("Missing queue name in: " + entry);
+            }
+
+            final Matcher range = QUEUE_RANGE_PATTERN.matcher(name);
+            if (!range.find())
+            {
+                weights.put(name, weight);
+                continue;
+            }
+
+            final int from = Integer.parseInt(range.group(1));
+            final int to = Integer.parseInt(range.group(2));
+            if (from > to)
+            {
+                throw new IllegalArgumentException("Invalid queue range in: " + entry);
+            }
+            final String prefix = name.substring(0, range.start());
+            final String suffix = name.substring(range.end());
+            for (int i = from; i <= to; i++)
+            {
+                weights.put(prefix + i + suffix, weight);
+            }
+        }
+
+        return weights;
+    }
+
     private static String trimQuery(final String address)
     {
         return StringUtils.substringBefore(address, "?");
@@ -10,6 +10,9 @@
 
 package org.mule.transport.amqp;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
@@ -27,6 +30,7 @@ public class AmqpMessage
     private final Envelope envelope;
     private final byte[] body;
     private AMQP.BasicProperties properties;
+    private AmqpChunkDeliveries chunkDeliveries;
 
     public AmqpMessage(final String consumerTag,
                        final Envelope envelope,
@@ -74,6 +78,34 @@ public class AmqpMessage
         return body;
     }
 
+    public InputStream getBodyAsStream() throws IOException
+    {
+        return new ByteArrayInputStream(getBody());
+    }
+
+    /**
+     * @return true if the body is too large to be kept in memory, in which case it
+     *         should be read with {@link #getBodyAsStream()}.
+     */
+    public boolean isStreaming()
+    {
+        return false;
+    }
+
+    /**
+     * @return the deliveries of the other chunks of a reassembled message, to settle
+     *         along with the delivery of this message, or null.
+     */
+    public AmqpChunkDeliveries getChunkDeliveries()
+    {
+        return chunkDeliveries;
+    }
+
+    void setChunkDeliveries(final AmqpChunkDeliveries chunkDeliveries)
+    {
+        this.chunkDeliveries = chunkDeliveries;
+    }
+
     @Override
     public int hashCode()
     {
@@ -20,6 +20,7 @@ import org.mule.api.MuleMessage;
 import org.mule.api.model.SessionException;
 import org.mule.api.processor.MessageProcessor;
 import org.mule.config.i18n.MessageFactory;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
 
 import com.rabbitmq.client.Channel;
 
@@ -75,6 +76,13 @@ public class AmqpMessageAcknowledger implements MessageProcessor
         try
         {
             channel.basicAck(deliveryTag, multiple);
+
+            // the other chunks of a reassembled message
+            final AmqpChunkDeliveries chunkDeliveries = message.getInvocationProperty(AmqpConstants.CHUNK_DELIVERIES);
+            if (chunkDeliveries != null)
+            {
+                chunkDeliveries.ack(channel, deliveryTag, multiple);
+            }
         }
         catch (final IOException ioe)
         {
@@ -83,6 +91,12 @@ public class AmqpMessageAcknowledger implements MessageProcessor
                                                    + " on channel: " + channel), ioe);
         }
 
+        final AmqpEndpointStatistics endpointStatistics = message.getInvocationProperty(AmqpConstants.ENDPOINT_STATISTICS);
+        if (endpointStatistics != null)
+        {
+            endpointStatistics.messageAcked();
+        }
+
         if (LOG.isDebugEnabled())
         {
             LOG.debug("Manually acknowledged message w/deliveryTag: " + deliveryTag + " on channel: "
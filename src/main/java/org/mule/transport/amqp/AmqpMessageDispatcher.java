@@ -11,52 +11,79 @@
 package org.mule.transport.amqp;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.mule.DefaultMessageCollection;
 import org.mule.api.MuleEvent;
 import org.mule.api.MuleException;
 import org.mule.api.MuleMessage;
+import org.mule.api.MuleRuntimeException;
 import org.mule.api.endpoint.OutboundEndpoint;
 import org.mule.api.transport.DispatchException;
 import org.mule.config.i18n.MessageFactory;
 import org.mule.transport.AbstractMessageDispatcher;
+import org.mule.transport.ConnectException;
 import org.mule.transport.amqp.AmqpConnector.OutboundConnection;
+import org.mule.transport.amqp.AmqpConstants.RateLimitPolicy;
+import org.mule.transport.amqp.AmqpConstants.SpoolMode;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
 import org.mule.util.StringUtils;
+import org.mule.util.UUID;
 
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.AMQP.Queue.DeclareOk;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * The <code>AmqpMessageDispatcher</code> takes care of sending messages from Mule to
  * an AMQP broker. It supports synchronous sending by the means of private temporary
- * reply queues.
+ * reply queues. Messages larger than the configured chunk size are published as a
+ * sequence of chunks that {@link AmqpMessageReceiver} reassembles. When the connector
+ * has an {@link AmqpOutboundSpool}, dispatched messages that can't be published are
+ * spooled to disk and published later by the connector. Sharded endpoints publish to
+ * the shard queue selected by the partition key of each message. Scatter-gather
+ * endpoints return all the replies received to a synchronous send as a collection.
  */
 public class AmqpMessageDispatcher extends AbstractMessageDispatcher
 {
+    private static final Random RANDOM = new Random();
+
     protected final AmqpConnector amqpConnector;
     protected OutboundConnection outboundConnection;
+    protected final AmqpEndpointConfig endpointConfig;
+    protected final AmqpEndpointStatistics endpointStatistics;
+    protected final int chunkSize;
+    protected final AmqpOutboundSpool outboundSpool;
+    protected final AmqpRateLimiter rateLimiter;
+    protected final String rateLimiterKey;
+    private long lastConnectAttempt;
+    // dispatchers start at different shards to spread keyless messages evenly
+    private final AtomicInteger nextShard = new AtomicInteger(RANDOM.nextInt(Integer.MAX_VALUE));
 
     protected enum OutboundAction
     {
         DISPATCH
         {
             @Override
-            public AmqpMessage run(final AmqpConnector amqpConnector,
+            public AmqpMessage run(final AmqpMessageDispatcher dispatcher,
                                    final Channel channel,
                                    final String exchange,
                                    final String routingKey,
                                    final AmqpMessage amqpMessage,
                                    final long timeout) throws IOException
             {
-                channel.basicPublish(exchange, routingKey, amqpConnector.isMandatory(),
-                    amqpConnector.isImmediate(), amqpMessage.getProperties(), amqpMessage.getBody());
+                dispatcher.publish(channel, exchange, routingKey, amqpMessage);
                 return null;
             }
         },
         SEND
         {
             @Override
-            public AmqpMessage run(final AmqpConnector amqpConnector,
+            public AmqpMessage run(final AmqpMessageDispatcher dispatcher,
                                    final Channel channel,
                                    final String exchange,
                                    final String routingKey,
@@ -67,12 +94,30 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
                 final String temporaryReplyToQueue = declareOk.getQueue();
                 amqpMessage.setReplyTo(temporaryReplyToQueue);
 
-                DISPATCH.run(amqpConnector, channel, exchange, routingKey, amqpMessage, timeout);
-                return amqpConnector.consume(channel, temporaryReplyToQueue, true, timeout);
+                DISPATCH.run(dispatcher, channel, exchange, routingKey, amqpMessage, timeout);
+                return dispatcher.amqpConnector.consume(channel, temporaryReplyToQueue, true, timeout);
+            }
+        },
+        // publishes with a temporary reply queue, from which the dispatcher then
+        // gathers the replies
+        SCATTER
+        {
+            @Override
+            public AmqpMessage run(final AmqpMessageDispatcher dispatcher,
+                                   final Channel channel,
+                                   final String exchange,
+                                   final String routingKey,
+                                   final AmqpMessage amqpMessage,
+                                   final long timeout) throws IOException
+            {
+                final DeclareOk declareOk = channel.queueDeclare();
+                amqpMessage.setReplyTo(declareOk.getQueue());
+
+                return DISPATCH.run(dispatcher, channel, exchange, routingKey, amqpMessage, timeout);
             }
         };
 
-        public abstract AmqpMessage run(final AmqpConnector amqpConnector,
+        public abstract AmqpMessage run(final AmqpMessageDispatcher dispatcher,
                                         Channel channel,
                                         String exchange,
                                         String routingKey,
@@ -84,6 +129,19 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
     {
         super(endpoint);
         amqpConnector = (AmqpConnector) endpoint.getConnector();
+        endpointConfig = AmqpEndpointConfig.forEndpoint(endpoint);
+        endpointStatistics = amqpConnector.getAmqpStatistics().getEndpointStatistics(endpoint);
+        chunkSize = endpointConfig.getChunkSize();
+        outboundSpool = amqpConnector.getOutboundSpool();
+        rateLimiterKey = amqpConnector.getRateLimiterKey(endpoint);
+        rateLimiter = amqpConnector.getRateLimiter(endpoint);
+        if ((rateLimiter != null) && (endpointConfig.getPublishRateLimitPolicy() == RateLimitPolicy.SPOOL)
+            && (outboundSpool == null))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("The SPOOL rate limit policy requires a connector spool directory in endpoint: "
+                                                   + endpoint));
+        }
         if (logger.isDebugEnabled())
         {
             logger.debug("Instantiated: " + this);
@@ -93,7 +151,21 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
     @Override
     protected void doConnect() throws MuleException
     {
-        outboundConnection = amqpConnector.connect(this);
+        try
+        {
+            outboundConnection = amqpConnector.connect(this);
+        }
+        catch (final ConnectException ce)
+        {
+            if (outboundSpool == null)
+            {
+                throw ce;
+            }
+
+            // dispatched messages are spooled until the connection is available
+            logger.warn("Failed to connect: " + getEndpoint() + ", dispatched messages will be spooled", ce);
+            lastConnectAttempt = System.currentTimeMillis();
+        }
     }
 
     @Override
@@ -119,11 +191,62 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
     @Override
     public MuleMessage doSend(final MuleEvent event) throws Exception
     {
+        if (endpointConfig.isScatterGather())
+        {
+            return doScatterGather(event);
+        }
+
         final MuleMessage resultMessage = createMuleMessage(doOutboundAction(event, OutboundAction.SEND));
         resultMessage.applyTransformers(event, amqpConnector.getReceiveTransformer());
         return resultMessage;
     }
 
+    /**
+     * Publishes the message once, for instance to a fanout or topic exchange, and
+     * gathers the replies of all the services it reaches.
+     *
+     * @return a collection of the replies received within the response timeout, or
+     *         until the expected number of replies has been received.
+     */
+    protected MuleMessage doScatterGather(final MuleEvent event) throws Exception
+    {
+        final long startNanos = System.nanoTime();
+        doOutboundAction(event, OutboundAction.SCATTER);
+
+        final AmqpMessage amqpMessage = (AmqpMessage) event.getMessage().getPayload();
+        final List<AmqpMessage> replies;
+        try
+        {
+            replies = amqpConnector.consume(getChannel(), amqpMessage.getProperties().getReplyTo(), true,
+                endpointConfig.getExpectedReplies(), getTimeOutForEvent(event));
+        }
+        catch (final Exception e)
+        {
+            endpointStatistics.errorOccurred(e);
+            throw e;
+        }
+
+        if (!replies.isEmpty())
+        {
+            endpointStatistics.recordSendRoundTripLatency(System.nanoTime() - startNanos);
+        }
+        if ((endpointConfig.getExpectedReplies() > 0) && (replies.size() < endpointConfig.getExpectedReplies()))
+        {
+            logger.warn("Gathered: " + replies.size() + " replies out of: " + endpointConfig.getExpectedReplies()
+                        + " expected for: " + event);
+        }
+
+        final DefaultMessageCollection resultMessages = new DefaultMessageCollection(
+            getEndpoint().getMuleContext());
+        for (final AmqpMessage reply : replies)
+        {
+            final MuleMessage replyMessage = createMuleMessage(reply);
+            replyMessage.applyTransformers(event, amqpConnector.getReceiveTransformer());
+            resultMessages.addMessage(replyMessage);
+        }
+        return resultMessages;
+    }
+
     protected AmqpMessage doOutboundAction(final MuleEvent event, final OutboundAction outboundAction)
         throws Exception
     {
@@ -136,9 +259,8 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
                                                    + AmqpMessage.class.getName()), event, getEndpoint());
         }
 
-        final Channel eventChannel = getChannel();
-        final String eventExchange = message.getOutboundProperty(AmqpConstants.EXCHANGE, getExchange());
-        final String eventRoutingKey = message.getOutboundProperty(AmqpConstants.ROUTING_KEY, getRoutingKey());
+        final String eventExchange = getEventExchange(message);
+        final String eventRoutingKey = getEventRoutingKey(message);
         final AmqpMessage amqpMessage = (AmqpMessage) message.getPayload();
 
         // override publication properties if they are not set
@@ -152,10 +274,51 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
             amqpMessage.setPriority(amqpConnector.getPriority().intValue());
         }
 
+        if ((outboundAction == OutboundAction.DISPATCH) && (outboundSpool != null)
+            && (isSpoolingNeeded(getChannel())))
+        {
+            spool(eventExchange, eventRoutingKey, amqpMessage, rateLimiterKey, null);
+            amqpConnector.markSpoolFallback();
+            return null;
+        }
+
+        if ((throttle(event, outboundAction, rateLimiter, endpointConfig.getPublishRateLimitPolicy(),
+            eventExchange, eventRoutingKey, amqpMessage))
+            || (throttle(event, outboundAction, amqpConnector.getRateLimiter(),
+                amqpConnector.getPublishRateLimitPolicy(), eventExchange, eventRoutingKey, amqpMessage)))
+        {
+            return null;
+        }
+
+        final Channel eventChannel = getChannel();
+
         addReturnListenerIfNeeded(event, eventChannel);
 
-        final AmqpMessage result = outboundAction.run(amqpConnector, eventChannel, eventExchange,
-            eventRoutingKey, amqpMessage, getTimeOutForEvent(event));
+        final AmqpMessage result;
+        final long startNanos = System.nanoTime();
+        try
+        {
+            result = outboundAction.run(this, eventChannel, eventExchange, eventRoutingKey, amqpMessage,
+                getTimeOutForEvent(event));
+
+            if ((outboundAction == OutboundAction.SEND) && (result != null))
+            {
+                endpointStatistics.recordSendRoundTripLatency(System.nanoTime() - startNanos);
+            }
+        }
+        catch (final Exception e)
+        {
+            endpointStatistics.errorOccurred(e);
+
+            if ((outboundAction == OutboundAction.DISPATCH) && (outboundSpool != null)
+                && ((e instanceof IOException) || (e instanceof ShutdownSignalException)))
+            {
+                spool(eventExchange, eventRoutingKey, amqpMessage, rateLimiterKey, e);
+                amqpConnector.markSpoolFallback();
+                return null;
+            }
+            throw e;
+        }
 
         if (logger.isDebugEnabled())
         {
@@ -167,6 +330,186 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
         return result;
     }
 
+    /**
+     * In fallback mode, messages are spooled while the channel is unavailable and until
+     * the messages spooled for that reason have been replayed, so that they are not
+     * published before older messages.
+     */
+    protected boolean isSpoolingNeeded(final Channel channel)
+    {
+        if ((amqpConnector.getSpoolMode() == SpoolMode.WRITE_AHEAD) || (amqpConnector.isSpoolFallback()))
+        {
+            return true;
+        }
+
+        if ((channel != null) && (channel.isOpen()))
+        {
+            return false;
+        }
+
+        return !reconnect();
+    }
+
+    /**
+     * Applies a publish rate limit, waiting for it, failing or spooling the message
+     * according to the policy. Sends can't be spooled so they wait.
+     *
+     * @return true if the message has been spooled instead of being published.
+     */
+    protected boolean throttle(final MuleEvent event,
+                               final OutboundAction outboundAction,
+                               final AmqpRateLimiter limiter,
+                               final RateLimitPolicy policy,
+                               final String exchange,
+                               final String routingKey,
+                               final AmqpMessage amqpMessage) throws Exception
+    {
+        if (limiter == null)
+        {
+            return false;
+        }
+
+        final int bodySize = amqpMessage.getBody().length;
+
+        if ((policy == RateLimitPolicy.BLOCK)
+            || ((policy == RateLimitPolicy.SPOOL) && (outboundAction != OutboundAction.DISPATCH)))
+        {
+            final long waitNanos = limiter.acquire(bodySize);
+            if (waitNanos > 0L)
+            {
+                endpointStatistics.messageThrottled(waitNanos);
+            }
+            return false;
+        }
+
+        if (limiter.tryAcquire(bodySize))
+        {
+            return false;
+        }
+
+        endpointStatistics.messageThrottled(0L);
+
+        if (policy == RateLimitPolicy.FAIL)
+        {
+            throw new DispatchException(
+                MessageFactory.createStaticMessage("Publish rate limit exceeded for endpoint: "
+                                                   + getEndpoint().getEndpointURI()), event, getEndpoint());
+        }
+
+        // replayed messages go through the connector limiter, and through the endpoint
+        // one if it is the limiter that throttled them
+        spool(exchange, routingKey, amqpMessage, limiter == rateLimiter ? rateLimiterKey : null, null);
+        return true;
+    }
+
+    /**
+     * Tries to reconnect the dispatcher, at most once per spool replay interval.
+     *
+     * @return true if the dispatcher is connected.
+     */
+    private synchronized boolean reconnect()
+    {
+        final long now = System.currentTimeMillis();
+        if (now - lastConnectAttempt < amqpConnector.getSpoolReplayInterval())
+        {
+            return false;
+        }
+
+        lastConnectAttempt = now;
+        try
+        {
+            outboundConnection = amqpConnector.connect(this);
+            return true;
+        }
+        catch (final ConnectException ce)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Failed to reconnect: " + getEndpoint(), ce);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param replayRateLimiterKey the key of the endpoint rate limiter the message must
+     *            go through when it is replayed, or null.
+     */
+    protected void spool(final String exchange,
+                         final String routingKey,
+                         final AmqpMessage amqpMessage,
+                         final String replayRateLimiterKey,
+                         final Exception cause) throws IOException
+    {
+        outboundSpool.append(new AmqpSpoolRecord(exchange, routingKey, amqpMessage.getProperties(),
+            amqpMessage.getBody(), replayRateLimiterKey));
+        amqpConnector.getAmqpStatistics().messageSpooled();
+
+        if (cause != null)
+        {
+            logger.warn("Spooled message that failed to be published to exchange: " + exchange, cause);
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("Spooled message for exchange: " + exchange + " and routing key: " + routingKey);
+        }
+    }
+
+    /**
+     * Publishes the message, splitting its body in sequenced chunks if it is larger
+     * than the configured chunk size. Each chunk is copied right before being
+     * published so only one chunk copy is alive at any time.
+     */
+    protected void publish(final Channel channel,
+                           final String exchange,
+                           final String routingKey,
+                           final AmqpMessage amqpMessage) throws IOException
+    {
+        final byte[] body = amqpMessage.getBody();
+        final long startNanos = System.nanoTime();
+
+        if ((chunkSize <= 0) || (body.length <= chunkSize))
+        {
+            basicPublish(channel, exchange, routingKey, amqpMessage.getProperties(), body);
+            endpointStatistics.recordPublishLatency(System.nanoTime() - startNanos);
+            endpointStatistics.messagePublished(body.length);
+            return;
+        }
+
+        final BasicProperties properties = amqpMessage.getProperties();
+        // not the message id, which a publisher may reuse while chunks of a previous message are queued
+        final String chunkId = UUID.getUUID();
+        final int chunkCount = (body.length + chunkSize - 1) / chunkSize;
+
+        for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++)
+        {
+            final int offset = chunkIndex * chunkSize;
+            final byte[] chunk = new byte[Math.min(chunkSize, body.length - offset)];
+            System.arraycopy(body, offset, chunk, 0, chunk.length);
+
+            basicPublish(channel, exchange, routingKey, AmqpChunkAssembler.chunkProperties(properties,
+                chunkId, chunkIndex, chunkCount, offset, body.length), chunk);
+        }
+        endpointStatistics.recordPublishLatency(System.nanoTime() - startNanos);
+        endpointStatistics.messagePublished(body.length);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(String.format("Published message: %s of %d bytes in %d chunks", chunkId,
+                body.length, chunkCount));
+        }
+    }
+
+    protected void basicPublish(final Channel channel,
+                                final String exchange,
+                                final String routingKey,
+                                final BasicProperties properties,
+                                final byte[] body) throws IOException
+    {
+        channel.basicPublish(exchange, routingKey, amqpConnector.isMandatory(), amqpConnector.isImmediate(),
+            properties, body);
+    }
+
     private int getTimeOutForEvent(final MuleEvent muleEvent)
     {
         final int defaultTimeOut = muleEvent.getMuleContext().getConfiguration().getDefaultResponseTimeout();
@@ -208,6 +551,60 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
         }
     }
 
+    /**
+     * @return the exchange set on the message, or rendered from the endpoint exchange
+     *         template, or the endpoint exchange.
+     */
+    protected String getEventExchange(final MuleMessage message)
+    {
+        final String exchange = message.getOutboundProperty(AmqpConstants.EXCHANGE);
+        if (exchange != null)
+        {
+            return exchange;
+        }
+
+        final RoutingTemplate exchangeTemplate = endpointConfig.getExchangeTemplate();
+        return exchangeTemplate == null ? getExchange() : exchangeTemplate.render(message);
+    }
+
+    /**
+     * @return the routing key set on the message, or the shard queue of sharded
+     *         endpoints, or rendered from the endpoint routing key template, or the
+     *         endpoint routing key.
+     */
+    protected String getEventRoutingKey(final MuleMessage message)
+    {
+        final String routingKey = message.getOutboundProperty(AmqpConstants.ROUTING_KEY);
+        if (routingKey != null)
+        {
+            return routingKey;
+        }
+
+        if (endpointConfig.getShards() > 0)
+        {
+            return endpointConfig.getShardQueueName(getShard(message));
+        }
+
+        final RoutingTemplate routingKeyTemplate = endpointConfig.getRoutingKeyTemplate();
+        return routingKeyTemplate == null ? getRoutingKey() : routingKeyTemplate.render(message);
+    }
+
+    /**
+     * @return the shard of the partition key of the message, or the next shard in turn
+     *         if the message has no partition key.
+     */
+    protected int getShard(final MuleMessage message)
+    {
+        final RoutingTemplate shardKeyTemplate = endpointConfig.getShardKeyTemplate();
+        final String partitionKey = shardKeyTemplate == null ? null : shardKeyTemplate.render(message);
+
+        if (StringUtils.isEmpty(partitionKey))
+        {
+            return (nextShard.getAndIncrement() & Integer.MAX_VALUE) % endpointConfig.getShards();
+        }
+        return AmqpEndpointUtil.getShard(partitionKey, endpointConfig.getShards());
+    }
+
     protected Channel getChannel()
     {
         return outboundConnection == null ? null : outboundConnection.getChannel();
@@ -215,11 +612,16 @@ public class AmqpMessageDispatcher extends AbstractMessageDispatcher
 
     protected String getExchange()
     {
-        return outboundConnection == null ? StringUtils.EMPTY : outboundConnection.getExchange();
+        // the configured exchange lets messages be spooled while disconnected
+        return outboundConnection == null
+                                         ? StringUtils.defaultString(endpointConfig.getExchangeName())
+                                         : outboundConnection.getExchange();
     }
 
     protected String getRoutingKey()
     {
-        return outboundConnection == null ? StringUtils.EMPTY : outboundConnection.getRoutingKey();
+        return outboundConnection == null
+                                         ? StringUtils.defaultString(endpointConfig.getOutboundRoutingKey())
+                                         : outboundConnection.getRoutingKey();
     }
 }
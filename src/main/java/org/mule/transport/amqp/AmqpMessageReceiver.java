@@ -11,29 +11,44 @@
 package org.mule.transport.amqp;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.resource.spi.work.Work;
 import javax.resource.spi.work.WorkException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mule.DefaultMuleEvent;
 import org.mule.MessageExchangePattern;
 import org.mule.api.MuleEvent;
 import org.mule.api.MuleException;
 import org.mule.api.MuleMessage;
 import org.mule.api.MuleRuntimeException;
 import org.mule.api.construct.FlowConstruct;
+import org.mule.api.endpoint.EndpointBuilder;
 import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.api.endpoint.OutboundEndpoint;
 import org.mule.api.execution.ExecutionCallback;
 import org.mule.api.execution.ExecutionTemplate;
 import org.mule.api.lifecycle.CreateException;
 import org.mule.api.lifecycle.StartException;
+import org.mule.api.store.ObjectStore;
 import org.mule.api.transport.Connector;
 import org.mule.api.transport.PropertyScope;
 import org.mule.config.i18n.MessageFactory;
 import org.mule.transport.AbstractMessageReceiver;
+import org.mule.transport.ConnectException;
 import org.mule.transport.amqp.AmqpConnector.InboundConnection;
 import org.mule.transport.amqp.AmqpConstants.AckMode;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
+import org.mule.util.StringUtils;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
@@ -41,14 +56,36 @@ import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 
 /**
- * The <code>AmqpMessageReceiver</code> subscribes to a queue and dispatches received
- * messages to Mule.
+ * The <code>AmqpMessageReceiver</code> subscribes to a queue, and to the additional
+ * queues of its endpoint if any, and dispatches received messages to Mule. Chunked
+ * messages are reassembled before being dispatched, duplicates of already processed
+ * messages can be dropped and poison messages, which keep failing the flow, can be
+ * quarantined instead of redelivered forever.
  */
 public class AmqpMessageReceiver extends AbstractMessageReceiver
 {
+    private static final long MAX_CHUNK_EXPIRY_INTERVAL = 60 * 1000L;
+
     protected final AmqpConnector amqpConnector;
     protected InboundConnection inboundConnection;
     protected String consumerTag;
+    protected final AmqpChunkAssembler chunkAssembler;
+    protected final AmqpEndpointConfig endpointConfig;
+    protected final AmqpEndpointStatistics endpointStatistics;
+    protected final AmqpPoisonMessageTracker poisonTracker;
+    protected OutboundEndpoint quarantineEndpoint;
+    protected final AmqpDeduplicationCache deduplicationCache;
+    protected final AmqpPriorityWorkQueue priorityWorkQueue;
+    protected final AmqpWeightedWorkQueue weightedWorkQueue;
+    protected final AmqpVirtualThreadExecutor virtualThreadExecutor;
+    protected Subscriber subscriber;
+    protected final AmqpConsumerScaler consumerScaler;
+    // guards the scaling state
+    protected final List<Subscriber> scaledSubscribers = new ArrayList<Subscriber>();
+    private final List<Subscriber> retiredSubscribers = new ArrayList<Subscriber>();
+    private InboundConnection scalingConnection;
+    private ScheduledFuture<?> scalingTask;
+    private ScheduledFuture<?> chunkExpiryTask;
 
     public AmqpMessageReceiver(final Connector connector,
                                final FlowConstruct flowConstruct,
@@ -56,6 +93,82 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
     {
         super(connector, flowConstruct, endpoint);
         this.amqpConnector = (AmqpConnector) connector;
+        this.endpointConfig = AmqpEndpointConfig.forEndpoint(endpoint);
+        this.endpointStatistics = amqpConnector.getAmqpStatistics().getEndpointStatistics(endpoint);
+        this.chunkAssembler = new AmqpChunkAssembler(endpointConfig.getChunkSpoolThreshold());
+        this.poisonTracker = endpointConfig.getPoisonThreshold() > 0 ? new AmqpPoisonMessageTracker(
+            endpointConfig.getPoisonThreshold(), endpointConfig.getPoisonTrackerCapacity()) : null;
+        this.deduplicationCache = endpointConfig.getDeduplicationWindow() > 0 ? new AmqpDeduplicationCache(
+            endpointConfig.getDeduplicationWindow(), endpointConfig.getDeduplicationCapacity(),
+            lookupDeduplicationStore(endpointConfig.getDeduplicationStore())) : null;
+        this.priorityWorkQueue = endpointConfig.isPriorityScheduling() ? new AmqpPriorityWorkQueue() : null;
+        final int[] queueWeights = endpointConfig.getConsumedQueueWeights();
+        this.weightedWorkQueue = queueWeights.length > 1 ? new AmqpWeightedWorkQueue(queueWeights) : null;
+        if (endpointConfig.isVirtualThreads())
+        {
+            this.virtualThreadExecutor = createVirtualThreadExecutor(queueWeights.length);
+        }
+        else
+        {
+            this.virtualThreadExecutor = null;
+        }
+        if (endpointConfig.getMaxConsumers() > endpointConfig.getMinConsumers())
+        {
+            this.consumerScaler = new AmqpConsumerScaler(endpointConfig.getMinConsumers(),
+                endpointConfig.getMaxConsumers(), endpointConfig.getConsumerScalingBacklog());
+        }
+        else
+        {
+            this.consumerScaler = null;
+        }
+    }
+
+    /**
+     * Bounds the messages routed concurrently by the number of messages the broker can
+     * deliver unacknowledged to the consumers of the endpoint, which have one
+     * subscription per consumed queue each.
+     *
+     * @return null if the JVM doesn't support virtual threads.
+     */
+    private AmqpVirtualThreadExecutor createVirtualThreadExecutor(final int consumedQueues)
+        throws CreateException
+    {
+        if (amqpConnector.getPrefetchCount() <= 0)
+        {
+            throw new CreateException(
+                MessageFactory.createStaticMessage("A prefetch count must be set on the connector to route messages on virtual threads for endpoint: "
+                                                   + endpoint), this);
+        }
+
+        final long maxThreads = (long) amqpConnector.getPrefetchCount() * consumedQueues
+                                * endpointConfig.getMaxConsumers();
+        final AmqpVirtualThreadExecutor executor = AmqpVirtualThreadExecutor.create(
+            amqpConnector.getName() + ".receiver.virtual-", (int) Math.min(maxThreads, Integer.MAX_VALUE));
+
+        if (executor == null)
+        {
+            logger.warn("Virtual threads are not supported by this JVM, messages of: " + endpoint
+                        + " are routed on the threads of the work manager");
+        }
+        return executor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ObjectStore<Serializable> lookupDeduplicationStore(final String storeName) throws CreateException
+    {
+        if (storeName == null)
+        {
+            return null;
+        }
+
+        final Object store = connector.getMuleContext().getRegistry().lookupObject(storeName);
+        if (!(store instanceof ObjectStore<?>))
+        {
+            throw new CreateException(MessageFactory.createStaticMessage("No object store named: " + storeName
+                                                                         + " for endpoint: " + endpoint),
+                this);
+        }
+        return (ObjectStore<Serializable>) store;
     }
 
     @Override
@@ -75,16 +188,41 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
                 doConnect();
             }
 
-            if (endpoint.getTransactionConfig().isTransacted())
+            if ((poisonTracker != null) && (endpointConfig.getQuarantineEndpoint() != null)
+                && (quarantineEndpoint == null))
             {
-                getChannel().txSelect();
+                quarantineEndpoint = lookupQuarantineEndpoint(endpointConfig.getQuarantineEndpoint());
             }
 
-            consumerTag = getChannel().basicConsume(getQueueName(), amqpConnector.getAckMode().isAutoAck(),
-                getClientConsumerTag(), amqpConnector.isNoLocal(), amqpConnector.isExclusiveConsumers(),
-                null, new AmqpConsumer(getChannel()));
+            subscriber = new Subscriber(inboundConnection);
+            consumerTag = subscriber.subscribe();
 
-            logger.info("Started subscription: " + consumerTag + " on channel: " + getChannel());
+            for (int i = 1; i < endpointConfig.getMinConsumers(); i++)
+            {
+                addSubscriber();
+            }
+
+            if (consumerScaler != null)
+            {
+                scalingTask = connector.getScheduler().scheduleWithFixedDelay(new Runnable()
+                {
+                    public void run()
+                    {
+                        scaleConsumers();
+                    }
+                }, endpointConfig.getConsumerScalingInterval(), endpointConfig.getConsumerScalingInterval(),
+                    TimeUnit.MILLISECONDS);
+            }
+
+            final long chunkExpiryInterval = Math.min(chunkAssembler.getAssemblyTimeout(),
+                MAX_CHUNK_EXPIRY_INTERVAL);
+            chunkExpiryTask = connector.getScheduler().scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    chunkAssembler.expireAssemblies();
+                }
+            }, chunkExpiryInterval, chunkExpiryInterval, TimeUnit.MILLISECONDS);
         }
         catch (final Exception e)
         {
@@ -97,41 +235,290 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
     @Override
     public void doStop()
     {
-        Channel channel = null;
+        if (scalingTask != null)
+        {
+            scalingTask.cancel(false);
+            scalingTask = null;
+        }
+
+        if (chunkExpiryTask != null)
+        {
+            chunkExpiryTask.cancel(false);
+            chunkExpiryTask = null;
+        }
+
+        final List<Subscriber> stoppedSubscribers = new ArrayList<Subscriber>();
+        if (subscriber != null)
+        {
+            stoppedSubscribers.add(subscriber);
+        }
+
+        synchronized (scaledSubscribers)
+        {
+            stoppedSubscribers.addAll(scaledSubscribers);
+            stoppedSubscribers.addAll(retiredSubscribers);
+            scaledSubscribers.clear();
+            retiredSubscribers.clear();
+            if (scalingConnection != null)
+            {
+                closeChannel(scalingConnection.getChannel());
+                scalingConnection = null;
+            }
+        }
+
         try
         {
-            channel = getChannel();
-            if (channel == null)
+            for (final Subscriber stoppedSubscriber : stoppedSubscribers)
+            {
+                stoppedSubscriber.unsubscribe();
+            }
+
+            drain(stoppedSubscribers);
+        }
+        finally
+        {
+            for (final Subscriber stoppedSubscriber : stoppedSubscribers)
+            {
+                stoppedSubscriber.close();
+            }
+            subscriber = null;
+            inboundConnection = null;
+        }
+    }
+
+    /**
+     * Lets the messages received before the subscriptions were cancelled be processed,
+     * hence acknowledged, for at most the drain timeout of the endpoint, so that
+     * closing the channels doesn't make the broker redeliver them. Messages the broker
+     * has auto-acknowledged are drained too, as they would otherwise be lost.
+     */
+    private void drain(final List<Subscriber> subscribers)
+    {
+        if (endpointConfig.getDrainTimeout() == 0)
+        {
+            return;
+        }
+
+        long processedMessages = 0L;
+        for (final Subscriber stoppedSubscriber : subscribers)
+        {
+            processedMessages -= stoppedSubscriber.getProcessedMessages();
+        }
+
+        final long deadline = System.currentTimeMillis() + endpointConfig.getDrainTimeout();
+        try
+        {
+            for (final Subscriber stoppedSubscriber : subscribers)
+            {
+                stoppedSubscriber.drain(deadline);
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        int undrainedMessages = 0;
+        for (final Subscriber stoppedSubscriber : subscribers)
+        {
+            processedMessages += stoppedSubscriber.getProcessedMessages();
+            undrainedMessages += stoppedSubscriber.getUndrainedMessages();
+        }
+
+        endpointStatistics.messagesDrained(processedMessages, undrainedMessages);
+        if ((processedMessages > 0L) || (undrainedMessages > 0))
+        {
+            logger.info("Drained: " + processedMessages + " in-flight messages of: "
+                        + getEndpoint().getEndpointURI() + ", left for redelivery: " + undrainedMessages);
+        }
+    }
+
+    /**
+     * Subscribes an additional consumer, with a channel of its own.
+     */
+    protected void addSubscriber() throws IOException
+    {
+        synchronized (scaledSubscribers)
+        {
+            final Subscriber scaledSubscriber = new Subscriber(inboundConnection.duplicate());
+            try
+            {
+                scaledSubscriber.subscribe();
+            }
+            catch (final IOException ioe)
+            {
+                scaledSubscriber.close();
+                throw ioe;
+            }
+            scaledSubscribers.add(scaledSubscriber);
+        }
+    }
+
+    /**
+     * Cancels the subscriptions of the last added consumer. Its channel is closed by a
+     * later scaling, once the messages it has already received have been processed.
+     */
+    protected void removeSubscriber()
+    {
+        synchronized (scaledSubscribers)
+        {
+            if (scaledSubscribers.isEmpty())
             {
                 return;
             }
 
-            if (logger.isDebugEnabled())
+            final Subscriber scaledSubscriber = scaledSubscribers.remove(scaledSubscribers.size() - 1);
+            scaledSubscriber.unsubscribe();
+            retiredSubscribers.add(scaledSubscriber);
+        }
+    }
+
+    private void closeRetiredSubscribers()
+    {
+        final Iterator<Subscriber> iterator = retiredSubscribers.iterator();
+        while (iterator.hasNext())
+        {
+            final Subscriber retiredSubscriber = iterator.next();
+            if (retiredSubscriber.isDrained())
             {
-                logger.debug("Cancelling subscription of: " + consumerTag + " on channel: " + channel);
+                retiredSubscriber.close();
+                iterator.remove();
             }
+        }
+    }
 
-            channel.basicCancel(consumerTag);
+    /**
+     * Reads the backlog of the consumed queues and adds or removes a consumer if the
+     * scaler says so.
+     */
+    protected void scaleConsumers()
+    {
+        synchronized (scaledSubscribers)
+        {
+            if (inboundConnection == null)
+            {
+                return;
+            }
 
-            logger.info("Cancelled subscription of: " + consumerTag + " on channel: " + channel);
+            closeRetiredSubscribers();
 
-            if (logger.isDebugEnabled())
+            try
             {
-                logger.debug("Disconnecting: queue: " + getQueueName() + " from channel: " + channel);
+                final int consumers = getConsumerCount();
+                final long backlog = getBacklog();
+                final int targetConsumers = consumerScaler.scale(consumers, backlog);
+
+                if (targetConsumers > consumers)
+                {
+                    addSubscriber();
+                    logger.info("Added a consumer to: " + getEndpoint().getEndpointURI() + " for a backlog of: "
+                                + backlog + " messages, consumers: " + targetConsumers);
+                }
+                else if (targetConsumers < consumers)
+                {
+                    removeSubscriber();
+                    logger.info("Removed a consumer from: " + getEndpoint().getEndpointURI()
+                                + " for a backlog of: " + backlog + " messages, consumers: " + targetConsumers);
+                }
+            }
+            catch (final Exception e)
+            {
+                endpointStatistics.errorOccurred(e);
+                logger.warn("Failed to scale the consumers of: " + getEndpoint().getEndpointURI(), e);
             }
+        }
+    }
 
+    /**
+     * @return the number of messages ready for delivery in the consumed queues.
+     */
+    protected long getBacklog() throws IOException
+    {
+        if (scalingConnection == null)
+        {
+            // passive declarations of deleted queues close their channel, so they
+            // don't use the channels of the consumers
+            scalingConnection = inboundConnection.duplicate();
+        }
+
+        final Channel channel = scalingConnection.getChannel();
+        long backlog = channel.queueDeclarePassive(scalingConnection.getQueue()).getMessageCount();
+        for (final String additionalQueue : scalingConnection.getAdditionalQueues())
+        {
+            backlog += channel.queueDeclarePassive(additionalQueue).getMessageCount();
+        }
+        return backlog;
+    }
+
+    /**
+     * @return the number of consumers subscribed to the queues of the endpoint by this
+     *         receiver.
+     */
+    public int getConsumerCount()
+    {
+        synchronized (scaledSubscribers)
+        {
+            return subscriber == null ? 0 : scaledSubscribers.size() + 1;
+        }
+    }
+
+    private void closeChannel(final Channel channel)
+    {
+        try
+        {
             amqpConnector.closeChannel(channel);
         }
-        catch (final Exception e)
+        catch (final ConnectException ce)
         {
-            logger.warn(
-                MessageFactory.createStaticMessage("Failed to cancel subscription: " + consumerTag
-                                                   + " on channel: " + channel), e);
+            logger.warn("Failed to close channel: " + channel, ce);
         }
-        finally
+    }
+
+    @Override
+    protected void doDispose()
+    {
+        chunkAssembler.dispose();
+        if (priorityWorkQueue != null)
         {
-            inboundConnection = null;
+            priorityWorkQueue.clear();
+        }
+        if (weightedWorkQueue != null)
+        {
+            weightedWorkQueue.clear();
+        }
+        if (virtualThreadExecutor != null)
+        {
+            virtualThreadExecutor.clear();
         }
+        super.doDispose();
+    }
+
+    /**
+     * @param nameOrAddress the name of a global endpoint or an endpoint address.
+     */
+    protected OutboundEndpoint lookupQuarantineEndpoint(final String nameOrAddress) throws MuleException
+    {
+        final EndpointBuilder endpointBuilder = connector.getMuleContext()
+            .getRegistry()
+            .lookupEndpointBuilder(nameOrAddress);
+
+        return endpointBuilder == null ? connector.getMuleContext().getEndpointFactory().getOutboundEndpoint(
+            nameOrAddress) : endpointBuilder.buildOutboundEndpoint();
+    }
+
+    private static String getMessageId(final AmqpMessage amqpMessage)
+    {
+        return amqpMessage.getProperties() == null ? null : StringUtils.trimToNull(amqpMessage.getProperties()
+            .getMessageId());
+    }
+
+    private static int getPriority(final AmqpMessage amqpMessage)
+    {
+        final Integer priority = amqpMessage.getProperties() == null ? null : amqpMessage.getProperties()
+            .getPriority();
+
+        // messages without priority have the lowest AMQP priority
+        return priority == null ? 0 : priority;
     }
 
     protected Channel getChannel()
@@ -144,33 +531,294 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
         return inboundConnection == null ? null : inboundConnection.getQueue();
     }
 
+    /**
+     * @return the queue consumed by the subscription of the given lane.
+     */
+    protected String getQueueName(final int lane)
+    {
+        if ((lane == 0) || (inboundConnection == null))
+        {
+            return getQueueName();
+        }
+        return inboundConnection.getAdditionalQueues().get(lane - 1);
+    }
+
     protected String getClientConsumerTag()
     {
-        return AmqpEndpointUtil.getConsumerTag(getEndpoint());
+        return endpointConfig.getConsumerTag();
     }
 
-    private void deliverAmqpMessage(final AmqpMessage amqpMessage)
+    private void deliverAmqpMessage(final Channel channel,
+                                    final Subscriber subscriber,
+                                    final AmqpMessage amqpMessage,
+                                    final int lane)
     {
-        final AmqpMessageRouterWork work = new AmqpMessageRouterWork(getChannel(), amqpMessage);
+        final AmqpMessageRouterWork work = new AmqpMessageRouterWork(channel, subscriber, amqpMessage, lane);
 
+        endpointStatistics.processingStarted();
+        if (subscriber != null)
+        {
+            subscriber.processingStarted();
+        }
         try
         {
             // deliver message in a different thread to free the Amqp Connector's
             // thread
-            getWorkManager().scheduleWork(work);
+            if (virtualThreadExecutor != null)
+            {
+                virtualThreadExecutor.execute(queueWork(work, amqpMessage, lane));
+            }
+            else
+            {
+                getWorkManager().scheduleWork(queueWork(work, amqpMessage, lane));
+            }
         }
         catch (final WorkException we)
         {
+            if (priorityWorkQueue != null)
+            {
+                priorityWorkQueue.remove(work);
+            }
+            if (weightedWorkQueue != null)
+            {
+                weightedWorkQueue.remove(work);
+            }
+            endpointStatistics.processingEnded();
+            if (subscriber != null)
+            {
+                subscriber.processingEnded();
+            }
+            endpointStatistics.errorOccurred(we);
             throw new MuleRuntimeException(MessageFactory.createStaticMessage("Failed to deliver: "
                                                                               + amqpMessage), we);
         }
     }
 
+    /**
+     * @return the work to schedule for the router work of a message.
+     */
+    private Work queueWork(final AmqpMessageRouterWork work, final AmqpMessage amqpMessage, final int lane)
+    {
+        if (priorityWorkQueue != null)
+        {
+            return priorityWorkQueue.add(work, getPriority(amqpMessage));
+        }
+        if (weightedWorkQueue != null)
+        {
+            return weightedWorkQueue.add(work, lane);
+        }
+        return work;
+    }
+
+    /**
+     * The subscriptions of a consumer to the queues of the endpoint, on the channel of
+     * its connection. The additional queues share the channel, hence its prefetch
+     * window.
+     */
+    protected final class Subscriber
+    {
+        private final InboundConnection connection;
+        private final List<String> consumerTags = new ArrayList<String>();
+        private Channel channel;
+        private final AtomicInteger inFlightMessages = new AtomicInteger();
+        private final AtomicLong processedMessages = new AtomicLong();
+        // guarded by this
+        private int activeSubscriptions;
+
+        private Subscriber(final InboundConnection connection)
+        {
+            this.connection = connection;
+        }
+
+        /**
+         * @return the consumer tag of the subscription to the first queue.
+         */
+        private String subscribe() throws IOException
+        {
+            channel = connection.getChannel();
+
+            if (endpoint.getTransactionConfig().isTransacted())
+            {
+                channel.txSelect();
+            }
+
+            subscribe(connection.getQueue(), getClientConsumerTag(), 0);
+
+            final List<String> additionalQueues = connection.getAdditionalQueues();
+            for (int i = 0; i < additionalQueues.size(); i++)
+            {
+                // client consumer tags must be unique per channel
+                String clientConsumerTag = getClientConsumerTag();
+                if (StringUtils.isNotEmpty(clientConsumerTag))
+                {
+                    clientConsumerTag += "." + additionalQueues.get(i);
+                }
+                subscribe(additionalQueues.get(i), clientConsumerTag, i + 1);
+            }
+
+            return consumerTags.get(0);
+        }
+
+        /**
+         * @param lane 0 for the queue of the endpoint address or its first shard, i for
+         *            the i-th queue consumed after it.
+         */
+        private void subscribe(final String queueName, final String clientConsumerTag, final int lane)
+            throws IOException
+        {
+            final String subscriptionConsumerTag = channel.basicConsume(queueName,
+                amqpConnector.getAckMode().isAutoAck(), clientConsumerTag, amqpConnector.isNoLocal(),
+                amqpConnector.isExclusiveConsumers(), null, new AmqpConsumer(channel, lane, this));
+            consumerTags.add(subscriptionConsumerTag);
+            synchronized (this)
+            {
+                activeSubscriptions++;
+            }
+
+            logger.info("Started subscription: " + subscriptionConsumerTag + " to queue: " + queueName
+                        + " on channel: " + channel);
+        }
+
+        private void unsubscribe()
+        {
+            if ((channel == null) || (!channel.isOpen()))
+            {
+                consumerTags.clear();
+                return;
+            }
+
+            for (final String subscriptionConsumerTag : consumerTags)
+            {
+                try
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Cancelling subscription of: " + subscriptionConsumerTag
+                                     + " on channel: " + channel);
+                    }
+
+                    channel.basicCancel(subscriptionConsumerTag);
+
+                    logger.info("Cancelled subscription of: " + subscriptionConsumerTag + " on channel: "
+                                + channel);
+                }
+                catch (final Exception e)
+                {
+                    logger.warn(
+                        MessageFactory.createStaticMessage("Failed to cancel subscription: "
+                                                           + subscriptionConsumerTag + " on channel: "
+                                                           + channel), e);
+                }
+            }
+            consumerTags.clear();
+        }
+
+        private void processingStarted()
+        {
+            inFlightMessages.incrementAndGet();
+        }
+
+        private void processingEnded()
+        {
+            processedMessages.incrementAndGet();
+            if (inFlightMessages.decrementAndGet() == 0)
+            {
+                synchronized (this)
+                {
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized void subscriptionCancelled()
+        {
+            activeSubscriptions--;
+            notifyAll();
+        }
+
+        /**
+         * @return true if no message can be received anymore and all the received
+         *         messages have been processed.
+         */
+        private synchronized boolean isDrained()
+        {
+            return ((activeSubscriptions <= 0) && (inFlightMessages.get() == 0))
+                   || (channel == null) || (!channel.isOpen());
+        }
+
+        /**
+         * Waits for the cancelled subscriptions to deliver their last messages and for
+         * all the received messages to be processed, which acknowledges them.
+         */
+        private synchronized void drain(final long deadline) throws InterruptedException
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            while ((!isDrained()) && (remaining > 0L))
+            {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * @return the number of received messages that closing the channel returns to
+         *         the broker.
+         */
+        private int getUndrainedMessages()
+        {
+            return isDrained() ? 0 : inFlightMessages.get();
+        }
+
+        private long getProcessedMessages()
+        {
+            return processedMessages.get();
+        }
+
+        private void close()
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Disconnecting: queue: " + connection.getQueue() + " from channel: " + channel);
+            }
+
+            closeChannel(channel);
+        }
+    }
+
     public final class AmqpConsumer extends DefaultConsumer
     {
+        private final int lane;
+        private final Subscriber subscriber;
+
         public AmqpConsumer(final Channel channel)
+        {
+            this(channel, 0, null);
+        }
+
+        private AmqpConsumer(final Channel channel, final int lane, final Subscriber subscriber)
         {
             super(channel);
+            this.lane = lane;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void handleCancelOk(final String consumerTag)
+        {
+            if (subscriber != null)
+            {
+                subscriber.subscriptionCancelled();
+            }
+        }
+
+        @Override
+        public void handleCancel(final String consumerTag) throws IOException
+        {
+            logger.warn("Subscription: " + consumerTag + " cancelled by the broker on channel: " + getChannel());
+            if (subscriber != null)
+            {
+                subscriber.subscriptionCancelled();
+            }
         }
 
         @Override
@@ -179,14 +827,215 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
                                    final AMQP.BasicProperties properties,
                                    final byte[] body) throws IOException
         {
-            final AmqpMessage amqpMessage = new AmqpMessage(consumerTag, envelope, properties, body);
+            AmqpMessage amqpMessage = new AmqpMessage(consumerTag, envelope, properties, body);
+            endpointStatistics.messageConsumed();
+
+            if ((properties != null) && (properties.getTimestamp() != null))
+            {
+                // only as precise as the timestamp, hence the clocks of publishers
+                endpointStatistics.recordBrokerToFlowLatency(System.currentTimeMillis()
+                                                             - properties.getTimestamp().getTime());
+            }
 
             if (logger.isDebugEnabled())
             {
                 logger.debug("Received: " + amqpMessage);
             }
 
-            deliverAmqpMessage(amqpMessage);
+            if (AmqpChunkAssembler.isChunk(amqpMessage))
+            {
+                amqpMessage = acceptChunk(amqpMessage);
+
+                if (amqpMessage == null)
+                {
+                    return;
+                }
+            }
+
+            if (((deduplicationCache != null) && (dropIfDuplicate(amqpMessage)))
+                || ((poisonTracker != null) && (quarantineIfPoison(amqpMessage))))
+            {
+                discardSpool(amqpMessage);
+                return;
+            }
+
+            deliverAmqpMessage(getChannel(), subscriber, amqpMessage, lane);
+        }
+
+        /**
+         * Hands a chunk over to the assembler. The deliveries of intermediate chunks
+         * are left unacknowledged, to be settled along with the reassembled message
+         * under the configured ack mode.
+         *
+         * @return the reassembled message if the chunk was the last one missing, null
+         *         otherwise.
+         */
+        private AmqpMessage acceptChunk(final AmqpMessage chunk) throws IOException
+        {
+            final boolean autoAck = amqpConnector.getAckMode().isAutoAck();
+            try
+            {
+                final AmqpMessage amqpMessage = chunkAssembler.accept(chunk, autoAck ? null : getChannel());
+
+                if ((amqpMessage == null) && (!autoAck) && (amqpConnector.getPrefetchCount() > 0)
+                    && (chunkAssembler.getPendingChunkCount() >= amqpConnector.getPrefetchCount()))
+                {
+                    logger.warn("Unacknowledged chunks fill the prefetch window of " + amqpConnector.getPrefetchCount()
+                                + " messages, raise the prefetch count to let chunked messages complete");
+                }
+                return amqpMessage;
+            }
+            catch (final IOException ioe)
+            {
+                endpointStatistics.errorOccurred(ioe);
+                logger.warn("Rejecting invalid chunk: " + chunk, ioe);
+
+                if (!autoAck)
+                {
+                    getChannel().basicReject(chunk.getEnvelope().getDeliveryTag(), false);
+                    endpointStatistics.messageRejected();
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Drops and acknowledges a message whose id has already been processed.
+         *
+         * @return true if the message is a duplicate.
+         */
+        private boolean dropIfDuplicate(final AmqpMessage amqpMessage) throws IOException
+        {
+            // transacted channels acknowledge deliveries when the transaction commits
+            if (endpoint.getTransactionConfig().isTransacted())
+            {
+                return false;
+            }
+
+            final String messageId = getMessageId(amqpMessage);
+            if ((messageId == null) || (!deduplicationCache.isDuplicate(messageId)))
+            {
+                return false;
+            }
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Dropping duplicate: " + amqpMessage);
+            }
+            endpointStatistics.messageDeduplicated();
+
+            if (!amqpConnector.getAckMode().isAutoAck())
+            {
+                getChannel().basicAck(amqpMessage.getEnvelope().getDeliveryTag(), false);
+                if (amqpMessage.getChunkDeliveries() != null)
+                {
+                    amqpMessage.getChunkDeliveries().ack(getChannel(),
+                        amqpMessage.getEnvelope().getDeliveryTag(), false);
+                }
+                endpointStatistics.messageAcked();
+            }
+            return true;
+        }
+
+        /**
+         * Keeps poison messages away from the flow: they are sent to the quarantine
+         * endpoint if any, otherwise rejected without requeue so the broker discards
+         * them or dead-letters them if their queue has a dead letter exchange.
+         *
+         * @return true if the message has been quarantined.
+         */
+        private boolean quarantineIfPoison(final AmqpMessage amqpMessage) throws IOException
+        {
+            // transacted channels acknowledge deliveries when the transaction commits
+            if (endpoint.getTransactionConfig().isTransacted())
+            {
+                return false;
+            }
+
+            final int failedDeliveries = poisonTracker.deliveryReceived(amqpMessage);
+            if (!poisonTracker.isPoison(failedDeliveries))
+            {
+                return false;
+            }
+
+            logger.warn("Quarantining poison message after " + failedDeliveries + " failed deliveries: "
+                        + amqpMessage);
+            poisonTracker.forget(amqpMessage);
+
+            boolean dispatched = false;
+            if (quarantineEndpoint != null)
+            {
+                try
+                {
+                    dispatchToQuarantine(amqpMessage, failedDeliveries);
+                    dispatched = true;
+                }
+                catch (final Exception e)
+                {
+                    endpointStatistics.errorOccurred(e);
+                    logger.error("Failed to dispatch poison message to: " + quarantineEndpoint
+                                 + ", rejecting it: " + amqpMessage, e);
+                }
+            }
+
+            if (amqpConnector.getAckMode().isAutoAck())
+            {
+                return true;
+            }
+
+            final long deliveryTag = amqpMessage.getEnvelope().getDeliveryTag();
+            final AmqpChunkDeliveries chunkDeliveries = amqpMessage.getChunkDeliveries();
+            if (dispatched)
+            {
+                getChannel().basicAck(deliveryTag, false);
+                if (chunkDeliveries != null)
+                {
+                    chunkDeliveries.ack(getChannel(), deliveryTag, false);
+                }
+                endpointStatistics.messageAcked();
+            }
+            else
+            {
+                getChannel().basicReject(deliveryTag, false);
+                if (chunkDeliveries != null)
+                {
+                    chunkDeliveries.reject(false);
+                }
+                endpointStatistics.messageRejected();
+            }
+            return true;
+        }
+
+        private void dispatchToQuarantine(final AmqpMessage amqpMessage, final int failedDeliveries)
+            throws Exception
+        {
+            final MuleMessage muleMessage = createMuleMessage(amqpMessage);
+            final DefaultMuleEvent event = new DefaultMuleEvent(muleMessage, MessageExchangePattern.ONE_WAY,
+                flowConstruct);
+            muleMessage.applyTransformers(event, amqpConnector.getReceiveTransformer());
+
+            // carry the AMQP properties and headers over to the quarantine endpoint
+            for (final String name : muleMessage.getInboundPropertyNames())
+            {
+                if (!AmqpConstants.AMQP_ENVELOPE_PROPERTY_NAMES.contains(name))
+                {
+                    muleMessage.setOutboundProperty(name, muleMessage.getInboundProperty(name));
+                }
+            }
+            muleMessage.setOutboundProperty(AmqpConstants.QUARANTINE_FAILED_DELIVERIES, failedDeliveries);
+
+            quarantineEndpoint.process(event);
+        }
+    }
+
+    /**
+     * Deletes the spool file of a reassembled message once it has been processed.
+     */
+    private static void discardSpool(final AmqpMessage amqpMessage)
+    {
+        if (amqpMessage instanceof SpooledAmqpMessage)
+        {
+            ((SpooledAmqpMessage) amqpMessage).discard();
         }
     }
 
@@ -194,16 +1043,25 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
     {
         private final Log logger = LogFactory.getLog(AmqpMessageRouterWork.class);
         private final Channel channel;
+        private final Subscriber subscriber;
         private final AmqpMessage amqpMessage;
+        private final int lane;
+        private boolean requeued;
 
-        private AmqpMessageRouterWork(final Channel channel, final AmqpMessage amqpMessage)
+        private AmqpMessageRouterWork(final Channel channel,
+                                      final Subscriber subscriber,
+                                      final AmqpMessage amqpMessage,
+                                      final int lane)
         {
             this.channel = channel;
+            this.subscriber = subscriber;
             this.amqpMessage = amqpMessage;
+            this.lane = lane;
         }
 
         public void run()
         {
+            final long startNanos = System.nanoTime();
             try
             {
                 final MuleMessage muleMessage = createMuleMessage(amqpMessage);
@@ -221,6 +1079,13 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
                     // in manual AckMode, the channel will be needed to ack the
                     // message
                     muleMessage.setProperty(AmqpConstants.CHANNEL, channel, PropertyScope.INVOCATION);
+                    muleMessage.setProperty(AmqpConstants.ENDPOINT_STATISTICS, endpointStatistics,
+                        PropertyScope.INVOCATION);
+                    if (amqpMessage.getChunkDeliveries() != null)
+                    {
+                        muleMessage.setProperty(AmqpConstants.CHUNK_DELIVERIES,
+                            amqpMessage.getChunkDeliveries(), PropertyScope.INVOCATION);
+                    }
                 }
 
                 if (endpoint.getTransactionConfig().isTransacted())
@@ -240,19 +1105,125 @@ public class AmqpMessageReceiver extends AbstractMessageReceiver
                 {
                     try
                     {
-                        routeMessage(muleMessage);
+                        final MuleEvent resultEvent = routeMessage(muleMessage);
+
+                        if ((resultEvent != null) && (resultEvent.getMessage() != null)
+                            && (resultEvent.getMessage().getExceptionPayload() != null))
+                        {
+                            retryFailedMessage(channel, amqpMessage,
+                                resultEvent.getMessage().getExceptionPayload().getException());
+                        }
+                        else
+                        {
+                            messageProcessed(amqpMessage);
+                        }
+                    }
+                    catch (final Exception e)
+                    {
+                        if (!retryFailedMessage(channel, amqpMessage, e))
+                        {
+                            throw e;
+                        }
+                        endpointStatistics.errorOccurred(e);
                     }
                     finally
                     {
-                        amqpConnector.ackMessageIfNecessary(channel, amqpMessage);
+                        if (!requeued)
+                        {
+                            amqpConnector.ackMessageIfNecessary(channel, amqpMessage, endpointStatistics);
+                        }
                     }
                 }
+
+                endpointStatistics.recordProcessingToAckLatency(System.nanoTime() - startNanos);
             }
             catch (final Exception e)
             {
+                endpointStatistics.errorOccurred(e);
                 logger.error("Impossible to route: " + amqpMessage, e);
             }
+            finally
+            {
+                discardSpool(amqpMessage);
+                endpointStatistics.processingEnded();
+                if (subscriber != null)
+                {
+                    subscriber.processingEnded();
+                }
+            }
+
+        }
+
+        private void messageProcessed(final AmqpMessage amqpMessage)
+        {
+            if ((poisonTracker != null) && (amqpConnector.getAckMode() != AckMode.MANUAL))
+            {
+                // in manual ack mode the flow may have requeued the message
+                poisonTracker.forget(amqpMessage);
+            }
+
+            final String messageId = getMessageId(amqpMessage);
+            if ((deduplicationCache != null) && (messageId != null))
+            {
+                deduplicationCache.markProcessed(messageId);
+            }
+        }
+
+        /**
+         * Hands a message that failed in the flow over to the retry policy of the
+         * endpoint, if any. In manual ack mode the flow owns the delivery so it is left
+         * alone. If the message can't be republished, its delivery is requeued rather
+         * than acknowledged so that it isn't lost.
+         *
+         * @return true if the message has been republished for a later retry or
+         *         parked.
+         */
+        private boolean retryFailedMessage(final Channel channel,
+                                           final AmqpMessage amqpMessage,
+                                           final Throwable cause)
+        {
+            final AmqpRetryPolicy retryPolicy = endpointConfig.getRetryPolicy();
+            if ((retryPolicy == null) || (amqpConnector.getAckMode() == AckMode.MANUAL))
+            {
+                return false;
+            }
+
+            try
+            {
+                retryPolicy.republish(amqpConnector.getRetryChannel(), getQueueName(lane), amqpMessage,
+                    cause, endpointConfig.getChunkSpoolThreshold());
+                return true;
+            }
+            catch (final IOException ioe)
+            {
+                logger.error("Failed to republish for retry, requeuing: " + amqpMessage, ioe);
+                requeue(channel, amqpMessage);
+                return false;
+            }
+        }
 
+        private void requeue(final Channel channel, final AmqpMessage amqpMessage)
+        {
+            if (amqpConnector.getAckMode() != AckMode.MULE_AUTO)
+            {
+                // already acknowledged by the broker
+                return;
+            }
+
+            try
+            {
+                channel.basicReject(amqpMessage.getEnvelope().getDeliveryTag(), true);
+                if (amqpMessage.getChunkDeliveries() != null)
+                {
+                    amqpMessage.getChunkDeliveries().reject(true);
+                }
+                requeued = true;
+                endpointStatistics.messageRejected();
+            }
+            catch (final IOException ioe)
+            {
+                logger.error("Failed to requeue: " + amqpMessage, ioe);
+            }
         }
 
         public void release()
@@ -20,6 +20,7 @@ import org.mule.api.MuleMessage;
 import org.mule.api.model.SessionException;
 import org.mule.api.processor.MessageProcessor;
 import org.mule.config.i18n.MessageFactory;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
 
 import com.rabbitmq.client.Channel;
 
@@ -76,6 +77,13 @@ public class AmqpMessageRejecter implements MessageProcessor
         try
         {
             channel.basicReject(deliveryTag, requeue);
+
+            // the other chunks of a reassembled message
+            final AmqpChunkDeliveries chunkDeliveries = message.getInvocationProperty(AmqpConstants.CHUNK_DELIVERIES);
+            if (chunkDeliveries != null)
+            {
+                chunkDeliveries.reject(requeue);
+            }
         }
         catch (final IOException ioe)
         {
@@ -84,6 +92,12 @@ public class AmqpMessageRejecter implements MessageProcessor
                                                    + " on channel: " + channel), ioe);
         }
 
+        final AmqpEndpointStatistics endpointStatistics = message.getInvocationProperty(AmqpConstants.ENDPOINT_STATISTICS);
+        if (endpointStatistics != null)
+        {
+            endpointStatistics.messageRejected();
+        }
+
         if (LOG.isDebugEnabled())
         {
             LOG.debug("Manually rejected message w/deliveryTag: " + deliveryTag + " on channel: " + channel);
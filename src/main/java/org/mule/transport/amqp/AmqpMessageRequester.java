@@ -18,6 +18,7 @@ import org.mule.transport.AbstractMessageRequester;
 import org.mule.transport.ConnectException;
 import org.mule.transport.amqp.AmqpConnector.InboundConnection;
 import org.mule.transport.amqp.AmqpConstants.AckMode;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
 
 import com.rabbitmq.client.Channel;
 
@@ -28,12 +29,17 @@ import com.rabbitmq.client.Channel;
 public class AmqpMessageRequester extends AbstractMessageRequester
 {
     protected final AmqpConnector amqpConnector;
+    protected final AmqpEndpointConfig endpointConfig;
+    protected final AmqpEndpointStatistics endpointStatistics;
     protected InboundConnection inboundConnection;
 
     public AmqpMessageRequester(final InboundEndpoint endpoint)
     {
         super(endpoint);
         amqpConnector = (AmqpConnector) endpoint.getConnector();
+        // fails fast on invalid endpoint configurations
+        endpointConfig = AmqpEndpointConfig.forEndpoint(endpoint);
+        endpointStatistics = amqpConnector.getAmqpStatistics().getEndpointStatistics(endpoint);
     }
 
     @Override
@@ -64,17 +70,21 @@ public class AmqpMessageRequester extends AbstractMessageRequester
 
         if (amqpMessage == null) return null;
 
+        endpointStatistics.messageConsumed();
+
         final MuleMessage muleMessage = createMuleMessage(amqpMessage);
 
         if (amqpConnector.getAckMode() == AckMode.MANUAL)
         {
             // in manual AckMode, the channel will be needed to ack the message
             muleMessage.setProperty(AmqpConstants.CHANNEL, getChannel(), PropertyScope.INVOCATION);
+            muleMessage.setProperty(AmqpConstants.ENDPOINT_STATISTICS, endpointStatistics,
+                PropertyScope.INVOCATION);
         }
         else
         {
             // otherwise, ack if it's mule's responsibility
-            amqpConnector.ackMessageIfNecessary(getChannel(), amqpMessage);
+            amqpConnector.ackMessageIfNecessary(getChannel(), amqpMessage, endpointStatistics);
         }
 
         return muleMessage;
@@ -18,6 +18,7 @@ import org.mule.DefaultMuleMessage;
 import org.mule.api.MuleContext;
 import org.mule.api.config.MuleProperties;
 import org.mule.transport.AbstractMuleMessageFactory;
+import org.mule.transport.amqp.transformers.CompressionCodecs;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Envelope;
@@ -39,7 +40,8 @@ public class AmqpMuleMessageFactory extends AbstractMuleMessageFactory
     @Override
     protected Object extractPayload(final Object transportMessage, final String encoding) throws Exception
     {
-        return transportMessage;
+        // compressed bodies are transparently decompressed
+        return CompressionCodecs.decompress((AmqpMessage) transportMessage);
     }
 
     @Override
@@ -0,0 +1,542 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * A disk-backed, append-only journal of outbound publications, used to store messages
+ * while the broker is unreachable and forward them once it is back.
+ * <p>
+ * The journal is a sequence of memory-mapped segment files: records are appended to
+ * the last segment and replayed from the first one, whose header holds the position of
+ * the first record not yet confirmed by the broker. Fully replayed segments are deleted,
+ * so the heap only ever holds the records being appended or replayed. Each record is
+ * prefixed with its length and CRC, the length being written last so that a torn write
+ * is detected when the spool is reopened, in which case the journal is truncated at the
+ * first invalid record.
+ * <p>
+ * Records are replayed at least once: a crash between the broker confirms and the
+ * update of the replay position replays the last batch again.
+ */
+public final class AmqpOutboundSpool
+{
+    private static final Log LOG = LogFactory.getLog(AmqpOutboundSpool.class);
+
+    private static final int MAGIC = 0x414D5153;
+    // magic number, replay position
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    // length, crc
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final boolean sync;
+    private final Object replayLock = new Object();
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSegmentId;
+    private long size;
+    private long pendingRecords;
+    private boolean closed;
+
+    /**
+     * Looks up the endpoint rate limiters that spooled records must go through when
+     * they are replayed.
+     */
+    public interface RateLimiterLookup
+    {
+        /**
+         * @return the rate limiter of the key, or null if there is none.
+         */
+        AmqpRateLimiter lookup(String rateLimiterKey);
+    }
+
+    /**
+     * Opens the spool, recovering the records left in the directory.
+     *
+     * @param directory the directory of the segment files, created if needed.
+     * @param segmentSize the size of the segment files, larger records getting a
+     *            segment of their own.
+     * @param maxSize the maximum size of the segment files, 0 for no limit.
+     * @param sync true to force each record to disk before returning from append.
+     */
+    public AmqpOutboundSpool(final File directory, final int segmentSize, final long maxSize, final boolean sync)
+        throws IOException
+    {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE)
+        {
+            throw new IllegalArgumentException("Invalid spool segment size: " + segmentSize);
+        }
+        if ((!directory.isDirectory()) && (!directory.mkdirs()))
+        {
+            throw new IOException("Can't create spool directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.sync = sync;
+
+        recover();
+    }
+
+    private void recover() throws IOException
+    {
+        final File[] files = directory.listFiles(new FileFilter()
+        {
+            public boolean accept(final File file)
+            {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // zero-padded names sort in creation order
+        Arrays.sort(files);
+
+        for (final File file : files)
+        {
+            final String name = file.getName();
+            final long segmentId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            nextSegmentId = Math.max(nextSegmentId, segmentId + 1);
+
+            final Segment segment = Segment.open(file);
+            if (segment.isReplayed())
+            {
+                segment.delete();
+                continue;
+            }
+
+            segments.add(segment);
+            size += segment.getCapacity();
+            pendingRecords += segment.countRecords(segment.readPosition);
+        }
+
+        if (pendingRecords > 0)
+        {
+            LOG.info("Recovered " + pendingRecords + " spooled messages from: " + directory);
+        }
+    }
+
+    /**
+     * Appends a record to the spool.
+     *
+     * @throws IOException if the record can't be written or the spool is full.
+     */
+    public void append(final AmqpSpoolRecord record) throws IOException
+    {
+        final byte[] payload = record.encode();
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+
+        synchronized (this)
+        {
+            ensureOpen();
+
+            Segment segment = segments.isEmpty() ? null : segments.getLast();
+            if ((segment == null) || (segment.sealed) || (segment.getRemaining() < recordSize))
+            {
+                if (segment != null)
+                {
+                    segment.seal();
+                }
+                segment = newSegment(Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize));
+            }
+
+            segment.write(payload, sync);
+            pendingRecords++;
+        }
+    }
+
+    /**
+     * Publishes the oldest spooled records on a channel in confirm mode and removes them
+     * from the spool once the broker has confirmed them.
+     *
+     * @param rateLimiter an optional rate limiter applied to all the publications.
+     * @param rateLimiterLookup an optional lookup of the endpoint rate limiters of the
+     *            records that have one.
+     * @return the number of replayed records.
+     * @throws IOException if the records can't be published or are not confirmed, in
+     *             which case they are kept for a later replay.
+     */
+    public int replay(final Channel channel,
+                      final boolean mandatory,
+                      final boolean immediate,
+                      final int maxRecords,
+                      final AmqpRateLimiter rateLimiter,
+                      final RateLimiterLookup rateLimiterLookup) throws IOException, InterruptedException
+    {
+        synchronized (replayLock)
+        {
+            final Batch batch = readBatch(maxRecords);
+            if (batch.records.isEmpty())
+            {
+                return 0;
+            }
+
+            for (final AmqpSpoolRecord record : batch.records)
+            {
+                if ((record.getRateLimiterKey() != null) && (rateLimiterLookup != null))
+                {
+                    final AmqpRateLimiter endpointRateLimiter = rateLimiterLookup.lookup(record.getRateLimiterKey());
+                    if (endpointRateLimiter != null)
+                    {
+                        endpointRateLimiter.acquire(record.getBody().length);
+                    }
+                }
+                if (rateLimiter != null)
+                {
+                    rateLimiter.acquire(record.getBody().length);
+                }
+                channel.basicPublish(record.getExchange(), record.getRoutingKey(), mandatory, immediate,
+                    record.getProperties(), record.getBody());
+            }
+
+            if (!channel.waitForConfirms())
+            {
+                throw new IOException("The broker has not confirmed " + batch.records.size()
+                                      + " replayed messages, they will be replayed again");
+            }
+
+            commit(batch);
+            return batch.records.size();
+        }
+    }
+
+    public synchronized long getPendingRecords()
+    {
+        return pendingRecords;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return pendingRecords == 0;
+    }
+
+    /**
+     * @return the size in bytes of the segment files.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+        for (final Segment segment : segments)
+        {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private synchronized Batch readBatch(final int maxRecords) throws IOException
+    {
+        ensureOpen();
+
+        final Batch batch = new Batch();
+        for (final Segment segment : segments)
+        {
+            int position = segment.readPosition;
+            while ((position < segment.writePosition) && (batch.records.size() < maxRecords))
+            {
+                final byte[] payload = segment.read(position);
+                batch.records.add(AmqpSpoolRecord.decode(payload));
+                position += RECORD_HEADER_SIZE + payload.length;
+            }
+
+            batch.lastSegment = segment;
+            batch.lastPosition = position;
+
+            if (batch.records.size() >= maxRecords)
+            {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    private synchronized void commit(final Batch batch)
+    {
+        if (closed)
+        {
+            // replayed again when reopened
+            return;
+        }
+
+        final Iterator<Segment> segmentIterator = segments.iterator();
+        while (segmentIterator.hasNext())
+        {
+            final Segment segment = segmentIterator.next();
+            final boolean batchEnd = segment == batch.lastSegment;
+            segment.setReadPosition(batchEnd ? batch.lastPosition : segment.writePosition);
+
+            // the segment being written is kept
+            if ((segment.isReplayed()) && (segment != segments.getLast()))
+            {
+                segmentIterator.remove();
+                size -= segment.getCapacity();
+                segment.delete();
+            }
+
+            if (batchEnd)
+            {
+                break;
+            }
+        }
+
+        pendingRecords -= batch.records.size();
+    }
+
+    private Segment newSegment(final int capacity) throws IOException
+    {
+        if ((maxSize > 0) && (size + capacity > maxSize))
+        {
+            throw new IOException("Outbound spool full: " + directory + " (" + size + " bytes)");
+        }
+
+        final Segment segment = Segment.create(new File(directory, String.format("%020d%s", nextSegmentId++,
+            SEGMENT_SUFFIX)), capacity);
+        segments.add(segment);
+        size += capacity;
+        return segment;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Outbound spool closed: " + directory);
+        }
+    }
+
+    private static final class Batch
+    {
+        private final List<AmqpSpoolRecord> records = new ArrayList<AmqpSpoolRecord>();
+        private Segment lastSegment;
+        private int lastPosition;
+    }
+
+    private static final class Segment
+    {
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+        private boolean sealed;
+
+        private Segment(final File file, final RandomAccessFile randomAccessFile, final int capacity)
+            throws IOException
+        {
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, capacity);
+        }
+
+        static Segment create(final File file, final int capacity) throws IOException
+        {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(capacity);
+
+            final Segment segment = new Segment(file, randomAccessFile, capacity);
+            segment.buffer.putInt(0, MAGIC);
+            segment.setReadPosition(SEGMENT_HEADER_SIZE);
+            segment.writePosition = SEGMENT_HEADER_SIZE;
+            return segment;
+        }
+
+        static Segment open(final File file) throws IOException
+        {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            final long length = randomAccessFile.length();
+            if ((length < SEGMENT_HEADER_SIZE) || (length > Integer.MAX_VALUE))
+            {
+                randomAccessFile.close();
+                throw new IOException("Invalid spool segment: " + file);
+            }
+
+            final Segment segment = new Segment(file, randomAccessFile, (int) length);
+            if (segment.buffer.getInt(0) != MAGIC)
+            {
+                segment.close();
+                throw new IOException("Invalid spool segment: " + file);
+            }
+
+            // the segment is closed for writing, new records go to a new segment
+            segment.sealed = true;
+            segment.writePosition = segment.scan();
+            segment.readPosition = Math.min(Math.max(segment.buffer.getInt(4), SEGMENT_HEADER_SIZE),
+                segment.writePosition);
+            return segment;
+        }
+
+        /**
+         * @return the position following the last valid record.
+         */
+        private int scan()
+        {
+            int position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity())
+            {
+                final int length = buffer.getInt(position);
+                if ((length <= 0) || (length > buffer.capacity() - position - RECORD_HEADER_SIZE))
+                {
+                    break;
+                }
+
+                if (crc(buffer, position + RECORD_HEADER_SIZE, length) != buffer.getInt(position + 4))
+                {
+                    LOG.warn("Truncating spool segment: " + file + " at invalid record: " + position);
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            return position;
+        }
+
+        int countRecords(final int fromPosition)
+        {
+            int count = 0;
+            for (int position = fromPosition; position < writePosition; position += RECORD_HEADER_SIZE
+                                                                                    + buffer.getInt(position))
+            {
+                count++;
+            }
+            return count;
+        }
+
+        void write(final byte[] payload, final boolean sync)
+        {
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(writePosition + RECORD_HEADER_SIZE);
+            slice.put(payload);
+            buffer.putInt(writePosition + 4, crc(payload));
+            // the record is only valid once its length is written
+            buffer.putInt(writePosition, payload.length);
+            writePosition += RECORD_HEADER_SIZE + payload.length;
+
+            if (sync)
+            {
+                buffer.force();
+            }
+        }
+
+        byte[] read(final int position) throws IOException
+        {
+            final int length = buffer.getInt(position);
+            final byte[] payload = new byte[length];
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(position + RECORD_HEADER_SIZE);
+            slice.get(payload);
+
+            if (crc(payload) != buffer.getInt(position + 4))
+            {
+                throw new IOException("Corrupted record at: " + position + " in spool segment: " + file);
+            }
+            return payload;
+        }
+
+        void setReadPosition(final int readPosition)
+        {
+            this.readPosition = readPosition;
+            buffer.putInt(4, readPosition);
+        }
+
+        boolean isReplayed()
+        {
+            return readPosition >= writePosition;
+        }
+
+        int getRemaining()
+        {
+            return buffer.capacity() - writePosition;
+        }
+
+        int getCapacity()
+        {
+            return buffer.capacity();
+        }
+
+        void seal()
+        {
+            sealed = true;
+            buffer.force();
+        }
+
+        void close()
+        {
+            try
+            {
+                buffer.force();
+                randomAccessFile.close();
+            }
+            catch (final IOException ioe)
+            {
+                LOG.warn("Failed to close spool segment: " + file, ioe);
+            }
+        }
+
+        void delete()
+        {
+            close();
+            // the mapping itself is released when the buffer is garbage collected
+            if (!file.delete())
+            {
+                LOG.warn("Failed to delete replayed spool segment: " + file);
+            }
+        }
+
+        private static int crc(final byte[] payload)
+        {
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue();
+        }
+
+        private static int crc(final MappedByteBuffer buffer, final int position, final int length)
+        {
+            final byte[] payload = new byte[length];
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(position);
+            slice.get(payload);
+            return crc(payload);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.mule.util.StringUtils;
+
+/**
+ * Counts the failed deliveries of the messages of an inbound endpoint in order to
+ * detect poison messages, which fail the flow on every delivery. A message is only
+ * tracked once the broker flags it as redelivered, each redelivery standing for a
+ * failed delivery, so healthy traffic does not grow the tracker. Messages are keyed by
+ * message-id or, for messages without one, by a digest of their body.
+ * <p>
+ * The tracker is bounded: when full, the least recently redelivered message is
+ * forgotten, which at worst delays the detection of a poison message.
+ */
+public final class AmqpPoisonMessageTracker
+{
+    private final int threshold;
+    private final Map<String, Integer> failedDeliveries;
+
+    /**
+     * @param threshold the number of failed deliveries from which a message is
+     *            considered poison.
+     * @param capacity the maximum number of tracked messages.
+     */
+    public AmqpPoisonMessageTracker(final int threshold, final int capacity)
+    {
+        if ((threshold <= 0) || (capacity <= 0))
+        {
+            throw new IllegalArgumentException("Invalid poison message tracker: threshold=" + threshold
+                                               + ", capacity=" + capacity);
+        }
+
+        this.threshold = threshold;
+        failedDeliveries = new LinkedHashMap<String, Integer>(Math.min(capacity, 1024), 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Entry<String, Integer> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Records the delivery of a message.
+     *
+     * @return the number of failed deliveries of the message so far, 0 if it is
+     *         delivered for the first time.
+     */
+    public int deliveryReceived(final AmqpMessage amqpMessage)
+    {
+        if ((amqpMessage.getEnvelope() == null) || (!amqpMessage.getEnvelope().isRedeliver()))
+        {
+            return 0;
+        }
+
+        final String key = getKey(amqpMessage);
+        synchronized (failedDeliveries)
+        {
+            final Integer count = failedDeliveries.get(key);
+            final int newCount = count == null ? 1 : count + 1;
+            failedDeliveries.put(key, newCount);
+            return newCount;
+        }
+    }
+
+    /**
+     * @return true if a message with the given number of failed deliveries is poison.
+     */
+    public boolean isPoison(final int failedDeliveryCount)
+    {
+        return failedDeliveryCount >= threshold;
+    }
+
+    /**
+     * Stops tracking a message, either because it has eventually been processed or
+     * because it has been quarantined.
+     */
+    public void forget(final AmqpMessage amqpMessage)
+    {
+        if ((amqpMessage.getEnvelope() == null) || (!amqpMessage.getEnvelope().isRedeliver()))
+        {
+            return;
+        }
+
+        final String key = getKey(amqpMessage);
+        synchronized (failedDeliveries)
+        {
+            failedDeliveries.remove(key);
+        }
+    }
+
+    public int size()
+    {
+        synchronized (failedDeliveries)
+        {
+            return failedDeliveries.size();
+        }
+    }
+
+    static String getKey(final AmqpMessage amqpMessage)
+    {
+        if ((amqpMessage.getProperties() != null)
+            && (StringUtils.isNotEmpty(amqpMessage.getProperties().getMessageId())))
+        {
+            return "id:" + amqpMessage.getProperties().getMessageId();
+        }
+
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(amqpMessage.getBody());
+            final StringBuilder key = new StringBuilder("md5:");
+            for (final byte b : digest)
+            {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            // MD5 is available on every Java platform
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.resource.spi.work.Work;
+
+/**
+ * Orders the works waiting for a thread of the work manager by message priority, the
+ * works of a same priority keeping their arrival order.
+ * <p>
+ * Instead of the works themselves, the work manager receives one runner per queued
+ * work, which runs the most urgent queued work at the time it gets a thread. The work
+ * manager thus keeps its concurrency and queuing behavior while the order in which
+ * messages reach the flow follows their priority.
+ */
+public final class AmqpPriorityWorkQueue
+{
+    private final PriorityBlockingQueue<PrioritizedWork> queue = new PriorityBlockingQueue<PrioritizedWork>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Work runner = new Work()
+    {
+        public void run()
+        {
+            final PrioritizedWork next = queue.poll();
+            if (next != null)
+            {
+                next.work.run();
+            }
+        }
+
+        public void release()
+        {
+            // queued works are released when the queue is cleared
+        }
+    };
+
+    private static final class PrioritizedWork implements Comparable<PrioritizedWork>
+    {
+        private final Work work;
+        private final int priority;
+        private final long sequence;
+
+        private PrioritizedWork(final Work work, final int priority, final long sequence)
+        {
+            this.work = work;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(final PrioritizedWork other)
+        {
+            if (priority != other.priority)
+            {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queues a work.
+     *
+     * @return the runner to schedule in the work manager for this work.
+     */
+    public Work add(final Work work, final int priority)
+    {
+        queue.add(new PrioritizedWork(work, priority, sequence.getAndIncrement()));
+        return runner;
+    }
+
+    /**
+     * Removes a queued work, for instance if its runner could not be scheduled.
+     *
+     * @return true if the work was still queued.
+     */
+    public boolean remove(final Work work)
+    {
+        final Iterator<PrioritizedWork> iterator = queue.iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().work == work)
+            {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases and drops all the queued works.
+     */
+    public void clear()
+    {
+        PrioritizedWork prioritizedWork;
+        while ((prioritizedWork = queue.poll()) != null)
+        {
+            prioritizedWork.work.release();
+        }
+    }
+
+    public int size()
+    {
+        return queue.size();
+    }
+}
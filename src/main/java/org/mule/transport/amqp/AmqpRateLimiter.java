@@ -0,0 +1,161 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of publications, in messages and in bytes per second, with lock-free
+ * token buckets that allow bursts of up to one second worth of tokens.
+ * <p>
+ * Each bucket is implemented as a generic cell rate algorithm: instead of a token count
+ * refilled over time, it holds the theoretical time at which it would be full again,
+ * which publications push forward by their cost and which is updated with a single
+ * compare-and-set.
+ */
+public final class AmqpRateLimiter
+{
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final Bucket messageBucket;
+    private final Bucket byteBucket;
+
+    private static final class Bucket
+    {
+        private final double nanosPerToken;
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+        private Bucket(final double tokensPerSecond)
+        {
+            nanosPerToken = TimeUnit.SECONDS.toNanos(1L) / tokensPerSecond;
+        }
+
+        /**
+         * Takes tokens, going into debt if needed.
+         *
+         * @return the time to wait in nanoseconds for the debt to be paid back.
+         */
+        long reserve(final long tokens, final long now)
+        {
+            final long cost = cost(tokens);
+            while (true)
+            {
+                final long current = fullAt.get();
+                final long updated = Math.max(current, now) + cost;
+                if (fullAt.compareAndSet(current, updated))
+                {
+                    return Math.max(0L, updated - BURST_NANOS - now);
+                }
+            }
+        }
+
+        /**
+         * Takes tokens if available. Requests larger than the burst are accepted when
+         * the bucket is full so that they can't be starved.
+         */
+        boolean tryReserve(final long tokens, final long now)
+        {
+            final long cost = cost(tokens);
+            while (true)
+            {
+                final long current = fullAt.get();
+                final long base = Math.max(current, now);
+                if ((base + cost - BURST_NANOS > now) && (current > now))
+                {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, base + cost))
+                {
+                    return true;
+                }
+            }
+        }
+
+        void release(final long tokens)
+        {
+            fullAt.addAndGet(-cost(tokens));
+        }
+
+        private long cost(final long tokens)
+        {
+            return (long) (tokens * nanosPerToken);
+        }
+    }
+
+    /**
+     * @param messagesPerSecond the maximum message rate, 0 for no limit.
+     * @param bytesPerSecond the maximum body byte rate, 0 for no limit.
+     */
+    public AmqpRateLimiter(final double messagesPerSecond, final double bytesPerSecond)
+    {
+        if ((messagesPerSecond < 0) || (bytesPerSecond < 0) || ((messagesPerSecond == 0) && (bytesPerSecond == 0)))
+        {
+            throw new IllegalArgumentException("Invalid rate limits: " + messagesPerSecond + " messages/s, "
+                                               + bytesPerSecond + " bytes/s");
+        }
+
+        messageBucket = messagesPerSecond > 0 ? new Bucket(messagesPerSecond) : null;
+        byteBucket = bytesPerSecond > 0 ? new Bucket(bytesPerSecond) : null;
+    }
+
+    /**
+     * Waits until a message of the given size can be published.
+     *
+     * @return the time spent waiting, in nanoseconds.
+     */
+    public long acquire(final int bodySize) throws InterruptedException
+    {
+        final long now = System.nanoTime();
+        long waitNanos = 0L;
+        if (messageBucket != null)
+        {
+            waitNanos = messageBucket.reserve(1L, now);
+        }
+        if (byteBucket != null)
+        {
+            waitNanos = Math.max(waitNanos, byteBucket.reserve(bodySize, now));
+        }
+
+        if (waitNanos > 0L)
+        {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * @return true if a message of the given size can be published right away, in
+     *         which case its tokens are taken.
+     */
+    public boolean tryAcquire(final int bodySize)
+    {
+        return tryAcquire(bodySize, System.nanoTime());
+    }
+
+    boolean tryAcquire(final int bodySize, final long now)
+    {
+        if ((messageBucket != null) && (!messageBucket.tryReserve(1L, now)))
+        {
+            return false;
+        }
+
+        if ((byteBucket != null) && (!byteBucket.tryReserve(bodySize, now)))
+        {
+            if (messageBucket != null)
+            {
+                messageBucket.release(1L);
+            }
+            return false;
+        }
+        return true;
+    }
+}
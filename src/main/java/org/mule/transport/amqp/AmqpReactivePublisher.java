@@ -0,0 +1,478 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.transport.amqp.AmqpConnector.InboundConnection;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
+import org.mule.transport.amqp.transformers.CompressionCodecs;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * A Reactive Streams {@link Publisher} of the messages of the queues of an inbound
+ * endpoint, for applications that consume them outside of a flow. Chunked messages
+ * are reassembled and compressed messages decompressed before they are signalled, as
+ * they are for flows.
+ * <p>
+ * Each subscriber gets a channel of its own, which consumes the queues of the endpoint
+ * with a prefetch window of <code>window</code> messages. Received messages are
+ * buffered until the subscriber requests them, and the messages signalled to the
+ * subscriber are acknowledged when it requests more: a subscriber that requests new
+ * messages once it has processed the previous ones gets them at least once, as the
+ * messages it was processing when its subscription ends are redelivered by the broker.
+ * Demand beyond the window can't be served without acknowledgments, so the signalled
+ * messages are also acknowledged when they fill the window while the subscriber still
+ * requests more. The spool files of large reassembled messages are deleted once they
+ * are acknowledged.
+ */
+public final class AmqpReactivePublisher implements Publisher<AmqpMessage>
+{
+    private static final Log LOG = LogFactory.getLog(AmqpReactivePublisher.class);
+
+    private final InboundEndpoint endpoint;
+    private final AmqpConnector amqpConnector;
+    private final int chunkSpoolThreshold;
+    private final int window;
+
+    /**
+     * @param window the number of messages the broker can deliver to a subscriber
+     *            before they are acknowledged.
+     */
+    public AmqpReactivePublisher(final InboundEndpoint endpoint, final int window)
+    {
+        if (window < 1)
+        {
+            throw new IllegalArgumentException("Invalid prefetch window: " + window);
+        }
+
+        this.endpoint = endpoint;
+        this.amqpConnector = (AmqpConnector) endpoint.getConnector();
+        this.chunkSpoolThreshold = AmqpEndpointConfig.forEndpoint(endpoint).getChunkSpoolThreshold();
+        this.window = window;
+    }
+
+    public void subscribe(final Subscriber<? super AmqpMessage> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("Null subscriber");
+        }
+
+        final AmqpSubscription subscription = new AmqpSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    /**
+     * A message received by a subscription, along with the deliveries to settle for it.
+     */
+    private static final class Delivery
+    {
+        private final AmqpMessage receivedMessage;
+        private final AmqpMessage message;
+
+        private Delivery(final AmqpMessage receivedMessage, final AmqpMessage message)
+        {
+            this.receivedMessage = receivedMessage;
+            this.message = message;
+        }
+
+        private int getDeliveryCount()
+        {
+            final AmqpChunkDeliveries chunkDeliveries = receivedMessage.getChunkDeliveries();
+            return chunkDeliveries == null ? 1 : 1 + chunkDeliveries.size();
+        }
+
+        private void ack(final Channel channel) throws IOException
+        {
+            final long deliveryTag = receivedMessage.getEnvelope().getDeliveryTag();
+            channel.basicAck(deliveryTag, false);
+            if (receivedMessage.getChunkDeliveries() != null)
+            {
+                receivedMessage.getChunkDeliveries().ack(channel, deliveryTag, false);
+            }
+        }
+
+        private void discard()
+        {
+            discardSpool(receivedMessage);
+        }
+    }
+
+    private static void discardSpool(final AmqpMessage amqpMessage)
+    {
+        if (amqpMessage instanceof SpooledAmqpMessage)
+        {
+            ((SpooledAmqpMessage) amqpMessage).discard();
+        }
+    }
+
+    private final class AmqpSubscription implements Subscription
+    {
+        private final Subscriber<? super AmqpMessage> subscriber;
+        private final AmqpEndpointStatistics endpointStatistics;
+        private final AmqpChunkAssembler chunkAssembler = new AmqpChunkAssembler(chunkSpoolThreshold);
+        private final Queue<Delivery> buffer = new ConcurrentLinkedQueue<Delivery>();
+        // signalled to the subscriber and not acknowledged yet
+        private final Queue<Delivery> signalled = new ConcurrentLinkedQueue<Delivery>();
+        private final AtomicInteger signalledDeliveries = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        // serializes the signals to the subscriber
+        private final AtomicInteger drains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private volatile Channel channel;
+
+        // guarded by this
+        private final List<String> consumerTags = new ArrayList<String>();
+        private boolean closed;
+
+        private AmqpSubscription(final Subscriber<? super AmqpMessage> subscriber)
+        {
+            this.subscriber = subscriber;
+            this.endpointStatistics = amqpConnector.getAmqpStatistics().getEndpointStatistics(endpoint);
+        }
+
+        private synchronized void start()
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            try
+            {
+                final InboundConnection connection = amqpConnector.connect(amqpConnector, endpoint);
+                channel = connection.getChannel();
+                if (channel == null)
+                {
+                    throw new IOException("No channel available to consume: " + endpoint);
+                }
+
+                channel.basicQos(window);
+                consume(connection.getQueue());
+                for (final String additionalQueue : connection.getAdditionalQueues())
+                {
+                    consume(additionalQueue);
+                }
+            }
+            catch (final Exception e)
+            {
+                fail(e);
+            }
+        }
+
+        private void consume(final String queueName) throws IOException
+        {
+            consumerTags.add(channel.basicConsume(queueName, false, new DefaultConsumer(channel)
+            {
+                @Override
+                public void handleDelivery(final String consumerTag,
+                                           final Envelope envelope,
+                                           final AMQP.BasicProperties properties,
+                                           final byte[] body)
+                {
+                    endpointStatistics.messageConsumed();
+                    final Delivery delivery = receive(new AmqpMessage(consumerTag, envelope, properties, body));
+                    if (delivery != null)
+                    {
+                        buffer.add(delivery);
+                        drain();
+                    }
+                }
+
+                @Override
+                public void handleCancel(final String consumerTag)
+                {
+                    fail(new IOException("Subscription: " + consumerTag + " cancelled by the broker"));
+                }
+
+                @Override
+                public void handleShutdownSignal(final String consumerTag, final ShutdownSignalException sse)
+                {
+                    if (!sse.isInitiatedByApplication())
+                    {
+                        fail(sse);
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Reassembles and decompresses a received message.
+         *
+         * @return the delivery to signal, or null if the message is an intermediate
+         *         chunk or has been rejected.
+         */
+        private Delivery receive(final AmqpMessage amqpMessage)
+        {
+            AmqpMessage receivedMessage = amqpMessage;
+            if (AmqpChunkAssembler.isChunk(amqpMessage))
+            {
+                try
+                {
+                    receivedMessage = chunkAssembler.accept(amqpMessage, channel);
+                }
+                catch (final IOException ioe)
+                {
+                    LOG.warn("Rejecting invalid chunk: " + amqpMessage, ioe);
+                    reject(amqpMessage);
+                    return null;
+                }
+
+                if (receivedMessage == null)
+                {
+                    if (chunkAssembler.getPendingChunkCount() >= window)
+                    {
+                        LOG.warn("Unacknowledged chunks fill the prefetch window of " + window
+                                 + " messages, raise it to let chunked messages complete");
+                    }
+                    return null;
+                }
+            }
+
+            try
+            {
+                return new Delivery(receivedMessage, CompressionCodecs.decompress(receivedMessage));
+            }
+            catch (final IOException ioe)
+            {
+                LOG.warn("Rejecting message that can't be decompressed: " + receivedMessage, ioe);
+                reject(receivedMessage);
+                return null;
+            }
+        }
+
+        private void reject(final AmqpMessage amqpMessage)
+        {
+            try
+            {
+                channel.basicReject(amqpMessage.getEnvelope().getDeliveryTag(), false);
+                if (amqpMessage.getChunkDeliveries() != null)
+                {
+                    amqpMessage.getChunkDeliveries().reject(false);
+                }
+                endpointStatistics.messageRejected();
+            }
+            catch (final IOException ioe)
+            {
+                fail(ioe);
+            }
+            finally
+            {
+                discardSpool(amqpMessage);
+            }
+        }
+
+        public void request(final long n)
+        {
+            if (cancelled)
+            {
+                return;
+            }
+
+            if (n <= 0L)
+            {
+                fail(new IllegalArgumentException("Non-positive request: " + n + " (Reactive Streams rule 3.9)"));
+                return;
+            }
+
+            // the subscriber is done with the messages it received
+            acknowledgeSignalled();
+
+            long current;
+            long next;
+            do
+            {
+                current = requested.get();
+                next = current + n < 0L ? Long.MAX_VALUE : current + n;
+            }
+            while (!requested.compareAndSet(current, next));
+
+            drain();
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            close();
+            drain();
+        }
+
+        private void fail(final Throwable throwable)
+        {
+            if (error == null)
+            {
+                error = throwable;
+            }
+            drain();
+        }
+
+        private void drain()
+        {
+            if (drains.getAndIncrement() != 0)
+            {
+                // the thread draining will see the new state
+                return;
+            }
+
+            int missed = 1;
+            do
+            {
+                emit();
+                missed = drains.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        private void emit()
+        {
+            while (!cancelled)
+            {
+                if (error != null)
+                {
+                    cancelled = true;
+                    close();
+                    subscriber.onError(error);
+                    break;
+                }
+
+                if (requested.get() == 0L)
+                {
+                    return;
+                }
+
+                final Delivery delivery = buffer.poll();
+                if (delivery == null)
+                {
+                    return;
+                }
+
+                if (requested.get() != Long.MAX_VALUE)
+                {
+                    requested.decrementAndGet();
+                }
+
+                signalled.add(delivery);
+                signalledDeliveries.addAndGet(delivery.getDeliveryCount());
+                subscriber.onNext(delivery.message);
+
+                if ((requested.get() > 0L) && (signalledDeliveries.get() >= window))
+                {
+                    // the broker would not deliver the messages requested beyond the window
+                    acknowledgeSignalled();
+                }
+            }
+
+            // the broker redelivers the messages that are not acknowledged once the
+            // channel is closed
+            discardAll(buffer);
+            discardAll(signalled);
+        }
+
+        private void acknowledgeSignalled()
+        {
+            Delivery delivery;
+            while ((delivery = signalled.poll()) != null)
+            {
+                signalledDeliveries.addAndGet(-delivery.getDeliveryCount());
+                try
+                {
+                    delivery.ack(channel);
+                    endpointStatistics.messageAcked();
+                }
+                catch (final IOException ioe)
+                {
+                    fail(ioe);
+                    return;
+                }
+                finally
+                {
+                    delivery.discard();
+                }
+            }
+        }
+
+        private void discardAll(final Queue<Delivery> deliveries)
+        {
+            Delivery delivery;
+            while ((delivery = deliveries.poll()) != null)
+            {
+                delivery.discard();
+            }
+        }
+
+        private synchronized void close()
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            chunkAssembler.dispose();
+
+            final Channel closedChannel = channel;
+            if ((closedChannel == null) || (!closedChannel.isOpen()))
+            {
+                return;
+            }
+
+            final List<String> cancelledTags = new ArrayList<String>(consumerTags);
+            // the subscriber may cancel while it is signalled on the connection thread,
+            // which must stay free to complete the closing of the channel
+            amqpConnector.getScheduler().execute(new Runnable()
+            {
+                public void run()
+                {
+                    for (final String consumerTag : cancelledTags)
+                    {
+                        try
+                        {
+                            closedChannel.basicCancel(consumerTag);
+                        }
+                        catch (final Exception e)
+                        {
+                            LOG.warn("Failed to cancel subscription: " + consumerTag + " on channel: "
+                                     + closedChannel, e);
+                        }
+                    }
+
+                    try
+                    {
+                        amqpConnector.closeChannel(closedChannel);
+                    }
+                    catch (final Exception e)
+                    {
+                        LOG.warn("Failed to close channel: " + closedChannel, e);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.IOException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.OutboundEndpoint;
+import org.mule.transport.amqp.AmqpConnector.OutboundConnection;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * A Reactive Streams {@link Subscriber} that publishes the messages it receives to the
+ * exchange and routing key of an outbound endpoint, for applications that produce them
+ * outside of a flow.
+ * <p>
+ * Messages are published with publisher confirms on a channel of its own, and the
+ * subscriber only requests a new message when the broker confirms one: at most
+ * <code>maxUnconfirmed</code> messages are ever waiting for a confirm, so a producer
+ * can't outpace the broker. The subscriber cancels its subscription if a message is
+ * nacked or can't be published, and terminates once the stream has completed and all
+ * its messages have been confirmed.
+ */
+public final class AmqpReactiveSubscriber implements Subscriber<AmqpMessage>
+{
+    private static final Log LOG = LogFactory.getLog(AmqpReactiveSubscriber.class);
+
+    private final OutboundEndpoint endpoint;
+    private final AmqpConnector amqpConnector;
+    private final AmqpEndpointStatistics endpointStatistics;
+    private final int maxUnconfirmed;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    // guarded by this
+    private Subscription subscription;
+    private OutboundConnection connection;
+    private Channel channel;
+    private final SortedSet<Long> unconfirmed = new TreeSet<Long>();
+    private boolean completed;
+    private Throwable failure;
+
+    private final ConfirmListener confirmListener = new ConfirmListener()
+    {
+        public void handleAck(final long deliveryTag, final boolean multiple)
+        {
+            final int confirmed = confirm(deliveryTag, multiple);
+            if (confirmed > 0)
+            {
+                requestMore(confirmed);
+            }
+        }
+
+        public void handleNack(final long deliveryTag, final boolean multiple)
+        {
+            confirm(deliveryTag, multiple);
+            fail(new IOException("Broker nacked the message: " + deliveryTag + " published to: " + endpoint));
+        }
+    };
+
+    /**
+     * @param maxUnconfirmed the number of published messages that can wait for a
+     *            confirm of the broker.
+     */
+    public AmqpReactiveSubscriber(final OutboundEndpoint endpoint, final int maxUnconfirmed)
+    {
+        if (maxUnconfirmed < 1)
+        {
+            throw new IllegalArgumentException("Invalid maximum number of unconfirmed messages: "
+                                               + maxUnconfirmed);
+        }
+
+        this.endpoint = endpoint;
+        this.amqpConnector = (AmqpConnector) endpoint.getConnector();
+        this.endpointStatistics = amqpConnector.getAmqpStatistics().getEndpointStatistics(endpoint);
+        this.maxUnconfirmed = maxUnconfirmed;
+    }
+
+    public void onSubscribe(final Subscription subscription)
+    {
+        if (subscription == null)
+        {
+            throw new NullPointerException("Null subscription");
+        }
+
+        synchronized (this)
+        {
+            if ((this.subscription != null) || (terminated.getCount() == 0))
+            {
+                // a subscriber can only be subscribed once (Reactive Streams rule 2.5)
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+        }
+
+        try
+        {
+            connect();
+        }
+        catch (final Exception e)
+        {
+            fail(e);
+            return;
+        }
+
+        subscription.request(maxUnconfirmed);
+    }
+
+    private synchronized void connect() throws Exception
+    {
+        connection = amqpConnector.connect(amqpConnector, endpoint);
+        channel = connection.getChannel();
+        if (channel == null)
+        {
+            throw new IOException("No channel available to publish to: " + endpoint);
+        }
+        channel.confirmSelect();
+        channel.addConfirmListener(confirmListener);
+    }
+
+    public void onNext(final AmqpMessage amqpMessage)
+    {
+        if (amqpMessage == null)
+        {
+            throw new NullPointerException("Null message");
+        }
+
+        try
+        {
+            publish(amqpMessage);
+        }
+        catch (final IOException ioe)
+        {
+            fail(ioe);
+        }
+    }
+
+    private synchronized void publish(final AmqpMessage amqpMessage) throws IOException
+    {
+        if (terminated.getCount() == 0)
+        {
+            // signals racing with a cancellation
+            return;
+        }
+
+        final long sequenceNumber = channel.getNextPublishSeqNo();
+        channel.basicPublish(connection.getExchange(), connection.getRoutingKey(), amqpConnector.isMandatory(),
+            amqpConnector.isImmediate(), amqpMessage.getProperties(), amqpMessage.getBody());
+        unconfirmed.add(sequenceNumber);
+        endpointStatistics.messagePublished(amqpMessage.getBody().length);
+    }
+
+    public void onError(final Throwable throwable)
+    {
+        if (throwable == null)
+        {
+            throw new NullPointerException("Null error");
+        }
+
+        synchronized (this)
+        {
+            if (failure == null)
+            {
+                failure = throwable;
+            }
+            completed = true;
+            terminateIfConfirmed();
+        }
+    }
+
+    public void onComplete()
+    {
+        synchronized (this)
+        {
+            completed = true;
+            terminateIfConfirmed();
+        }
+    }
+
+    /**
+     * Waits for the subscriber to terminate, after the stream has completed or failed
+     * and all the published messages have been confirmed.
+     *
+     * @return false if the subscriber has not terminated within the timeout.
+     */
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * @return the error of the stream or of its publication, or null if none occurred.
+     */
+    public synchronized Throwable getFailure()
+    {
+        return failure;
+    }
+
+    public synchronized int getUnconfirmedCount()
+    {
+        return unconfirmed.size();
+    }
+
+    private synchronized int confirm(final long deliveryTag, final boolean multiple)
+    {
+        final int unconfirmedCount = unconfirmed.size();
+        if (multiple)
+        {
+            unconfirmed.headSet(deliveryTag + 1).clear();
+        }
+        else
+        {
+            unconfirmed.remove(deliveryTag);
+        }
+
+        final int confirmed = unconfirmedCount - unconfirmed.size();
+        terminateIfConfirmed();
+        return confirmed;
+    }
+
+    private void requestMore(final int confirmed)
+    {
+        final Subscription currentSubscription;
+        synchronized (this)
+        {
+            if ((completed) || (terminated.getCount() == 0))
+            {
+                return;
+            }
+            currentSubscription = subscription;
+        }
+
+        // outside of the lock, as the publisher may signal the next messages right away
+        currentSubscription.request(confirmed);
+    }
+
+    private void fail(final Throwable throwable)
+    {
+        final Subscription currentSubscription;
+        synchronized (this)
+        {
+            if (terminated.getCount() == 0)
+            {
+                return;
+            }
+            if (failure == null)
+            {
+                failure = throwable;
+            }
+            currentSubscription = completed ? null : subscription;
+            terminate();
+        }
+
+        LOG.error("Failed to publish to: " + endpoint, throwable);
+        if (currentSubscription != null)
+        {
+            currentSubscription.cancel();
+        }
+    }
+
+    // guarded by this
+    private void terminateIfConfirmed()
+    {
+        if ((completed) && (unconfirmed.isEmpty()) && (terminated.getCount() > 0))
+        {
+            terminate();
+        }
+    }
+
+    // guarded by this
+    private void terminate()
+    {
+        completed = true;
+        terminated.countDown();
+
+        final Channel closedChannel = channel;
+        if ((closedChannel == null) || (!closedChannel.isOpen()))
+        {
+            return;
+        }
+
+        // confirms are handled on the connection thread, which must stay free to
+        // complete the closing of the channel
+        amqpConnector.getScheduler().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    amqpConnector.closeChannel(closedChannel);
+                }
+                catch (final Exception e)
+                {
+                    LOG.warn("Failed to close channel: " + closedChannel, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.util.IOUtils;
+import org.mule.util.NumberUtils;
+import org.mule.util.StringUtils;
+import org.mule.util.UUID;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Delayed retries of the messages that failed in the flow of an inbound endpoint. A
+ * failed message is republished to a retry queue whose message TTL is the backoff
+ * delay of its attempt, from which the broker dead-letters it back to the source queue
+ * through the default exchange once the delay has expired. The attempts are counted in
+ * the {@link AmqpConstants#RETRY_COUNT} header and messages that failed all of them are
+ * parked in a queue for later inspection.
+ * <p>
+ * There is one retry queue per distinct delay, named after the source queue and the
+ * delay, so that messages never wait behind messages with a longer delay.
+ * <p>
+ * Failed messages are republished with publisher confirms, so that the original
+ * delivery is only acknowledged once the broker has taken over its copy. They go
+ * through an {@link AmqpConfirmChannel} on which each republisher only waits for the
+ * confirms of its own message.
+ */
+public final class AmqpRetryPolicy
+{
+    private static final Log LOG = LogFactory.getLog(AmqpRetryPolicy.class);
+
+    private static final int MAX_EXCEPTION_HEADER_LENGTH = 255;
+
+    private static final long CONFIRM_TIMEOUT = 30000L;
+
+    private final int maxAttempts;
+    private final long[] delays;
+    private final String parkingQueue;
+
+    /**
+     * @param maxAttempts the number of retries before parking a message.
+     * @param initialDelay the delay in milliseconds before the first retry.
+     * @param multiplier the factor applied to the delay between two attempts.
+     * @param maxDelay the upper bound in milliseconds of the delays.
+     * @param parkingQueue the queue of the messages that failed all attempts, or null
+     *            for the <code>.parking</code> suffixed source queue.
+     */
+    public AmqpRetryPolicy(final int maxAttempts,
+                           final long initialDelay,
+                           final int multiplier,
+                           final long maxDelay,
+                           final String parkingQueue)
+    {
+        if ((maxAttempts <= 0) || (initialDelay <= 0) || (multiplier < 1) || (maxDelay < initialDelay))
+        {
+            throw new IllegalArgumentException("Invalid retry policy: maxAttempts=" + maxAttempts
+                                               + ", initialDelay=" + initialDelay + ", multiplier="
+                                               + multiplier + ", maxDelay=" + maxDelay);
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.parkingQueue = StringUtils.trimToNull(parkingQueue);
+
+        delays = new long[maxAttempts];
+        long delay = initialDelay;
+        for (int i = 0; i < maxAttempts; i++)
+        {
+            delays[i] = delay;
+            delay = delay > maxDelay / multiplier ? maxDelay : Math.min(maxDelay, delay * multiplier);
+        }
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt the retry attempt, starting at 1.
+     * @return the delay in milliseconds before this attempt.
+     */
+    public long getDelay(final int attempt)
+    {
+        return delays[Math.min(Math.max(attempt, 1), maxAttempts) - 1];
+    }
+
+    /**
+     * @return the distinct delays in milliseconds, in increasing order.
+     */
+    public List<Long> getTierDelays()
+    {
+        final List<Long> tierDelays = new ArrayList<Long>();
+        for (final long delay : delays)
+        {
+            if (!tierDelays.contains(delay))
+            {
+                tierDelays.add(delay);
+            }
+        }
+        return Collections.unmodifiableList(tierDelays);
+    }
+
+    public String getRetryQueueName(final String sourceQueue, final long delay)
+    {
+        return sourceQueue + ".retry." + delay;
+    }
+
+    public String getParkingQueueName(final String sourceQueue)
+    {
+        return parkingQueue == null ? sourceQueue + ".parking" : parkingQueue;
+    }
+
+    /**
+     * Declares the retry queues and the parking queue of a source queue. They are all
+     * durable so retried messages survive broker restarts as well as the source queue
+     * can.
+     */
+    public void declare(final Channel channel, final String sourceQueue) throws IOException
+    {
+        for (final long delay : getTierDelays())
+        {
+            final Map<String, Object> arguments = new HashMap<String, Object>();
+            arguments.put("x-message-ttl", delay);
+            arguments.put("x-dead-letter-exchange", "");
+            arguments.put("x-dead-letter-routing-key", sourceQueue);
+
+            final String retryQueue = getRetryQueueName(sourceQueue, delay);
+            channel.queueDeclare(retryQueue, true, false, false, arguments);
+            LOG.info("Declared retry queue: " + retryQueue + ", delay: " + delay + "ms");
+        }
+
+        final String parkingQueueName = getParkingQueueName(sourceQueue);
+        channel.queueDeclare(parkingQueueName, true, false, false, null);
+        LOG.info("Declared parking queue: " + parkingQueueName);
+    }
+
+    /**
+     * Republishes a failed message either to the retry queue of its next attempt or to
+     * the parking queue if it has exhausted its attempts, and waits for the broker to
+     * confirm it. The caller remains in charge of acknowledging the original delivery, which it must requeue
+     * instead if this method fails.
+     *
+     * @return the name of the queue the message has been republished to.
+     * @throws IOException if the message could not be republished or has not been
+     *             confirmed by the broker.
+     */
+    public String republish(final AmqpConfirmChannel channel,
+                            final String sourceQueue,
+                            final AmqpMessage amqpMessage,
+                            final Throwable cause) throws IOException
+    {
+        return republish(channel, sourceQueue, amqpMessage, cause, 0);
+    }
+
+    /**
+     * Republishes a failed message like {@link #republish(AmqpConfirmChannel, String, AmqpMessage, Throwable)},
+     * streaming the body of a reassembled message from its spool file in chunks of
+     * <code>chunkSize</code> bytes, or as a whole if <code>chunkSize</code> is 0.
+     */
+    public String republish(final AmqpConfirmChannel channel,
+                            final String sourceQueue,
+                            final AmqpMessage amqpMessage,
+                            final Throwable cause,
+                            final int chunkSize) throws IOException
+    {
+        final BasicProperties properties = amqpMessage.getProperties();
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        if (properties.getHeaders() != null)
+        {
+            headers.putAll(properties.getHeaders());
+        }
+        final int attempt = getRetryCount(headers) + 1;
+        if (cause != null)
+        {
+            headers.put(AmqpConstants.RETRY_EXCEPTION,
+                StringUtils.abbreviate(String.valueOf(cause), MAX_EXCEPTION_HEADER_LENGTH));
+        }
+
+        final String targetQueue;
+        if (attempt > maxAttempts)
+        {
+            targetQueue = getParkingQueueName(sourceQueue);
+            LOG.warn("Parking message in queue: " + targetQueue + " after " + maxAttempts
+                     + " failed retries: " + amqpMessage);
+        }
+        else
+        {
+            headers.put(AmqpConstants.RETRY_COUNT, attempt);
+            targetQueue = getRetryQueueName(sourceQueue, getDelay(attempt));
+
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Scheduling retry " + attempt + " of " + maxAttempts + " in "
+                          + getDelay(attempt) + "ms for: " + amqpMessage);
+            }
+        }
+
+        // a per-message expiration would cut the delay of the retry queue short
+        final BasicProperties retryProperties = properties.builder().expiration(null).headers(headers).build();
+        final AmqpConfirmChannel.Confirmation confirmation = new AmqpConfirmChannel.Confirmation();
+        if ((chunkSize > 0) && (amqpMessage instanceof SpooledAmqpMessage))
+        {
+            publishChunks(channel, confirmation, targetQueue, retryProperties,
+                (SpooledAmqpMessage) amqpMessage, chunkSize);
+        }
+        else
+        {
+            channel.publish(confirmation, "", targetQueue, retryProperties, amqpMessage.getBody());
+        }
+        waitForConfirms(confirmation, targetQueue);
+        return targetQueue;
+    }
+
+    private static void waitForConfirms(final AmqpConfirmChannel.Confirmation confirmation,
+                                        final String queue) throws IOException
+    {
+        try
+        {
+            if (!confirmation.await(CONFIRM_TIMEOUT))
+            {
+                throw new IOException("Broker nacked the message republished to: " + queue);
+            }
+        }
+        catch (final TimeoutException te)
+        {
+            throw new IOException("Timed out waiting for the broker to confirm the message republished to: "
+                                  + queue);
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the broker to confirm the message republished to: "
+                                  + queue);
+        }
+    }
+
+    private static void publishChunks(final AmqpConfirmChannel channel,
+                                      final AmqpConfirmChannel.Confirmation confirmation,
+                                      final String queue,
+                                      final BasicProperties properties,
+                                      final SpooledAmqpMessage amqpMessage,
+                                      final int chunkSize) throws IOException
+    {
+        final long totalSize = amqpMessage.getBodySize();
+        final int chunkCount = (int) ((totalSize + chunkSize - 1) / chunkSize);
+        // the message may be retried while chunks of its previous attempt are still queued
+        final String chunkId = UUID.getUUID();
+
+        final InputStream body = amqpMessage.getBodyAsStream();
+        try
+        {
+            final DataInputStream in = new DataInputStream(body);
+            for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++)
+            {
+                final long offset = (long) chunkIndex * chunkSize;
+                final byte[] chunk = new byte[(int) Math.min(chunkSize, totalSize - offset)];
+                in.readFully(chunk);
+                channel.publish(confirmation, "", queue, AmqpChunkAssembler.chunkProperties(properties,
+                    chunkId, chunkIndex, chunkCount, offset, totalSize), chunk);
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(body);
+        }
+    }
+
+    /**
+     * @return the number of retries a message has already gone through.
+     */
+    public static int getRetryCount(final Map<String, Object> headers)
+    {
+        final Object retryCount = headers == null ? null : headers.get(AmqpConstants.RETRY_COUNT);
+
+        if (retryCount instanceof Number)
+        {
+            return ((Number) retryCount).intValue();
+        }
+
+        // strings arrive as LongString instances
+        return retryCount == null ? 0 : NumberUtils.toInt(retryCount.toString(), 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AmqpRetryPolicy{maxAttempts=" + maxAttempts + ", tierDelays=" + getTierDelays()
+               + ", parkingQueue=" + parkingQueue + "}";
+    }
+}
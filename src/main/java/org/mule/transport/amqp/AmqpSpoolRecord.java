@@ -0,0 +1,327 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.LongString;
+
+/**
+ * A publication recorded in an {@link AmqpOutboundSpool}: the target exchange and
+ * routing key, the message properties and the body, with their binary encoding.
+ * Header values are encoded for the types the AMQP field tables support. A record can
+ * also carry the key of the endpoint rate limiter its replay must go through.
+ */
+public final class AmqpSpoolRecord
+{
+    private final String exchange;
+    private final String routingKey;
+    private final BasicProperties properties;
+    private final byte[] body;
+    private final String rateLimiterKey;
+
+    public AmqpSpoolRecord(final String exchange,
+                           final String routingKey,
+                           final BasicProperties properties,
+                           final byte[] body)
+    {
+        this(exchange, routingKey, properties, body, null);
+    }
+
+    /**
+     * @param rateLimiterKey the key of the endpoint rate limiter to acquire when the
+     *            record is replayed, or null.
+     */
+    public AmqpSpoolRecord(final String exchange,
+                           final String routingKey,
+                           final BasicProperties properties,
+                           final byte[] body,
+                           final String rateLimiterKey)
+    {
+        this.exchange = exchange == null ? "" : exchange;
+        this.routingKey = routingKey == null ? "" : routingKey;
+        this.properties = properties == null ? new BasicProperties() : properties;
+        this.body = body;
+        this.rateLimiterKey = rateLimiterKey;
+    }
+
+    public String getExchange()
+    {
+        return exchange;
+    }
+
+    public String getRoutingKey()
+    {
+        return routingKey;
+    }
+
+    public BasicProperties getProperties()
+    {
+        return properties;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    public String getRateLimiterKey()
+    {
+        return rateLimiterKey;
+    }
+
+    byte[] encode() throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(exchange);
+        out.writeUTF(routingKey);
+
+        writeString(out, properties.getContentType());
+        writeString(out, properties.getContentEncoding());
+        writeValue(out, properties.getHeaders());
+        writeValue(out, properties.getDeliveryMode());
+        writeValue(out, properties.getPriority());
+        writeString(out, properties.getCorrelationId());
+        writeString(out, properties.getReplyTo());
+        writeString(out, properties.getExpiration());
+        writeString(out, properties.getMessageId());
+        writeValue(out, properties.getTimestamp());
+        writeString(out, properties.getType());
+        writeString(out, properties.getUserId());
+        writeString(out, properties.getAppId());
+        writeString(out, properties.getClusterId());
+
+        out.writeInt(body.length);
+        out.write(body);
+        writeString(out, rateLimiterKey);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    static AmqpSpoolRecord decode(final byte[] encoded) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+
+        final String exchange = in.readUTF();
+        final String routingKey = in.readUTF();
+
+        final BasicProperties properties = new BasicProperties.Builder().contentType(readString(in))
+            .contentEncoding(readString(in))
+            .headers((Map<String, Object>) readValue(in))
+            .deliveryMode((Integer) readValue(in))
+            .priority((Integer) readValue(in))
+            .correlationId(readString(in))
+            .replyTo(readString(in))
+            .expiration(readString(in))
+            .messageId(readString(in))
+            .timestamp((Date) readValue(in))
+            .type(readString(in))
+            .userId(readString(in))
+            .appId(readString(in))
+            .clusterId(readString(in))
+            .build();
+
+        final byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        // records spooled by earlier versions end with the body
+        final String rateLimiterKey = in.available() > 0 ? readString(in) : null;
+        return new AmqpSpoolRecord(exchange, routingKey, properties, body, rateLimiterKey);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException
+    {
+        writeValue(out, value);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException
+    {
+        return (String) readValue(in);
+    }
+
+    private static void writeValue(final DataOutputStream out, final Object value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte('V');
+        }
+        else if ((value instanceof String) || (value instanceof LongString))
+        {
+            // long strings are written back as strings, which have the same wire format
+            final byte[] bytes = value instanceof LongString
+                                                            ? ((LongString) value).getBytes()
+                                                            : ((String) value).getBytes(AmqpConstants.LONG_STRING_CHARSET);
+            out.writeByte('S');
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte('l');
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Short)
+        {
+            out.writeByte('s');
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Byte)
+        {
+            out.writeByte('b');
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte('t');
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte('d');
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte('f');
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Date)
+        {
+            out.writeByte('T');
+            out.writeLong(((Date) value).getTime());
+        }
+        else if (value instanceof BigDecimal)
+        {
+            final byte[] unscaled = ((BigDecimal) value).unscaledValue().toByteArray();
+            out.writeByte('D');
+            out.writeInt(((BigDecimal) value).scale());
+            out.writeInt(unscaled.length);
+            out.write(unscaled);
+        }
+        else if (value instanceof byte[])
+        {
+            out.writeByte('x');
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        }
+        else if (value instanceof Map<?, ?>)
+        {
+            out.writeByte('F');
+            out.writeInt(((Map<?, ?>) value).size());
+            for (final Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                out.writeUTF(String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        }
+        else if ((value instanceof List<?>) || (value instanceof Object[]))
+        {
+            final List<?> list = value instanceof List<?> ? (List<?>) value : Arrays.asList((Object[]) value);
+            out.writeByte('A');
+            out.writeInt(list.size());
+            for (final Object element : list)
+            {
+                writeValue(out, element);
+            }
+        }
+        else
+        {
+            throw new IOException("Unsupported header value type: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(final DataInputStream in) throws IOException
+    {
+        final byte type = in.readByte();
+        switch (type)
+        {
+            case 'V' :
+                return null;
+            case 'S' :
+                return new String(readBytes(in), AmqpConstants.LONG_STRING_CHARSET);
+            case 'I' :
+                return in.readInt();
+            case 'l' :
+                return in.readLong();
+            case 's' :
+                return in.readShort();
+            case 'b' :
+                return in.readByte();
+            case 't' :
+                return in.readBoolean();
+            case 'd' :
+                return in.readDouble();
+            case 'f' :
+                return in.readFloat();
+            case 'T' :
+                return new Date(in.readLong());
+            case 'D' :
+                final int scale = in.readInt();
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case 'x' :
+                return readBytes(in);
+            case 'F' :
+                final int entryCount = in.readInt();
+                final Map<String, Object> map = new HashMap<String, Object>(entryCount * 2);
+                for (int i = 0; i < entryCount; i++)
+                {
+                    final String key = in.readUTF();
+                    map.put(key, readValue(in));
+                }
+                return map;
+            case 'A' :
+                final int elementCount = in.readInt();
+                final List<Object> list = new ArrayList<Object>(elementCount);
+                for (int i = 0; i < elementCount; i++)
+                {
+                    list.add(readValue(in));
+                }
+                return list;
+            default :
+                throw new IOException("Corrupted spool record, unknown value type: " + type);
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException
+    {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AmqpSpoolRecord[exchange=" + exchange + ", routingKey=" + routingKey + ", properties="
+               + properties + ", body.length=" + body.length + ", rateLimiterKey=" + rateLimiterKey + "]";
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs works on virtual threads, at most a given number at a time, instead of on the
+ * pooled threads of a work manager. A work blocked on I/O then only holds a virtual
+ * thread, so that flows which mostly wait can process many messages concurrently.
+ * <p>
+ * Virtual threads are looked up reflectively, as the transport also runs on JVMs that
+ * don't have them: {@link #create(String, int)} returns null on these. Works submitted
+ * while the limit is reached are queued and run by the threads that complete theirs,
+ * so submitting never blocks the thread that delivers messages.
+ */
+public final class AmqpVirtualThreadExecutor
+{
+    private static final Log LOG = LogFactory.getLog(AmqpVirtualThreadExecutor.class);
+
+    private final ThreadFactory threadFactory;
+    private final int maxThreads;
+    private final ClassLoader contextClassLoader;
+    private final Queue<Work> works = new ConcurrentLinkedQueue<Work>();
+    private final AtomicInteger threads = new AtomicInteger();
+
+    private final Runnable runner = new Runnable()
+    {
+        public void run()
+        {
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+            try
+            {
+                Work work;
+                while ((work = works.poll()) != null)
+                {
+                    runWork(work);
+                }
+            }
+            finally
+            {
+                threads.decrementAndGet();
+            }
+
+            // a work queued after the last poll may have found the limit reached
+            if (!works.isEmpty())
+            {
+                startThread();
+            }
+        }
+    };
+
+    private AmqpVirtualThreadExecutor(final ThreadFactory threadFactory, final int maxThreads)
+    {
+        this.threadFactory = threadFactory;
+        this.maxThreads = maxThreads;
+        this.contextClassLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    /**
+     * @param threadName the prefix of the names of the virtual threads.
+     * @param maxThreads the maximum number of works running at the same time.
+     * @return a new executor, or null if the JVM doesn't support virtual threads.
+     */
+    public static AmqpVirtualThreadExecutor create(final String threadName, final int maxThreads)
+    {
+        if (maxThreads < 1)
+        {
+            throw new IllegalArgumentException("Invalid maximum number of virtual threads: " + maxThreads);
+        }
+
+        final ThreadFactory threadFactory = newVirtualThreadFactory(threadName);
+        return threadFactory == null ? null : new AmqpVirtualThreadExecutor(threadFactory, maxThreads);
+    }
+
+    private static ThreadFactory newVirtualThreadFactory(final String threadName)
+    {
+        try
+        {
+            // Thread.ofVirtual().name(threadName, 0).factory()
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                threadName, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (final Exception e)
+        {
+            // older JVMs, or virtual threads still in preview and not enabled
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Virtual threads are not available", e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Runs a work on a virtual thread, right away if less than the maximum number of
+     * works are running, else once a running work completes.
+     *
+     * @throws WorkException if no virtual thread could be started for the work.
+     */
+    public void execute(final Work work) throws WorkException
+    {
+        works.add(work);
+        try
+        {
+            startThread();
+        }
+        catch (final RuntimeException re)
+        {
+            // unless a running thread has taken the work in the meantime
+            if (works.remove(work))
+            {
+                throw new WorkException("Failed to start a virtual thread", re);
+            }
+        }
+    }
+
+    private void startThread()
+    {
+        int running;
+        do
+        {
+            running = threads.get();
+            if (running >= maxThreads)
+            {
+                return;
+            }
+        }
+        while (!threads.compareAndSet(running, running + 1));
+
+        try
+        {
+            threadFactory.newThread(runner).start();
+        }
+        catch (final RuntimeException re)
+        {
+            threads.decrementAndGet();
+            throw re;
+        }
+    }
+
+    private static void runWork(final Work work)
+    {
+        try
+        {
+            work.run();
+        }
+        catch (final RuntimeException re)
+        {
+            // a failing work must not stop the thread from running the queued ones
+            LOG.error("Failed to run: " + work, re);
+        }
+    }
+
+    /**
+     * Releases and drops all the works waiting for a thread.
+     */
+    public void clear()
+    {
+        Work work;
+        while ((work = works.poll()) != null)
+        {
+            work.release();
+        }
+    }
+
+    /**
+     * @return the number of virtual threads running works.
+     */
+    public int getThreadCount()
+    {
+        return threads.get();
+    }
+
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.resource.spi.work.Work;
+
+/**
+ * Shares the threads of the work manager between the works of several lanes, one per
+ * consumed queue, in proportion to the weights of the lanes. The works of a lane keep
+ * their arrival order.
+ * <p>
+ * Like {@link AmqpPriorityWorkQueue}, the work manager receives one runner per queued
+ * work. When it gets a thread, a runner picks the lane to serve with a smooth weighted
+ * round-robin over the lanes that have queued works, so that a lane of weight 3 is
+ * served three times as often as a lane of weight 1 while both have works waiting,
+ * without serving it three times in a row.
+ */
+public final class AmqpWeightedWorkQueue
+{
+    private final Lane[] lanes;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Work runner = new Work()
+    {
+        public void run()
+        {
+            final Work next = poll();
+            if (next != null)
+            {
+                next.run();
+            }
+        }
+
+        public void release()
+        {
+            // queued works are released when the queue is cleared
+        }
+    };
+
+    private static final class Lane
+    {
+        private final int weight;
+        private final Queue<Work> works = new ConcurrentLinkedQueue<Work>();
+        private int currentWeight;
+
+        private Lane(final int weight)
+        {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param weights the weights of the lanes, which must be positive.
+     */
+    public AmqpWeightedWorkQueue(final int[] weights)
+    {
+        lanes = new Lane[weights.length];
+        for (int i = 0; i < weights.length; i++)
+        {
+            if (weights[i] < 1)
+            {
+                throw new IllegalArgumentException("Invalid lane weight: " + weights[i]);
+            }
+            lanes[i] = new Lane(weights[i]);
+        }
+    }
+
+    /**
+     * Queues a work in a lane.
+     *
+     * @return the runner to schedule in the work manager for this work.
+     */
+    public Work add(final Work work, final int lane)
+    {
+        lanes[lane].works.add(work);
+        size.incrementAndGet();
+        return runner;
+    }
+
+    /**
+     * Removes a queued work, for instance if its runner could not be scheduled.
+     *
+     * @return true if the work was still queued.
+     */
+    public synchronized boolean remove(final Work work)
+    {
+        for (final Lane lane : lanes)
+        {
+            if (lane.works.remove(work))
+            {
+                size.decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases and drops all the queued works.
+     */
+    public void clear()
+    {
+        Work work;
+        while ((work = poll()) != null)
+        {
+            work.release();
+        }
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    synchronized Work poll()
+    {
+        Lane selected = null;
+        int activeWeight = 0;
+        for (final Lane lane : lanes)
+        {
+            if (lane.works.isEmpty())
+            {
+                continue;
+            }
+            lane.currentWeight += lane.weight;
+            activeWeight += lane.weight;
+            if ((selected == null) || (lane.currentWeight > selected.currentWeight))
+            {
+                selected = lane;
+            }
+        }
+
+        if (selected == null)
+        {
+            return null;
+        }
+
+        // idle lanes don't accumulate credit, so a lane that was empty can't burst
+        // when it gets works again
+        selected.currentWeight -= activeWeight;
+        size.decrementAndGet();
+        return selected.works.poll();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mule.api.MuleMessage;
+import org.mule.api.MuleRuntimeException;
+import org.mule.api.transport.PropertyScope;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.util.StringUtils;
+
+/**
+ * A routing key or exchange name template, like
+ * <code>orders.#[header:region].#[header:type]</code>, compiled once into a list of
+ * segments. <code>header:</code> expressions are resolved straight from the message
+ * properties (in the outbound scope unless specified, as in
+ * <code>#[header:INBOUND:region]</code>), other expressions are delegated to Mule's
+ * expression manager.
+ */
+public class RoutingTemplate
+{
+    public static final String EXPRESSION_PREFIX = "#[";
+    public static final String EXPRESSION_SUFFIX = "]";
+
+    private static final String HEADER_EVALUATOR_PREFIX = "header:";
+
+    // rendering reuses a per-thread builder to avoid garbage on every message
+    private static final ThreadLocal<StringBuilder> BUILDERS = new ThreadLocal<StringBuilder>()
+    {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(64);
+        }
+    };
+
+    private interface Segment
+    {
+        void appendTo(StringBuilder sb, MuleMessage message);
+    }
+
+    private static class LiteralSegment implements Segment
+    {
+        private final String literal;
+
+        public LiteralSegment(final String literal)
+        {
+            this.literal = literal;
+        }
+
+        public void appendTo(final StringBuilder sb, final MuleMessage message)
+        {
+            sb.append(literal);
+        }
+    }
+
+    private static class PropertySegment implements Segment
+    {
+        private final String propertyName;
+        private final PropertyScope scope;
+
+        public PropertySegment(final String propertyName, final PropertyScope scope)
+        {
+            this.propertyName = propertyName;
+            this.scope = scope;
+        }
+
+        public void appendTo(final StringBuilder sb, final MuleMessage message)
+        {
+            final Object value = message.getProperty(propertyName, scope);
+            if (value != null)
+            {
+                sb.append(value);
+            }
+        }
+    }
+
+    private static class ExpressionSegment implements Segment
+    {
+        private final String expression;
+
+        public ExpressionSegment(final String expression)
+        {
+            this.expression = expression;
+        }
+
+        public void appendTo(final StringBuilder sb, final MuleMessage message)
+        {
+            final Object value = message.getMuleContext().getExpressionManager().evaluate(expression,
+                message);
+            if (value != null)
+            {
+                sb.append(value);
+            }
+        }
+    }
+
+    private final String template;
+    private final Segment[] segments;
+
+    private RoutingTemplate(final String template, final Segment[] segments)
+    {
+        this.template = template;
+        this.segments = segments;
+    }
+
+    public static boolean isTemplate(final String value)
+    {
+        return (value != null) && (value.contains(EXPRESSION_PREFIX));
+    }
+
+    /**
+     * @throws MuleRuntimeException if the template is malformed.
+     */
+    public static RoutingTemplate compile(final String template)
+    {
+        final List<Segment> segments = new ArrayList<Segment>();
+        int position = 0;
+
+        while (position < template.length())
+        {
+            final int start = template.indexOf(EXPRESSION_PREFIX, position);
+            if (start == -1)
+            {
+                segments.add(new LiteralSegment(template.substring(position)));
+                break;
+            }
+
+            if (start > position)
+            {
+                segments.add(new LiteralSegment(template.substring(position, start)));
+            }
+
+            final int end = findExpressionEnd(template, start + EXPRESSION_PREFIX.length());
+            if (end == -1)
+            {
+                throw new MuleRuntimeException(
+                    MessageFactory.createStaticMessage("Unterminated expression in template: " + template));
+            }
+
+            segments.add(compileExpression(template, template.substring(start + EXPRESSION_PREFIX.length(),
+                end)));
+            position = end + EXPRESSION_SUFFIX.length();
+        }
+
+        return new RoutingTemplate(template, segments.toArray(new Segment[segments.size()]));
+    }
+
+    private static int findExpressionEnd(final String template, final int from)
+    {
+        // expressions can contain brackets themselves
+        int depth = 0;
+        for (int i = from; i < template.length(); i++)
+        {
+            final char c = template.charAt(i);
+            if (c == '[')
+            {
+                depth++;
+            }
+            else if (c == ']')
+            {
+                if (depth == 0)
+                {
+                    return i;
+                }
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    private static Segment compileExpression(final String template, final String expression)
+    {
+        if (StringUtils.isBlank(expression))
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("Empty expression in template: " + template));
+        }
+
+        if (!expression.startsWith(HEADER_EVALUATOR_PREFIX))
+        {
+            return new ExpressionSegment(EXPRESSION_PREFIX + expression + EXPRESSION_SUFFIX);
+        }
+
+        final String header = expression.substring(HEADER_EVALUATOR_PREFIX.length()).trim();
+        final int colon = header.indexOf(':');
+        if (colon > 0)
+        {
+            final String scopeName = header.substring(0, colon).trim();
+            for (final PropertyScope scope : PropertyScope.ALL_SCOPES)
+            {
+                if (scope.getScopeName().equalsIgnoreCase(scopeName))
+                {
+                    return new PropertySegment(header.substring(colon + 1).trim(), scope);
+                }
+            }
+        }
+
+        // wildcards, lists and unknown scopes are left to the header evaluator
+        if ((header.indexOf('*') != -1) || (header.indexOf(',') != -1) || (colon > 0))
+        {
+            return new ExpressionSegment(EXPRESSION_PREFIX + expression + EXPRESSION_SUFFIX);
+        }
+
+        return new PropertySegment(header, PropertyScope.OUTBOUND);
+    }
+
+    public String render(final MuleMessage message)
+    {
+        final StringBuilder sb = BUILDERS.get();
+        sb.setLength(0);
+
+        for (final Segment segment : segments)
+        {
+            segment.appendTo(sb, message);
+        }
+
+        return sb.toString();
+    }
+
+    public String getTemplate()
+    {
+        return template;
+    }
+
+    @Override
+    public String toString()
+    {
+        return template;
+    }
+}
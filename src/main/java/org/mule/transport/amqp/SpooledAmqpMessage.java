@@ -0,0 +1,112 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.mule.api.MuleRuntimeException;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.util.FileUtils;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * An {@link AmqpMessage} whose body has been spooled to a temporary file, typically
+ * because it has been reassembled from chunks too large to be kept in memory. The
+ * body is read from the file only when it is requested: streaming consumers should
+ * prefer {@link #getBodyAsStream()}, which can be called several times, for instance
+ * to republish a message that failed to be processed. The spool file is deleted once
+ * the body has been read in memory or the message is discarded.
+ */
+public class SpooledAmqpMessage extends AmqpMessage
+{
+    private final File spoolFile;
+    private volatile byte[] body;
+
+    public SpooledAmqpMessage(final String consumerTag,
+                              final Envelope envelope,
+                              final BasicProperties properties,
+                              final File spoolFile)
+    {
+        super(consumerTag, envelope, properties, null);
+        this.spoolFile = spoolFile;
+    }
+
+    @Override
+    public byte[] getBody()
+    {
+        if (body == null)
+        {
+            synchronized (this)
+            {
+                if (body == null)
+                {
+                    try
+                    {
+                        body = FileUtils.readFileToByteArray(spoolFile);
+                    }
+                    catch (final IOException ioe)
+                    {
+                        throw new MuleRuntimeException(
+                            MessageFactory.createStaticMessage("Failed to read spooled message body from: "
+                                                               + spoolFile), ioe);
+                    }
+                    FileUtils.deleteQuietly(spoolFile);
+                }
+            }
+        }
+        return body;
+    }
+
+    @Override
+    public InputStream getBodyAsStream() throws IOException
+    {
+        if (body != null)
+        {
+            return super.getBodyAsStream();
+        }
+
+        return new FileInputStream(spoolFile);
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return true;
+    }
+
+    /**
+     * Deletes the spool file once the message is no longer needed. Streams already
+     * opened on the body can still be read where the file system allows it.
+     */
+    public void discard()
+    {
+        FileUtils.deleteQuietly(spoolFile);
+    }
+
+    /**
+     * @return the size of the body, without reading it.
+     */
+    public long getBodySize()
+    {
+        final byte[] readBody = body;
+        return readBody == null ? spoolFile.length() : readBody.length;
+    }
+
+    public File getSpoolFile()
+    {
+        return spoolFile;
+    }
+}
@@ -38,6 +38,7 @@ import org.mule.transport.amqp.AmqpMessageRejecter;
 import org.mule.transport.amqp.AmqpRecover;
 import org.mule.transport.amqp.AmqpReturnHandler;
 import org.mule.transport.amqp.AmqpTransactionFactory;
+import org.mule.transport.amqp.transformers.AmqpMessageToDecodedObject;
 import org.mule.transport.amqp.transformers.AmqpMessageToObject;
 import org.mule.transport.amqp.transformers.ObjectToAmqpMessage;
 
@@ -58,6 +59,8 @@ public class AmqpNamespaceHandler extends AbstractMuleNamespaceHandler
 
         registerBeanDefinitionParser("amqpmessage-to-object-transformer",
             new MessageProcessorDefinitionParser(AmqpMessageToObject.class));
+        registerBeanDefinitionParser("amqpmessage-to-decoded-object-transformer",
+            new MessageProcessorDefinitionParser(AmqpMessageToDecodedObject.class));
         registerBeanDefinitionParser("object-to-amqpmessage-transformer",
             new MessageProcessorDefinitionParser(ObjectToAmqpMessage.class));
 
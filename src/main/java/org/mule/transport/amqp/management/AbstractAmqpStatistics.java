@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message counters shared by connectors and endpoints. All updates are lock-free.
+ */
+public abstract class AbstractAmqpStatistics
+{
+    protected final StripedCounter publishedMessages = new StripedCounter();
+    protected final StripedCounter publishedBytes = new StripedCounter();
+    protected final StripedCounter consumedMessages = new StripedCounter();
+    protected final StripedCounter ackedMessages = new StripedCounter();
+    protected final StripedCounter rejectedMessages = new StripedCounter();
+    protected final StripedCounter duplicateMessages = new StripedCounter();
+    protected final StripedCounter throttledMessages = new StripedCounter();
+    protected final StripedCounter throttledNanos = new StripedCounter();
+    protected final StripedCounter inFlightMessages = new StripedCounter();
+    protected final StripedCounter drainedMessages = new StripedCounter();
+    protected final StripedCounter undrainedMessages = new StripedCounter();
+    protected final StripedCounter errors = new StripedCounter();
+
+    private final RateMeter publishRate = new RateMeter(publishedMessages);
+    private final RateMeter consumeRate = new RateMeter(consumedMessages);
+
+    private volatile ErrorSnapshot lastError;
+
+    private static class ErrorSnapshot
+    {
+        private final String description;
+        private final long timestamp;
+
+        public ErrorSnapshot(final String description)
+        {
+            this.description = description;
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+    public void messagePublished(final int bodySize)
+    {
+        publishedMessages.increment();
+        publishedBytes.add(bodySize);
+    }
+
+    public void messageConsumed()
+    {
+        consumedMessages.increment();
+    }
+
+    public void messageAcked()
+    {
+        ackedMessages.increment();
+    }
+
+    public void messageRejected()
+    {
+        rejectedMessages.increment();
+    }
+
+    public void messageDeduplicated()
+    {
+        duplicateMessages.increment();
+    }
+
+    /**
+     * @param waitNanos the time the publication has waited for the rate limit, 0 if
+     *            it has not waited.
+     */
+    public void messageThrottled(final long waitNanos)
+    {
+        throttledMessages.increment();
+        throttledNanos.add(waitNanos);
+    }
+
+    /**
+     * @param drained the messages processed while a receiver was stopping.
+     * @param undrained the messages still being processed when the receiver closed its
+     *            channels, which the broker redelivers.
+     */
+    public void messagesDrained(final long drained, final long undrained)
+    {
+        drainedMessages.add(drained);
+        undrainedMessages.add(undrained);
+    }
+
+    public void processingStarted()
+    {
+        inFlightMessages.increment();
+    }
+
+    public void processingEnded()
+    {
+        inFlightMessages.decrement();
+    }
+
+    public void errorOccurred(final Throwable error)
+    {
+        errors.increment();
+        // the snapshot is only built on errors, never on the happy path
+        lastError = new ErrorSnapshot(error == null ? null : error.toString());
+    }
+
+    public long getPublishedMessages()
+    {
+        return publishedMessages.sum();
+    }
+
+    public long getPublishedBytes()
+    {
+        return publishedBytes.sum();
+    }
+
+    public double getPublishRate()
+    {
+        return publishRate.getRate();
+    }
+
+    public long getConsumedMessages()
+    {
+        return consumedMessages.sum();
+    }
+
+    public double getConsumeRate()
+    {
+        return consumeRate.getRate();
+    }
+
+    public long getAckedMessages()
+    {
+        return ackedMessages.sum();
+    }
+
+    public long getRejectedMessages()
+    {
+        return rejectedMessages.sum();
+    }
+
+    public long getDuplicateMessages()
+    {
+        return duplicateMessages.sum();
+    }
+
+    public long getThrottledMessages()
+    {
+        return throttledMessages.sum();
+    }
+
+    /**
+     * @return the total time publications have waited for rate limits, in milliseconds.
+     */
+    public long getThrottledTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+    }
+
+    public long getInFlightMessages()
+    {
+        return inFlightMessages.sum();
+    }
+
+    public long getDrainedMessages()
+    {
+        return drainedMessages.sum();
+    }
+
+    public long getUndrainedMessages()
+    {
+        return undrainedMessages.sum();
+    }
+
+    public long getErrorCount()
+    {
+        return errors.sum();
+    }
+
+    public String getLastError()
+    {
+        final ErrorSnapshot error = lastError;
+        return error == null ? null : error.description;
+    }
+
+    public Date getLastErrorTime()
+    {
+        final ErrorSnapshot error = lastError;
+        return error == null ? null : new Date(error.timestamp);
+    }
+}
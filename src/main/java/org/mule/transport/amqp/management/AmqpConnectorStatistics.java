@@ -0,0 +1,279 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.transport.amqp.AmqpConnector;
+import org.mule.transport.amqp.AmqpOutboundSpool;
+
+/**
+ * Activity and state of an AMQP connector. It also holds the statistics of the
+ * endpoints of the connector and, if JMX is enabled on the connector, registers all
+ * of them as MBeans in the platform MBean server.
+ */
+public class AmqpConnectorStatistics extends AbstractAmqpStatistics implements AmqpConnectorStatisticsMBean
+{
+    private final static Log LOG = LogFactory.getLog(AmqpConnectorStatistics.class);
+
+    private final AmqpConnector amqpConnector;
+    private final ConcurrentMap<String, AmqpEndpointStatistics> endpointStatistics = new ConcurrentHashMap<String, AmqpEndpointStatistics>();
+
+    private final StripedCounter connects = new StripedCounter();
+    private final StripedCounter channelsCreated = new StripedCounter();
+    private final StripedCounter channelsLost = new StripedCounter();
+    private final StripedCounter returnedMessages = new StripedCounter();
+    private final StripedCounter spooledMessages = new StripedCounter();
+    private final StripedCounter replayedMessages = new StripedCounter();
+
+    private volatile MBeanServer mBeanServer;
+    private volatile String jmxDomain;
+
+    public AmqpConnectorStatistics(final AmqpConnector amqpConnector)
+    {
+        this.amqpConnector = amqpConnector;
+    }
+
+    /**
+     * @return the statistics of the endpoint, created on first access.
+     */
+    public AmqpEndpointStatistics getEndpointStatistics(final ImmutableEndpoint endpoint)
+    {
+        final String key = (endpoint instanceof InboundEndpoint ? "inbound:" : "outbound:")
+                           + endpoint.getEndpointURI().getAddress();
+
+        AmqpEndpointStatistics statistics = endpointStatistics.get(key);
+        if (statistics != null)
+        {
+            return statistics;
+        }
+
+        statistics = new AmqpEndpointStatistics(key, this);
+        final AmqpEndpointStatistics existing = endpointStatistics.putIfAbsent(key, statistics);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        if (mBeanServer != null)
+        {
+            registerMBean(statistics, getEndpointObjectName(key));
+        }
+        return statistics;
+    }
+
+    /**
+     * Registers this MBean and the ones of the endpoints in the platform MBean server.
+     */
+    public synchronized void registerMBeans(final String jmxDomain)
+    {
+        if (mBeanServer != null)
+        {
+            return;
+        }
+
+        this.jmxDomain = jmxDomain;
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        registerMBean(this, getConnectorObjectName());
+
+        for (final AmqpEndpointStatistics statistics : endpointStatistics.values())
+        {
+            registerMBean(statistics, getEndpointObjectName(statistics.getEndpoint()));
+        }
+    }
+
+    public synchronized void unregisterMBeans()
+    {
+        if (mBeanServer == null)
+        {
+            return;
+        }
+
+        unregisterMBean(getConnectorObjectName());
+        for (final String key : endpointStatistics.keySet())
+        {
+            unregisterMBean(getEndpointObjectName(key));
+        }
+        mBeanServer = null;
+    }
+
+    private String getConnectorObjectName()
+    {
+        return jmxDomain + ":type=AMQP.Connector,name=" + ObjectName.quote(amqpConnector.getName());
+    }
+
+    private String getEndpointObjectName(final String endpoint)
+    {
+        return jmxDomain + ":type=AMQP.Endpoint,connector=" + ObjectName.quote(amqpConnector.getName())
+               + ",name=" + ObjectName.quote(endpoint);
+    }
+
+    private void registerMBean(final Object mBean, final String objectName)
+    {
+        try
+        {
+            final ObjectName name = ObjectName.getInstance(objectName);
+            if (mBeanServer.isRegistered(name))
+            {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(mBean, name);
+        }
+        catch (final Exception e)
+        {
+            LOG.warn("Failed to register MBean: " + objectName, e);
+        }
+    }
+
+    private void unregisterMBean(final String objectName)
+    {
+        try
+        {
+            final ObjectName name = ObjectName.getInstance(objectName);
+            if (mBeanServer.isRegistered(name))
+            {
+                mBeanServer.unregisterMBean(name);
+            }
+        }
+        catch (final Exception e)
+        {
+            LOG.warn("Failed to unregister MBean: " + objectName, e);
+        }
+    }
+
+    /**
+     * Starts new latency recording intervals for all the endpoints, logging the
+     * latencies of the intervals that just ended.
+     */
+    public void reportLatencies()
+    {
+        for (final AmqpEndpointStatistics statistics : endpointStatistics.values())
+        {
+            for (final LatencyHistogram.Snapshot snapshot : statistics.rotateLatencySnapshots())
+            {
+                if ((snapshot.getTotalCount() > 0) && (LOG.isInfoEnabled()))
+                {
+                    LOG.info(statistics.getEndpoint() + " " + snapshot);
+                }
+            }
+        }
+    }
+
+    public void connected()
+    {
+        connects.increment();
+    }
+
+    public void channelCreated()
+    {
+        channelsCreated.increment();
+    }
+
+    public void channelLost()
+    {
+        channelsLost.increment();
+    }
+
+    public void messageReturned()
+    {
+        returnedMessages.increment();
+    }
+
+    public void messageSpooled()
+    {
+        spooledMessages.increment();
+    }
+
+    public void messagesReplayed(final int count)
+    {
+        replayedMessages.add(count);
+    }
+
+    public String getConnector()
+    {
+        return amqpConnector.getName();
+    }
+
+    public boolean isConnected()
+    {
+        return amqpConnector.isConnected();
+    }
+
+    public boolean isStarted()
+    {
+        return amqpConnector.isStarted();
+    }
+
+    public long getConnectCount()
+    {
+        return connects.sum();
+    }
+
+    public long getReconnectCount()
+    {
+        return Math.max(0L, connects.sum() - 1L);
+    }
+
+    public long getChannelsCreated()
+    {
+        return channelsCreated.sum();
+    }
+
+    public long getChannelsLost()
+    {
+        return channelsLost.sum();
+    }
+
+    public int getActivePooledChannels()
+    {
+        return amqpConnector.getNumActiveConnectorConnections();
+    }
+
+    public int getIdlePooledChannels()
+    {
+        return amqpConnector.getNumIdleConnectorConnections();
+    }
+
+    public long getReturnedMessages()
+    {
+        return returnedMessages.sum();
+    }
+
+    public long getSpooledMessages()
+    {
+        return spooledMessages.sum();
+    }
+
+    public long getReplayedMessages()
+    {
+        return replayedMessages.sum();
+    }
+
+    public long getPendingSpooledMessages()
+    {
+        final AmqpOutboundSpool outboundSpool = amqpConnector.getOutboundSpool();
+        return outboundSpool == null ? 0L : outboundSpool.getPendingRecords();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AmqpConnectorStatistics{connector=" + amqpConnector.getName() + "}";
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import java.util.Date;
+
+/**
+ * JMX view of the activity and state of an AMQP connector, aggregating the activity
+ * of all its endpoints.
+ */
+public interface AmqpConnectorStatisticsMBean
+{
+    String getConnector();
+
+    boolean isConnected();
+
+    boolean isStarted();
+
+    long getConnectCount();
+
+    long getReconnectCount();
+
+    long getChannelsCreated();
+
+    long getChannelsLost();
+
+    int getActivePooledChannels();
+
+    int getIdlePooledChannels();
+
+    long getPublishedMessages();
+
+    long getPublishedBytes();
+
+    double getPublishRate();
+
+    long getConsumedMessages();
+
+    double getConsumeRate();
+
+    long getAckedMessages();
+
+    long getRejectedMessages();
+
+    long getDuplicateMessages();
+
+    long getThrottledMessages();
+
+    long getThrottledTime();
+
+    long getReturnedMessages();
+
+    long getSpooledMessages();
+
+    long getReplayedMessages();
+
+    long getPendingSpooledMessages();
+
+    long getInFlightMessages();
+
+    long getDrainedMessages();
+
+    long getUndrainedMessages();
+
+    long getErrorCount();
+
+    String getLastError();
+
+    Date getLastErrorTime();
+}
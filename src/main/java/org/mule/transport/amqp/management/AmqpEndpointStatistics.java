@@ -0,0 +1,202 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import org.mule.transport.amqp.management.LatencyHistogram.Snapshot;
+
+/**
+ * Activity of an AMQP endpoint, also accounted in the statistics of its connector,
+ * and latency distributions of its operations.
+ */
+public class AmqpEndpointStatistics extends AbstractAmqpStatistics implements AmqpEndpointStatisticsMBean
+{
+    public static final String PUBLISH_LATENCY = "publish";
+    public static final String BROKER_TO_FLOW_LATENCY = "broker-to-flow";
+    public static final String PROCESSING_TO_ACK_LATENCY = "processing-to-ack";
+    public static final String SEND_ROUND_TRIP_LATENCY = "send-round-trip";
+
+    private final String endpoint;
+    private final AmqpConnectorStatistics connectorStatistics;
+
+    private final LatencyHistogram publishLatency = new LatencyHistogram(PUBLISH_LATENCY);
+    private final LatencyHistogram brokerToFlowLatency = new LatencyHistogram(BROKER_TO_FLOW_LATENCY);
+    private final LatencyHistogram processingToAckLatency = new LatencyHistogram(PROCESSING_TO_ACK_LATENCY);
+    private final LatencyHistogram sendRoundTripLatency = new LatencyHistogram(SEND_ROUND_TRIP_LATENCY);
+    private final LatencyHistogram[] latencyHistograms = new LatencyHistogram[]{publishLatency,
+        brokerToFlowLatency, processingToAckLatency, sendRoundTripLatency};
+
+    // latest interval snapshots, null until latencies are periodically reported
+    private volatile Snapshot[] intervalSnapshots;
+
+    public AmqpEndpointStatistics(final String endpoint, final AmqpConnectorStatistics connectorStatistics)
+    {
+        this.endpoint = endpoint;
+        this.connectorStatistics = connectorStatistics;
+    }
+
+    @Override
+    public void messagePublished(final int bodySize)
+    {
+        super.messagePublished(bodySize);
+        connectorStatistics.messagePublished(bodySize);
+    }
+
+    @Override
+    public void messageConsumed()
+    {
+        super.messageConsumed();
+        connectorStatistics.messageConsumed();
+    }
+
+    @Override
+    public void messageAcked()
+    {
+        super.messageAcked();
+        connectorStatistics.messageAcked();
+    }
+
+    @Override
+    public void messageRejected()
+    {
+        super.messageRejected();
+        connectorStatistics.messageRejected();
+    }
+
+    @Override
+    public void messageDeduplicated()
+    {
+        super.messageDeduplicated();
+        connectorStatistics.messageDeduplicated();
+    }
+
+    @Override
+    public void messageThrottled(final long waitNanos)
+    {
+        super.messageThrottled(waitNanos);
+        connectorStatistics.messageThrottled(waitNanos);
+    }
+
+    @Override
+    public void messagesDrained(final long drained, final long undrained)
+    {
+        super.messagesDrained(drained, undrained);
+        connectorStatistics.messagesDrained(drained, undrained);
+    }
+
+    @Override
+    public void processingStarted()
+    {
+        super.processingStarted();
+        connectorStatistics.processingStarted();
+    }
+
+    @Override
+    public void processingEnded()
+    {
+        super.processingEnded();
+        connectorStatistics.processingEnded();
+    }
+
+    @Override
+    public void errorOccurred(final Throwable error)
+    {
+        super.errorOccurred(error);
+        connectorStatistics.errorOccurred(error);
+    }
+
+    public void recordPublishLatency(final long nanos)
+    {
+        publishLatency.recordNanos(nanos);
+    }
+
+    public void recordBrokerToFlowLatency(final long millis)
+    {
+        brokerToFlowLatency.recordMicros(millis * 1000L);
+    }
+
+    public void recordProcessingToAckLatency(final long nanos)
+    {
+        processingToAckLatency.recordNanos(nanos);
+    }
+
+    public void recordSendRoundTripLatency(final long nanos)
+    {
+        sendRoundTripLatency.recordNanos(nanos);
+    }
+
+    /**
+     * Starts new latency recording intervals.
+     *
+     * @return the snapshots of the intervals that just ended.
+     */
+    public Snapshot[] rotateLatencySnapshots()
+    {
+        final Snapshot[] snapshots = new Snapshot[latencyHistograms.length];
+        for (int i = 0; i < latencyHistograms.length; i++)
+        {
+            snapshots[i] = latencyHistograms[i].snapshotAndReset();
+        }
+        intervalSnapshots = snapshots;
+        return snapshots;
+    }
+
+    /**
+     * @return the latency distribution of the last reporting interval or, if latencies
+     *         are not periodically reported, of all recorded latencies.
+     */
+    public Snapshot getLatencySnapshot(final String latency)
+    {
+        final Snapshot[] snapshots = intervalSnapshots;
+        for (int i = 0; i < latencyHistograms.length; i++)
+        {
+            if (latencyHistograms[i].getName().equals(latency))
+            {
+                return snapshots == null ? latencyHistograms[i].snapshot() : snapshots[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown latency: " + latency);
+    }
+
+    public String getPublishLatency()
+    {
+        return getLatencySnapshot(PUBLISH_LATENCY).toString();
+    }
+
+    public String getBrokerToFlowLatency()
+    {
+        return getLatencySnapshot(BROKER_TO_FLOW_LATENCY).toString();
+    }
+
+    public String getProcessingToAckLatency()
+    {
+        return getLatencySnapshot(PROCESSING_TO_ACK_LATENCY).toString();
+    }
+
+    public String getSendRoundTripLatency()
+    {
+        return getLatencySnapshot(SEND_ROUND_TRIP_LATENCY).toString();
+    }
+
+    public long getLatencyPercentile(final String latency, final double percentile)
+    {
+        return getLatencySnapshot(latency).getValueAtPercentile(percentile);
+    }
+
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AmqpEndpointStatistics{endpoint=" + endpoint + "}";
+    }
+}
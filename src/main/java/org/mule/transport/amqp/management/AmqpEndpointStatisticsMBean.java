@@ -0,0 +1,68 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import java.util.Date;
+
+/**
+ * JMX view of the activity of an AMQP endpoint.
+ */
+public interface AmqpEndpointStatisticsMBean
+{
+    String getEndpoint();
+
+    long getPublishedMessages();
+
+    long getPublishedBytes();
+
+    double getPublishRate();
+
+    long getConsumedMessages();
+
+    double getConsumeRate();
+
+    long getAckedMessages();
+
+    long getRejectedMessages();
+
+    long getDuplicateMessages();
+
+    long getThrottledMessages();
+
+    long getThrottledTime();
+
+    long getInFlightMessages();
+
+    long getDrainedMessages();
+
+    long getUndrainedMessages();
+
+    long getErrorCount();
+
+    String getLastError();
+
+    Date getLastErrorTime();
+
+    String getPublishLatency();
+
+    String getBrokerToFlowLatency();
+
+    String getProcessingToAckLatency();
+
+    String getSendRoundTripLatency();
+
+    /**
+     * @param latency one of publish, broker-to-flow, processing-to-ack or
+     *            send-round-trip.
+     * @param percentile between 0 and 100.
+     * @return the latency in microseconds.
+     */
+    long getLatencyPercentile(String latency, double percentile);
+}
@@ -0,0 +1,216 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the spirit of
+ * HdrHistogram: values are recorded in microseconds with a relative precision of
+ * about 3% from 64 microseconds up to {@link #MAX_VALUE}, larger values being
+ * clamped. Recording is a single atomic increment, snapshots are only computed by
+ * readers.
+ */
+public class LatencyHistogram
+{
+    // sub-buckets per power of two: 2^5 -> 1/32 relative precision
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_HALF_COUNT << 1;
+    private static final int MAX_VALUE_BITS = 36;
+
+    /**
+     * Maximum recordable latency, about 19 hours in microseconds.
+     */
+    public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_VALUE_BITS - SUB_BUCKET_BITS - 1)
+                                            * SUB_BUCKET_HALF_COUNT;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public LatencyHistogram(final String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void recordNanos(final long nanos)
+    {
+        recordMicros(nanos / 1000L);
+    }
+
+    public void recordMicros(final long micros)
+    {
+        counts.incrementAndGet(indexOf(Math.min(Math.max(micros, 0L), MAX_VALUE)));
+    }
+
+    static int indexOf(final long value)
+    {
+        if (value < LINEAR_LIMIT)
+        {
+            return (int) value;
+        }
+
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    static long highestValueOf(final int index)
+    {
+        if (index < LINEAR_LIMIT)
+        {
+            return index;
+        }
+
+        final int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_HALF_COUNT + 1;
+        final long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @return the distribution of all the values recorded so far.
+     */
+    public Snapshot snapshot()
+    {
+        final long[] snapshotCounts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            snapshotCounts[i] = counts.get(i);
+        }
+        return new Snapshot(name, snapshotCounts);
+    }
+
+    /**
+     * @return the distribution of the values recorded since the previous reset, values
+     *         recorded concurrently being accounted in either this snapshot or the
+     *         next one.
+     */
+    public Snapshot snapshotAndReset()
+    {
+        final long[] snapshotCounts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            snapshotCounts[i] = counts.getAndSet(i, 0L);
+        }
+        return new Snapshot(name, snapshotCounts);
+    }
+
+    /**
+     * Immutable distribution of recorded latencies.
+     */
+    public static class Snapshot
+    {
+        private final String name;
+        private final long[] counts;
+        private final long totalCount;
+
+        private Snapshot(final String name, final long[] counts)
+        {
+            this.name = name;
+            this.counts = counts;
+
+            long total = 0;
+            for (final long count : counts)
+            {
+                total += count;
+            }
+            totalCount = total;
+        }
+
+        public long getTotalCount()
+        {
+            return totalCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the highest latency, in microseconds, below which the percentile of
+         *         recorded latencies fall, or 0 if nothing has been recorded.
+         */
+        public long getValueAtPercentile(final double percentile)
+        {
+            if (totalCount == 0)
+            {
+                return 0L;
+            }
+
+            final long countAtPercentile = Math.max(1L,
+                (long) Math.ceil(Math.min(percentile, 100.0d) / 100.0d * totalCount));
+            long count = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                count += counts[i];
+                if (count >= countAtPercentile)
+                {
+                    return highestValueOf(i);
+                }
+            }
+            return MAX_VALUE;
+        }
+
+        public long getMin()
+        {
+            for (int i = 0; i < counts.length; i++)
+            {
+                if (counts[i] > 0)
+                {
+                    return highestValueOf(i);
+                }
+            }
+            return 0L;
+        }
+
+        public long getMax()
+        {
+            for (int i = counts.length - 1; i >= 0; i--)
+            {
+                if (counts[i] > 0)
+                {
+                    return highestValueOf(i);
+                }
+            }
+            return 0L;
+        }
+
+        public double getMean()
+        {
+            if (totalCount == 0)
+            {
+                return 0.0d;
+            }
+
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                if (counts[i] > 0)
+                {
+                    sum += (double) counts[i] * highestValueOf(i);
+                }
+            }
+            return sum / totalCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(
+                "%s: count=%d, min=%dus, mean=%.1fus, p50=%dus, p90=%dus, p99=%dus, p99.9=%dus, max=%dus",
+                name, totalCount, getMin(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+/**
+ * Computes the rate per second of a {@link StripedCounter} between successive reads,
+ * which is how JMX clients poll attributes. Reads closer than the minimum sampling
+ * interval return the previous rate. Only readers pay the computation cost.
+ */
+public class RateMeter
+{
+    private static final long MIN_SAMPLING_INTERVAL_NANOS = 1000000000L;
+
+    private final StripedCounter counter;
+    private long lastCount;
+    private long lastSampleNanos;
+    private double lastRate;
+
+    public RateMeter(final StripedCounter counter)
+    {
+        this.counter = counter;
+        this.lastSampleNanos = System.nanoTime();
+    }
+
+    public synchronized double getRate()
+    {
+        final long now = System.nanoTime();
+        final long elapsed = now - lastSampleNanos;
+
+        if (elapsed >= MIN_SAMPLING_INTERVAL_NANOS)
+        {
+            final long count = counter.sum();
+            lastRate = (count - lastCount) * 1000000000.0d / elapsed;
+            lastCount = count;
+            lastSampleNanos = now;
+        }
+
+        return lastRate;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.transport.amqp.management;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter spreading its updates over several cells, each on its own
+ * cache line, so that threads updating it concurrently do not contend on a single
+ * memory location. Reading the value sums all the cells, hence is only eventually
+ * consistent.
+ */
+public class StripedCounter
+{
+    // 8 longs per 64 bytes cache line
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripeCount(final int processors)
+    {
+        int stripes = 1;
+        while (stripes < processors * 2)
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static int cellIndex()
+    {
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) (id ^ (id >>> 32));
+        return ((hash ^ (hash >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+    public void increment()
+    {
+        cells.incrementAndGet(cellIndex());
+    }
+
+    public void decrement()
+    {
+        cells.decrementAndGet(cellIndex());
+    }
+
+    public void add(final long delta)
+    {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    public long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+        {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Base class for the JDK based codecs. {@link Deflater} and {@link Inflater}
+ * instances hold native memory, so they are kept per thread and reset between messages
+ * instead of being allocated for each message.
+ * <p>
+ * Decompressed data is limited to <code>maxInflatedSize</code> bytes, so that a small
+ * malicious message can't exhaust the memory of the receiver.
+ */
+public abstract class AbstractDeflaterCompressionCodec implements StreamingCompressionCodec
+{
+    public static final int DEFAULT_MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    private final int level;
+    private final boolean nowrap;
+    private final int maxInflatedSize;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(level, nowrap);
+        }
+    };
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater(nowrap);
+        }
+    };
+
+    protected AbstractDeflaterCompressionCodec(final int level, final boolean nowrap)
+    {
+        this(level, nowrap, DEFAULT_MAX_INFLATED_SIZE);
+    }
+
+    protected AbstractDeflaterCompressionCodec(final int level, final boolean nowrap, final int maxInflatedSize)
+    {
+        if (maxInflatedSize < 1)
+        {
+            throw new IllegalArgumentException("Invalid maximum inflated size: " + maxInflatedSize);
+        }
+
+        this.level = level;
+        this.nowrap = nowrap;
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+    public int getMaxInflatedSize()
+    {
+        return maxInflatedSize;
+    }
+
+    /**
+     * Deflates <code>data</code> in a buffer that starts with <code>headerSize</code>
+     * free bytes and ends with <code>trailerSize</code> free bytes.
+     */
+    protected byte[] deflate(final byte[] data, final int headerSize, final int trailerSize)
+    {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+
+            byte[] buffer = new byte[headerSize + Math.max(data.length / 2, 64) + trailerSize];
+            int length = headerSize;
+
+            while (!deflater.finished())
+            {
+                if (length == buffer.length - trailerSize)
+                {
+                    buffer = grow(buffer, length, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - trailerSize - length);
+            }
+
+            return trim(buffer, length + trailerSize);
+        }
+        finally
+        {
+            // releases the input so the thread doesn't keep the message alive
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Inflates <code>length</code> bytes of <code>data</code> starting at
+     * <code>offset</code>.
+     *
+     * @param sizeHint the expected size of the inflated data, or -1 if unknown.
+     * @return the inflated data, followed by the number of trailing bytes of
+     *         <code>data</code> that have not been consumed by the inflater.
+     * @throws IOException if the data is invalid or inflates to more than
+     *             <code>maxInflatedSize</code> bytes.
+     */
+    protected Inflated inflate(final byte[] data, final int offset, final int length, final int sizeHint)
+        throws IOException
+    {
+        // one byte of room beyond the limit tells data that ends right at it from larger data
+        final int maxBufferSize = maxInflatedSize == Integer.MAX_VALUE ? maxInflatedSize : maxInflatedSize + 1;
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+
+        byte[] buffer = new byte[Math.min(sizeHint >= 0 ? sizeHint : Math.max(length * 4, 64), maxBufferSize)];
+        int inflatedLength = 0;
+        final int remaining;
+
+        try
+        {
+            while (!inflater.finished())
+            {
+                if (inflatedLength == buffer.length)
+                {
+                    if (buffer.length >= maxBufferSize)
+                    {
+                        throw new IOException(getMaxInflatedSizeMessage());
+                    }
+                    buffer = grow(buffer, inflatedLength,
+                        (int) Math.min(Math.max(buffer.length * 2L, 64L), maxBufferSize));
+                }
+
+                final int inflated = inflater.inflate(buffer, inflatedLength, buffer.length - inflatedLength);
+
+                if ((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("Truncated or invalid " + getContentEncoding() + " data");
+                }
+
+                inflatedLength += inflated;
+            }
+            remaining = inflater.getRemaining();
+        }
+        catch (final DataFormatException dfe)
+        {
+            final IOException ioe = new IOException("Invalid " + getContentEncoding() + " data");
+            ioe.initCause(dfe);
+            throw ioe;
+        }
+        finally
+        {
+            inflater.reset();
+        }
+
+        if (inflatedLength > maxInflatedSize)
+        {
+            throw new IOException(getMaxInflatedSizeMessage());
+        }
+
+        return new Inflated(trim(buffer, inflatedLength), remaining);
+    }
+
+    /**
+     * @return a stream of the decompressed data that fails once more than
+     *         <code>maxInflatedSize</code> bytes have been read.
+     */
+    protected InputStream limit(final InputStream in)
+    {
+        return new FilterInputStream(in)
+        {
+            private long inflatedSize;
+
+            @Override
+            public int read() throws IOException
+            {
+                final int b = super.read();
+                if (b >= 0)
+                {
+                    count(1L);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                final int read = super.read(b, off, len);
+                if (read > 0)
+                {
+                    count(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException
+            {
+                final long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(final long read) throws IOException
+            {
+                inflatedSize += read;
+                if (inflatedSize > maxInflatedSize)
+                {
+                    throw new IOException(getMaxInflatedSizeMessage());
+                }
+            }
+        };
+    }
+
+    private String getMaxInflatedSizeMessage()
+    {
+        return "Inflated " + getContentEncoding() + " data exceeds the maximum size of " + maxInflatedSize
+               + " bytes";
+    }
+
+    protected static final class Inflated
+    {
+        protected final byte[] data;
+        protected final int remaining;
+
+        private Inflated(final byte[] data, final int remaining)
+        {
+            this.data = data;
+            this.remaining = remaining;
+        }
+    }
+
+    private static byte[] grow(final byte[] buffer, final int length, final int newSize)
+    {
+        final byte[] largerBuffer = new byte[newSize];
+        System.arraycopy(buffer, 0, largerBuffer, 0, length);
+        return largerBuffer;
+    }
+
+    private static byte[] trim(final byte[] buffer, final int length)
+    {
+        if (buffer.length == length)
+        {
+            return buffer;
+        }
+
+        final byte[] trimmed = new byte[length];
+        System.arraycopy(buffer, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
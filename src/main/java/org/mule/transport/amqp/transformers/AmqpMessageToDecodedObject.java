@@ -0,0 +1,53 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+
+import org.mule.api.MuleMessage;
+import org.mule.api.transformer.TransformerException;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.transformer.types.DataTypeFactory;
+import org.mule.transport.amqp.AmqpMessage;
+
+/**
+ * Decodes the body of AMQP messages with the {@link BodyCodec} registered for their
+ * <code>content-type</code>, returning the raw body if there is none.
+ */
+public class AmqpMessageToDecodedObject extends AbstractAmqpMessageToObject
+{
+    @Override
+    protected void declareInputOutputClasses()
+    {
+        registerSourceType(AMQP_MESSAGE_DATA_TYPE);
+        setReturnDataType(DataTypeFactory.OBJECT);
+    }
+
+    @Override
+    public Object transformMessage(final MuleMessage message, final String outputEncoding)
+        throws TransformerException
+    {
+        final AmqpMessage amqpMessage = (AmqpMessage) message.getPayload();
+        final String contentType = amqpMessage.getProperties() == null
+                                                                      ? null
+                                                                      : amqpMessage.getProperties()
+                                                                          .getContentType();
+        try
+        {
+            return BodyCodecs.decode(amqpMessage.getBody(), contentType, message.getEncoding());
+        }
+        catch (final IOException ioe)
+        {
+            throw new TransformerException(
+                MessageFactory.createStaticMessage("Impossible to decode the body of: " + message), ioe);
+        }
+    }
+}
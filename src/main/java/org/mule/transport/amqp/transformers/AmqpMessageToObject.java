@@ -10,24 +10,44 @@
 
 package org.mule.transport.amqp.transformers;
 
+import java.io.IOException;
+
 import org.mule.api.MuleMessage;
 import org.mule.api.transformer.TransformerException;
 import org.mule.transformer.types.DataTypeFactory;
 import org.mule.transport.amqp.AmqpMessage;
 
+/**
+ * Extracts the body of AMQP messages, as a byte array or, for reassembled messages too
+ * large to be kept in memory, as an input stream.
+ */
 public class AmqpMessageToObject extends AbstractAmqpMessageToObject
 {
     @Override
     protected void declareInputOutputClasses()
     {
         registerSourceType(AMQP_MESSAGE_DATA_TYPE);
-        setReturnDataType(DataTypeFactory.BYTE_ARRAY);
+        setReturnDataType(DataTypeFactory.OBJECT);
     }
 
     @Override
     public Object transformMessage(final MuleMessage message, final String outputEncoding)
         throws TransformerException
     {
-        return ((AmqpMessage) message.getPayload()).getBody();
+        final AmqpMessage amqpMessage = (AmqpMessage) message.getPayload();
+
+        if (!amqpMessage.isStreaming())
+        {
+            return amqpMessage.getBody();
+        }
+
+        try
+        {
+            return amqpMessage.getBodyAsStream();
+        }
+        catch (final IOException ioe)
+        {
+            throw new TransformerException(this, ioe);
+        }
     }
 }
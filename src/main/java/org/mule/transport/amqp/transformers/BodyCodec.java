@@ -0,0 +1,29 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+
+/**
+ * Decodes AMQP message bodies to objects and encodes objects to bodies for a
+ * particular MIME type, which can be a wildcard like <code>text/*</code>.
+ * Implementations must be thread safe.
+ *
+ * @see BodyCodecs
+ */
+public interface BodyCodec
+{
+    String getContentType();
+
+    Object decode(byte[] body, String charset) throws IOException;
+
+    byte[] encode(Object payload, String charset) throws IOException;
+}
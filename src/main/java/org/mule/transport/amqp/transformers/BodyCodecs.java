@@ -0,0 +1,159 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mule.util.StringUtils;
+
+/**
+ * Registry of the {@link BodyCodec}s known to the transport, keyed by MIME type. Only
+ * the text codec is registered by default: deserializing Java objects is opt-in, by
+ * registering a {@link SerializedObjectBodyCodec} with the classes it may decode.
+ * Content types are resolved to a codec and a charset once: the result is cached
+ * per raw <code>content-type</code> value so the per-message cost is a single map
+ * lookup.
+ */
+public abstract class BodyCodecs
+{
+    private static final int MAX_CACHED_CONTENT_TYPES = 256;
+
+    private static final ConcurrentMap<String, BodyCodec> CODECS = new ConcurrentHashMap<String, BodyCodec>();
+
+    private static final ConcurrentMap<String, ResolvedContentType> RESOLVED_CONTENT_TYPES = new ConcurrentHashMap<String, ResolvedContentType>();
+
+    private static final ResolvedContentType UNKNOWN_CONTENT_TYPE = new ResolvedContentType(null, null);
+
+    static
+    {
+        register(new TextBodyCodec());
+    }
+
+    public static void register(final BodyCodec codec)
+    {
+        CODECS.put(codec.getContentType().toLowerCase(), codec);
+        // previous resolutions may now be stale
+        RESOLVED_CONTENT_TYPES.clear();
+    }
+
+    /**
+     * @return the codec for the content type, matched first on its exact MIME type
+     *         then on its wildcard one, or null if there is none.
+     */
+    public static BodyCodec get(final String contentType)
+    {
+        return resolve(contentType).codec;
+    }
+
+    /**
+     * @return the decoded body or the body itself if no codec handles the content
+     *         type.
+     */
+    public static Object decode(final byte[] body, final String contentType, final String defaultCharset)
+        throws IOException
+    {
+        final ResolvedContentType resolved = resolve(contentType);
+        if (resolved.codec == null)
+        {
+            return body;
+        }
+
+        return resolved.codec.decode(body, resolved.getCharset(defaultCharset));
+    }
+
+    /**
+     * @return the encoded payload or null if no codec handles the content type.
+     */
+    public static byte[] encode(final Object payload, final String contentType, final String defaultCharset)
+        throws IOException
+    {
+        final ResolvedContentType resolved = resolve(contentType);
+        if (resolved.codec == null)
+        {
+            return null;
+        }
+
+        return resolved.codec.encode(payload, resolved.getCharset(defaultCharset));
+    }
+
+    private static ResolvedContentType resolve(final String contentType)
+    {
+        if (StringUtils.isBlank(contentType))
+        {
+            return UNKNOWN_CONTENT_TYPE;
+        }
+
+        ResolvedContentType resolved = RESOLVED_CONTENT_TYPES.get(contentType);
+        if (resolved == null)
+        {
+            resolved = parse(contentType);
+
+            // guard against unbounded growth caused by ever changing parameters
+            if (RESOLVED_CONTENT_TYPES.size() < MAX_CACHED_CONTENT_TYPES)
+            {
+                RESOLVED_CONTENT_TYPES.put(contentType, resolved);
+            }
+        }
+        return resolved;
+    }
+
+    private static ResolvedContentType parse(final String contentType)
+    {
+        final String[] parts = StringUtils.split(contentType, ';');
+        final String mimeType = parts.length == 0 ? "" : parts[0].trim().toLowerCase();
+
+        BodyCodec codec = CODECS.get(mimeType);
+        if (codec == null)
+        {
+            final int slash = mimeType.indexOf('/');
+            if (slash > 0)
+            {
+                codec = CODECS.get(mimeType.substring(0, slash) + "/*");
+            }
+        }
+
+        if (codec == null)
+        {
+            return UNKNOWN_CONTENT_TYPE;
+        }
+
+        String charset = null;
+        for (int i = 1; i < parts.length; i++)
+        {
+            final String parameter = parts[i].trim();
+            if (parameter.regionMatches(true, 0, "charset=", 0, 8))
+            {
+                charset = StringUtils.strip(parameter.substring(8).trim(), "\"");
+            }
+        }
+
+        return new ResolvedContentType(codec, StringUtils.isBlank(charset) ? null : charset);
+    }
+
+    private static class ResolvedContentType
+    {
+        private final BodyCodec codec;
+        private final String charset;
+
+        public ResolvedContentType(final BodyCodec codec, final String charset)
+        {
+            this.codec = codec;
+            this.charset = charset;
+        }
+
+        public String getCharset(final String defaultCharset)
+        {
+            return charset != null ? charset : defaultCharset;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses AMQP message bodies. A codec is identified by the
+ * value of the <code>content-encoding</code> property it sets on the messages it
+ * compresses. Implementations must be thread safe.
+ *
+ * @see CompressionCodecs
+ */
+public interface CompressionCodec
+{
+    String getContentEncoding();
+
+    byte[] compress(byte[] data) throws IOException;
+
+    byte[] decompress(byte[] data) throws IOException;
+}
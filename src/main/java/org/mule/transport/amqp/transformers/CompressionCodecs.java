@@ -0,0 +1,125 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mule.api.MuleRuntimeException;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.transport.amqp.AmqpConstants;
+import org.mule.transport.amqp.AmqpMessage;
+import org.mule.util.ClassUtils;
+import org.mule.util.StringUtils;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Registry of the {@link CompressionCodec}s known to the transport, keyed by content
+ * encoding. The JDK based <code>gzip</code> and <code>deflate</code> codecs are
+ * always available; other codecs can be registered programmatically or by
+ * configuring their class name where a codec name is expected.
+ */
+public abstract class CompressionCodecs
+{
+    private static final ConcurrentMap<String, CompressionCodec> CODECS = new ConcurrentHashMap<String, CompressionCodec>();
+
+    static
+    {
+        register(new GzipCompressionCodec());
+        register(new DeflateCompressionCodec());
+    }
+
+    public static void register(final CompressionCodec codec)
+    {
+        CODECS.put(codec.getContentEncoding().toLowerCase(), codec);
+    }
+
+    /**
+     * @return the codec registered for the content encoding, or null if there is none.
+     */
+    public static CompressionCodec get(final String contentEncoding)
+    {
+        if (StringUtils.isBlank(contentEncoding))
+        {
+            return null;
+        }
+
+        return CODECS.get(contentEncoding.trim().toLowerCase());
+    }
+
+    /**
+     * Resolves a codec by content encoding or, failing that, by class name in which
+     * case the codec is instantiated and registered.
+     */
+    public static CompressionCodec lookup(final String nameOrClassName)
+    {
+        final CompressionCodec codec = get(nameOrClassName);
+        if (codec != null)
+        {
+            return codec;
+        }
+
+        try
+        {
+            final CompressionCodec newCodec = (CompressionCodec) ClassUtils.instanciateClass(
+                nameOrClassName.trim(), ClassUtils.NO_ARGS, CompressionCodecs.class);
+            register(newCodec);
+            return newCodec;
+        }
+        catch (final Exception e)
+        {
+            throw new MuleRuntimeException(
+                MessageFactory.createStaticMessage("Unknown compression codec: " + nameOrClassName), e);
+        }
+    }
+
+    /**
+     * @return a copy of the message with a decompressed body if its content encoding
+     *         matches a registered codec, the message itself otherwise. The content
+     *         encoding of the copy is the charset the body was encoded with before its
+     *         compression, if known. Bodies of streaming messages are decompressed as
+     *         they are read if the codec supports it.
+     */
+    public static AmqpMessage decompress(final AmqpMessage amqpMessage) throws IOException
+    {
+        final BasicProperties properties = amqpMessage.getProperties();
+        final CompressionCodec codec = properties == null ? null : get(properties.getContentEncoding());
+
+        if (codec == null)
+        {
+            return amqpMessage;
+        }
+
+        final BasicProperties.Builder builder = properties.builder().contentEncoding(null);
+        final Map<String, Object> headers = properties.getHeaders();
+        // strings arrive as LongString instances
+        final Object charset = headers == null ? null : headers.get(AmqpConstants.CONTENT_CHARSET);
+        if (charset != null)
+        {
+            final Map<String, Object> decompressedHeaders = new HashMap<String, Object>(headers);
+            decompressedHeaders.remove(AmqpConstants.CONTENT_CHARSET);
+            builder.contentEncoding(charset.toString()).headers(decompressedHeaders);
+        }
+        final BasicProperties decompressedProperties = builder.build();
+        if ((amqpMessage.isStreaming()) && (codec instanceof StreamingCompressionCodec))
+        {
+            return new DecompressedAmqpMessage(amqpMessage, decompressedProperties,
+                (StreamingCompressionCodec) codec);
+        }
+
+        return new AmqpMessage(amqpMessage.getConsumerTag(), amqpMessage.getEnvelope(), decompressedProperties,
+            codec.decompress(amqpMessage.getBody()));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.mule.api.MuleRuntimeException;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.transport.amqp.AmqpMessage;
+import org.mule.util.IOUtils;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * An {@link AmqpMessage} whose compressed body is streamed from another message and
+ * decompressed as it is read, so that large reassembled messages are never held in
+ * memory unless {@link #getBody()} is called.
+ */
+class DecompressedAmqpMessage extends AmqpMessage
+{
+    private final AmqpMessage compressedMessage;
+    private final StreamingCompressionCodec codec;
+    private volatile byte[] body;
+
+    DecompressedAmqpMessage(final AmqpMessage compressedMessage,
+                            final BasicProperties properties,
+                            final StreamingCompressionCodec codec)
+    {
+        super(compressedMessage.getConsumerTag(), compressedMessage.getEnvelope(), properties, null);
+        this.compressedMessage = compressedMessage;
+        this.codec = codec;
+    }
+
+    @Override
+    public byte[] getBody()
+    {
+        if (body == null)
+        {
+            synchronized (this)
+            {
+                if (body == null)
+                {
+                    InputStream in = null;
+                    try
+                    {
+                        in = getBodyAsStream();
+                        body = IOUtils.toByteArray(in);
+                    }
+                    catch (final IOException ioe)
+                    {
+                        throw new MuleRuntimeException(
+                            MessageFactory.createStaticMessage("Failed to decompress "
+                                                               + codec.getContentEncoding()
+                                                               + " message body"), ioe);
+                    }
+                    finally
+                    {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            }
+        }
+        return body;
+    }
+
+    @Override
+    public InputStream getBodyAsStream() throws IOException
+    {
+        final byte[] readBody = body;
+        if (readBody != null)
+        {
+            return new ByteArrayInputStream(readBody);
+        }
+
+        return codec.decompress(compressedMessage.getBodyAsStream());
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return compressedMessage.isStreaming();
+    }
+}
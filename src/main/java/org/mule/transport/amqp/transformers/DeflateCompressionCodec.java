@@ -0,0 +1,76 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses bodies in the zlib format (RFC 1950), identified by the
+ * <code>deflate</code> content encoding.
+ */
+public class DeflateCompressionCodec extends AbstractDeflaterCompressionCodec
+{
+    public static final String CONTENT_ENCODING = "deflate";
+
+    public DeflateCompressionCodec()
+    {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCompressionCodec(final int level)
+    {
+        super(level, false);
+    }
+
+    public DeflateCompressionCodec(final int level, final int maxInflatedSize)
+    {
+        super(level, false, maxInflatedSize);
+    }
+
+    public String getContentEncoding()
+    {
+        return CONTENT_ENCODING;
+    }
+
+    public byte[] compress(final byte[] data)
+    {
+        return deflate(data, 0, 0);
+    }
+
+    public byte[] decompress(final byte[] data) throws IOException
+    {
+        return inflate(data, 0, data.length, -1).data;
+    }
+
+    public InputStream decompress(final InputStream in)
+    {
+        final Inflater inflater = new Inflater();
+        return limit(new InflaterInputStream(in, inflater)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    inflater.end();
+                }
+            }
+        });
+    }
+}
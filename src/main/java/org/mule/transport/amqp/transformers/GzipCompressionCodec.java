@@ -0,0 +1,165 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compresses bodies in the gzip format (RFC 1952), identified by the
+ * <code>gzip</code> content encoding. The gzip header and trailer are handled here
+ * so the per-thread raw {@link Deflater} can be reused, which
+ * {@link java.util.zip.GZIPOutputStream} does not allow.
+ */
+public class GzipCompressionCodec extends AbstractDeflaterCompressionCodec
+{
+    public static final String CONTENT_ENCODING = "gzip";
+
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int MAX_COMPRESSION_RATIO = 1032;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    public GzipCompressionCodec()
+    {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public GzipCompressionCodec(final int level)
+    {
+        super(level, true);
+    }
+
+    public GzipCompressionCodec(final int level, final int maxInflatedSize)
+    {
+        super(level, true, maxInflatedSize);
+    }
+
+    public String getContentEncoding()
+    {
+        return CONTENT_ENCODING;
+    }
+
+    public byte[] compress(final byte[] data)
+    {
+        final byte[] compressed = deflate(data, HEADER_SIZE, TRAILER_SIZE);
+
+        // magic number, deflate method, no flag, no time, unknown OS
+        compressed[0] = (byte) 0x1f;
+        compressed[1] = (byte) 0x8b;
+        compressed[2] = Deflater.DEFLATED;
+        compressed[9] = (byte) 0xff;
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final int trailerOffset = compressed.length - TRAILER_SIZE;
+        writeIntLE(compressed, trailerOffset, (int) crc.getValue());
+        writeIntLE(compressed, trailerOffset + 4, data.length);
+
+        return compressed;
+    }
+
+    public byte[] decompress(final byte[] data) throws IOException
+    {
+        if ((data.length < HEADER_SIZE + TRAILER_SIZE) || (data[0] != (byte) 0x1f)
+            || (data[1] != (byte) 0x8b) || (data[2] != Deflater.DEFLATED))
+        {
+            throw new IOException("Not in gzip format");
+        }
+
+        final int flags = data[3] & 0xff;
+        int offset = HEADER_SIZE;
+
+        if ((flags & FEXTRA) != 0)
+        {
+            offset += 2 + ((data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0)
+        {
+            offset = skipZeroTerminated(data, offset);
+        }
+        if ((flags & FCOMMENT) != 0)
+        {
+            offset = skipZeroTerminated(data, offset);
+        }
+        if ((flags & FHCRC) != 0)
+        {
+            offset += 2;
+        }
+
+        if (offset > data.length - TRAILER_SIZE)
+        {
+            throw new IOException("Truncated gzip header");
+        }
+
+        // the trailer holds the size of the uncompressed data (modulo 2^32), which
+        // is only trusted as a size hint if it is plausible
+        final int size = readIntLE(data, data.length - 4);
+        final int sizeHint = (size >= 0) && (size / MAX_COMPRESSION_RATIO <= data.length) ? size : -1;
+        final Inflated inflated = inflate(data, offset, data.length - offset, sizeHint);
+
+        if (inflated.remaining < TRAILER_SIZE)
+        {
+            throw new IOException("Truncated gzip trailer");
+        }
+
+        final int trailerOffset = data.length - inflated.remaining;
+        final CRC32 crc = new CRC32();
+        crc.update(inflated.data);
+
+        if ((readIntLE(data, trailerOffset) != (int) crc.getValue())
+            || (readIntLE(data, trailerOffset + 4) != inflated.data.length))
+        {
+            throw new IOException("Corrupt gzip data: CRC or size mismatch");
+        }
+
+        return inflated.data;
+    }
+
+    public InputStream decompress(final InputStream in) throws IOException
+    {
+        // ends its own inflater when closed
+        return limit(new GZIPInputStream(in));
+    }
+
+    private static int skipZeroTerminated(final byte[] data, final int offset) throws IOException
+    {
+        for (int i = offset; i < data.length; i++)
+        {
+            if (data[i] == 0)
+            {
+                return i + 1;
+            }
+        }
+        throw new IOException("Truncated gzip header");
+    }
+
+    private static void writeIntLE(final byte[] buffer, final int offset, final int value)
+    {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int readIntLE(final byte[] buffer, final int offset)
+    {
+        return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8)
+               | ((buffer[offset + 2] & 0xff) << 16) | ((buffer[offset + 3] & 0xff) << 24);
+    }
+}
@@ -10,17 +10,30 @@
 
 package org.mule.transport.amqp.transformers;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import org.mule.api.MuleMessage;
+import org.mule.api.endpoint.ImmutableEndpoint;
 import org.mule.api.transformer.TransformerException;
 import org.mule.api.transport.PropertyScope;
 import org.mule.config.i18n.MessageFactory;
 import org.mule.transformer.types.DataTypeFactory;
 import org.mule.transport.amqp.AmqpConstants;
+import org.mule.transport.amqp.AmqpEndpointConfig;
 import org.mule.transport.amqp.AmqpMessage;
+import org.mule.util.IOUtils;
+import org.mule.util.ObjectUtils;
+import org.mule.util.StringUtils;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AMQP.BasicProperties;
@@ -28,12 +41,34 @@ import com.rabbitmq.client.Envelope;
 
 public class ObjectToAmqpMessage extends AbstractAmqpMessageToObject
 {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private CompressionCodec compressionCodec;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private volatile EndpointHeaderMapping endpointHeaderMapping;
+
+    private static class EndpointHeaderMapping
+    {
+        private final ImmutableEndpoint endpoint;
+        private final OutboundHeaderMapping headerMapping;
+
+        public EndpointHeaderMapping(final ImmutableEndpoint endpoint, final OutboundHeaderMapping headerMapping)
+        {
+            this.endpoint = endpoint;
+            this.headerMapping = headerMapping;
+        }
+    }
+
     @Override
     protected void declareInputOutputClasses()
     {
         registerSourceType(DataTypeFactory.BYTE_ARRAY);
         registerSourceType(DataTypeFactory.STRING);
         registerSourceType(DataTypeFactory.INPUT_STREAM);
+        registerSourceType(DataTypeFactory.create(ByteBuffer.class));
+        registerSourceType(DataTypeFactory.create(File.class));
+        registerSourceType(DataTypeFactory.create(Serializable.class));
         setReturnDataType(AMQP_MESSAGE_DATA_TYPE);
     }
 
@@ -41,68 +76,274 @@ public class ObjectToAmqpMessage extends AbstractAmqpMessageToObject
     public Object transformMessage(final MuleMessage message, final String outputEncoding)
         throws TransformerException
     {
-        byte[] body;
+        byte[] body = getBody(message, outputEncoding);
+        final Map<String, Object> properties = getAmqpProperties(message);
+        String contentEncoding = (String) properties.get(AmqpConstants.CONTENT_ENCODING);
+        boolean compressed = false;
+
+        // explicitly encoded payloads are left untouched
+        if ((compressionCodec != null) && (contentEncoding == null) && (body.length >= compressionThreshold))
+        {
+            try
+            {
+                body = compressionCodec.compress(body);
+            }
+            catch (final IOException ioe)
+            {
+                throw new TransformerException(
+                    MessageFactory.createStaticMessage("Impossible to compress the body of: " + message), ioe);
+            }
+            contentEncoding = compressionCodec.getContentEncoding();
+            compressed = true;
+        }
+
+        final String consumerTag = (String) properties.get(AmqpConstants.CONSUMER_TAG);
+
+        final long deliveryTag = ObjectUtils.getLong(properties.get(AmqpConstants.DELIVERY_TAG), 0L);
+        final boolean redelivered = ObjectUtils.getBoolean(properties.get(AmqpConstants.REDELIVER), false);
+        final String exchange = (String) properties.get(AmqpConstants.EXCHANGE);
+        final String routingKey = (String) properties.get(AmqpConstants.ROUTING_KEY);
+        final Envelope envelope = new Envelope(deliveryTag, redelivered, exchange, routingKey);
+
+        final Date timestamp = (Date) properties.get(AmqpConstants.TIMESTAMP);
+
+        final AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
+        bob.appId((String) properties.get(AmqpConstants.APP_ID))
+            .contentEncoding(contentEncoding != null ? contentEncoding : outputEncoding)
+            .contentType((String) properties.get(AmqpConstants.CONTENT_TYPE))
+            .correlationId(
+                ObjectUtils.getString(properties.get(AmqpConstants.CORRELATION_ID), message.getCorrelationId()))
+            .deliveryMode((Integer) properties.get(AmqpConstants.DELIVERY_MODE))
+            .expiration((String) properties.get(AmqpConstants.EXPIRATION))
+            .messageId(ObjectUtils.getString(properties.get(AmqpConstants.MESSAGE_ID), message.getUniqueId()))
+            .priority((Integer) properties.get(AmqpConstants.PRIORITY))
+            .replyTo(ObjectUtils.getString(properties.get(AmqpConstants.REPLY_TO), (String) message.getReplyTo()))
+            .timestamp(timestamp != null ? timestamp : new Date())
+            .type((String) properties.get(AmqpConstants.TYPE))
+            .userId((String) properties.get(AmqpConstants.USER_ID));
+
+        Map<String, Object> headers = getHeaderMapping().apply(message);
+        if ((compressed) && (outputEncoding != null))
+        {
+            // the content-encoding names the codec, so the charset travels in a header
+            if (headers == null)
+            {
+                headers = new HashMap<String, Object>();
+            }
+            headers.put(AmqpConstants.CONTENT_CHARSET, outputEncoding);
+        }
+        bob.headers(headers);
+
+        final BasicProperties amqpProperties = bob.build();
+        return new AmqpMessage(consumerTag, envelope, amqpProperties, body);
+    }
+
+    /**
+     * @param compressionCodec the content encoding of a registered
+     *            {@link CompressionCodec} (like <code>gzip</code> or
+     *            <code>deflate</code>) or the class name of a custom one.
+     */
+    public void setCompressionCodec(final String compressionCodec)
+    {
+        this.compressionCodec = StringUtils.isBlank(compressionCodec)
+                                                                     ? null
+                                                                     : CompressionCodecs.lookup(compressionCodec);
+    }
+
+    public CompressionCodec getCompressionCodec()
+    {
+        return compressionCodec;
+    }
+
+    /**
+     * @param compressionThreshold the minimum body size, in bytes, for compression to
+     *            be applied.
+     */
+    public void setCompressionThreshold(final int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    /**
+     * Extracts the AMQP body out of the message payload, reading streams, buffers and
+     * files straight into a single array sized after the content length whenever it
+     * is known, and encoding strings only once. Other payloads are encoded by the
+     * {@link BodyCodec} registered for the outbound <code>content-type</code>, if
+     * any, or left to Mule's auto-transformation. Streams can only be read once, so the
+     * bytes read out of stream payloads replace them in the message.
+     */
+    protected byte[] getBody(final MuleMessage message, final String outputEncoding)
+        throws TransformerException
+    {
+        final Object payload = message.getPayload();
+        final String charset = outputEncoding != null ? outputEncoding : message.getEncoding();
+
         try
         {
-            body = message.getPayloadAsBytes();
+            if (payload instanceof byte[])
+            {
+                return (byte[]) payload;
+            }
+            if (payload instanceof String)
+            {
+                return ((String) payload).getBytes(charset);
+            }
+            if (payload instanceof InputStream)
+            {
+                final byte[] body = readFully((InputStream) payload);
+                message.setPayload(body);
+                return body;
+            }
+            if (payload instanceof ByteBuffer)
+            {
+                return toByteArray((ByteBuffer) payload);
+            }
+            if (payload instanceof File)
+            {
+                return readFully(new FileInputStream((File) payload));
+            }
+
+            final byte[] encoded = BodyCodecs.encode(payload,
+                message.<String> getProperty(AmqpConstants.CONTENT_TYPE, PropertyScope.OUTBOUND), charset);
+            if (encoded != null)
+            {
+                return encoded;
+            }
+
+            return message.getPayloadAsBytes();
         }
         catch (final Exception e)
         {
             throw new TransformerException(
                 MessageFactory.createStaticMessage("Impossible to extract bytes out of: " + message), e);
         }
+    }
 
-        final String consumerTag = getProperty(message, AmqpConstants.CONSUMER_TAG);
+    private static byte[] toByteArray(final ByteBuffer byteBuffer)
+    {
+        if ((byteBuffer.hasArray()) && (byteBuffer.arrayOffset() == 0) && (byteBuffer.position() == 0)
+            && (byteBuffer.remaining() == byteBuffer.array().length))
+        {
+            return byteBuffer.array();
+        }
 
-        final long deliveryTag = getProperty(message, AmqpConstants.DELIVERY_TAG, 0L);
-        final boolean redelivered = getProperty(message, AmqpConstants.REDELIVER, false);
-        final String exchange = getProperty(message, AmqpConstants.EXCHANGE);
-        final String routingKey = getProperty(message, AmqpConstants.ROUTING_KEY);
-        final Envelope envelope = new Envelope(deliveryTag, redelivered, exchange, routingKey);
+        final byte[] bytes = new byte[byteBuffer.remaining()];
+        // work on a duplicate so the position of the payload buffer is left untouched
+        byteBuffer.duplicate().get(bytes);
+        return bytes;
+    }
 
-        final AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
-        bob.appId(this.<String> getProperty(message, AmqpConstants.APP_ID))
-            .contentEncoding(
-                this.<String> getProperty(message, AmqpConstants.CONTENT_ENCODING, outputEncoding))
-            .contentType(this.<String> getProperty(message, AmqpConstants.CONTENT_TYPE))
-            .correlationId(
-                this.<String> getProperty(message, AmqpConstants.CORRELATION_ID, message.getCorrelationId()))
-            .deliveryMode(this.<Integer> getProperty(message, AmqpConstants.DELIVERY_MODE))
-            .expiration(this.<String> getProperty(message, AmqpConstants.EXPIRATION))
-            .messageId(this.<String> getProperty(message, AmqpConstants.MESSAGE_ID, message.getUniqueId()))
-            .priority(this.<Integer> getProperty(message, AmqpConstants.PRIORITY))
-            .replyTo(
-                this.<String> getProperty(message, AmqpConstants.REPLY_TO, (String) message.getReplyTo()))
-            .timestamp(this.<Date> getProperty(message, AmqpConstants.TIMESTAMP, new Date()))
-            .type(this.<String> getProperty(message, AmqpConstants.TYPE))
-            .userId(this.<String> getProperty(message, AmqpConstants.USER_ID));
-
-        bob.headers(getHeaders(message));
+    private static byte[] readFully(final InputStream inputStream) throws IOException
+    {
+        try
+        {
+            final int sizeHint = getSizeHint(inputStream);
+            byte[] buffer = new byte[Math.max(sizeHint, 1)];
+            int length = 0;
 
-        final BasicProperties amqpProperties = bob.build();
-        return new AmqpMessage(consumerTag, envelope, amqpProperties, body);
+            while (true)
+            {
+                if (length == buffer.length)
+                {
+                    // the buffer is full: if the stream is exhausted the buffer is
+                    // exactly sized and can be used as is
+                    final int next = inputStream.read();
+                    if (next == -1)
+                    {
+                        return buffer;
+                    }
+
+                    final byte[] largerBuffer = new byte[Math.max(buffer.length * 2, DEFAULT_BUFFER_SIZE)];
+                    System.arraycopy(buffer, 0, largerBuffer, 0, length);
+                    buffer = largerBuffer;
+                    buffer[length++] = (byte) next;
+                }
+
+                final int read = inputStream.read(buffer, length, buffer.length - length);
+                if (read == -1)
+                {
+                    break;
+                }
+                length += read;
+            }
+
+            if (length == buffer.length)
+            {
+                return buffer;
+            }
+
+            final byte[] body = new byte[length];
+            System.arraycopy(buffer, 0, body, 0, length);
+            return body;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(inputStream);
+        }
     }
 
-    private Map<String, Object> getHeaders(final MuleMessage message)
+    private static int getSizeHint(final InputStream inputStream) throws IOException
     {
-        final Map<String, Object> headers = new HashMap<String, Object>();
-        for (final String propertyName : message.getPropertyNames(PropertyScope.OUTBOUND))
+        if (inputStream instanceof FileInputStream)
         {
-            if (!AmqpConstants.AMQP_ALL_PROPERTY_NAMES.contains(propertyName))
+            final FileChannel fileChannel = ((FileInputStream) inputStream).getChannel();
+            final long remaining = fileChannel.size() - fileChannel.position();
+            if (remaining <= Integer.MAX_VALUE)
             {
-                headers.put(propertyName, message.getProperty(propertyName, PropertyScope.OUTBOUND));
+                return (int) remaining;
             }
         }
-        return headers;
+
+        // exact for in-memory streams, a lower bound for the others
+        final int available = inputStream.available();
+        return available > 0 ? available : DEFAULT_BUFFER_SIZE;
     }
 
-    private <T> T getProperty(final MuleMessage message, final String key)
+    /**
+     * @return the header mapping of the endpoint this transformer is used on, compiled
+     *         on first use, or the default one if it is used outside of an endpoint.
+     */
+    protected OutboundHeaderMapping getHeaderMapping()
     {
-        return this.<T> getProperty(message, key, null);
+        final ImmutableEndpoint endpoint = getEndpoint();
+        if (endpoint == null)
+        {
+            return OutboundHeaderMapping.COPY_ALL;
+        }
+
+        // identity check to avoid computing the endpoint hash code on every message
+        EndpointHeaderMapping endpointHeaderMapping = this.endpointHeaderMapping;
+        if ((endpointHeaderMapping == null) || (endpointHeaderMapping.endpoint != endpoint))
+        {
+            endpointHeaderMapping = new EndpointHeaderMapping(endpoint, AmqpEndpointConfig.forEndpoint(
+                endpoint).getHeaderMapping());
+            this.endpointHeaderMapping = endpointHeaderMapping;
+        }
+        return endpointHeaderMapping.headerMapping;
     }
 
-    private <T> T getProperty(final MuleMessage message, final String key, final T defaultValue)
+    /**
+     * @return the outbound properties of the message that map to AMQP properties,
+     *         resolved in a single pass over the outbound scope rather than with a
+     *         lookup for each AMQP property, which are mostly absent.
+     */
+    private static Map<String, Object> getAmqpProperties(final MuleMessage message)
     {
-        return message.getProperty(key, PropertyScope.OUTBOUND, defaultValue);
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        for (final String propertyName : message.getPropertyNames(PropertyScope.OUTBOUND))
+        {
+            // outbound property names are case insensitive
+            final String amqpPropertyName = propertyName.toLowerCase(Locale.ENGLISH);
+            if (AmqpConstants.AMQP_ALL_PROPERTY_NAMES.contains(amqpPropertyName))
+            {
+                properties.put(amqpPropertyName, message.getProperty(propertyName, PropertyScope.OUTBOUND));
+            }
+        }
+        return properties;
     }
 }
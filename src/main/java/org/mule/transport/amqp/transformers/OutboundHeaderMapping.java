@@ -0,0 +1,328 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.mule.api.MuleMessage;
+import org.mule.api.MuleRuntimeException;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.api.transformer.TransformerException;
+import org.mule.api.transport.PropertyScope;
+import org.mule.config.i18n.MessageFactory;
+import org.mule.transport.amqp.AmqpConstants;
+import org.mule.transport.amqp.AmqpEndpointUtil;
+import org.mule.util.StringUtils;
+
+/**
+ * Immutable plan that maps the outbound properties of Mule messages to AMQP headers.
+ * It is compiled once from the header related properties of an endpoint, as part of
+ * its {@link org.mule.transport.amqp.AmqpEndpointConfig}, so
+ * inclusions, exclusions, renames and type coercions are resolved ahead of time and
+ * applied in a single pass over the message properties.
+ */
+public class OutboundHeaderMapping
+{
+    /**
+     * Copies all the outbound properties that are not AMQP properties, as is.
+     */
+    public static final OutboundHeaderMapping COPY_ALL = new OutboundHeaderMapping(true, null,
+        Collections.<String> emptySet(), Collections.<String, HeaderRule> emptyMap());
+
+    public enum HeaderType
+    {
+        STRING, BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, DECIMAL, TIMESTAMP;
+
+        public Object coerce(final Object value)
+        {
+            switch (this)
+            {
+                case STRING :
+                    return value.toString();
+                case BOOLEAN :
+                    return value instanceof Boolean ? value : Boolean.valueOf(value.toString().trim());
+                case BYTE :
+                    return value instanceof Number
+                                                  ? Byte.valueOf(((Number) value).byteValue())
+                                                  : Byte.valueOf(value.toString().trim());
+                case SHORT :
+                    return value instanceof Number
+                                                  ? Short.valueOf(((Number) value).shortValue())
+                                                  : Short.valueOf(value.toString().trim());
+                case INT :
+                    return value instanceof Number
+                                                  ? Integer.valueOf(((Number) value).intValue())
+                                                  : Integer.valueOf(value.toString().trim());
+                case LONG :
+                    return value instanceof Number
+                                                  ? Long.valueOf(((Number) value).longValue())
+                                                  : Long.valueOf(value.toString().trim());
+                case FLOAT :
+                    return value instanceof Number
+                                                  ? Float.valueOf(((Number) value).floatValue())
+                                                  : Float.valueOf(value.toString().trim());
+                case DOUBLE :
+                    return value instanceof Number
+                                                  ? Double.valueOf(((Number) value).doubleValue())
+                                                  : Double.valueOf(value.toString().trim());
+                case DECIMAL :
+                    return value instanceof BigDecimal ? value : new BigDecimal(value.toString().trim());
+                case TIMESTAMP :
+                    if (value instanceof Date)
+                    {
+                        return value;
+                    }
+                    return new Date(value instanceof Number
+                                                           ? ((Number) value).longValue()
+                                                           : Long.parseLong(value.toString().trim()));
+                default :
+                    throw new IllegalStateException("Unsupported header type: " + this);
+            }
+        }
+    }
+
+    private static class HeaderRule
+    {
+        private final String propertyName;
+        private final String headerName;
+        private final HeaderType type;
+
+        public HeaderRule(final String propertyName, final String headerName, final HeaderType type)
+        {
+            this.propertyName = propertyName;
+            this.headerName = headerName;
+            this.type = type;
+        }
+    }
+
+    private final boolean copyHeaders;
+    private final HeaderRule[] includedRules;
+    private final Set<String> excludedNames;
+    private final Map<String, HeaderRule> rules;
+
+    private OutboundHeaderMapping(final boolean copyHeaders,
+                                  final HeaderRule[] includedRules,
+                                  final Set<String> excludedNames,
+                                  final Map<String, HeaderRule> rules)
+    {
+        this.copyHeaders = copyHeaders;
+        this.includedRules = includedRules;
+        this.excludedNames = excludedNames;
+        this.rules = rules;
+    }
+
+    /**
+     * Compiles the mapping defined by the header related properties of an endpoint.
+     *
+     * @throws MuleRuntimeException if any of these properties is invalid.
+     */
+    public static OutboundHeaderMapping compile(final ImmutableEndpoint endpoint)
+    {
+        return compile(endpoint, (String) endpoint.getProperty(AmqpEndpointUtil.COPY_HEADERS),
+            (String) endpoint.getProperty(AmqpEndpointUtil.INCLUDED_HEADERS),
+            (String) endpoint.getProperty(AmqpEndpointUtil.EXCLUDED_HEADERS),
+            (String) endpoint.getProperty(AmqpEndpointUtil.HEADER_RENAMES),
+            (String) endpoint.getProperty(AmqpEndpointUtil.HEADER_TYPES));
+    }
+
+    /**
+     * @param endpoint the endpoint the properties come from, only used for error
+     *            reporting.
+     * @param copyHeaders "false" to suppress header copying entirely.
+     * @param includedHeaders comma separated names of the only properties to copy.
+     * @param excludedHeaders comma separated names of properties not to copy.
+     * @param headerRenames comma separated <code>property=header</code> pairs.
+     * @param headerTypes comma separated <code>property=type</code> pairs, where type
+     *            is one of {@link HeaderType} (case insensitive).
+     */
+    public static OutboundHeaderMapping compile(final ImmutableEndpoint endpoint,
+                                                final String copyHeaders,
+                                                final String includedHeaders,
+                                                final String excludedHeaders,
+                                                final String headerRenames,
+                                                final String headerTypes)
+    {
+        if ((StringUtils.isBlank(copyHeaders)) && (StringUtils.isBlank(includedHeaders))
+            && (StringUtils.isBlank(excludedHeaders)) && (StringUtils.isBlank(headerRenames))
+            && (StringUtils.isBlank(headerTypes)))
+        {
+            return COPY_ALL;
+        }
+
+        final Map<String, String> renames = parsePairs(endpoint, AmqpEndpointUtil.HEADER_RENAMES,
+            headerRenames);
+        final Map<String, HeaderType> types = new HashMap<String, HeaderType>();
+        for (final Map.Entry<String, String> type : parsePairs(endpoint, AmqpEndpointUtil.HEADER_TYPES,
+            headerTypes).entrySet())
+        {
+            try
+            {
+                types.put(type.getKey(), HeaderType.valueOf(type.getValue().toUpperCase()));
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new MuleRuntimeException(MessageFactory.createStaticMessage("Invalid header type: "
+                                                                                  + type.getValue()
+                                                                                  + " in endpoint: "
+                                                                                  + endpoint), iae);
+            }
+        }
+
+        final Map<String, HeaderRule> rules = new HashMap<String, HeaderRule>();
+        final Set<String> ruleNames = new HashSet<String>(renames.keySet());
+        ruleNames.addAll(types.keySet());
+        for (final String propertyName : ruleNames)
+        {
+            final String headerName = renames.containsKey(propertyName)
+                                                                       ? renames.get(propertyName)
+                                                                       : propertyName;
+            rules.put(propertyName, new HeaderRule(propertyName, headerName, types.get(propertyName)));
+        }
+
+        final Set<String> excludedNames = new HashSet<String>(split(excludedHeaders));
+
+        HeaderRule[] includedRules = null;
+        if (StringUtils.isNotBlank(includedHeaders))
+        {
+            final List<HeaderRule> included = new ArrayList<HeaderRule>();
+            for (final String propertyName : split(includedHeaders))
+            {
+                if ((!AmqpConstants.AMQP_ALL_PROPERTY_NAMES.contains(propertyName))
+                    && (!excludedNames.contains(propertyName)))
+                {
+                    final HeaderRule rule = rules.get(propertyName);
+                    included.add(rule != null ? rule : new HeaderRule(propertyName, propertyName, null));
+                }
+            }
+            includedRules = included.toArray(new HeaderRule[included.size()]);
+        }
+
+        final boolean copy = StringUtils.isBlank(copyHeaders) || BooleanUtils.toBoolean(copyHeaders.trim());
+        return new OutboundHeaderMapping(copy, includedRules, excludedNames, rules);
+    }
+
+    public boolean isCopyHeaders()
+    {
+        return copyHeaders;
+    }
+
+    /**
+     * @return the AMQP headers for the outbound properties of the message, or null if
+     *         header copying is suppressed.
+     */
+    public Map<String, Object> apply(final MuleMessage message) throws TransformerException
+    {
+        if (!copyHeaders)
+        {
+            return null;
+        }
+
+        try
+        {
+            if (includedRules != null)
+            {
+                final Map<String, Object> headers = new HashMap<String, Object>(
+                    includedRules.length * 4 / 3 + 1);
+                for (final HeaderRule rule : includedRules)
+                {
+                    put(headers, rule, message.getProperty(rule.propertyName, PropertyScope.OUTBOUND));
+                }
+                return headers;
+            }
+
+            final Set<String> propertyNames = message.getPropertyNames(PropertyScope.OUTBOUND);
+            final Map<String, Object> headers = new HashMap<String, Object>(
+                propertyNames.size() * 4 / 3 + 1);
+            for (final String propertyName : propertyNames)
+            {
+                if ((AmqpConstants.AMQP_ALL_PROPERTY_NAMES.contains(propertyName))
+                    || (excludedNames.contains(propertyName)))
+                {
+                    continue;
+                }
+
+                final Object value = message.getProperty(propertyName, PropertyScope.OUTBOUND);
+                final HeaderRule rule = rules.get(propertyName);
+                if (rule == null)
+                {
+                    headers.put(propertyName, value);
+                }
+                else
+                {
+                    put(headers, rule, value);
+                }
+            }
+            return headers;
+        }
+        catch (final IllegalArgumentException iae)
+        {
+            throw new TransformerException(MessageFactory.createStaticMessage("Impossible to map headers of: "
+                                                                              + message), iae);
+        }
+    }
+
+    private static void put(final Map<String, Object> headers, final HeaderRule rule, final Object value)
+    {
+        if (value == null)
+        {
+            return;
+        }
+
+        headers.put(rule.headerName, rule.type == null ? value : rule.type.coerce(value));
+    }
+
+    private static List<String> split(final String names)
+    {
+        final List<String> result = new ArrayList<String>();
+        if (StringUtils.isBlank(names))
+        {
+            return result;
+        }
+
+        for (final String name : StringUtils.split(names, ','))
+        {
+            if (StringUtils.isNotBlank(name))
+            {
+                result.add(name.trim());
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, String> parsePairs(final ImmutableEndpoint endpoint,
+                                                  final String propertyName,
+                                                  final String pairs)
+    {
+        final Map<String, String> result = new HashMap<String, String>();
+        for (final String pair : split(pairs))
+        {
+            final int equals = pair.indexOf('=');
+            if ((equals <= 0) || (equals == pair.length() - 1))
+            {
+                throw new MuleRuntimeException(MessageFactory.createStaticMessage("Invalid " + propertyName
+                                                                                  + " entry: " + pair
+                                                                                  + " in endpoint: "
+                                                                                  + endpoint));
+            }
+            result.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Handles Java serialized objects, resolving classes with the thread context class
+ * loader so objects of application classes can be decoded.
+ * <p>
+ * Deserializing data from untrusted publishers can run arbitrary code through the
+ * classes available to the application, so this codec is not registered by default
+ * and only decodes the classes it allows: exact class names, or package prefixes
+ * ending with <code>.*</code>. All the classes of the serialized graph must be
+ * allowed, including the super classes of serializable classes, such as
+ * <code>java.lang.Number</code> for boxed numbers.
+ */
+public class SerializedObjectBodyCodec implements BodyCodec
+{
+    public static final String CONTENT_TYPE = "application/x-java-serialized-object";
+
+    private final String[] allowedClasses;
+
+    /**
+     * @param allowedClasses the names or package prefixes of the classes that can be
+     *            deserialized.
+     */
+    public SerializedObjectBodyCodec(final String... allowedClasses)
+    {
+        if (allowedClasses.length == 0)
+        {
+            throw new IllegalArgumentException("No class allowed to be deserialized");
+        }
+        this.allowedClasses = allowedClasses.clone();
+    }
+
+    public String getContentType()
+    {
+        return CONTENT_TYPE;
+    }
+
+    public Object decode(final byte[] body, final String charset) throws IOException
+    {
+        final ObjectInputStream ois = new AllowedClassesObjectInputStream(new ByteArrayInputStream(body));
+        try
+        {
+            return ois.readObject();
+        }
+        catch (final ClassNotFoundException cnfe)
+        {
+            final IOException ioe = new IOException("Impossible to deserialize body");
+            ioe.initCause(cnfe);
+            throw ioe;
+        }
+        finally
+        {
+            ois.close();
+        }
+    }
+
+    public byte[] encode(final Object payload, final String charset) throws IOException
+    {
+        if (!(payload instanceof Serializable))
+        {
+            throw new NotSerializableException(payload == null ? "null" : payload.getClass().getName());
+        }
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+        final ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(payload);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    protected boolean isAllowed(final String className)
+    {
+        // arrays are allowed if their element class is
+        String elementClassName = className;
+        while (elementClassName.startsWith("["))
+        {
+            elementClassName = elementClassName.substring(1);
+        }
+        if (elementClassName.length() == 1)
+        {
+            // primitive type
+            return true;
+        }
+        if (elementClassName.startsWith("L") && elementClassName.endsWith(";"))
+        {
+            elementClassName = elementClassName.substring(1, elementClassName.length() - 1);
+        }
+        if ("java.lang.String".equals(elementClassName))
+        {
+            // strings are serialized without resolving their class, but not arrays of them
+            return true;
+        }
+
+        for (final String allowedClass : allowedClasses)
+        {
+            if (allowedClass.endsWith(".*"))
+            {
+                // the package prefix, dot included
+                if (elementClassName.startsWith(allowedClass.substring(0, allowedClass.length() - 1)))
+                {
+                    return true;
+                }
+            }
+            else if (elementClassName.equals(allowedClass))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SerializedObjectBodyCodec[allowedClasses=" + Arrays.asList(allowedClasses) + "]";
+    }
+
+    private class AllowedClassesObjectInputStream extends ObjectInputStream
+    {
+        public AllowedClassesObjectInputStream(final InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException
+        {
+            if (!isAllowed(desc.getName()))
+            {
+                throw new InvalidClassException(desc.getName(), "Class not allowed to be deserialized");
+            }
+
+            final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader != null)
+            {
+                try
+                {
+                    return Class.forName(desc.getName(), false, classLoader);
+                }
+                catch (final ClassNotFoundException cnfe)
+                {
+                    // fall back to the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link CompressionCodec} that can also decompress streams, so that the bodies of
+ * reassembled messages too large to be kept in memory are decompressed as they are
+ * read.
+ */
+public interface StreamingCompressionCodec extends CompressionCodec
+{
+    /**
+     * @return a stream of the decompressed data, which closes <code>in</code> when it
+     *         is closed.
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,65 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes textual bodies to strings and encodes character sequences straight to
+ * bytes.
+ */
+public class TextBodyCodec implements BodyCodec
+{
+    public String getContentType()
+    {
+        return "text/*";
+    }
+
+    public Object decode(final byte[] body, final String charset) throws IOException
+    {
+        return new String(body, charset);
+    }
+
+    public byte[] encode(final Object payload, final String charset) throws IOException
+    {
+        if (payload instanceof String)
+        {
+            return ((String) payload).getBytes(charset);
+        }
+
+        final CharBuffer chars;
+        if (payload instanceof CharSequence)
+        {
+            chars = CharBuffer.wrap((CharSequence) payload);
+        }
+        else if (payload instanceof char[])
+        {
+            chars = CharBuffer.wrap((char[]) payload);
+        }
+        else
+        {
+            return String.valueOf(payload).getBytes(charset);
+        }
+
+        final ByteBuffer bytes = Charset.forName(charset).encode(chars);
+        if ((bytes.arrayOffset() == 0) && (bytes.remaining() == bytes.array().length))
+        {
+            return bytes.array();
+        }
+
+        final byte[] body = new byte[bytes.remaining()];
+        bytes.get(body);
+        return body;
+    }
+}
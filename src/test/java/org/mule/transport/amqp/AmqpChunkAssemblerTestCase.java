@@ -0,0 +1,221 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+import org.mule.util.IOUtils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+
+public class AmqpChunkAssemblerTestCase
+{
+    private static final byte[] BODY = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+    private static final int CHUNK_SIZE = 10;
+
+    private static AmqpMessage newChunk(final int index)
+    {
+        return newChunk(index, 4, BODY.length);
+    }
+
+    private static AmqpMessage newChunk(final int index, final int chunkCount, final long totalSize)
+    {
+        final int offset = index * CHUNK_SIZE;
+        final byte[] chunk = new byte[Math.min(CHUNK_SIZE, BODY.length - offset)];
+        System.arraycopy(BODY, offset, chunk, 0, chunk.length);
+
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("customKey", "customValue");
+        headers.put(AmqpConstants.CHUNK_ID, "chunkId");
+        headers.put(AmqpConstants.CHUNK_INDEX, index);
+        headers.put(AmqpConstants.CHUNK_COUNT, chunkCount);
+        headers.put(AmqpConstants.CHUNK_OFFSET, (long) offset);
+        headers.put(AmqpConstants.CHUNK_TOTAL_SIZE, totalSize);
+
+        return new AmqpMessage("consumerTag", new Envelope(index, false, "exchange", "routingKey"),
+            new AMQP.BasicProperties.Builder().headers(headers).build(), chunk);
+    }
+
+    private static void checkReassembled(final AmqpMessage amqpMessage) throws Exception
+    {
+        assertNotNull(amqpMessage);
+        assertFalse(AmqpChunkAssembler.isChunk(amqpMessage));
+        assertTrue(amqpMessage.getProperties().getHeaders().containsKey("customKey"));
+        assertArrayEquals(BODY, IOUtils.toByteArray(amqpMessage.getBodyAsStream()));
+        assertArrayEquals(BODY, amqpMessage.getBody());
+    }
+
+    @Test
+    public void testInMemoryReassembly() throws Exception
+    {
+        final AmqpChunkAssembler assembler = new AmqpChunkAssembler(1024);
+
+        assertTrue(AmqpChunkAssembler.isChunk(newChunk(0)));
+        assertNull(assembler.accept(newChunk(0)));
+        assertNull(assembler.accept(newChunk(1)));
+        assertNull(assembler.accept(newChunk(2)));
+        checkReassembled(assembler.accept(newChunk(3)));
+    }
+
+    @Test
+    public void testSpooledOutOfOrderReassembly() throws Exception
+    {
+        final AmqpChunkAssembler assembler = new AmqpChunkAssembler(CHUNK_SIZE);
+
+        assertNull(assembler.accept(newChunk(3)));
+        assertNull(assembler.accept(newChunk(1)));
+        // redelivered chunk
+        assertNull(assembler.accept(newChunk(1)));
+        assertNull(assembler.accept(newChunk(0)));
+
+        final AmqpMessage amqpMessage = assembler.accept(newChunk(2));
+        assertTrue(amqpMessage instanceof SpooledAmqpMessage);
+        checkReassembled(amqpMessage);
+        assertFalse(((SpooledAmqpMessage) amqpMessage).getSpoolFile().exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void testChunkIndexOutOfCount() throws Exception
+    {
+        new AmqpChunkAssembler(1024).accept(newChunk(3, 3, BODY.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void testImplausibleChunkCount() throws Exception
+    {
+        new AmqpChunkAssembler(1024).accept(newChunk(0, Integer.MAX_VALUE, BODY.length));
+    }
+
+    @Test
+    public void testInconsistentChunkIsRejected() throws Exception
+    {
+        final AmqpChunkAssembler assembler = new AmqpChunkAssembler(1024);
+        assertNull(assembler.accept(newChunk(0)));
+
+        try
+        {
+            assembler.accept(newChunk(1, 4, Long.MAX_VALUE));
+        }
+        catch (final IOException ioe)
+        {
+            // the assembly has been discarded
+            assertEquals(0, assembler.getPendingChunkCount());
+            return;
+        }
+        fail("Inconsistent chunk accepted");
+    }
+
+    @Test
+    public void testChunkDeliveriesAreAckedWithLastChunk() throws Exception
+    {
+        final InMemoryBroker broker = new InMemoryBroker();
+        try
+        {
+            final Channel channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+            channel.queueDeclare("chunks", false, false, false, null);
+            for (int i = 0; i < 4; i++)
+            {
+                final AmqpMessage chunk = newChunk(i);
+                channel.basicPublish("", "chunks", chunk.getProperties(), chunk.getBody());
+            }
+
+            final AmqpChunkAssembler assembler = new AmqpChunkAssembler(1024);
+            AmqpMessage amqpMessage = null;
+            for (int i = 0; i < 4; i++)
+            {
+                final GetResponse response = channel.basicGet("chunks", false);
+                amqpMessage = assembler.accept(new AmqpMessage(null, response.getEnvelope(),
+                    response.getProps(), response.getBody()), channel);
+            }
+
+            checkReassembled(amqpMessage);
+            assertEquals(0, broker.getAckedCount());
+            assertEquals(3, amqpMessage.getChunkDeliveries().size());
+
+            final long deliveryTag = amqpMessage.getEnvelope().getDeliveryTag();
+            channel.basicAck(deliveryTag, true);
+            // already covered by the multiple ack
+            amqpMessage.getChunkDeliveries().ack(channel, deliveryTag, true);
+            assertEquals(4, broker.getAckedCount());
+        }
+        finally
+        {
+            broker.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleAssemblyExpires() throws Exception
+    {
+        final InMemoryBroker broker = new InMemoryBroker();
+        try
+        {
+            final Channel channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+            channel.queueDeclare("chunks", false, false, false, null);
+            for (int i = 0; i < 2; i++)
+            {
+                final AmqpMessage chunk = newChunk(i);
+                channel.basicPublish("", "chunks", chunk.getProperties(), chunk.getBody());
+            }
+
+            final AmqpChunkAssembler assembler = new AmqpChunkAssembler(1024, 20L);
+            receiveChunks(assembler, channel, 2);
+            assertEquals(0, broker.getMessageCount("chunks"));
+            assertEquals(0, assembler.expireAssemblies());
+
+            Thread.sleep(50L);
+            // requeued the first time
+            assertEquals(1, assembler.expireAssemblies());
+            assertEquals(0, assembler.getPendingChunkCount());
+            assertEquals(2, broker.getMessageCount("chunks"));
+            assertEquals(2, broker.getRejectedCount());
+
+            receiveChunks(assembler, channel, 2);
+            Thread.sleep(50L);
+            // then rejected once redelivered
+            assertEquals(1, assembler.expireAssemblies());
+            assertEquals(0, broker.getMessageCount("chunks"));
+            assertEquals(4, broker.getRejectedCount());
+        }
+        finally
+        {
+            broker.shutdown();
+        }
+    }
+
+    private static void receiveChunks(final AmqpChunkAssembler assembler, final Channel channel, final int count)
+        throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            final GetResponse response = channel.basicGet("chunks", false);
+            assertNotNull(response);
+            assertNull(assembler.accept(new AmqpMessage(null, response.getEnvelope(), response.getProps(),
+                response.getBody()), channel));
+        }
+    }
+}
@@ -10,12 +10,19 @@
 
 package org.mule.transport.amqp;
 
+import java.util.List;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
 import org.mule.api.transport.Connector;
 import org.mule.transport.AbstractConnectorTestCase;
 import org.mule.transport.amqp.AmqpConstants.AckMode;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
 
 public class AmqpConnectorTestCase extends AbstractConnectorTestCase
 {
@@ -47,6 +54,35 @@ public class AmqpConnectorTestCase extends AbstractConnectorTestCase
         Assert.assertEquals(AckMode.MULE_AUTO, amqpConnector.getAckMode());
     }
 
+    @Test
+    public void testConsumeMessages() throws Exception
+    {
+        final AmqpConnector amqpConnector = (AmqpConnector) getConnector();
+        final InMemoryBroker broker = new InMemoryBroker();
+        try
+        {
+            final Channel channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+            final String queue = channel.queueDeclare("replies", false, false, false, null).getQueue();
+            channel.basicPublish("", queue, new BasicProperties(), "reply-0".getBytes());
+            channel.basicPublish("", queue, new BasicProperties(), "reply-1".getBytes());
+
+            List<AmqpMessage> amqpMessages = amqpConnector.consume(channel, queue, true, 2, 10000L);
+            Assert.assertEquals(2, amqpMessages.size());
+            Assert.assertEquals("reply-0", new String(amqpMessages.get(0).getBody()));
+            Assert.assertEquals("reply-1", new String(amqpMessages.get(1).getBody()));
+
+            // without a maximum, consumes until the timeout
+            channel.basicPublish("", queue, new BasicProperties(), "reply-2".getBytes());
+            amqpMessages = amqpConnector.consume(channel, queue, true, 0, 200L);
+            Assert.assertEquals(1, amqpMessages.size());
+            Assert.assertEquals("reply-2", new String(amqpMessages.get(0).getBody()));
+        }
+        finally
+        {
+            broker.shutdown();
+        }
+    }
+
     @Override
     @Test
     public void testConnectorLifecycle() throws Exception
@@ -0,0 +1,79 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AmqpConsumerScalerTestCase
+{
+    @Test
+    public void testScaleUpOnPersistentBacklog()
+    {
+        final AmqpConsumerScaler scaler = new AmqpConsumerScaler(1, 3, 100);
+
+        assertEquals(1, scaler.scale(1, 500));
+        assertEquals(2, scaler.scale(1, 600));
+
+        // readings start over after a change
+        assertEquals(2, scaler.scale(2, 700));
+        assertEquals(3, scaler.scale(2, 700));
+
+        assertEquals(3, scaler.scale(3, 900));
+        assertEquals(3, scaler.scale(3, 1000));
+    }
+
+    @Test
+    public void testNoScaleUpWhenBacklogDrainsFast()
+    {
+        final AmqpConsumerScaler scaler = new AmqpConsumerScaler(1, 3, 100);
+
+        assertEquals(1, scaler.scale(1, 1000));
+        assertEquals(1, scaler.scale(1, 400));
+        assertEquals(1, scaler.scale(1, 150));
+    }
+
+    @Test
+    public void testScaleDownWithHysteresis()
+    {
+        final AmqpConsumerScaler scaler = new AmqpConsumerScaler(1, 3, 100);
+
+        // between the watermarks nothing changes
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(3, scaler.scale(3, 200));
+        }
+
+        assertEquals(3, scaler.scale(3, 10));
+        assertEquals(3, scaler.scale(3, 10));
+        // a single high reading resets the low readings
+        assertEquals(3, scaler.scale(3, 100));
+        assertEquals(3, scaler.scale(3, 10));
+        assertEquals(3, scaler.scale(3, 10));
+        assertEquals(2, scaler.scale(3, 10));
+
+        assertEquals(2, scaler.scale(2, 0));
+        assertEquals(2, scaler.scale(2, 0));
+        assertEquals(1, scaler.scale(2, 0));
+
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(1, scaler.scale(1, 0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds()
+    {
+        new AmqpConsumerScaler(3, 2, 100);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+
+import org.junit.Test;
+import org.mule.transport.amqp.AmqpDeduplicationCache.FingerprintSet;
+import org.mule.util.store.SimpleMemoryObjectStore;
+
+public class AmqpDeduplicationCacheTestCase
+{
+    @Test
+    public void testProcessedIdsAreDuplicatesDuringWindow()
+    {
+        final AmqpDeduplicationCache cache = new AmqpDeduplicationCache(1000L, 100, null);
+
+        assertFalse(cache.isDuplicate("id-1", 1L));
+        cache.markProcessed("id-1", 1L);
+        assertTrue(cache.isDuplicate("id-1", 500L));
+        assertFalse(cache.isDuplicate("id-2", 500L));
+
+        // retired to the previous generation, still remembered
+        assertTrue(cache.isDuplicate("id-1", 1500L));
+        // out of both generations
+        assertFalse(cache.isDuplicate("id-1", 2600L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testIdleCacheForgetsEverything()
+    {
+        final AmqpDeduplicationCache cache = new AmqpDeduplicationCache(1000L, 100, null);
+
+        cache.markProcessed("id-1", 1L);
+        assertFalse(cache.isDuplicate("id-1", 2001L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCapacityBoundsMemory()
+    {
+        final AmqpDeduplicationCache cache = new AmqpDeduplicationCache(60000L, 10, null);
+
+        for (int i = 0; i < 100; i++)
+        {
+            cache.markProcessed("id-" + i, 1L);
+        }
+
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.isDuplicate("id-99", 2L));
+        assertFalse(cache.isDuplicate("id-0", 2L));
+    }
+
+    @Test
+    public void testFingerprintSetGrows()
+    {
+        final FingerprintSet set = new FingerprintSet();
+
+        for (long fingerprint = 1; fingerprint <= 1000; fingerprint++)
+        {
+            set.add(fingerprint);
+            set.add(fingerprint);
+        }
+
+        assertEquals(1000, set.size());
+        for (long fingerprint = 1; fingerprint <= 1000; fingerprint++)
+        {
+            assertTrue(set.contains(fingerprint));
+        }
+        assertFalse(set.contains(1001L));
+    }
+
+    @Test
+    public void testStoreBacksMemory()
+    {
+        final SimpleMemoryObjectStore<Serializable> store = new SimpleMemoryObjectStore<Serializable>();
+        new AmqpDeduplicationCache(1000L, 100, store).markProcessed("id-1", 1L);
+
+        // a new cache, as after a restart, finds the id in the store
+        final AmqpDeduplicationCache cache = new AmqpDeduplicationCache(1000L, 100, store);
+        assertTrue(cache.isDuplicate("id-1", 500L));
+        assertFalse(cache.isDuplicate("id-1", 1500L));
+        assertFalse(cache.isDuplicate("id-2", 500L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity()
+    {
+        new AmqpDeduplicationCache(1000L, 1, null);
+    }
+}
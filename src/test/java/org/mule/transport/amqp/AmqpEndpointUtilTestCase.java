@@ -11,6 +11,11 @@
 package org.mule.transport.amqp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -38,4 +43,47 @@ public class AmqpEndpointUtilTestCase
         assertEquals("exchange", AmqpEndpointUtil.getExchangeName("amqp://exchange?connector=foo"));
         assertEquals("exchange", AmqpEndpointUtil.getExchangeName("amqp://exchange"));
     }
+
+    @Test
+    public void testParseQueueNames()
+    {
+        final Map<String, Integer> weights = AmqpEndpointUtil.parseQueueNames(
+            " gold:4, silver ,shard-{1..3}.q:2,");
+
+        assertEquals(Arrays.asList("gold", "silver", "shard-1.q", "shard-2.q", "shard-3.q"),
+            new ArrayList<String>(weights.keySet()));
+        assertEquals(Arrays.asList(4, 1, 2, 2, 2), new ArrayList<Integer>(weights.values()));
+
+        assertTrue(AmqpEndpointUtil.parseQueueNames(null).isEmpty());
+        assertTrue(AmqpEndpointUtil.parseQueueNames(" ").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseQueueNamesRejectsInvalidWeight()
+    {
+        AmqpEndpointUtil.parseQueueNames("queue:0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseQueueNamesRejectsInvalidRange()
+    {
+        AmqpEndpointUtil.parseQueueNames("queue-{3..1}");
+    }
+
+    @Test
+    public void testGetShard()
+    {
+        final int[] counts = new int[8];
+        for (int i = 0; i < 8000; i++)
+        {
+            final int shard = AmqpEndpointUtil.getShard("customer-" + i, 8);
+            assertEquals(shard, AmqpEndpointUtil.getShard("customer-" + i, 8));
+            counts[shard]++;
+        }
+
+        for (final int count : counts)
+        {
+            assertTrue("Unbalanced shards: " + Arrays.toString(counts), (count > 800) && (count < 1200));
+        }
+    }
 }
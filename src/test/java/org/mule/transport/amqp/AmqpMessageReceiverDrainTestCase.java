@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mule.api.MuleEvent;
+import org.mule.api.processor.MessageProcessor;
+import org.mule.api.transport.MessageReceiver;
+import org.mule.tck.junit4.FunctionalTestCase;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+import org.mule.transport.amqp.management.AmqpEndpointStatistics;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Stops receivers while their flows are processing messages, against the in-memory
+ * broker.
+ */
+public class AmqpMessageReceiverDrainTestCase extends FunctionalTestCase
+{
+    private static final long TIMEOUT = 10000L;
+
+    private static volatile CountDownLatch release;
+    private static volatile Semaphore started;
+
+    private InMemoryBroker broker;
+    private Channel channel;
+
+    public static class BlockingProcessor implements MessageProcessor
+    {
+        public MuleEvent process(final MuleEvent event)
+        {
+            started.release();
+            try
+            {
+                release.await();
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return event;
+        }
+    }
+
+    @Override
+    protected String getConfigResources()
+    {
+        return "receiver-drain-config.xml";
+    }
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        release = new CountDownLatch(1);
+        started = new Semaphore(0);
+        super.doSetUp();
+        broker = ((InMemoryConnectionFactory) muleContext.getRegistry().lookupObject(
+            "inMemoryConnectionFactory")).getBroker();
+        channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+    }
+
+    @Override
+    protected void doTearDown() throws Exception
+    {
+        release.countDown();
+        super.doTearDown();
+    }
+
+    @Test
+    public void testInFlightMessagesAreDrained() throws Exception
+    {
+        final AmqpMessageReceiver receiver = getReceiver("drainedFlow");
+        publish("drained-queue", 3);
+        assertTrue(started.tryAcquire(3, TIMEOUT, TimeUnit.MILLISECONDS));
+
+        final Thread stopper = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    receiver.stop();
+                }
+                catch (final Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        stopper.start();
+
+        // the channel stays open while the messages are being processed
+        stopper.join(300L);
+        assertTrue(stopper.isAlive());
+        assertEquals(0L, broker.getAckedCount());
+
+        release.countDown();
+        stopper.join(TIMEOUT);
+        assertFalse(stopper.isAlive());
+
+        assertEquals(3L, broker.getAckedCount());
+        assertEquals(0, broker.getMessageCount("drained-queue"));
+        final AmqpEndpointStatistics endpointStatistics = getEndpointStatistics(receiver);
+        assertEquals(3L, endpointStatistics.getDrainedMessages());
+        assertEquals(0L, endpointStatistics.getUndrainedMessages());
+    }
+
+    @Test
+    public void testDrainTimeoutLeavesMessagesUnacknowledged() throws Exception
+    {
+        final AmqpMessageReceiver receiver = getReceiver("undrainedFlow");
+        publish("undrained-queue", 2);
+        assertTrue(started.tryAcquire(2, TIMEOUT, TimeUnit.MILLISECONDS));
+
+        final long stopStart = System.currentTimeMillis();
+        receiver.stop();
+        assertTrue(System.currentTimeMillis() - stopStart >= 200L);
+
+        // closing the channel returned the messages to the queue
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((broker.getMessageCount("undrained-queue") < 2) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(2, broker.getMessageCount("undrained-queue"));
+        assertEquals(0L, broker.getAckedCount());
+
+        final AmqpEndpointStatistics endpointStatistics = getEndpointStatistics(receiver);
+        assertEquals(0L, endpointStatistics.getDrainedMessages());
+        assertEquals(2L, endpointStatistics.getUndrainedMessages());
+    }
+
+    private void publish(final String queue, final int count) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            channel.basicPublish("", queue, new BasicProperties(), String.valueOf(i).getBytes());
+        }
+    }
+
+    private AmqpMessageReceiver getReceiver(final String flowName)
+    {
+        final AmqpConnector amqpConnector = (AmqpConnector) muleContext.getRegistry().lookupConnector(
+            "amqpInMemoryConnector");
+        for (final MessageReceiver receiver : amqpConnector.getReceivers().values())
+        {
+            if (flowName.equals(receiver.getFlowConstruct().getName()))
+            {
+                return (AmqpMessageReceiver) receiver;
+            }
+        }
+        throw new IllegalArgumentException("No receiver for flow: " + flowName);
+    }
+
+    private static AmqpEndpointStatistics getEndpointStatistics(final AmqpMessageReceiver receiver)
+    {
+        return ((AmqpConnector) receiver.getConnector()).getAmqpStatistics().getEndpointStatistics(
+            receiver.getEndpoint());
+    }
+}
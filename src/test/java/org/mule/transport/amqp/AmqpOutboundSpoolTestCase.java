@@ -0,0 +1,234 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+import org.mule.util.FileUtils;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+
+public class AmqpOutboundSpoolTestCase
+{
+    private static final String QUEUE = "spooled-queue";
+
+    private File directory;
+    private InMemoryBroker broker;
+    private Channel channel;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile("amqp-spool", "");
+        directory.delete();
+
+        broker = new InMemoryBroker();
+        channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+        channel.queueDeclare(QUEUE, true, false, false, null);
+        channel.confirmSelect();
+    }
+
+    @After
+    public void tearDown()
+    {
+        broker.shutdown();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testRecordEncoding() throws Exception
+    {
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("string", "value");
+        headers.put("int", 42);
+        headers.put("long", 42L);
+        headers.put("decimal", new BigDecimal("4.2"));
+        headers.put("list", Arrays.asList("a", 1));
+        headers.put("table", new HashMap<String, Object>(headers));
+
+        final BasicProperties properties = new BasicProperties.Builder().contentType("text/plain")
+            .deliveryMode(2)
+            .messageId("id-1")
+            .timestamp(new Date(1000L))
+            .headers(headers)
+            .build();
+
+        final AmqpSpoolRecord record = AmqpSpoolRecord.decode(new AmqpSpoolRecord("exchange", "key",
+            properties, "body".getBytes()).encode());
+
+        assertEquals("exchange", record.getExchange());
+        assertEquals("key", record.getRoutingKey());
+        assertEquals("body", new String(record.getBody()));
+        assertEquals("text/plain", record.getProperties().getContentType());
+        assertEquals(Integer.valueOf(2), record.getProperties().getDeliveryMode());
+        assertEquals("id-1", record.getProperties().getMessageId());
+        assertEquals(new Date(1000L), record.getProperties().getTimestamp());
+        assertEquals(headers, record.getProperties().getHeaders());
+        assertNull(record.getRateLimiterKey());
+    }
+
+    @Test
+    public void testRecordEncodingWithRateLimiterKey() throws Exception
+    {
+        final AmqpSpoolRecord record = AmqpSpoolRecord.decode(new AmqpSpoolRecord("exchange", "key", null,
+            "body".getBytes(), "10/0@amqp://exchange").encode());
+
+        assertEquals("body", new String(record.getBody()));
+        assertEquals("10/0@amqp://exchange", record.getRateLimiterKey());
+    }
+
+    @Test
+    public void testReplayRemovesConfirmedSegments() throws Exception
+    {
+        final AmqpOutboundSpool spool = new AmqpOutboundSpool(directory, 256, 0L, false);
+        for (int i = 0; i < 10; i++)
+        {
+            spool.append(newRecord("message-" + i));
+        }
+        assertEquals(10L, spool.getPendingRecords());
+        assertTrue(directory.list().length > 1);
+
+        assertEquals(4, spool.replay(channel, false, false, 4, null, null));
+        assertEquals(6L, spool.getPendingRecords());
+        assertEquals(6, spool.replay(channel, false, false, 100, null, null));
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.replay(channel, false, false, 100, null, null));
+
+        assertEquals(10, broker.getMessageCount(QUEUE));
+        for (int i = 0; i < 10; i++)
+        {
+            final GetResponse response = channel.basicGet(QUEUE, true);
+            assertEquals("message-" + i, new String(response.getBody()));
+        }
+
+        // only the segment being written is left
+        assertEquals(1, directory.list().length);
+        spool.close();
+    }
+
+    @Test
+    public void testUnconfirmedRecordsAreKept() throws Exception
+    {
+        final AmqpOutboundSpool spool = new AmqpOutboundSpool(directory, 4096, 0L, false);
+        spool.append(newRecord("message"));
+
+        broker.getFaults().setConfirmNackRate(1D);
+        try
+        {
+            spool.replay(channel, false, false, 10, null, null);
+            fail("replay should have failed");
+        }
+        catch (final IOException ioe)
+        {
+            assertEquals(1L, spool.getPendingRecords());
+        }
+
+        broker.getFaults().setConfirmNackRate(0D);
+        assertEquals(1, spool.replay(channel, false, false, 10, null, null));
+        spool.close();
+    }
+
+    @Test
+    public void testRecoveryResumesFromReplayPosition() throws Exception
+    {
+        AmqpOutboundSpool spool = new AmqpOutboundSpool(directory, 4096, 0L, true);
+        spool.append(newRecord("message-0"));
+        spool.append(newRecord("message-1"));
+        spool.append(newRecord("message-2"));
+        assertEquals(1, spool.replay(channel, false, false, 1, null, null));
+        spool.close();
+
+        spool = new AmqpOutboundSpool(directory, 4096, 0L, false);
+        assertEquals(2L, spool.getPendingRecords());
+        spool.append(newRecord("message-3"));
+        assertEquals(3, spool.replay(channel, false, false, 10, null, null));
+
+        channel.basicGet(QUEUE, true);
+        final GetResponse response = channel.basicGet(QUEUE, true);
+        assertNotNull(response);
+        assertEquals("message-1", new String(response.getBody()));
+        spool.close();
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception
+    {
+        AmqpOutboundSpool spool = new AmqpOutboundSpool(directory, 4096, 0L, false);
+        spool.append(newRecord("message-0"));
+        spool.append(newRecord("message-1"));
+        spool.close();
+
+        // corrupt the body of the last record
+        final File segment = directory.listFiles()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try
+        {
+            final byte[] content = new byte[(int) file.length()];
+            file.readFully(content);
+            final int bodyOffset = new String(content, "ISO-8859-1").lastIndexOf("message-1");
+            file.seek(bodyOffset);
+            file.write('X');
+        }
+        finally
+        {
+            file.close();
+        }
+
+        spool = new AmqpOutboundSpool(directory, 4096, 0L, false);
+        assertEquals(1L, spool.getPendingRecords());
+        assertEquals(1, spool.replay(channel, false, false, 10, null, null));
+        assertEquals("message-0", new String(channel.basicGet(QUEUE, true).getBody()));
+        spool.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testFullSpoolRejectsRecords() throws Exception
+    {
+        final AmqpOutboundSpool spool = new AmqpOutboundSpool(directory, 256, 512L, false);
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                spool.append(newRecord("message-" + i));
+            }
+        }
+        finally
+        {
+            spool.close();
+        }
+    }
+
+    private static AmqpSpoolRecord newRecord(final String body)
+    {
+        return new AmqpSpoolRecord("", QUEUE, new BasicProperties.Builder().deliveryMode(2).build(),
+            body.getBytes());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+public class AmqpPoisonMessageTrackerTestCase
+{
+    @Test
+    public void testFirstDeliveriesAreNotTracked()
+    {
+        final AmqpPoisonMessageTracker tracker = new AmqpPoisonMessageTracker(2, 10);
+
+        assertEquals(0, tracker.deliveryReceived(newAmqpMessage("id-1", "body", false)));
+        assertEquals(0, tracker.deliveryReceived(newAmqpMessage("id-1", "body", false)));
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void testRedeliveriesReachThreshold()
+    {
+        final AmqpPoisonMessageTracker tracker = new AmqpPoisonMessageTracker(2, 10);
+        final AmqpMessage redelivered = newAmqpMessage("id-1", "body", true);
+
+        assertFalse(tracker.isPoison(tracker.deliveryReceived(redelivered)));
+        assertTrue(tracker.isPoison(tracker.deliveryReceived(redelivered)));
+
+        tracker.forget(redelivered);
+        assertEquals(0, tracker.size());
+        assertEquals(1, tracker.deliveryReceived(redelivered));
+    }
+
+    @Test
+    public void testMessagesWithoutIdAreKeyedByBody()
+    {
+        final AmqpPoisonMessageTracker tracker = new AmqpPoisonMessageTracker(3, 10);
+
+        assertEquals(1, tracker.deliveryReceived(newAmqpMessage(null, "body", true)));
+        assertEquals(2, tracker.deliveryReceived(newAmqpMessage(null, "body", true)));
+        assertEquals(1, tracker.deliveryReceived(newAmqpMessage(null, "other body", true)));
+        assertEquals(AmqpPoisonMessageTracker.getKey(newAmqpMessage(null, "body", true)),
+            AmqpPoisonMessageTracker.getKey(newAmqpMessage("", "body", false)));
+    }
+
+    @Test
+    public void testLeastRecentlyRedeliveredMessagesAreEvicted()
+    {
+        final AmqpPoisonMessageTracker tracker = new AmqpPoisonMessageTracker(5, 2);
+
+        tracker.deliveryReceived(newAmqpMessage("id-1", "body", true));
+        tracker.deliveryReceived(newAmqpMessage("id-2", "body", true));
+        tracker.deliveryReceived(newAmqpMessage("id-1", "body", true));
+        tracker.deliveryReceived(newAmqpMessage("id-3", "body", true));
+
+        assertEquals(2, tracker.size());
+        assertEquals(3, tracker.deliveryReceived(newAmqpMessage("id-1", "body", true)));
+        assertEquals(1, tracker.deliveryReceived(newAmqpMessage("id-2", "body", true)));
+    }
+
+    private static AmqpMessage newAmqpMessage(final String messageId,
+                                              final String body,
+                                              final boolean redelivered)
+    {
+        return new AmqpMessage("consumer", new Envelope(1L, redelivered, "exchange", "key"),
+            new BasicProperties.Builder().messageId(messageId).build(), body.getBytes());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.resource.spi.work.Work;
+
+import org.junit.Test;
+
+public class AmqpPriorityWorkQueueTestCase
+{
+    private final List<String> executed = new ArrayList<String>();
+
+    @Test
+    public void testWorksRunByPriorityThenArrival()
+    {
+        final AmqpPriorityWorkQueue queue = new AmqpPriorityWorkQueue();
+        final List<Work> runners = new ArrayList<Work>();
+
+        runners.add(queue.add(newWork("low-1"), 0));
+        runners.add(queue.add(newWork("high-1"), 9));
+        runners.add(queue.add(newWork("low-2"), 0));
+        runners.add(queue.add(newWork("medium"), 5));
+        runners.add(queue.add(newWork("high-2"), 9));
+        assertEquals(5, queue.size());
+
+        for (final Work runner : runners)
+        {
+            runner.run();
+        }
+
+        assertEquals(Arrays.asList("high-1", "high-2", "medium", "low-1", "low-2"), executed);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testRemovedWorkIsNotRun()
+    {
+        final AmqpPriorityWorkQueue queue = new AmqpPriorityWorkQueue();
+        final Work removed = newWork("removed");
+
+        final Work runner = queue.add(removed, 5);
+        queue.add(newWork("kept"), 0);
+        assertTrue(queue.remove(removed));
+        assertFalse(queue.remove(removed));
+
+        runner.run();
+        runner.run();
+        assertEquals(Arrays.asList("kept"), executed);
+    }
+
+    private Work newWork(final String name)
+    {
+        return new Work()
+        {
+            public void run()
+            {
+                executed.add(name);
+            }
+
+            public void release()
+            {
+                // NOOP
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AmqpRateLimiterTestCase
+{
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    @Test
+    public void testMessageRateAllowsOneSecondBurst()
+    {
+        final AmqpRateLimiter rateLimiter = new AmqpRateLimiter(10, 0);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(rateLimiter.tryAcquire(100, 0L));
+        }
+        assertFalse(rateLimiter.tryAcquire(100, 0L));
+        assertFalse(rateLimiter.tryAcquire(100, 99 * MILLIS));
+        assertTrue(rateLimiter.tryAcquire(100, 100 * MILLIS));
+    }
+
+    @Test
+    public void testByteRate()
+    {
+        final AmqpRateLimiter rateLimiter = new AmqpRateLimiter(0, 1000);
+
+        assertTrue(rateLimiter.tryAcquire(600, 0L));
+        assertFalse(rateLimiter.tryAcquire(600, 0L));
+        assertTrue(rateLimiter.tryAcquire(400, 0L));
+        assertTrue(rateLimiter.tryAcquire(600, 600 * MILLIS));
+    }
+
+    @Test
+    public void testOversizedMessagePassesWhenBucketIsFull()
+    {
+        final AmqpRateLimiter rateLimiter = new AmqpRateLimiter(0, 1000);
+
+        assertTrue(rateLimiter.tryAcquire(5000, 0L));
+        assertFalse(rateLimiter.tryAcquire(1, 3000 * MILLIS));
+        assertTrue(rateLimiter.tryAcquire(1, 4001 * MILLIS));
+    }
+
+    @Test
+    public void testRejectedMessageDoesNotConsumeMessageTokens()
+    {
+        final AmqpRateLimiter rateLimiter = new AmqpRateLimiter(2, 1000);
+
+        assertTrue(rateLimiter.tryAcquire(1000, 0L));
+        assertFalse(rateLimiter.tryAcquire(1000, 0L));
+        // only one message token is taken, the second message fits
+        assertTrue(rateLimiter.tryAcquire(0, 0L));
+    }
+
+    @Test
+    public void testAcquireWaitsOnceBurstIsUsed() throws Exception
+    {
+        final AmqpRateLimiter rateLimiter = new AmqpRateLimiter(10, 0);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(0L, rateLimiter.acquire(0));
+        }
+
+        final long startNanos = System.nanoTime();
+        final long waitNanos = rateLimiter.acquire(0);
+        assertTrue(waitNanos > 0L);
+        assertTrue(System.nanoTime() - startNanos >= waitNanos);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoLimit()
+    {
+        new AmqpRateLimiter(0, 0);
+    }
+}
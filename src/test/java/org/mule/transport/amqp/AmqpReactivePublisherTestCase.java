@@ -0,0 +1,222 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mule.tck.junit4.FunctionalTestCase;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+import org.mule.transport.amqp.transformers.GzipCompressionCodec;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Consumes messages with a {@link AmqpReactivePublisher} against the in-memory broker.
+ */
+public class AmqpReactivePublisherTestCase extends FunctionalTestCase
+{
+    private static final String QUEUE = "reactive-queue";
+    private static final long TIMEOUT = 10000L;
+
+    private InMemoryBroker broker;
+    private Channel channel;
+
+    @Override
+    protected String getConfigResources()
+    {
+        return "reactive-streams-config.xml";
+    }
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        super.doSetUp();
+        broker = ((InMemoryConnectionFactory) muleContext.getRegistry().lookupObject(
+            "inMemoryConnectionFactory")).getBroker();
+        channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+        channel.queueDeclare(QUEUE, false, false, false, null);
+    }
+
+    @Test
+    public void testDemandAcknowledgesSignalledMessages() throws Exception
+    {
+        publish(10);
+        final RecordingSubscriber subscriber = subscribe(5);
+
+        subscriber.subscription.request(2);
+        assertBody("0", subscriber.poll());
+        assertBody("1", subscriber.poll());
+        // no more than requested, and nothing acknowledged before the next request
+        assertNull(subscriber.received.poll(200L, TimeUnit.MILLISECONDS));
+        assertEquals(0L, broker.getAckedCount());
+        // the rest of the window is prefetched, the others wait in the queue
+        assertEquals(5, broker.getMessageCount(QUEUE));
+
+        subscriber.subscription.request(3);
+        assertBody("2", subscriber.poll());
+        assertBody("3", subscriber.poll());
+        assertBody("4", subscriber.poll());
+        assertEquals(2L, broker.getAckedCount());
+
+        subscriber.subscription.cancel();
+    }
+
+    @Test
+    public void testDemandBeyondWindow() throws Exception
+    {
+        publish(12);
+        final RecordingSubscriber subscriber = subscribe(5);
+
+        subscriber.subscription.request(12);
+        for (int i = 0; i < 12; i++)
+        {
+            assertBody(String.valueOf(i), subscriber.poll());
+        }
+        // acknowledged each time they filled the window
+        assertEquals(10L, broker.getAckedCount());
+
+        subscriber.subscription.cancel();
+    }
+
+    @Test
+    public void testCancelRedeliversUnacknowledgedMessages() throws Exception
+    {
+        publish(3);
+        final RecordingSubscriber subscriber = subscribe(5);
+
+        subscriber.subscription.request(1);
+        assertBody("0", subscriber.poll());
+        subscriber.subscription.cancel();
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((broker.getMessageCount(QUEUE) < 3) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(3, broker.getMessageCount(QUEUE));
+        assertEquals(0L, broker.getAckedCount());
+        assertNull(subscriber.error.poll(200L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testChannelShutdownSignalsError() throws Exception
+    {
+        publish(1);
+        final RecordingSubscriber subscriber = subscribe(5);
+
+        subscriber.subscription.request(1);
+        assertBody("0", subscriber.poll());
+        broker.killConnections();
+
+        final Throwable error = subscriber.error.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(error);
+        assertTrue(error instanceof ShutdownSignalException);
+    }
+
+    @Test
+    public void testReassemblesAndDecompresses() throws Exception
+    {
+        final byte[] compressed = new GzipCompressionCodec().compress("chunked payload".getBytes());
+        final BasicProperties properties = new BasicProperties.Builder().contentEncoding(
+            GzipCompressionCodec.CONTENT_ENCODING).build();
+        final int firstChunkSize = compressed.length / 2;
+        final byte[] firstChunk = new byte[firstChunkSize];
+        final byte[] lastChunk = new byte[compressed.length - firstChunkSize];
+        System.arraycopy(compressed, 0, firstChunk, 0, firstChunk.length);
+        System.arraycopy(compressed, firstChunkSize, lastChunk, 0, lastChunk.length);
+
+        channel.basicPublish("", QUEUE, AmqpChunkAssembler.chunkProperties(properties, "chunked", 0, 2, 0,
+            compressed.length), firstChunk);
+        channel.basicPublish("", QUEUE, AmqpChunkAssembler.chunkProperties(properties, "chunked", 1, 2,
+            firstChunkSize, compressed.length), lastChunk);
+
+        final RecordingSubscriber subscriber = subscribe(5);
+        subscriber.subscription.request(1);
+        final AmqpMessage amqpMessage = subscriber.poll();
+        assertBody("chunked payload", amqpMessage);
+        assertNull(amqpMessage.getProperties().getContentEncoding());
+
+        // both chunks are acknowledged with the message
+        subscriber.subscription.request(1);
+        assertEquals(2L, broker.getAckedCount());
+
+        subscriber.subscription.cancel();
+    }
+
+    private void publish(final int count) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            channel.basicPublish("", QUEUE, new BasicProperties(), String.valueOf(i).getBytes());
+        }
+    }
+
+    private RecordingSubscriber subscribe(final int window) throws Exception
+    {
+        final AmqpReactivePublisher publisher = new AmqpReactivePublisher(muleContext.getEndpointFactory()
+            .getInboundEndpoint("reactiveEndpoint"), window);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertNotNull(subscriber.subscription);
+        return subscriber;
+    }
+
+    private static void assertBody(final String expected, final AmqpMessage amqpMessage)
+    {
+        assertNotNull(amqpMessage);
+        assertEquals(expected, new String(amqpMessage.getBody()));
+    }
+
+    private static final class RecordingSubscriber implements Subscriber<AmqpMessage>
+    {
+        private final BlockingQueue<AmqpMessage> received = new LinkedBlockingQueue<AmqpMessage>();
+        private final BlockingQueue<Throwable> error = new LinkedBlockingQueue<Throwable>();
+        private volatile Subscription subscription;
+
+        public void onSubscribe(final Subscription subscription)
+        {
+            this.subscription = subscription;
+        }
+
+        public void onNext(final AmqpMessage amqpMessage)
+        {
+            received.add(amqpMessage);
+        }
+
+        public void onError(final Throwable throwable)
+        {
+            error.add(throwable);
+        }
+
+        public void onComplete()
+        {
+            // never completes
+        }
+
+        private AmqpMessage poll() throws InterruptedException
+        {
+            return received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mule.tck.junit4.FunctionalTestCase;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+import org.reactivestreams.Subscription;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Publishes messages with a {@link AmqpReactiveSubscriber} against the in-memory
+ * broker.
+ */
+public class AmqpReactiveSubscriberTestCase extends FunctionalTestCase
+{
+    private static final String QUEUE = "reactive-queue";
+    private static final long TIMEOUT = 10000L;
+
+    private InMemoryBroker broker;
+
+    @Override
+    protected String getConfigResources()
+    {
+        return "reactive-streams-config.xml";
+    }
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        super.doSetUp();
+        broker = ((InMemoryConnectionFactory) muleContext.getRegistry().lookupObject(
+            "inMemoryConnectionFactory")).getBroker();
+    }
+
+    @Test
+    public void testConfirmsDriveDemand() throws Exception
+    {
+        final AmqpReactiveSubscriber subscriber = newSubscriber(3);
+        final RecordingSubscription subscription = new RecordingSubscription(3);
+        subscriber.onSubscribe(subscription);
+        assertEquals(3L, subscription.getRequested());
+
+        for (int i = 0; i < 20; i++)
+        {
+            subscription.awaitDemand();
+            subscriber.onNext(newAmqpMessage(i));
+            assertTrue(subscriber.getUnconfirmedCount() <= 3);
+        }
+        subscriber.onComplete();
+
+        assertTrue(subscriber.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(subscriber.getFailure());
+        assertFalse(subscription.isCancelled());
+        assertFalse(subscription.isDemandExceeded());
+        // the initial window, then one more message per confirm until the completion
+        assertTrue(subscription.getRequested() >= 20L);
+        assertTrue(subscription.getRequested() <= 23L);
+        assertEquals(20, broker.getMessageCount(QUEUE));
+    }
+
+    @Test
+    public void testNackFailsSubscription() throws Exception
+    {
+        broker.getFaults().setConfirmNackRate(1D);
+        final AmqpReactiveSubscriber subscriber = newSubscriber(3);
+        final RecordingSubscription subscription = new RecordingSubscription(3);
+        subscriber.onSubscribe(subscription);
+
+        subscriber.onNext(newAmqpMessage(0));
+
+        assertTrue(subscriber.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(subscriber.getFailure() instanceof IOException);
+        assertTrue(subscription.isCancelled());
+        assertEquals(3L, subscription.getRequested());
+    }
+
+    @Test
+    public void testCompletionWaitsForConfirms() throws Exception
+    {
+        final AmqpReactiveSubscriber subscriber = newSubscriber(2);
+        final RecordingSubscription subscription = new RecordingSubscription(2);
+        subscriber.onSubscribe(subscription);
+
+        // the request following the first confirm holds back the confirm of the second
+        // message, as both are handled on the same connection thread
+        subscription.blockRequests();
+        subscriber.onNext(newAmqpMessage(0));
+        subscriber.onNext(newAmqpMessage(1));
+        // completing before would suppress the request
+        assertTrue(subscription.awaitBlockedRequest());
+        subscriber.onComplete();
+
+        assertFalse(subscriber.await(200L, TimeUnit.MILLISECONDS));
+        assertEquals(1, subscriber.getUnconfirmedCount());
+
+        subscription.releaseRequests();
+        assertTrue(subscriber.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(subscriber.getFailure());
+        assertEquals(0, subscriber.getUnconfirmedCount());
+        assertFalse(subscription.isCancelled());
+    }
+
+    @Test
+    public void testTerminationClosesChannel() throws Exception
+    {
+        final AmqpReactiveSubscriber subscriber = newSubscriber(3);
+        final RecordingSubscription subscription = new RecordingSubscription(3);
+        subscriber.onSubscribe(subscription);
+        final int channelCount = broker.getChannelCount();
+
+        subscriber.onNext(newAmqpMessage(0));
+        subscriber.onComplete();
+        assertTrue(subscriber.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((broker.getChannelCount() >= channelCount) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(channelCount - 1, broker.getChannelCount());
+
+        // signals after the termination are ignored
+        subscriber.onNext(newAmqpMessage(1));
+        assertEquals(1, broker.getMessageCount(QUEUE));
+    }
+
+    private AmqpReactiveSubscriber newSubscriber(final int maxUnconfirmed) throws Exception
+    {
+        return new AmqpReactiveSubscriber(muleContext.getEndpointFactory().getOutboundEndpoint(
+            "reactiveEndpoint"), maxUnconfirmed);
+    }
+
+    private static AmqpMessage newAmqpMessage(final int index)
+    {
+        return new AmqpMessage(null, null, new BasicProperties(), String.valueOf(index).getBytes());
+    }
+
+    /**
+     * Records the demand of the subscriber, as signalled by a publisher that emits one
+     * message per requested element.
+     */
+    private static final class RecordingSubscription implements Subscription
+    {
+        private final int maxUnconfirmed;
+        private volatile CountDownLatch requestsReleased;
+        private final CountDownLatch requestBlocked = new CountDownLatch(1);
+
+        // guarded by this
+        private long requested;
+        private long emitted;
+        private boolean demandExceeded;
+        private boolean cancelled;
+
+        private RecordingSubscription(final int maxUnconfirmed)
+        {
+            this.maxUnconfirmed = maxUnconfirmed;
+        }
+
+        public void request(final long n)
+        {
+            final CountDownLatch latch = requestsReleased;
+            if (latch != null)
+            {
+                requestBlocked.countDown();
+                try
+                {
+                    latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            synchronized (this)
+            {
+                requested += n;
+                demandExceeded |= requested - emitted > maxUnconfirmed;
+                notifyAll();
+            }
+        }
+
+        public synchronized void cancel()
+        {
+            cancelled = true;
+        }
+
+        private synchronized void awaitDemand() throws InterruptedException
+        {
+            final long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (requested == emitted)
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L)
+                {
+                    throw new IllegalStateException("No demand signalled after " + emitted + " messages");
+                }
+                wait(remaining);
+            }
+            emitted++;
+        }
+
+        private void blockRequests()
+        {
+            requestsReleased = new CountDownLatch(1);
+        }
+
+        private boolean awaitBlockedRequest() throws InterruptedException
+        {
+            return requestBlocked.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        private void releaseRequests()
+        {
+            requestsReleased.countDown();
+        }
+
+        private synchronized long getRequested()
+        {
+            return requested;
+        }
+
+        private synchronized boolean isDemandExceeded()
+        {
+            return demandExceeded;
+        }
+
+        private synchronized boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.transport.amqp.inmemory.InMemoryBroker;
+import org.mule.transport.amqp.inmemory.InMemoryConnectionFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+
+public class AmqpRetryPolicyTestCase
+{
+    private static final String SOURCE_QUEUE = "source-queue";
+
+    private InMemoryBroker broker;
+    private Channel channel;
+    private Channel retryChannel;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        broker = new InMemoryBroker();
+        channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+        channel.queueDeclare(SOURCE_QUEUE, true, false, false, null);
+        retryChannel = channel.getConnection().createChannel();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        broker.shutdown();
+    }
+
+    @Test
+    public void testExponentialDelays()
+    {
+        final AmqpRetryPolicy retryPolicy = new AmqpRetryPolicy(5, 1000L, 3, 20000L, null);
+
+        assertEquals(1000L, retryPolicy.getDelay(1));
+        assertEquals(3000L, retryPolicy.getDelay(2));
+        assertEquals(9000L, retryPolicy.getDelay(3));
+        assertEquals(20000L, retryPolicy.getDelay(4));
+        assertEquals(20000L, retryPolicy.getDelay(5));
+        assertEquals(Arrays.asList(1000L, 3000L, 9000L, 20000L), retryPolicy.getTierDelays());
+    }
+
+    @Test
+    public void testConstantDelays()
+    {
+        final AmqpRetryPolicy retryPolicy = new AmqpRetryPolicy(3, 500L, 1, 500L, "parked");
+
+        assertEquals(Collections.singletonList(500L), retryPolicy.getTierDelays());
+        assertEquals("parked", retryPolicy.getParkingQueueName(SOURCE_QUEUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxDelay()
+    {
+        new AmqpRetryPolicy(3, 1000L, 2, 500L, null);
+    }
+
+    @Test
+    public void testRetriesThenParks() throws Exception
+    {
+        final AmqpRetryPolicy retryPolicy = new AmqpRetryPolicy(2, 20L, 2, 1000L, null);
+        retryPolicy.declare(channel, SOURCE_QUEUE);
+        assertTrue(broker.hasQueue("source-queue.retry.20"));
+        assertTrue(broker.hasQueue("source-queue.retry.40"));
+        assertTrue(broker.hasQueue("source-queue.parking"));
+
+        final AmqpConfirmChannel confirmChannel = new AmqpConfirmChannel(retryChannel);
+        AmqpMessage failed = newAmqpMessage(new BasicProperties.Builder().expiration("5").build());
+        for (int attempt = 1; attempt <= 2; attempt++)
+        {
+            final String retryQueue = retryPolicy.republish(confirmChannel, SOURCE_QUEUE, failed,
+                new IllegalStateException("boom"));
+            assertEquals("source-queue.retry." + retryPolicy.getDelay(attempt), retryQueue);
+
+            // dead-lettered back to the source queue once the delay has expired
+            final GetResponse retried = awaitMessage(SOURCE_QUEUE);
+            assertNotNull(retried);
+            assertEquals(attempt, AmqpRetryPolicy.getRetryCount(retried.getProps().getHeaders()));
+            assertNull(retried.getProps().getExpiration());
+            assertEquals("java.lang.IllegalStateException: boom",
+                retried.getProps().getHeaders().get(AmqpConstants.RETRY_EXCEPTION).toString());
+            assertEquals("payload", new String(retried.getBody()));
+
+            failed = new AmqpMessage(null, retried.getEnvelope(), retried.getProps(), retried.getBody());
+        }
+
+        assertEquals("source-queue.parking", retryPolicy.republish(confirmChannel, SOURCE_QUEUE, failed, null));
+        assertEquals(1, broker.getMessageCount("source-queue.parking"));
+        assertEquals(0, broker.getMessageCount(SOURCE_QUEUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNackedRepublishFails() throws Exception
+    {
+        final AmqpRetryPolicy retryPolicy = new AmqpRetryPolicy(2, 20L, 2, 1000L, null);
+        retryPolicy.declare(channel, SOURCE_QUEUE);
+        broker.getFaults().setConfirmNackRate(1D);
+
+        retryPolicy.republish(new AmqpConfirmChannel(retryChannel), SOURCE_QUEUE,
+            newAmqpMessage(new BasicProperties()), null);
+    }
+
+    @Test
+    public void testNackOnlyFailsItsOwnRepublish() throws Exception
+    {
+        final AmqpRetryPolicy retryPolicy = new AmqpRetryPolicy(2, 5000L, 2, 10000L, null);
+        retryPolicy.declare(channel, SOURCE_QUEUE);
+
+        // holds the confirms back until both messages have been republished
+        final CountDownLatch confirmsReleased = new CountDownLatch(1);
+        retryChannel.addConfirmListener(new ConfirmListener()
+        {
+            public void handleAck(final long deliveryTag, final boolean multiple) throws IOException
+            {
+                awaitRelease();
+            }
+
+            public void handleNack(final long deliveryTag, final boolean multiple) throws IOException
+            {
+                awaitRelease();
+            }
+
+            private void awaitRelease() throws IOException
+            {
+                try
+                {
+                    confirmsReleased.await(5L, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final AmqpConfirmChannel confirmChannel = new AmqpConfirmChannel(retryChannel);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            broker.getFaults().setConfirmNackRate(1D);
+            final Future<String> nacked = executor.submit(republish(retryPolicy, confirmChannel));
+            awaitPublishedCount(1L);
+
+            broker.getFaults().setConfirmNackRate(0D);
+            final Future<String> acked = executor.submit(republish(retryPolicy, confirmChannel));
+            awaitPublishedCount(2L);
+
+            confirmsReleased.countDown();
+
+            assertEquals("source-queue.retry.5000", acked.get(5L, TimeUnit.SECONDS));
+            try
+            {
+                nacked.get(5L, TimeUnit.SECONDS);
+                fail("the nacked republish should have failed");
+            }
+            catch (final ExecutionException ee)
+            {
+                assertTrue(ee.getCause() instanceof IOException);
+            }
+        }
+        finally
+        {
+            confirmsReleased.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<String> republish(final AmqpRetryPolicy retryPolicy,
+                                              final AmqpConfirmChannel confirmChannel)
+    {
+        return new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return retryPolicy.republish(confirmChannel, SOURCE_QUEUE,
+                    newAmqpMessage(new BasicProperties()), new IllegalStateException("boom"));
+            }
+        };
+    }
+
+    private void awaitPublishedCount(final long count) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while ((broker.getPublishedCount() < count) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(5L);
+        }
+        assertEquals(count, broker.getPublishedCount());
+    }
+
+    private GetResponse awaitMessage(final String queue) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < deadline)
+        {
+            final GetResponse response = channel.basicGet(queue, true);
+            if (response != null)
+            {
+                return response;
+            }
+            Thread.sleep(5L);
+        }
+        return null;
+    }
+
+    private static AmqpMessage newAmqpMessage(final BasicProperties properties)
+    {
+        return new AmqpMessage(null, new Envelope(1L, false, "", SOURCE_QUEUE), properties,
+            "payload".getBytes());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.resource.spi.work.Work;
+
+import org.junit.Test;
+
+public class AmqpVirtualThreadExecutorTestCase
+{
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit()
+    {
+        AmqpVirtualThreadExecutor.create("test", 0);
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception
+    {
+        final AmqpVirtualThreadExecutor executor = AmqpVirtualThreadExecutor.create("test", 2);
+        // only runs on JVMs with virtual threads
+        assumeNotNull(executor);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(6);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        for (int i = 0; i < 6; i++)
+        {
+            executor.execute(new Work()
+            {
+                public void run()
+                {
+                    final int nowRunning = running.incrementAndGet();
+                    int max;
+                    while ((max = maxRunning.get()) < nowRunning)
+                    {
+                        maxRunning.compareAndSet(max, nowRunning);
+                    }
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    completed.countDown();
+                }
+
+                public void release()
+                {
+                    // nothing to release
+                }
+            });
+        }
+
+        assertEquals(2, executor.getThreadCount());
+        release.countDown();
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+    }
+}
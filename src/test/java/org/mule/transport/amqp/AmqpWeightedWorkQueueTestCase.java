@@ -0,0 +1,112 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.resource.spi.work.Work;
+
+import org.junit.Test;
+
+public class AmqpWeightedWorkQueueTestCase
+{
+    private final List<String> executed = new ArrayList<String>();
+
+    @Test
+    public void testLanesAreServedByWeight()
+    {
+        final AmqpWeightedWorkQueue queue = new AmqpWeightedWorkQueue(new int[]{3, 1});
+        final List<Work> runners = new ArrayList<Work>();
+        for (int i = 0; i < 6; i++)
+        {
+            runners.add(queue.add(newWork("a" + i), 0));
+        }
+        for (int i = 0; i < 2; i++)
+        {
+            runners.add(queue.add(newWork("b" + i), 1));
+        }
+
+        for (final Work runner : runners)
+        {
+            runner.run();
+        }
+
+        // lane b is interleaved rather than served after three runs of lane a
+        assertEquals(Arrays.asList("a0", "a1", "b0", "a2", "a3", "a4", "b1", "a5"), executed);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testIdleLaneDoesNotAccumulateCredit()
+    {
+        final AmqpWeightedWorkQueue queue = new AmqpWeightedWorkQueue(new int[]{1, 1});
+        for (int i = 0; i < 3; i++)
+        {
+            queue.add(newWork("a" + i), 0).run();
+        }
+
+        final Work runner = queue.add(newWork("a3"), 0);
+        queue.add(newWork("a4"), 0);
+        queue.add(newWork("b0"), 1);
+        queue.add(newWork("b1"), 1);
+        for (int i = 0; i < 4; i++)
+        {
+            runner.run();
+        }
+
+        assertEquals(Arrays.asList("a0", "a1", "a2", "a3", "b0", "a4", "b1"), executed);
+    }
+
+    @Test
+    public void testRemovedWorkIsNotRun()
+    {
+        final AmqpWeightedWorkQueue queue = new AmqpWeightedWorkQueue(new int[]{1, 1});
+        final Work removed = newWork("removed");
+
+        final Work runner = queue.add(removed, 1);
+        queue.add(newWork("kept"), 0);
+        assertTrue(queue.remove(removed));
+        assertFalse(queue.remove(removed));
+        assertEquals(1, queue.size());
+
+        runner.run();
+        runner.run();
+        assertEquals(Arrays.asList("kept"), executed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWeight()
+    {
+        new AmqpWeightedWorkQueue(new int[]{1, 0});
+    }
+
+    private Work newWork(final String name)
+    {
+        return new Work()
+        {
+            public void run()
+            {
+                executed.add(name);
+            }
+
+            public void release()
+            {
+                // NOOP
+            }
+        };
+    }
+}
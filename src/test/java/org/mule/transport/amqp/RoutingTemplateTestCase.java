@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mule.DefaultMuleMessage;
+import org.mule.api.MuleMessage;
+import org.mule.api.MuleRuntimeException;
+import org.mule.api.transport.PropertyScope;
+import org.mule.tck.junit4.AbstractMuleContextTestCase;
+
+public class RoutingTemplateTestCase extends AbstractMuleContextTestCase
+{
+    private MuleMessage getTestMessage()
+    {
+        final MuleMessage message = new DefaultMuleMessage("payload", muleContext);
+        message.setProperty("region", "emea", PropertyScope.OUTBOUND);
+        message.setProperty("type", "retail", PropertyScope.OUTBOUND);
+        message.setProperty("source", "web", PropertyScope.INVOCATION);
+        return message;
+    }
+
+    @Test
+    public void testIsTemplate()
+    {
+        assertTrue(RoutingTemplate.isTemplate("orders.#[header:region]"));
+        assertFalse(RoutingTemplate.isTemplate("orders.#"));
+        assertFalse(RoutingTemplate.isTemplate(null));
+    }
+
+    @Test
+    public void testHeaderSegments()
+    {
+        final RoutingTemplate template = RoutingTemplate.compile("orders.#[header:region].#[header:type]");
+        assertEquals("orders.emea.retail", template.render(getTestMessage()));
+        // rendering twice reuses the builder
+        assertEquals("orders.emea.retail", template.render(getTestMessage()));
+    }
+
+    @Test
+    public void testScopedHeaderAndMissingValue()
+    {
+        assertEquals("web.", RoutingTemplate.compile("#[header:INVOCATION:source].#[header:missing]")
+            .render(getTestMessage()));
+    }
+
+    @Test
+    public void testLiteralOnly()
+    {
+        assertEquals("a.b.c", RoutingTemplate.compile("a.b.c").render(getTestMessage()));
+    }
+
+    @Test
+    public void testExpressionSegment()
+    {
+        assertEquals("payload-emea",
+            RoutingTemplate.compile("#[payload:]-#[header:region]").render(getTestMessage()));
+    }
+
+    @Test(expected = MuleRuntimeException.class)
+    public void testUnterminatedExpression()
+    {
+        RoutingTemplate.compile("orders.#[header:region");
+    }
+}
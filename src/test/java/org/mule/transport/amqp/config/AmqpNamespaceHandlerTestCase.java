@@ -13,11 +13,13 @@ package org.mule.transport.amqp.config;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 
 import org.junit.Test;
+import org.mule.api.MuleRuntimeException;
 import org.mule.api.construct.Pipeline;
 import org.mule.api.endpoint.EndpointBuilder;
 import org.mule.api.endpoint.InboundEndpoint;
@@ -26,11 +28,13 @@ import org.mule.api.processor.MessageProcessor;
 import org.mule.tck.junit4.FunctionalTestCase;
 import org.mule.transport.amqp.AmqpConnector;
 import org.mule.transport.amqp.AmqpConstants.AckMode;
+import org.mule.transport.amqp.AmqpEndpointConfig;
 import org.mule.transport.amqp.AmqpEndpointUtil;
 import org.mule.transport.amqp.AmqpMessageAcknowledger;
 import org.mule.transport.amqp.AmqpTransaction.RecoverStrategy;
 import org.mule.transport.amqp.AmqpTransactionFactory;
 import org.mule.transport.amqp.transformers.AmqpMessageToObject;
+import org.mule.transport.amqp.transformers.GzipCompressionCodec;
 import org.mule.transport.amqp.transformers.ObjectToAmqpMessage;
 
 public class AmqpNamespaceHandlerTestCase extends FunctionalTestCase
@@ -82,6 +86,48 @@ public class AmqpNamespaceHandlerTestCase extends FunctionalTestCase
         assertFalse(outboundEndpoint.getTransactionConfig().isTransacted());
     }
 
+    @Test
+    public void testFullGlobalEndpointConfig() throws Exception
+    {
+        final InboundEndpoint inboundEndpoint = muleContext.getRegistry()
+            .lookupEndpointBuilder("amqpFullGlobalEndpoint")
+            .buildInboundEndpoint();
+
+        final AmqpEndpointConfig endpointConfig = AmqpEndpointConfig.forEndpoint(inboundEndpoint);
+        assertSame(endpointConfig, AmqpEndpointConfig.forEndpoint(inboundEndpoint));
+        assertEquals("target-exchange", endpointConfig.getExchangeName());
+        assertEquals("fanout", endpointConfig.getExchangeType());
+        assertTrue(endpointConfig.isExchangeDurable());
+        assertFalse(endpointConfig.isExchangeAutoDelete());
+        assertEquals("target-queue", endpointConfig.getQueueName());
+        assertTrue(endpointConfig.isQueueDeclaration());
+        assertTrue(endpointConfig.isQueueExclusive());
+        assertEquals("a.b.c", endpointConfig.getRoutingKey());
+    }
+
+    @Test
+    public void testDefaultExchangeOutboundRoutingKey() throws Exception
+    {
+        final OutboundEndpoint outboundEndpoint = muleContext.getEndpointFactory().getOutboundEndpoint(
+            "amqp://amqp-queue.target-queue?connector=amqpDefaultConnector");
+        assertEquals("target-queue", AmqpEndpointConfig.forEndpoint(outboundEndpoint)
+            .getOutboundRoutingKey());
+    }
+
+    @Test(expected = MuleRuntimeException.class)
+    public void testInvalidInboundEndpointConfig() throws Exception
+    {
+        AmqpEndpointConfig.forEndpoint(muleContext.getEndpointFactory().getInboundEndpoint(
+            "amqp://amqp-queue.target-queue?routingKey=a.b.c&connector=amqpDefaultConnector"));
+    }
+
+    @Test(expected = MuleRuntimeException.class)
+    public void testInvalidChunkSize() throws Exception
+    {
+        AmqpEndpointConfig.forEndpoint(muleContext.getEndpointFactory().getOutboundEndpoint(
+            "amqp://target-exchange?chunkSize=large&connector=amqpDefaultConnector"));
+    }
+
     @Test
     public void testExistingQueueGlobalEndpoint() throws Exception
     {
@@ -128,6 +174,15 @@ public class AmqpNamespaceHandlerTestCase extends FunctionalTestCase
         assertTrue(muleContext.getRegistry().lookupTransformer("o2a") instanceof ObjectToAmqpMessage);
     }
 
+    @Test
+    public void testCompressingTransformer() throws Exception
+    {
+        final ObjectToAmqpMessage o2a = (ObjectToAmqpMessage) muleContext.getRegistry().lookupTransformer(
+            "o2aGzip");
+        assertTrue(o2a.getCompressionCodec() instanceof GzipCompressionCodec);
+        assertEquals(512, o2a.getCompressionThreshold());
+    }
+
     @Test
     public void testAcknowledger() throws Exception
     {
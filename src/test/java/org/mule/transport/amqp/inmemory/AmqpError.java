@@ -0,0 +1,70 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * A soft or hard error raised by an {@link InMemoryBroker} operation, which closes
+ * the channel on which it has been performed.
+ */
+final class AmqpError extends RuntimeException
+{
+    private static final long serialVersionUID = 2803556210443386787L;
+
+    private final int replyCode;
+
+    AmqpError(final int replyCode, final String replyText)
+    {
+        super(replyText);
+        this.replyCode = replyCode;
+    }
+
+    static AmqpError notFound(final String replyText)
+    {
+        return new AmqpError(AMQP.NOT_FOUND, "NOT_FOUND - " + replyText);
+    }
+
+    static AmqpError accessRefused(final String replyText)
+    {
+        return new AmqpError(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - " + replyText);
+    }
+
+    static AmqpError resourceLocked(final String replyText)
+    {
+        return new AmqpError(AMQP.RESOURCE_LOCKED, "RESOURCE_LOCKED - " + replyText);
+    }
+
+    static AmqpError preconditionFailed(final String replyText)
+    {
+        return new AmqpError(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - " + replyText);
+    }
+
+    static AmqpError commandInvalid(final String replyText)
+    {
+        return new AmqpError(AMQP.COMMAND_INVALID, "COMMAND_INVALID - " + replyText);
+    }
+
+    static AmqpError notAllowed(final String replyText)
+    {
+        return new AmqpError(AMQP.NOT_ALLOWED, "NOT_ALLOWED - " + replyText);
+    }
+
+    static AmqpError internalError(final String replyText)
+    {
+        return new AmqpError(AMQP.INTERNAL_ERROR, "INTERNAL_ERROR - " + replyText);
+    }
+
+    int getReplyCode()
+    {
+        return replyCode;
+    }
+}
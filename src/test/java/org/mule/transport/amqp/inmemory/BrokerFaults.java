@@ -0,0 +1,160 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.util.Random;
+
+/**
+ * Latencies and faults injected by an {@link InMemoryBroker}. Rates are
+ * probabilities between 0 and 1, drawn from a seeded random so that failing runs
+ * can be replayed.
+ */
+public class BrokerFaults
+{
+    private volatile long publishLatency;
+    private volatile long deliveryLatency;
+    private volatile double publishFailureRate;
+    private volatile double confirmNackRate;
+    private volatile double channelFailureRate;
+    private Random random = new Random(0L);
+
+    /**
+     * @param publishLatency milliseconds each publication blocks the publisher.
+     */
+    public void setPublishLatency(final long publishLatency)
+    {
+        this.publishLatency = publishLatency;
+    }
+
+    public long getPublishLatency()
+    {
+        return publishLatency;
+    }
+
+    /**
+     * @param deliveryLatency milliseconds between the queuing of a message and its
+     *            delivery to consumers.
+     */
+    public void setDeliveryLatency(final long deliveryLatency)
+    {
+        this.deliveryLatency = deliveryLatency;
+    }
+
+    public long getDeliveryLatency()
+    {
+        return deliveryLatency;
+    }
+
+    /**
+     * @param publishFailureRate rate of publications failing with an
+     *            <code>IOException</code>.
+     */
+    public void setPublishFailureRate(final double publishFailureRate)
+    {
+        this.publishFailureRate = publishFailureRate;
+    }
+
+    public double getPublishFailureRate()
+    {
+        return publishFailureRate;
+    }
+
+    /**
+     * @param confirmNackRate rate of publications negatively confirmed, on channels
+     *            in confirm mode.
+     */
+    public void setConfirmNackRate(final double confirmNackRate)
+    {
+        this.confirmNackRate = confirmNackRate;
+    }
+
+    public double getConfirmNackRate()
+    {
+        return confirmNackRate;
+    }
+
+    /**
+     * @param channelFailureRate rate of channels closed by the broker when used for
+     *            publishing, acknowledging or rejecting messages.
+     */
+    public void setChannelFailureRate(final double channelFailureRate)
+    {
+        this.channelFailureRate = channelFailureRate;
+    }
+
+    public double getChannelFailureRate()
+    {
+        return channelFailureRate;
+    }
+
+    public synchronized void setSeed(final long seed)
+    {
+        random = new Random(seed);
+    }
+
+    /**
+     * Removes all latencies and faults.
+     */
+    public void reset()
+    {
+        publishLatency = 0L;
+        deliveryLatency = 0L;
+        publishFailureRate = 0D;
+        confirmNackRate = 0D;
+        channelFailureRate = 0D;
+    }
+
+    boolean shouldFailPublish()
+    {
+        return draw(publishFailureRate);
+    }
+
+    boolean shouldNackConfirm()
+    {
+        return draw(confirmNackRate);
+    }
+
+    boolean shouldFailChannel()
+    {
+        return draw(channelFailureRate);
+    }
+
+    void pausePublisher()
+    {
+        final long latency = publishLatency;
+        if (latency <= 0L)
+        {
+            return;
+        }
+
+        try
+        {
+            Thread.sleep(latency);
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean draw(final double rate)
+    {
+        if (rate <= 0D)
+        {
+            return false;
+        }
+
+        synchronized (this)
+        {
+            return random.nextDouble() < rate;
+        }
+    }
+}
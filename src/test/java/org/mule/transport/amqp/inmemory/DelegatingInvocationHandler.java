@@ -0,0 +1,92 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Exposes a target object as an implementation of a RabbitMQ client interface by
+ * delegating calls to the target public methods that have the same signature.
+ * Methods the target does not define are unsupported. This keeps the in-memory
+ * broker independent from the methods added to the client interfaces over time.
+ */
+final class DelegatingInvocationHandler implements InvocationHandler
+{
+    private static final ConcurrentMap<List<Object>, Method> TARGET_METHODS = new ConcurrentHashMap<List<Object>, Method>();
+
+    private final Object target;
+
+    private DelegatingInvocationHandler(final Object target)
+    {
+        this.target = target;
+    }
+
+    static <T> T newProxy(final Class<T> type, final Object target)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+            new DelegatingInvocationHandler(target)));
+    }
+
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+        if (method.getDeclaringClass() == Object.class)
+        {
+            if ("equals".equals(method.getName()))
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(method.getName()))
+            {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            return target.toString();
+        }
+
+        try
+        {
+            return getTargetMethod(method).invoke(target, args);
+        }
+        catch (final InvocationTargetException ite)
+        {
+            throw ite.getCause();
+        }
+    }
+
+    private Method getTargetMethod(final Method method)
+    {
+        // the same interface method can be delegated to different target classes
+        final List<Object> key = Arrays.<Object> asList(target.getClass(), method);
+        Method targetMethod = TARGET_METHODS.get(key);
+        if (targetMethod != null)
+        {
+            return targetMethod;
+        }
+
+        try
+        {
+            targetMethod = target.getClass().getMethod(method.getName(), method.getParameterTypes());
+        }
+        catch (final NoSuchMethodException nsme)
+        {
+            throw new UnsupportedOperationException(method + " is not supported by the in-memory broker");
+        }
+
+        TARGET_METHODS.put(key, targetMethod);
+        return targetMethod;
+    }
+}
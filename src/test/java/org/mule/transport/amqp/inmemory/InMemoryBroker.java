@@ -0,0 +1,622 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.mule.transport.amqp.inmemory.InMemoryQueue.Subscription;
+import org.mule.util.NumberUtils;
+import org.mule.util.UUID;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Connection;
+
+/**
+ * An AMQP 0-9-1 broker stand-in living in the JVM, for tests that can't rely on a
+ * running RabbitMQ. It supports exchanges (direct, fanout, topic and headers),
+ * queues with message TTL and dead lettering, bindings, consumers with QoS,
+ * acknowledgments, rejections, recovery, mandatory and immediate returns,
+ * publisher confirms and transactions. Latencies and faults can be injected with
+ * {@link #getFaults()}, {@link #setAvailable(boolean)} and
+ * {@link #killConnections()}.
+ * <p>
+ * Connections are obtained from an {@link InMemoryConnectionFactory}. Nothing is
+ * persisted and the state of the broker is guarded by a single lock, which is
+ * plenty for functional tests and load tests of the transport itself.
+ */
+public class InMemoryBroker
+{
+    static final String DEFAULT_EXCHANGE = "";
+
+    final Object lock = new Object();
+
+    private final Map<String, InMemoryExchange> exchanges = new HashMap<String, InMemoryExchange>();
+    private final Map<String, InMemoryQueue> queues = new HashMap<String, InMemoryQueue>();
+    private final Set<InMemoryConnection> connections = new LinkedHashSet<InMemoryConnection>();
+    private final BrokerFaults faults = new BrokerFaults();
+    private final ScheduledExecutorService expirationScheduler;
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong ackedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong returnedCount = new AtomicLong();
+    private final AtomicLong deadLetteredCount = new AtomicLong();
+
+    private volatile boolean available = true;
+
+    public InMemoryBroker()
+    {
+        expirationScheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("in-memory-broker-expiration"));
+
+        for (final String type : new String[]{InMemoryExchange.DIRECT, InMemoryExchange.FANOUT,
+            InMemoryExchange.TOPIC, InMemoryExchange.HEADERS})
+        {
+            exchanges.put("amq." + type, new InMemoryExchange("amq." + type, type, true, false));
+        }
+        exchanges.put(DEFAULT_EXCHANGE, new InMemoryExchange(DEFAULT_EXCHANGE, InMemoryExchange.DIRECT, true,
+            false));
+    }
+
+    public BrokerFaults getFaults()
+    {
+        return faults;
+    }
+
+    /**
+     * @param available false to make new connections fail as if the broker was down.
+     */
+    public void setAvailable(final boolean available)
+    {
+        this.available = available;
+    }
+
+    public boolean isAvailable()
+    {
+        return available;
+    }
+
+    /**
+     * Simulates a broker crash by closing all the connections, which are notified of
+     * a shutdown not initiated by the application.
+     */
+    public void killConnections()
+    {
+        final List<InMemoryConnection> killedConnections;
+        synchronized (lock)
+        {
+            killedConnections = new ArrayList<InMemoryConnection>(connections);
+        }
+
+        for (final InMemoryConnection connection : killedConnections)
+        {
+            connection.kill();
+        }
+    }
+
+    /**
+     * Closes all connections and releases the broker threads.
+     */
+    public void shutdown()
+    {
+        killConnections();
+        expirationScheduler.shutdownNow();
+    }
+
+    public int getConnectionCount()
+    {
+        synchronized (lock)
+        {
+            return connections.size();
+        }
+    }
+
+    /**
+     * @return the count of open channels over all connections.
+     */
+    public int getChannelCount()
+    {
+        synchronized (lock)
+        {
+            int channelCount = 0;
+            for (final InMemoryConnection connection : connections)
+            {
+                channelCount += connection.getChannelCount();
+            }
+            return channelCount;
+        }
+    }
+
+    public boolean hasExchange(final String exchangeName)
+    {
+        synchronized (lock)
+        {
+            return exchanges.containsKey(exchangeName);
+        }
+    }
+
+    public boolean hasQueue(final String queueName)
+    {
+        synchronized (lock)
+        {
+            return queues.containsKey(queueName);
+        }
+    }
+
+    /**
+     * @return the count of messages ready for delivery in the queue.
+     */
+    public int getMessageCount(final String queueName)
+    {
+        synchronized (lock)
+        {
+            final InMemoryQueue queue = getQueue(queueName);
+            expireMessages(queue);
+            return queue.getMessageCount();
+        }
+    }
+
+    public int getConsumerCount(final String queueName)
+    {
+        synchronized (lock)
+        {
+            return getQueue(queueName).getConsumerCount();
+        }
+    }
+
+    public long getPublishedCount()
+    {
+        return publishedCount.get();
+    }
+
+    public long getDeliveredCount()
+    {
+        return deliveredCount.get();
+    }
+
+    public long getAckedCount()
+    {
+        return ackedCount.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    public long getReturnedCount()
+    {
+        return returnedCount.get();
+    }
+
+    public long getDeadLetteredCount()
+    {
+        return deadLetteredCount.get();
+    }
+
+    Connection newConnection() throws IOException
+    {
+        if (!available)
+        {
+            throw new ConnectException("The in-memory broker is unavailable");
+        }
+
+        final InMemoryConnection connection = new InMemoryConnection(this,
+            connectionCounter.incrementAndGet());
+        synchronized (lock)
+        {
+            connections.add(connection);
+        }
+        return connection.getProxy();
+    }
+
+    void connectionClosed(final InMemoryConnection connection)
+    {
+        synchronized (lock)
+        {
+            connections.remove(connection);
+
+            for (final InMemoryQueue queue : new ArrayList<InMemoryQueue>(queues.values()))
+            {
+                if (queue.getOwner() == connection)
+                {
+                    deleteQueue(queue);
+                }
+            }
+        }
+    }
+
+    static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // all the following methods must be called while holding the lock
+
+    InMemoryExchange getExchange(final String exchangeName)
+    {
+        final InMemoryExchange exchange = exchanges.get(exchangeName);
+        if (exchange == null)
+        {
+            throw AmqpError.notFound("no exchange '" + exchangeName + "'");
+        }
+        return exchange;
+    }
+
+    InMemoryQueue getQueue(final String queueName)
+    {
+        final InMemoryQueue queue = queues.get(queueName);
+        if (queue == null)
+        {
+            throw AmqpError.notFound("no queue '" + queueName + "'");
+        }
+        return queue;
+    }
+
+    InMemoryQueue getQueue(final String queueName, final InMemoryConnection connection)
+    {
+        final InMemoryQueue queue = getQueue(queueName);
+        if (queue.isExclusive() && (queue.getOwner() != connection))
+        {
+            throw AmqpError.resourceLocked("cannot obtain exclusive access to locked queue '" + queueName
+                                           + "'");
+        }
+        return queue;
+    }
+
+    void declareExchange(final String exchangeName,
+                         final String type,
+                         final boolean durable,
+                         final boolean autoDelete)
+    {
+        final InMemoryExchange exchange = exchanges.get(exchangeName);
+        if (exchange != null)
+        {
+            if (!exchange.getType().equals(type))
+            {
+                throw AmqpError.preconditionFailed("cannot redeclare exchange '" + exchangeName
+                                                   + "' of type '" + exchange.getType() + "' with type '"
+                                                   + type + "'");
+            }
+            return;
+        }
+
+        if (exchangeName.startsWith("amq."))
+        {
+            throw AmqpError.accessRefused("exchange name '" + exchangeName + "' contains reserved prefix 'amq.'");
+        }
+        if (!InMemoryExchange.isSupportedType(type))
+        {
+            throw AmqpError.commandInvalid("invalid exchange type '" + type + "'");
+        }
+
+        exchanges.put(exchangeName, new InMemoryExchange(exchangeName, type, durable, autoDelete));
+    }
+
+    void deleteExchange(final String exchangeName, final boolean ifUnused)
+    {
+        final InMemoryExchange exchange = getExchange(exchangeName);
+        if ((DEFAULT_EXCHANGE.equals(exchangeName)) || (exchangeName.startsWith("amq.")))
+        {
+            throw AmqpError.accessRefused("cannot delete exchange '" + exchangeName + "'");
+        }
+        if (ifUnused && exchange.hasBindings())
+        {
+            throw AmqpError.preconditionFailed("exchange '" + exchangeName + "' in use");
+        }
+        exchanges.remove(exchangeName);
+    }
+
+    InMemoryQueue declareQueue(final String queueName,
+                               final boolean durable,
+                               final boolean exclusive,
+                               final boolean autoDelete,
+                               final Map<String, Object> arguments,
+                               final InMemoryConnection connection)
+    {
+        final boolean serverNamed = StringUtils.isEmpty(queueName);
+        final String name = serverNamed ? "amq.gen-" + UUID.getUUID() : queueName;
+
+        final InMemoryQueue existingQueue = queues.get(name);
+        if (existingQueue != null)
+        {
+            getQueue(name, connection);
+            if ((existingQueue.isDurable() != durable) || (existingQueue.isExclusive() != exclusive)
+                || (existingQueue.isAutoDelete() != autoDelete))
+            {
+                throw AmqpError.preconditionFailed("cannot redeclare queue '" + name
+                                                   + "' with different durable, exclusive or auto-delete flags");
+            }
+            return existingQueue;
+        }
+
+        if ((!serverNamed) && (name.startsWith("amq.")))
+        {
+            throw AmqpError.accessRefused("queue name '" + name + "' contains reserved prefix 'amq.'");
+        }
+
+        final InMemoryQueue queue = new InMemoryQueue(name, durable, exclusive, autoDelete, exclusive
+                                                                                              ? connection
+                                                                                              : null,
+            getLongArgument(arguments, "x-message-ttl"), getStringArgument(arguments,
+                "x-dead-letter-exchange"), getStringArgument(arguments, "x-dead-letter-routing-key"));
+        queues.put(name, queue);
+        return queue;
+    }
+
+    /**
+     * Puts back a message at the head of its queue, unless the queue has been deleted
+     * in the meantime.
+     */
+    void requeue(final InMemoryQueue queue, final QueuedMessage message)
+    {
+        if (queues.get(queue.getName()) == queue)
+        {
+            queue.requeue(message);
+        }
+    }
+
+    int deleteQueue(final InMemoryQueue queue)
+    {
+        queues.remove(queue.getName());
+
+        for (final InMemoryExchange exchange : exchanges.values())
+        {
+            exchange.unbindAll(queue);
+        }
+
+        for (final Subscription subscription : new ArrayList<Subscription>(queue.getSubscriptions()))
+        {
+            subscription.channel.subscriptionCancelled(subscription);
+        }
+
+        return queue.purge();
+    }
+
+    /**
+     * @return the AMQP reply code with which the message must be returned to its
+     *         publisher, or 0 if it has been routed.
+     */
+    int publish(final String exchangeName,
+                final String routingKey,
+                final boolean mandatory,
+                final boolean immediate,
+                final BasicProperties properties,
+                final byte[] body)
+    {
+        final InMemoryExchange exchange = getExchange(exchangeName);
+        publishedCount.incrementAndGet();
+
+        final Collection<InMemoryQueue> routedQueues = route(exchange, routingKey, properties);
+        if (routedQueues.isEmpty())
+        {
+            return mandatory ? AMQP.NO_ROUTE : 0;
+        }
+
+        if (immediate && (!hasConsumers(routedQueues)))
+        {
+            return AMQP.NO_CONSUMERS;
+        }
+
+        enqueue(routedQueues, exchangeName, routingKey, properties, body);
+        return 0;
+    }
+
+    void messagesReturned()
+    {
+        returnedCount.incrementAndGet();
+    }
+
+    void messageDelivered()
+    {
+        deliveredCount.incrementAndGet();
+    }
+
+    void messagesAcked(final int count)
+    {
+        ackedCount.addAndGet(count);
+    }
+
+    void messagesRejected(final int count)
+    {
+        rejectedCount.addAndGet(count);
+    }
+
+    /**
+     * Delivers as many ready messages of the queue as its subscriptions can take.
+     */
+    void dispatch(final InMemoryQueue queue)
+    {
+        expireMessages(queue);
+
+        while (queue.peek() != null)
+        {
+            final Subscription subscription = queue.nextAvailableSubscription();
+            if (subscription == null)
+            {
+                return;
+            }
+            subscription.channel.deliver(subscription, queue.poll());
+        }
+    }
+
+    void expireMessages(final InMemoryQueue queue)
+    {
+        // like RabbitMQ, only messages at the head of the queue are expired
+        final long now = System.currentTimeMillis();
+        while ((queue.peek() != null) && (queue.peek().isExpired(now)))
+        {
+            deadLetter(queue, queue.poll(), "expired");
+        }
+    }
+
+    void deadLetter(final InMemoryQueue queue, final QueuedMessage message, final String reason)
+    {
+        final InMemoryExchange deadLetterExchange = queue.getDeadLetterExchange() == null
+                                                                                         ? null
+                                                                                         : exchanges.get(queue.getDeadLetterExchange());
+        if (deadLetterExchange == null)
+        {
+            return;
+        }
+
+        final Map<String, Object> death = new HashMap<String, Object>();
+        death.put("queue", queue.getName());
+        death.put("reason", reason);
+        death.put("exchange", message.exchange);
+        death.put("routing-keys", Collections.singletonList(message.routingKey));
+        death.put("time", new Date());
+
+        final Map<String, Object> headers = message.properties.getHeaders() == null
+                                                                                   ? new HashMap<String, Object>()
+                                                                                   : new HashMap<String, Object>(
+                                                                                       message.properties.getHeaders());
+        final List<Object> deaths = new ArrayList<Object>();
+        deaths.add(death);
+        if (headers.get("x-death") instanceof List<?>)
+        {
+            deaths.addAll((List<?>) headers.get("x-death"));
+        }
+        headers.put("x-death", deaths);
+
+        // the per-message TTL is removed so the message does not expire again
+        final BasicProperties properties = message.properties.builder()
+            .expiration(null)
+            .headers(headers)
+            .build();
+        final String routingKey = queue.getDeadLetterRoutingKey() == null
+                                                                         ? message.routingKey
+                                                                         : queue.getDeadLetterRoutingKey();
+
+        deadLetteredCount.incrementAndGet();
+        enqueue(route(deadLetterExchange, routingKey, properties), deadLetterExchange.getName(), routingKey,
+            properties, message.body);
+    }
+
+    private Collection<InMemoryQueue> route(final InMemoryExchange exchange,
+                                            final String routingKey,
+                                            final BasicProperties properties)
+    {
+        if (!DEFAULT_EXCHANGE.equals(exchange.getName()))
+        {
+            return exchange.route(routingKey, properties);
+        }
+
+        final InMemoryQueue queue = queues.get(routingKey);
+        return queue == null ? Collections.<InMemoryQueue> emptySet() : Collections.singleton(queue);
+    }
+
+    private boolean hasConsumers(final Collection<InMemoryQueue> routedQueues)
+    {
+        for (final InMemoryQueue queue : routedQueues)
+        {
+            if (queue.getConsumerCount() > 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void enqueue(final Collection<InMemoryQueue> routedQueues,
+                         final String exchangeName,
+                         final String routingKey,
+                         final BasicProperties properties,
+                         final byte[] body)
+    {
+        final long now = System.currentTimeMillis();
+        final long messageTtl = NumberUtils.toLong(properties.getExpiration(), -1L);
+
+        for (final InMemoryQueue queue : routedQueues)
+        {
+            final long ttl = minTtl(messageTtl, queue.getMessageTtl());
+            final QueuedMessage message = new QueuedMessage(exchangeName, routingKey, properties, body,
+                ttl < 0L ? Long.MAX_VALUE : now + ttl);
+            queue.offer(message);
+
+            if (ttl >= 0L)
+            {
+                scheduleExpiration(queue, ttl);
+            }
+            dispatch(queue);
+        }
+    }
+
+    private void scheduleExpiration(final InMemoryQueue queue, final long ttl)
+    {
+        expirationScheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (lock)
+                {
+                    if (queues.get(queue.getName()) == queue)
+                    {
+                        dispatch(queue);
+                    }
+                }
+            }
+        }, ttl, TimeUnit.MILLISECONDS);
+    }
+
+    private static long minTtl(final long ttl1, final long ttl2)
+    {
+        if (ttl1 < 0L)
+        {
+            return ttl2;
+        }
+        return ttl2 < 0L ? ttl1 : Math.min(ttl1, ttl2);
+    }
+
+    private static long getLongArgument(final Map<String, Object> arguments, final String name)
+    {
+        final Object value = arguments == null ? null : arguments.get(name);
+        if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+        return value == null ? -1L : NumberUtils.toLong(value.toString(), -1L);
+    }
+
+    private static String getStringArgument(final Map<String, Object> arguments, final String name)
+    {
+        final Object value = arguments == null ? null : arguments.get(name);
+        // AMQP strings arrive as LongString instances from real clients
+        return value == null ? null : value.toString();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mule.tck.junit4.FunctionalTestCase;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+
+/**
+ * Runs a flow bridging two exchanges against the in-memory broker, exercising the
+ * receiver and dispatcher without any running RabbitMQ.
+ */
+public class InMemoryBrokerBridgeTestCase extends FunctionalTestCase
+{
+    private static final int MESSAGE_COUNT = 50;
+    private static final long TIMEOUT = 10000L;
+
+    @Override
+    protected String getConfigResources()
+    {
+        return "in-memory-broker-config.xml";
+    }
+
+    @Test
+    public void testBridge() throws Exception
+    {
+        final InMemoryBroker broker = ((InMemoryConnectionFactory) muleContext.getRegistry().lookupObject(
+            "inMemoryConnectionFactory")).getBroker();
+        final Channel channel = new InMemoryConnectionFactory(broker).newConnection().createChannel();
+
+        channel.exchangeDeclare("target-exchange", "fanout");
+        channel.queueDeclare("target-queue", false, false, false, null);
+        channel.queueBind("target-queue", "target-exchange", "");
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+        {
+            channel.basicPublish("source-exchange", "", new BasicProperties.Builder().build(),
+                String.valueOf(i).getBytes());
+        }
+
+        final Set<String> bridged = new HashSet<String>();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((bridged.size() < MESSAGE_COUNT) && (System.currentTimeMillis() < deadline))
+        {
+            final GetResponse response = channel.basicGet("target-queue", true);
+            if (response == null)
+            {
+                Thread.sleep(10L);
+            }
+            else
+            {
+                bridged.add(new String(response.getBody()));
+            }
+        }
+
+        assertEquals(MESSAGE_COUNT, bridged.size());
+        assertEquals(0, broker.getMessageCount("source-queue"));
+        assertTrue(broker.getAckedCount() >= MESSAGE_COUNT);
+    }
+}
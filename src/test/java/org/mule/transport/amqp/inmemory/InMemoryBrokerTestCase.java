@@ -0,0 +1,364 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class InMemoryBrokerTestCase
+{
+    private static final BasicProperties PROPERTIES = new BasicProperties.Builder().build();
+    private static final long TIMEOUT = 5000L;
+
+    private InMemoryBroker broker;
+    private Connection connection;
+    private Channel channel;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        broker = new InMemoryBroker();
+        connection = new InMemoryConnectionFactory(broker).newConnection();
+        channel = connection.createChannel();
+    }
+
+    @After
+    public void tearDown()
+    {
+        broker.shutdown();
+    }
+
+    private String declareBoundQueue(final String exchange, final String type, final String routingKey)
+        throws IOException
+    {
+        channel.exchangeDeclare(exchange, type);
+        final String queue = channel.queueDeclare().getQueue();
+        channel.queueBind(queue, exchange, routingKey);
+        return queue;
+    }
+
+    private String get(final String queue) throws IOException
+    {
+        final GetResponse response = channel.basicGet(queue, true);
+        return response == null ? null : new String(response.getBody());
+    }
+
+    @Test
+    public void testDefaultExchange() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        channel.basicPublish("", "q", PROPERTIES, "hello".getBytes());
+
+        assertEquals(1, channel.queueDeclarePassive("q").getMessageCount());
+        assertEquals("hello", get("q"));
+        assertNull(get("q"));
+    }
+
+    @Test
+    public void testDirectFanoutAndTopicRouting() throws Exception
+    {
+        final String direct = declareBoundQueue("direct-x", "direct", "a.b");
+        final String fanout = declareBoundQueue("fanout-x", "fanout", "ignored");
+        final String topic = declareBoundQueue("topic-x", "topic", "a.*.#");
+
+        channel.basicPublish("direct-x", "a.b", PROPERTIES, "d1".getBytes());
+        channel.basicPublish("direct-x", "a.c", PROPERTIES, "d2".getBytes());
+        channel.basicPublish("fanout-x", "any", PROPERTIES, "f".getBytes());
+        channel.basicPublish("topic-x", "a", PROPERTIES, "t1".getBytes());
+        channel.basicPublish("topic-x", "a.b", PROPERTIES, "t2".getBytes());
+        channel.basicPublish("topic-x", "a.b.c.d", PROPERTIES, "t3".getBytes());
+
+        assertEquals("d1", get(direct));
+        assertNull(get(direct));
+        assertEquals("f", get(fanout));
+        assertEquals("t2", get(topic));
+        assertEquals("t3", get(topic));
+        assertNull(get(topic));
+    }
+
+    @Test
+    public void testTopicMatching()
+    {
+        assertTrue(InMemoryExchange.matchesTopic("#", ""));
+        assertTrue(InMemoryExchange.matchesTopic("#", "a.b"));
+        assertTrue(InMemoryExchange.matchesTopic("a.#.z", "a.z"));
+        assertTrue(InMemoryExchange.matchesTopic("a.#.z", "a.b.c.z"));
+        assertTrue(InMemoryExchange.matchesTopic("*.b", "a.b"));
+        assertFalse(InMemoryExchange.matchesTopic("*.b", "b"));
+        assertFalse(InMemoryExchange.matchesTopic("a.*", "a.b.c"));
+    }
+
+    @Test
+    public void testHeadersRouting() throws Exception
+    {
+        channel.exchangeDeclare("headers-x", "headers");
+        final String queue = channel.queueDeclare().getQueue();
+        final Map<String, Object> arguments = new HashMap<String, Object>();
+        arguments.put("x-match", "all");
+        arguments.put("type", "order");
+        channel.queueBind(queue, "headers-x", "", arguments);
+
+        channel.basicPublish("headers-x", "", new BasicProperties.Builder().headers(
+            Collections.<String, Object> singletonMap("type", "invoice")).build(), "invoice".getBytes());
+        channel.basicPublish("headers-x", "", new BasicProperties.Builder().headers(
+            Collections.<String, Object> singletonMap("type", "order")).build(), "order".getBytes());
+
+        assertEquals("order", get(queue));
+        assertNull(get(queue));
+    }
+
+    @Test
+    public void testPrefetchAndAcknowledgment() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        for (int i = 0; i < 5; i++)
+        {
+            channel.basicPublish("", "q", PROPERTIES, String.valueOf(i).getBytes());
+        }
+
+        channel.basicQos(2);
+        final QueueingConsumer consumer = new QueueingConsumer(channel);
+        channel.basicConsume("q", false, consumer);
+
+        final Delivery first = consumer.nextDelivery(TIMEOUT);
+        final Delivery second = consumer.nextDelivery(TIMEOUT);
+        assertEquals("0", new String(first.getBody()));
+        assertEquals("1", new String(second.getBody()));
+        assertNull(consumer.nextDelivery(200L));
+        assertEquals(3, broker.getMessageCount("q"));
+
+        channel.basicAck(second.getEnvelope().getDeliveryTag(), true);
+        assertEquals("2", new String(consumer.nextDelivery(TIMEOUT).getBody()));
+        assertEquals("3", new String(consumer.nextDelivery(TIMEOUT).getBody()));
+        assertEquals(2L, broker.getAckedCount());
+    }
+
+    @Test
+    public void testRejectionRequeuesAtHead() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        channel.basicPublish("", "q", PROPERTIES, "first".getBytes());
+        channel.basicPublish("", "q", PROPERTIES, "second".getBytes());
+
+        final GetResponse response = channel.basicGet("q", false);
+        assertFalse(response.getEnvelope().isRedeliver());
+        channel.basicReject(response.getEnvelope().getDeliveryTag(), true);
+
+        final GetResponse redelivered = channel.basicGet("q", false);
+        assertEquals("first", new String(redelivered.getBody()));
+        assertTrue(redelivered.getEnvelope().isRedeliver());
+    }
+
+    @Test
+    public void testClosingChannelRequeuesUnacknowledged() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        channel.basicPublish("", "q", PROPERTIES, "body".getBytes());
+        assertNotNull(channel.basicGet("q", false));
+        assertEquals(0, broker.getMessageCount("q"));
+
+        channel.close();
+        assertEquals(1, broker.getMessageCount("q"));
+    }
+
+    @Test
+    public void testTtlAndDeadLettering() throws Exception
+    {
+        channel.exchangeDeclare("dlx", "fanout");
+        channel.queueDeclare("parking", false, false, false, null);
+        channel.queueBind("parking", "dlx", "");
+
+        final Map<String, Object> arguments = new HashMap<String, Object>();
+        arguments.put("x-message-ttl", 50);
+        arguments.put("x-dead-letter-exchange", "dlx");
+        channel.queueDeclare("delayed", false, false, false, arguments);
+        channel.queueDeclare("rejecting", false, false, false,
+            Collections.<String, Object> singletonMap("x-dead-letter-exchange", "dlx"));
+
+        channel.basicPublish("", "delayed", PROPERTIES, "expired".getBytes());
+        channel.basicPublish("", "rejecting", PROPERTIES, "rejected".getBytes());
+        channel.basicReject(channel.basicGet("rejecting", false).getEnvelope().getDeliveryTag(), false);
+
+        assertEquals("rejected", get("parking"));
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((broker.getMessageCount("parking") == 0) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(10L);
+        }
+        final GetResponse expired = channel.basicGet("parking", true);
+        assertEquals("expired", new String(expired.getBody()));
+        assertTrue(expired.getProps().getHeaders().containsKey("x-death"));
+        assertEquals(2L, broker.getDeadLetteredCount());
+    }
+
+    @Test
+    public void testMandatoryReturn() throws Exception
+    {
+        final BlockingQueue<Integer> replyCodes = new LinkedBlockingQueue<Integer>();
+        channel.addReturnListener(new ReturnListener()
+        {
+            public void handleReturn(final int replyCode,
+                                     final String replyText,
+                                     final String exchange,
+                                     final String routingKey,
+                                     final BasicProperties properties,
+                                     final byte[] body) throws IOException
+            {
+                replyCodes.add(replyCode);
+            }
+        });
+
+        channel.basicPublish("", "no-such-queue", true, false, PROPERTIES, "body".getBytes());
+        assertEquals(Integer.valueOf(AMQP.NO_ROUTE), replyCodes.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1L, broker.getReturnedCount());
+    }
+
+    @Test
+    public void testConfirms() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        channel.confirmSelect();
+        assertEquals(1L, channel.getNextPublishSeqNo());
+
+        channel.basicPublish("", "q", PROPERTIES, "body".getBytes());
+        assertTrue(channel.waitForConfirms());
+
+        broker.getFaults().setConfirmNackRate(1D);
+        channel.basicPublish("", "q", PROPERTIES, "body".getBytes());
+        assertFalse(channel.waitForConfirms());
+        assertEquals(3L, channel.getNextPublishSeqNo());
+    }
+
+    @Test
+    public void testTransactions() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        channel.txSelect();
+
+        channel.basicPublish("", "q", PROPERTIES, "rolled back".getBytes());
+        channel.txRollback();
+        assertEquals(0, broker.getMessageCount("q"));
+
+        channel.basicPublish("", "q", PROPERTIES, "committed".getBytes());
+        assertEquals(0, broker.getMessageCount("q"));
+        channel.txCommit();
+        assertEquals(1, broker.getMessageCount("q"));
+    }
+
+    @Test
+    public void testChannelErrorClosesChannel() throws Exception
+    {
+        try
+        {
+            channel.queueDeclarePassive("no-such-queue");
+            fail("Exception expected");
+        }
+        catch (final IOException ioe)
+        {
+            assertTrue(ioe.getCause() instanceof ShutdownSignalException);
+        }
+        assertFalse(channel.isOpen());
+        assertTrue(connection.isOpen());
+    }
+
+    @Test
+    public void testInjectedFaults() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        broker.getFaults().setPublishFailureRate(1D);
+        try
+        {
+            channel.basicPublish("", "q", PROPERTIES, "body".getBytes());
+            fail("Exception expected");
+        }
+        catch (final IOException ioe)
+        {
+            // expected
+        }
+        assertTrue(channel.isOpen());
+        broker.getFaults().reset();
+
+        final CountDownLatch shutdownLatch = new CountDownLatch(1);
+        connection.addShutdownListener(new ShutdownListener()
+        {
+            public void shutdownCompleted(final ShutdownSignalException sse)
+            {
+                if (!sse.isInitiatedByApplication())
+                {
+                    shutdownLatch.countDown();
+                }
+            }
+        });
+        broker.killConnections();
+        assertTrue(shutdownLatch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(channel.isOpen());
+
+        broker.setAvailable(false);
+        try
+        {
+            new InMemoryConnectionFactory(broker).newConnection();
+            fail("Exception expected");
+        }
+        catch (final IOException ioe)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExclusiveQueueDeletedWithConnection() throws Exception
+    {
+        final String queue = channel.queueDeclare().getQueue();
+        assertTrue(broker.hasQueue(queue));
+        connection.close();
+        assertFalse(broker.hasQueue(queue));
+    }
+
+    @Test
+    public void testPublishedBodyIsCopied() throws Exception
+    {
+        channel.queueDeclare("q", false, false, false, null);
+        final byte[] body = "body".getBytes();
+        channel.basicPublish("", "q", PROPERTIES, body);
+        body[0] = 'B';
+        assertArrayEquals("body".getBytes(), channel.basicGet("q", true).getBody());
+    }
+}
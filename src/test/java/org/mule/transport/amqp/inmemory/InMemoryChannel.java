@@ -0,0 +1,1237 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.amqp.inmemory.InMemoryQueue.Subscription;
+import org.mule.util.UUID;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * The target of the {@link Channel} proxies handed out by an {@link InMemoryBroker}.
+ * As with RabbitMQ, consumers, return listeners and confirm listeners are called
+ * back in order, by a thread dedicated to the channel. Broker errors close the
+ * channel and are thrown as <code>IOException</code>s caused by the shutdown
+ * signal.
+ */
+final class InMemoryChannel
+{
+    private static final BasicProperties EMPTY_PROPERTIES = new BasicProperties.Builder().build();
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final InMemoryConnection connection;
+    private final InMemoryBroker broker;
+    private final int channelNumber;
+    private final Channel proxy;
+    private final ScheduledExecutorService callbackExecutor;
+
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<ShutdownListener>();
+    private final List<ReturnListener> returnListeners = new CopyOnWriteArrayList<ReturnListener>();
+    private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+    private volatile Consumer defaultConsumer;
+    private volatile ShutdownSignalException closeReason;
+
+    // guarded by the broker lock
+    private final Map<String, Subscription> subscriptions = new LinkedHashMap<String, Subscription>();
+    private final SortedMap<Long, Unacked> unacked = new TreeMap<Long, Unacked>();
+    private final List<Runnable> transactedActions = new ArrayList<Runnable>();
+    private long nextDeliveryTag = 1L;
+    private int prefetchCount;
+    private boolean transactional;
+
+    // guarded by this
+    private boolean confirmMode;
+    private long nextPublishSeqNo;
+    private final SortedSet<Long> unconfirmed = new TreeSet<Long>();
+    private boolean nacked;
+
+    private static final class Unacked
+    {
+        private final InMemoryQueue queue;
+        private final QueuedMessage message;
+
+        private Unacked(final InMemoryQueue queue, final QueuedMessage message)
+        {
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+
+    InMemoryChannel(final InMemoryConnection connection, final int channelNumber)
+    {
+        this.connection = connection;
+        this.broker = connection.getBroker();
+        this.channelNumber = channelNumber;
+        this.proxy = DelegatingInvocationHandler.newProxy(Channel.class, this);
+        this.callbackExecutor = new ScheduledThreadPoolExecutor(1, InMemoryBroker.newThreadFactory(toString()));
+    }
+
+    Channel getProxy()
+    {
+        return proxy;
+    }
+
+    public int getChannelNumber()
+    {
+        return channelNumber;
+    }
+
+    public Connection getConnection()
+    {
+        return connection.getProxy();
+    }
+
+    // lifecycle
+
+    public void close() throws IOException
+    {
+        close(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void close(final int closeCode, final String closeMessage) throws IOException
+    {
+        ensureOpen();
+        shutdown(new ShutdownSignalException(false, true, closeCode + " " + closeMessage, proxy));
+    }
+
+    public void abort() throws IOException
+    {
+        abort(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void abort(final int closeCode, final String closeMessage) throws IOException
+    {
+        if (isOpen())
+        {
+            shutdown(new ShutdownSignalException(false, true, closeCode + " " + closeMessage, proxy));
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return closeReason == null;
+    }
+
+    public ShutdownSignalException getCloseReason()
+    {
+        return closeReason;
+    }
+
+    public void addShutdownListener(final ShutdownListener listener)
+    {
+        shutdownListeners.add(listener);
+        if (!isOpen())
+        {
+            listener.shutdownCompleted(closeReason);
+        }
+    }
+
+    public void removeShutdownListener(final ShutdownListener listener)
+    {
+        shutdownListeners.remove(listener);
+    }
+
+    public void notifyListeners()
+    {
+        for (final ShutdownListener listener : shutdownListeners)
+        {
+            try
+            {
+                listener.shutdownCompleted(closeReason);
+            }
+            catch (final RuntimeException re)
+            {
+                logger.warn("Shutdown listener: " + listener + " failed on: " + InMemoryChannel.this, re);
+            }
+        }
+    }
+
+    void shutdown(final ShutdownSignalException cause)
+    {
+        final List<Subscription> cancelledSubscriptions;
+        synchronized (broker.lock)
+        {
+            if (closeReason != null)
+            {
+                return;
+            }
+            closeReason = cause;
+
+            cancelledSubscriptions = new ArrayList<Subscription>(subscriptions.values());
+            for (final Subscription subscription : cancelledSubscriptions)
+            {
+                removeSubscription(subscription);
+            }
+            subscriptions.clear();
+            requeueUnacked(unacked.values());
+            unacked.clear();
+            transactedActions.clear();
+            connection.channelClosed(this);
+        }
+
+        for (final Subscription subscription : cancelledSubscriptions)
+        {
+            callback(new Runnable()
+            {
+                public void run()
+                {
+                    subscription.consumer.handleShutdownSignal(subscription.consumerTag, cause);
+                }
+            });
+        }
+        callbackExecutor.shutdown();
+
+        synchronized (this)
+        {
+            // wake up the threads waiting for confirms
+            notifyAll();
+        }
+        notifyListeners();
+    }
+
+    // listeners
+
+    public void addReturnListener(final ReturnListener listener)
+    {
+        returnListeners.add(listener);
+    }
+
+    public boolean removeReturnListener(final ReturnListener listener)
+    {
+        return returnListeners.remove(listener);
+    }
+
+    public void clearReturnListeners()
+    {
+        returnListeners.clear();
+    }
+
+    public void addConfirmListener(final ConfirmListener listener)
+    {
+        confirmListeners.add(listener);
+    }
+
+    public boolean removeConfirmListener(final ConfirmListener listener)
+    {
+        return confirmListeners.remove(listener);
+    }
+
+    public void clearConfirmListeners()
+    {
+        confirmListeners.clear();
+    }
+
+    public Consumer getDefaultConsumer()
+    {
+        return defaultConsumer;
+    }
+
+    public void setDefaultConsumer(final Consumer consumer)
+    {
+        this.defaultConsumer = consumer;
+    }
+
+    // declarations
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange, final String type)
+        throws IOException
+    {
+        return exchangeDeclare(exchange, type, false, false, null);
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange,
+                                                   final String type,
+                                                   final boolean durable) throws IOException
+    {
+        return exchangeDeclare(exchange, type, durable, false, null);
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange,
+                                                   final String type,
+                                                   final boolean durable,
+                                                   final boolean autoDelete,
+                                                   final Map<String, Object> arguments) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                broker.declareExchange(exchange, type, durable, autoDelete);
+            }
+            return new AMQImpl.Exchange.DeclareOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclarePassive(final String exchange) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                broker.getExchange(exchange);
+            }
+            return new AMQImpl.Exchange.DeclareOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Exchange.DeleteOk exchangeDelete(final String exchange) throws IOException
+    {
+        return exchangeDelete(exchange, false);
+    }
+
+    public AMQP.Exchange.DeleteOk exchangeDelete(final String exchange, final boolean ifUnused)
+        throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                broker.deleteExchange(exchange, ifUnused);
+            }
+            return new AMQImpl.Exchange.DeleteOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Queue.DeclareOk queueDeclare() throws IOException
+    {
+        return queueDeclare("", false, true, true, null);
+    }
+
+    public AMQP.Queue.DeclareOk queueDeclare(final String queue,
+                                             final boolean durable,
+                                             final boolean exclusive,
+                                             final boolean autoDelete,
+                                             final Map<String, Object> arguments) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                final InMemoryQueue declaredQueue = broker.declareQueue(queue, durable, exclusive,
+                    autoDelete, arguments, connection);
+                return new AMQImpl.Queue.DeclareOk(declaredQueue.getName(),
+                    declaredQueue.getMessageCount(), declaredQueue.getConsumerCount());
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Queue.DeclareOk queueDeclarePassive(final String queue) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                final InMemoryQueue declaredQueue = broker.getQueue(queue, connection);
+                return new AMQImpl.Queue.DeclareOk(declaredQueue.getName(),
+                    declaredQueue.getMessageCount(), declaredQueue.getConsumerCount());
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Queue.DeleteOk queueDelete(final String queue) throws IOException
+    {
+        return queueDelete(queue, false, false);
+    }
+
+    public AMQP.Queue.DeleteOk queueDelete(final String queue, final boolean ifUnused, final boolean ifEmpty)
+        throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                final InMemoryQueue deletedQueue = broker.getQueue(queue, connection);
+                if (ifUnused && (deletedQueue.getConsumerCount() > 0))
+                {
+                    throw AmqpError.preconditionFailed("queue '" + queue + "' in use");
+                }
+                if (ifEmpty && (deletedQueue.getMessageCount() > 0))
+                {
+                    throw AmqpError.preconditionFailed("queue '" + queue + "' not empty");
+                }
+                return new AMQImpl.Queue.DeleteOk(broker.deleteQueue(deletedQueue));
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Queue.BindOk queueBind(final String queue, final String exchange, final String routingKey)
+        throws IOException
+    {
+        return queueBind(queue, exchange, routingKey, null);
+    }
+
+    public AMQP.Queue.BindOk queueBind(final String queue,
+                                       final String exchange,
+                                       final String routingKey,
+                                       final Map<String, Object> arguments) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                final InMemoryQueue boundQueue = broker.getQueue(queue, connection);
+                final InMemoryExchange boundExchange = broker.getExchange(exchange);
+                if (InMemoryBroker.DEFAULT_EXCHANGE.equals(exchange))
+                {
+                    throw AmqpError.accessRefused("operation not permitted on the default exchange");
+                }
+                boundExchange.bind(boundQueue, routingKey, arguments);
+            }
+            return new AMQImpl.Queue.BindOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Queue.UnbindOk queueUnbind(final String queue, final String exchange, final String routingKey)
+        throws IOException
+    {
+        return queueUnbind(queue, exchange, routingKey, null);
+    }
+
+    public AMQP.Queue.UnbindOk queueUnbind(final String queue,
+                                           final String exchange,
+                                           final String routingKey,
+                                           final Map<String, Object> arguments) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                broker.getExchange(exchange).unbind(broker.getQueue(queue, connection), routingKey,
+                    arguments);
+            }
+            return new AMQImpl.Queue.UnbindOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Queue.PurgeOk queuePurge(final String queue) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                return new AMQImpl.Queue.PurgeOk(broker.getQueue(queue, connection).purge());
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    // publication
+
+    public void basicPublish(final String exchange,
+                             final String routingKey,
+                             final BasicProperties props,
+                             final byte[] body) throws IOException
+    {
+        basicPublish(exchange, routingKey, false, false, props, body);
+    }
+
+    public void basicPublish(final String exchange,
+                             final String routingKey,
+                             final boolean mandatory,
+                             final boolean immediate,
+                             final BasicProperties props,
+                             final byte[] body) throws IOException
+    {
+        ensureOpen();
+        injectChannelFailure();
+        broker.getFaults().pausePublisher();
+        if (broker.getFaults().shouldFailPublish())
+        {
+            throw new IOException("Injected publication failure on: " + this);
+        }
+
+        final BasicProperties properties = props == null ? EMPTY_PROPERTIES : props;
+        // the publisher is free to reuse its body array once published
+        final byte[] publishedBody = body == null ? new byte[0] : body.clone();
+        final long seqNo = nextPublishSeqNo();
+
+        final Runnable publication = new Runnable()
+        {
+            public void run()
+            {
+                final int replyCode = broker.publish(exchange, routingKey, mandatory, immediate, properties,
+                    publishedBody);
+                if (replyCode != 0)
+                {
+                    broker.messagesReturned();
+                    scheduleReturn(replyCode, exchange, routingKey, properties, publishedBody);
+                }
+                if (seqNo > 0L)
+                {
+                    scheduleConfirm(seqNo);
+                }
+            }
+        };
+
+        try
+        {
+            synchronized (broker.lock)
+            {
+                if (transactional)
+                {
+                    transactedActions.add(publication);
+                }
+                else
+                {
+                    publication.run();
+                }
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    private void scheduleReturn(final int replyCode,
+                                final String exchange,
+                                final String routingKey,
+                                final BasicProperties properties,
+                                final byte[] body)
+    {
+        final String replyText = replyCode == AMQP.NO_ROUTE ? "NO_ROUTE" : "NO_CONSUMERS";
+        callback(new Runnable()
+        {
+            public void run()
+            {
+                for (final ReturnListener returnListener : returnListeners)
+                {
+                    try
+                    {
+                        returnListener.handleReturn(replyCode, replyText, exchange, routingKey, properties,
+                            body);
+                    }
+                    catch (final Exception e)
+                    {
+                        logger.warn("Return listener: " + returnListener + " failed on: " + InMemoryChannel.this, e);
+                    }
+                }
+            }
+        });
+    }
+
+    // confirms
+
+    public AMQP.Confirm.SelectOk confirmSelect() throws IOException
+    {
+        ensureOpen();
+        final boolean wasTransactional;
+        synchronized (broker.lock)
+        {
+            wasTransactional = transactional;
+        }
+        if (wasTransactional)
+        {
+            throw channelError(AmqpError.preconditionFailed("cannot switch from tx to confirm mode"));
+        }
+
+        synchronized (this)
+        {
+            if (!confirmMode)
+            {
+                confirmMode = true;
+                nextPublishSeqNo = 1L;
+            }
+        }
+        return new AMQImpl.Confirm.SelectOk();
+    }
+
+    public synchronized long getNextPublishSeqNo()
+    {
+        return nextPublishSeqNo;
+    }
+
+    public boolean waitForConfirms() throws InterruptedException
+    {
+        try
+        {
+            return waitForConfirms(0L);
+        }
+        catch (final TimeoutException te)
+        {
+            // can't happen without time out
+            throw new IllegalStateException(te);
+        }
+    }
+
+    public synchronized boolean waitForConfirms(final long timeout)
+        throws InterruptedException, TimeoutException
+    {
+        if (!confirmMode)
+        {
+            throw new IllegalStateException("Confirms not selected on: " + this);
+        }
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (!unconfirmed.isEmpty())
+        {
+            if (!isOpen())
+            {
+                throw closeReason;
+            }
+
+            if (timeout <= 0L)
+            {
+                wait();
+            }
+            else
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L)
+                {
+                    throw new TimeoutException("Timed out waiting for confirms on: " + this);
+                }
+                wait(remaining);
+            }
+        }
+
+        final boolean allAcked = !nacked;
+        nacked = false;
+        return allAcked;
+    }
+
+    public void waitForConfirmsOrDie() throws IOException, InterruptedException
+    {
+        if (!waitForConfirms())
+        {
+            close(AMQP.REPLY_SUCCESS, "NACKS RECEIVED");
+            throw new IOException("nacks received");
+        }
+    }
+
+    public void waitForConfirmsOrDie(final long timeout)
+        throws IOException, InterruptedException, TimeoutException
+    {
+        if (!waitForConfirms(timeout))
+        {
+            close(AMQP.REPLY_SUCCESS, "NACKS RECEIVED");
+            throw new IOException("nacks received");
+        }
+    }
+
+    private synchronized long nextPublishSeqNo()
+    {
+        if (!confirmMode)
+        {
+            return 0L;
+        }
+        unconfirmed.add(nextPublishSeqNo);
+        return nextPublishSeqNo++;
+    }
+
+    private void scheduleConfirm(final long seqNo)
+    {
+        final boolean nack = broker.getFaults().shouldNackConfirm();
+        callback(new Runnable()
+        {
+            public void run()
+            {
+                for (final ConfirmListener confirmListener : confirmListeners)
+                {
+                    try
+                    {
+                        if (nack)
+                        {
+                            confirmListener.handleNack(seqNo, false);
+                        }
+                        else
+                        {
+                            confirmListener.handleAck(seqNo, false);
+                        }
+                    }
+                    catch (final Exception e)
+                    {
+                        logger.warn("Confirm listener: " + confirmListener + " failed on: " + InMemoryChannel.this, e);
+                    }
+                }
+
+                synchronized (InMemoryChannel.this)
+                {
+                    unconfirmed.remove(seqNo);
+                    nacked |= nack;
+                    InMemoryChannel.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    // consumption
+
+    public void basicQos(final int prefetchCount) throws IOException
+    {
+        basicQos(0, prefetchCount, false);
+    }
+
+    public void basicQos(final int prefetchSize, final int prefetchCount, final boolean global)
+        throws IOException
+    {
+        ensureOpen();
+        synchronized (broker.lock)
+        {
+            this.prefetchCount = prefetchCount;
+            dispatchSubscribedQueues();
+        }
+    }
+
+    public String basicConsume(final String queue, final Consumer callback) throws IOException
+    {
+        return basicConsume(queue, false, callback);
+    }
+
+    public String basicConsume(final String queue, final boolean autoAck, final Consumer callback)
+        throws IOException
+    {
+        return basicConsume(queue, autoAck, "", callback);
+    }
+
+    public String basicConsume(final String queue,
+                               final boolean autoAck,
+                               final String consumerTag,
+                               final Consumer callback) throws IOException
+    {
+        return basicConsume(queue, autoAck, consumerTag, false, false, null, callback);
+    }
+
+    public String basicConsume(final String queue,
+                               final boolean autoAck,
+                               final String consumerTag,
+                               final boolean noLocal,
+                               final boolean exclusive,
+                               final Map<String, Object> arguments,
+                               final Consumer callback) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                final InMemoryQueue consumedQueue = broker.getQueue(queue, connection);
+                if (consumedQueue.hasExclusiveSubscription()
+                    || (exclusive && (consumedQueue.getConsumerCount() > 0)))
+                {
+                    throw AmqpError.accessRefused("queue '" + queue + "' in exclusive use");
+                }
+
+                final String tag = StringUtils.isEmpty(consumerTag)
+                                                                   ? "amq.ctag-" + UUID.getUUID()
+                                                                   : consumerTag;
+                if (subscriptions.containsKey(tag))
+                {
+                    throw AmqpError.notAllowed("attempt to reuse consumer tag '" + tag + "'");
+                }
+
+                final Subscription subscription = new Subscription(this, consumedQueue, tag, autoAck,
+                    exclusive, callback);
+                subscriptions.put(tag, subscription);
+                consumedQueue.addSubscription(subscription);
+
+                callback(new Runnable()
+                {
+                    public void run()
+                    {
+                        callback.handleConsumeOk(tag);
+                    }
+                });
+
+                broker.dispatch(consumedQueue);
+                return tag;
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public void basicCancel(final String consumerTag) throws IOException
+    {
+        ensureOpen();
+        final Subscription subscription;
+        synchronized (broker.lock)
+        {
+            subscription = subscriptions.remove(consumerTag);
+            if (subscription == null)
+            {
+                throw new IOException("Unknown consumerTag: " + consumerTag);
+            }
+            removeSubscription(subscription);
+        }
+
+        callback(new Runnable()
+        {
+            public void run()
+            {
+                subscription.consumer.handleCancelOk(consumerTag);
+            }
+        });
+    }
+
+    public GetResponse basicGet(final String queue, final boolean autoAck) throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                final InMemoryQueue gotQueue = broker.getQueue(queue, connection);
+                broker.expireMessages(gotQueue);
+
+                final QueuedMessage message = gotQueue.poll();
+                if (message == null)
+                {
+                    return null;
+                }
+
+                final long deliveryTag = recordDelivery(gotQueue, message, autoAck);
+                return new GetResponse(new Envelope(deliveryTag, message.redelivered, message.exchange,
+                    message.routingKey), message.properties, message.body, gotQueue.getMessageCount());
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    // settlement
+
+    public void basicAck(final long deliveryTag, final boolean multiple) throws IOException
+    {
+        settle(deliveryTag, multiple, true, false);
+    }
+
+    public void basicNack(final long deliveryTag, final boolean multiple, final boolean requeue)
+        throws IOException
+    {
+        settle(deliveryTag, multiple, false, requeue);
+    }
+
+    public void basicReject(final long deliveryTag, final boolean requeue) throws IOException
+    {
+        settle(deliveryTag, false, false, requeue);
+    }
+
+    public AMQP.Basic.RecoverOk basicRecover() throws IOException
+    {
+        return basicRecover(true);
+    }
+
+    public AMQP.Basic.RecoverOk basicRecover(final boolean requeue) throws IOException
+    {
+        // redelivering to the same consumer is not supported: messages are always
+        // requeued
+        ensureOpen();
+        synchronized (broker.lock)
+        {
+            requeueUnacked(unacked.values());
+            unacked.clear();
+        }
+        return new AMQImpl.Basic.RecoverOk();
+    }
+
+    public void basicRecoverAsync(final boolean requeue) throws IOException
+    {
+        basicRecover(requeue);
+    }
+
+    private void settle(final long deliveryTag,
+                        final boolean multiple,
+                        final boolean ack,
+                        final boolean requeue) throws IOException
+    {
+        ensureOpen();
+        injectChannelFailure();
+
+        final Runnable settlement = new Runnable()
+        {
+            public void run()
+            {
+                final List<Unacked> settled = takeUnacked(deliveryTag, multiple);
+                if (ack)
+                {
+                    broker.messagesAcked(settled.size());
+                }
+                else if (requeue)
+                {
+                    broker.messagesRejected(settled.size());
+                    requeueUnacked(settled);
+                }
+                else
+                {
+                    broker.messagesRejected(settled.size());
+                    for (final Unacked rejected : settled)
+                    {
+                        broker.deadLetter(rejected.queue, rejected.message, "rejected");
+                    }
+                }
+                dispatchSubscribedQueues();
+            }
+        };
+
+        try
+        {
+            synchronized (broker.lock)
+            {
+                if (transactional)
+                {
+                    transactedActions.add(settlement);
+                }
+                else
+                {
+                    settlement.run();
+                }
+            }
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    private List<Unacked> takeUnacked(final long deliveryTag, final boolean multiple)
+    {
+        if (!multiple)
+        {
+            final Unacked settled = unacked.remove(deliveryTag);
+            if (settled == null)
+            {
+                throw AmqpError.preconditionFailed("unknown delivery tag " + deliveryTag);
+            }
+            return Collections.singletonList(settled);
+        }
+
+        // a zero delivery tag with multiple set settles all outstanding deliveries
+        final SortedMap<Long, Unacked> settledMap = deliveryTag == 0L ? unacked : unacked.headMap(deliveryTag + 1L);
+        if ((deliveryTag != 0L) && (!unacked.containsKey(deliveryTag)))
+        {
+            throw AmqpError.preconditionFailed("unknown delivery tag " + deliveryTag);
+        }
+        final List<Unacked> settled = new ArrayList<Unacked>(settledMap.values());
+        settledMap.clear();
+        return settled;
+    }
+
+    private void requeueUnacked(final Collection<Unacked> requeued)
+    {
+        final List<Unacked> reversed = new ArrayList<Unacked>(requeued);
+        Collections.reverse(reversed);
+
+        // requeued in reverse order at the head of their queues to preserve ordering
+        final Set<InMemoryQueue> requeuedQueues = new HashSet<InMemoryQueue>();
+        for (final Unacked unackedMessage : reversed)
+        {
+            broker.requeue(unackedMessage.queue, unackedMessage.message);
+            requeuedQueues.add(unackedMessage.queue);
+        }
+
+        for (final InMemoryQueue queue : requeuedQueues)
+        {
+            if (broker.hasQueue(queue.getName()))
+            {
+                broker.dispatch(queue);
+            }
+        }
+    }
+
+    // transactions
+
+    public AMQP.Tx.SelectOk txSelect() throws IOException
+    {
+        ensureOpen();
+        final boolean wasConfirming;
+        synchronized (this)
+        {
+            wasConfirming = confirmMode;
+        }
+        if (wasConfirming)
+        {
+            throw channelError(AmqpError.preconditionFailed("cannot switch from confirm to tx mode"));
+        }
+
+        synchronized (broker.lock)
+        {
+            transactional = true;
+        }
+        return new AMQImpl.Tx.SelectOk();
+    }
+
+    public AMQP.Tx.CommitOk txCommit() throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                ensureTransactional();
+                try
+                {
+                    for (final Runnable transactedAction : transactedActions)
+                    {
+                        transactedAction.run();
+                    }
+                }
+                finally
+                {
+                    transactedActions.clear();
+                }
+            }
+            return new AMQImpl.Tx.CommitOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    public AMQP.Tx.RollbackOk txRollback() throws IOException
+    {
+        ensureOpen();
+        try
+        {
+            synchronized (broker.lock)
+            {
+                ensureTransactional();
+                // as with RabbitMQ, rolling back does not requeue unacknowledged messages
+                transactedActions.clear();
+            }
+            return new AMQImpl.Tx.RollbackOk();
+        }
+        catch (final AmqpError ae)
+        {
+            throw channelError(ae);
+        }
+    }
+
+    private void ensureTransactional()
+    {
+        if (!transactional)
+        {
+            throw AmqpError.preconditionFailed("channel is not transactional");
+        }
+    }
+
+    // broker side, called while holding the broker lock
+
+    boolean canDeliver()
+    {
+        return (closeReason == null) && ((prefetchCount == 0) || (unacked.size() < prefetchCount));
+    }
+
+    void deliver(final Subscription subscription, final QueuedMessage message)
+    {
+        final long deliveryTag = recordDelivery(subscription.queue, message, subscription.autoAck);
+        final Envelope envelope = new Envelope(deliveryTag, message.redelivered, message.exchange,
+            message.routingKey);
+
+        callback(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    subscription.consumer.handleDelivery(subscription.consumerTag, envelope,
+                        message.properties, message.body);
+                }
+                catch (final Exception e)
+                {
+                    logger.warn("Consumer: " + subscription.consumer + " failed on: " + InMemoryChannel.this, e);
+                }
+            }
+        }, broker.getFaults().getDeliveryLatency());
+    }
+
+    void subscriptionCancelled(final Subscription subscription)
+    {
+        subscriptions.remove(subscription.consumerTag);
+        subscription.queue.removeSubscription(subscription);
+
+        callback(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    subscription.consumer.handleCancel(subscription.consumerTag);
+                }
+                catch (final IOException ioe)
+                {
+                    logger.warn("Consumer: " + subscription.consumer + " failed on: " + InMemoryChannel.this, ioe);
+                }
+            }
+        });
+    }
+
+    private long recordDelivery(final InMemoryQueue queue, final QueuedMessage message, final boolean autoAck)
+    {
+        final long deliveryTag = nextDeliveryTag++;
+        if (!autoAck)
+        {
+            unacked.put(deliveryTag, new Unacked(queue, message));
+        }
+        broker.messageDelivered();
+        return deliveryTag;
+    }
+
+    private void removeSubscription(final Subscription subscription)
+    {
+        subscription.queue.removeSubscription(subscription);
+        if (subscription.queue.isAutoDelete() && (subscription.queue.getConsumerCount() == 0)
+            && (broker.hasQueue(subscription.queue.getName())))
+        {
+            broker.deleteQueue(subscription.queue);
+        }
+    }
+
+    private void dispatchSubscribedQueues()
+    {
+        for (final Subscription subscription : subscriptions.values())
+        {
+            broker.dispatch(subscription.queue);
+        }
+    }
+
+    // plumbing
+
+    private void callback(final Runnable runnable)
+    {
+        callback(runnable, 0L);
+    }
+
+    private void callback(final Runnable runnable, final long delay)
+    {
+        try
+        {
+            callbackExecutor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException ree)
+        {
+            // the channel is closed
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Dropped callback on closed: " + this);
+            }
+        }
+    }
+
+    private void ensureOpen()
+    {
+        if (!isOpen())
+        {
+            throw new AlreadyClosedException("channel is already closed due to: " + closeReason.getReason(),
+                proxy);
+        }
+    }
+
+    private void injectChannelFailure() throws IOException
+    {
+        if (broker.getFaults().shouldFailChannel())
+        {
+            throw channelError(AmqpError.internalError("injected channel failure"));
+        }
+    }
+
+    private IOException channelError(final AmqpError error)
+    {
+        final ShutdownSignalException cause = new ShutdownSignalException(false, false,
+            error.getReplyCode() + " " + error.getMessage(), proxy);
+        shutdown(cause);
+
+        final IOException ioe = new IOException(error.getMessage());
+        ioe.initCause(cause);
+        return ioe;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InMemoryChannel[" + connection + ", " + channelNumber + "]";
+    }
+}
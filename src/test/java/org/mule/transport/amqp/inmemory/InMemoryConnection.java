@@ -0,0 +1,280 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * The target of the {@link Connection} proxies handed out by an
+ * {@link InMemoryBroker}.
+ */
+final class InMemoryConnection
+{
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final InMemoryBroker broker;
+    private final int id;
+    private final Connection proxy;
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<ShutdownListener>();
+    private final Map<Integer, InMemoryChannel> channels = new HashMap<Integer, InMemoryChannel>();
+    private int nextChannelNumber = 1;
+    private volatile ShutdownSignalException closeReason;
+
+    InMemoryConnection(final InMemoryBroker broker, final int id)
+    {
+        this.broker = broker;
+        this.id = id;
+        this.proxy = DelegatingInvocationHandler.newProxy(Connection.class, this);
+    }
+
+    Connection getProxy()
+    {
+        return proxy;
+    }
+
+    InMemoryBroker getBroker()
+    {
+        return broker;
+    }
+
+    public Channel createChannel() throws IOException
+    {
+        synchronized (broker.lock)
+        {
+            while (channels.containsKey(nextChannelNumber))
+            {
+                nextChannelNumber++;
+            }
+            return createChannel(nextChannelNumber++);
+        }
+    }
+
+    public Channel createChannel(final int channelNumber) throws IOException
+    {
+        ensureOpen();
+
+        synchronized (broker.lock)
+        {
+            if (channels.containsKey(channelNumber))
+            {
+                return null;
+            }
+
+            final InMemoryChannel channel = new InMemoryChannel(this, channelNumber);
+            channels.put(channelNumber, channel);
+            return channel.getProxy();
+        }
+    }
+
+    // guarded by the broker lock
+    int getChannelCount()
+    {
+        return channels.size();
+    }
+
+    void channelClosed(final InMemoryChannel channel)
+    {
+        synchronized (broker.lock)
+        {
+            channels.remove(channel.getChannelNumber());
+        }
+    }
+
+    public void close() throws IOException
+    {
+        close(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void close(final int timeout) throws IOException
+    {
+        close();
+    }
+
+    public void close(final int closeCode, final String closeMessage) throws IOException
+    {
+        ensureOpen();
+        shutdown(new ShutdownSignalException(true, true, closeCode + " " + closeMessage, proxy));
+    }
+
+    public void close(final int closeCode, final String closeMessage, final int timeout) throws IOException
+    {
+        close(closeCode, closeMessage);
+    }
+
+    public void abort()
+    {
+        abort(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void abort(final int timeout)
+    {
+        abort();
+    }
+
+    public void abort(final int closeCode, final String closeMessage)
+    {
+        if (isOpen())
+        {
+            shutdown(new ShutdownSignalException(true, true, closeCode + " " + closeMessage, proxy));
+        }
+    }
+
+    public void abort(final int closeCode, final String closeMessage, final int timeout)
+    {
+        abort(closeCode, closeMessage);
+    }
+
+    /**
+     * Closes the connection as if the broker had crashed.
+     */
+    void kill()
+    {
+        if (isOpen())
+        {
+            shutdown(new ShutdownSignalException(true, false, AMQP.CONNECTION_FORCED
+                                                              + " CONNECTION_FORCED - broker forced connection closure",
+                proxy));
+        }
+    }
+
+    private void shutdown(final ShutdownSignalException cause)
+    {
+        final List<InMemoryChannel> closedChannels;
+        synchronized (broker.lock)
+        {
+            if (closeReason != null)
+            {
+                return;
+            }
+            closeReason = cause;
+            closedChannels = new ArrayList<InMemoryChannel>(channels.values());
+        }
+
+        for (final InMemoryChannel channel : closedChannels)
+        {
+            channel.shutdown(cause);
+        }
+        broker.connectionClosed(this);
+        notifyListeners();
+    }
+
+    public boolean isOpen()
+    {
+        return closeReason == null;
+    }
+
+    public ShutdownSignalException getCloseReason()
+    {
+        return closeReason;
+    }
+
+    public void addShutdownListener(final ShutdownListener listener)
+    {
+        shutdownListeners.add(listener);
+        if (!isOpen())
+        {
+            listener.shutdownCompleted(closeReason);
+        }
+    }
+
+    public void removeShutdownListener(final ShutdownListener listener)
+    {
+        shutdownListeners.remove(listener);
+    }
+
+    public void notifyListeners()
+    {
+        for (final ShutdownListener listener : shutdownListeners)
+        {
+            try
+            {
+                listener.shutdownCompleted(closeReason);
+            }
+            catch (final RuntimeException re)
+            {
+                logger.warn("Shutdown listener: " + listener + " failed on: " + this, re);
+            }
+        }
+    }
+
+    public InetAddress getAddress()
+    {
+        try
+        {
+            return InetAddress.getByName("127.0.0.1");
+        }
+        catch (final IOException ioe)
+        {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    public int getPort()
+    {
+        return AMQP.PROTOCOL.PORT;
+    }
+
+    public int getChannelMax()
+    {
+        return 0;
+    }
+
+    public int getFrameMax()
+    {
+        return 0;
+    }
+
+    public int getHeartbeat()
+    {
+        return 0;
+    }
+
+    public Map<String, Object> getClientProperties()
+    {
+        return Collections.emptyMap();
+    }
+
+    public Map<String, Object> getServerProperties()
+    {
+        return Collections.<String, Object> singletonMap("product", "Mule in-memory AMQP broker");
+    }
+
+    private void ensureOpen()
+    {
+        if (!isOpen())
+        {
+            throw new AlreadyClosedException("connection is already closed", proxy);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InMemoryConnection[" + id + "]";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Connects to an {@link InMemoryBroker} instead of a real broker, whatever the
+ * addresses. Set it on the connector with <code>connectionFactory-ref</code> to run
+ * flows offline.
+ */
+public class InMemoryConnectionFactory extends ConnectionFactory
+{
+    private final InMemoryBroker broker;
+
+    public InMemoryConnectionFactory()
+    {
+        this(new InMemoryBroker());
+    }
+
+    public InMemoryConnectionFactory(final InMemoryBroker broker)
+    {
+        super();
+        this.broker = broker;
+    }
+
+    public InMemoryBroker getBroker()
+    {
+        return broker;
+    }
+
+    @Override
+    public Connection newConnection() throws IOException
+    {
+        return broker.newConnection();
+    }
+
+    @Override
+    public Connection newConnection(final Address[] addrs) throws IOException
+    {
+        return broker.newConnection();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * An exchange of an {@link InMemoryBroker}, routing messages to its bound queues
+ * with the direct, fanout, topic or headers semantics. Guarded by the broker lock.
+ */
+final class InMemoryExchange
+{
+    static final String DIRECT = "direct";
+    static final String FANOUT = "fanout";
+    static final String TOPIC = "topic";
+    static final String HEADERS = "headers";
+
+    private final String name;
+    private final String type;
+    private final boolean durable;
+    private final boolean autoDelete;
+    private final List<Binding> bindings = new ArrayList<Binding>();
+
+    InMemoryExchange(final String name, final String type, final boolean durable, final boolean autoDelete)
+    {
+        this.name = name;
+        this.type = type;
+        this.durable = durable;
+        this.autoDelete = autoDelete;
+    }
+
+    static boolean isSupportedType(final String type)
+    {
+        return DIRECT.equals(type) || FANOUT.equals(type) || TOPIC.equals(type) || HEADERS.equals(type);
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    String getType()
+    {
+        return type;
+    }
+
+    boolean isDurable()
+    {
+        return durable;
+    }
+
+    boolean isAutoDelete()
+    {
+        return autoDelete;
+    }
+
+    boolean hasBindings()
+    {
+        return !bindings.isEmpty();
+    }
+
+    void bind(final InMemoryQueue queue, final String routingKey, final Map<String, Object> arguments)
+    {
+        final Binding binding = new Binding(queue, routingKey, arguments);
+        if (!bindings.contains(binding))
+        {
+            bindings.add(binding);
+        }
+    }
+
+    void unbind(final InMemoryQueue queue, final String routingKey, final Map<String, Object> arguments)
+    {
+        bindings.remove(new Binding(queue, routingKey, arguments));
+    }
+
+    void unbindAll(final InMemoryQueue queue)
+    {
+        for (final Iterator<Binding> i = bindings.iterator(); i.hasNext();)
+        {
+            if (i.next().queue == queue)
+            {
+                i.remove();
+            }
+        }
+    }
+
+    Collection<InMemoryQueue> route(final String routingKey, final BasicProperties properties)
+    {
+        if (bindings.isEmpty())
+        {
+            return Collections.emptySet();
+        }
+
+        // a queue gets one copy of a message, whatever the number of matching bindings
+        final Set<InMemoryQueue> queues = new LinkedHashSet<InMemoryQueue>();
+        for (final Binding binding : bindings)
+        {
+            if (binding.matches(type, routingKey, properties))
+            {
+                queues.add(binding.queue);
+            }
+        }
+        return queues;
+    }
+
+    static boolean matchesTopic(final String pattern, final String routingKey)
+    {
+        return matchesTopic(pattern.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+    }
+
+    private static boolean matchesTopic(final String[] pattern,
+                                        final int patternIndex,
+                                        final String[] words,
+                                        final int wordIndex)
+    {
+        if (patternIndex == pattern.length)
+        {
+            return wordIndex == words.length;
+        }
+
+        final String patternWord = pattern[patternIndex];
+        if ("#".equals(patternWord))
+        {
+            // # matches zero or more words
+            for (int i = wordIndex; i <= words.length; i++)
+            {
+                if (matchesTopic(pattern, patternIndex + 1, words, i))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (wordIndex == words.length)
+        {
+            return false;
+        }
+
+        return ("*".equals(patternWord) || patternWord.equals(words[wordIndex]))
+               && matchesTopic(pattern, patternIndex + 1, words, wordIndex + 1);
+    }
+
+    static boolean matchesHeaders(final Map<String, Object> arguments, final Map<String, Object> headers)
+    {
+        final boolean matchAny = (arguments != null) && "any".equals(String.valueOf(arguments.get("x-match")));
+        boolean matchedAny = false;
+
+        if (arguments != null)
+        {
+            for (final Entry<String, Object> argument : arguments.entrySet())
+            {
+                if (argument.getKey().startsWith("x-"))
+                {
+                    continue;
+                }
+
+                final boolean matched = (headers != null) && headers.containsKey(argument.getKey())
+                                        && ((argument.getValue() == null)
+                                            || String.valueOf(argument.getValue()).equals(
+                                            String.valueOf(headers.get(argument.getKey()))));
+
+                if (matched)
+                {
+                    matchedAny = true;
+                }
+                else if (!matchAny)
+                {
+                    return false;
+                }
+            }
+        }
+
+        return matchAny ? matchedAny : true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InMemoryExchange[" + name + ", " + type + "]";
+    }
+
+    private static final class Binding
+    {
+        private final InMemoryQueue queue;
+        private final String routingKey;
+        private final Map<String, Object> arguments;
+
+        private Binding(final InMemoryQueue queue, final String routingKey, final Map<String, Object> arguments)
+        {
+            this.queue = queue;
+            this.routingKey = routingKey == null ? "" : routingKey;
+            this.arguments = arguments;
+        }
+
+        private boolean matches(final String type, final String messageRoutingKey, final BasicProperties properties)
+        {
+            if (FANOUT.equals(type))
+            {
+                return true;
+            }
+            if (TOPIC.equals(type))
+            {
+                return matchesTopic(routingKey, messageRoutingKey);
+            }
+            if (HEADERS.equals(type))
+            {
+                return matchesHeaders(arguments, properties == null ? null : properties.getHeaders());
+            }
+            return routingKey.equals(messageRoutingKey);
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Binding))
+            {
+                return false;
+            }
+            final Binding other = (Binding) obj;
+            return (queue == other.queue) && routingKey.equals(other.routingKey)
+                   && (arguments == null ? other.arguments == null : arguments.equals(other.arguments));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return queue.hashCode() * 31 + routingKey.hashCode();
+        }
+    }
+}
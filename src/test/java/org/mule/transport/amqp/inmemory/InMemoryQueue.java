@@ -0,0 +1,206 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.rabbitmq.client.Consumer;
+
+/**
+ * A queue of an {@link InMemoryBroker} and its subscriptions, to which messages are
+ * delivered in a round-robin fashion. Guarded by the broker lock.
+ */
+final class InMemoryQueue
+{
+    static final class Subscription
+    {
+        final InMemoryChannel channel;
+        final InMemoryQueue queue;
+        final String consumerTag;
+        final boolean autoAck;
+        final boolean exclusive;
+        final Consumer consumer;
+
+        Subscription(final InMemoryChannel channel,
+                     final InMemoryQueue queue,
+                     final String consumerTag,
+                     final boolean autoAck,
+                     final boolean exclusive,
+                     final Consumer consumer)
+        {
+            this.channel = channel;
+            this.queue = queue;
+            this.consumerTag = consumerTag;
+            this.autoAck = autoAck;
+            this.exclusive = exclusive;
+            this.consumer = consumer;
+        }
+    }
+
+    private final String name;
+    private final boolean durable;
+    private final boolean exclusive;
+    private final boolean autoDelete;
+    private final InMemoryConnection owner;
+    private final long messageTtl;
+    private final String deadLetterExchange;
+    private final String deadLetterRoutingKey;
+    private final LinkedList<QueuedMessage> messages = new LinkedList<QueuedMessage>();
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private int nextSubscription;
+
+    InMemoryQueue(final String name,
+                  final boolean durable,
+                  final boolean exclusive,
+                  final boolean autoDelete,
+                  final InMemoryConnection owner,
+                  final long messageTtl,
+                  final String deadLetterExchange,
+                  final String deadLetterRoutingKey)
+    {
+        this.name = name;
+        this.durable = durable;
+        this.exclusive = exclusive;
+        this.autoDelete = autoDelete;
+        this.owner = owner;
+        this.messageTtl = messageTtl;
+        this.deadLetterExchange = deadLetterExchange;
+        this.deadLetterRoutingKey = deadLetterRoutingKey;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    boolean isDurable()
+    {
+        return durable;
+    }
+
+    boolean isExclusive()
+    {
+        return exclusive;
+    }
+
+    boolean isAutoDelete()
+    {
+        return autoDelete;
+    }
+
+    InMemoryConnection getOwner()
+    {
+        return owner;
+    }
+
+    /**
+     * @return the time to live of the messages of this queue in milliseconds, or -1.
+     */
+    long getMessageTtl()
+    {
+        return messageTtl;
+    }
+
+    String getDeadLetterExchange()
+    {
+        return deadLetterExchange;
+    }
+
+    String getDeadLetterRoutingKey()
+    {
+        return deadLetterRoutingKey;
+    }
+
+    int getMessageCount()
+    {
+        return messages.size();
+    }
+
+    int getConsumerCount()
+    {
+        return subscriptions.size();
+    }
+
+    void offer(final QueuedMessage message)
+    {
+        messages.addLast(message);
+    }
+
+    void requeue(final QueuedMessage message)
+    {
+        message.redelivered = true;
+        messages.addFirst(message);
+    }
+
+    QueuedMessage peek()
+    {
+        return messages.peek();
+    }
+
+    QueuedMessage poll()
+    {
+        return messages.poll();
+    }
+
+    int purge()
+    {
+        final int messageCount = messages.size();
+        messages.clear();
+        return messageCount;
+    }
+
+    List<Subscription> getSubscriptions()
+    {
+        return subscriptions;
+    }
+
+    boolean hasExclusiveSubscription()
+    {
+        return (subscriptions.size() == 1) && subscriptions.get(0).exclusive;
+    }
+
+    void addSubscription(final Subscription subscription)
+    {
+        subscriptions.add(subscription);
+    }
+
+    void removeSubscription(final Subscription subscription)
+    {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * @return the next subscription, in round-robin order, whose channel can take one
+     *         more delivery, or null if none can.
+     */
+    Subscription nextAvailableSubscription()
+    {
+        final int subscriptionCount = subscriptions.size();
+        for (int i = 0; i < subscriptionCount; i++)
+        {
+            final Subscription subscription = subscriptions.get((nextSubscription + i) % subscriptionCount);
+            if (subscription.channel.canDeliver())
+            {
+                nextSubscription = (nextSubscription + i + 1) % subscriptionCount;
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InMemoryQueue[" + name + "]";
+    }
+}
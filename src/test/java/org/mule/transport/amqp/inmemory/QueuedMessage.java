@@ -0,0 +1,45 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.inmemory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A message held by an {@link InMemoryQueue}, either ready or waiting for its
+ * acknowledgment.
+ */
+final class QueuedMessage
+{
+    final String exchange;
+    final String routingKey;
+    final BasicProperties properties;
+    final byte[] body;
+    final long expiresAt;
+    boolean redelivered;
+
+    QueuedMessage(final String exchange,
+                  final String routingKey,
+                  final BasicProperties properties,
+                  final byte[] body,
+                  final long expiresAt)
+    {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.body = body;
+        this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(final long now)
+    {
+        return expiresAt <= now;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.tck.junit4.AbstractMuleContextTestCase;
+import org.mule.transport.amqp.AmqpConnector;
+
+public class AmqpStatisticsTestCase extends AbstractMuleContextTestCase
+{
+    @Test
+    public void testStripedCounterUnderContention() throws Exception
+    {
+        final StripedCounter counter = new StripedCounter();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(80000L, counter.sum());
+        counter.add(-80000L);
+        assertEquals(0L, counter.sum());
+    }
+
+    @Test
+    public void testEndpointStatisticsRollUpToConnector() throws Exception
+    {
+        final AmqpConnector amqpConnector = new AmqpConnector(muleContext);
+        amqpConnector.setName("amqpTestConnector");
+        final AmqpConnectorStatistics connectorStatistics = amqpConnector.getAmqpStatistics();
+
+        final InboundEndpoint endpoint = muleContext.getEndpointFactory().getInboundEndpoint(
+            "amqp://amqp-queue.target-queue");
+        final AmqpEndpointStatistics endpointStatistics = connectorStatistics.getEndpointStatistics(endpoint);
+        assertSame(endpointStatistics, connectorStatistics.getEndpointStatistics(endpoint));
+
+        endpointStatistics.messageConsumed();
+        endpointStatistics.processingStarted();
+        endpointStatistics.messageAcked();
+        endpointStatistics.processingEnded();
+        assertNull(endpointStatistics.getLastError());
+        endpointStatistics.errorOccurred(new IOException("boom"));
+
+        assertEquals(1L, endpointStatistics.getConsumedMessages());
+        assertEquals(1L, connectorStatistics.getConsumedMessages());
+        assertEquals(1L, connectorStatistics.getAckedMessages());
+        assertEquals(0L, connectorStatistics.getInFlightMessages());
+        assertEquals(1L, connectorStatistics.getErrorCount());
+        assertNotNull(connectorStatistics.getLastErrorTime());
+        assertEquals("java.io.IOException: boom", connectorStatistics.getLastError());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mule.transport.amqp.management.LatencyHistogram.Snapshot;
+
+public class LatencyHistogramTestCase
+{
+    @Test
+    public void testBucketBoundaries()
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+            assertTrue((index == 0) || (LatencyHistogram.highestValueOf(index - 1) < value));
+        }
+        assertTrue(LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE)) >= LatencyHistogram.MAX_VALUE);
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++)
+        {
+            histogram.recordMicros(i);
+        }
+
+        final Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000L, snapshot.getTotalCount());
+        assertEquals(1L, snapshot.getMin());
+        assertWithinPrecision(500L, snapshot.getValueAtPercentile(50));
+        assertWithinPrecision(990L, snapshot.getValueAtPercentile(99));
+        assertWithinPrecision(1000L, snapshot.getMax());
+    }
+
+    @Test
+    public void testSnapshotAndReset()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.recordNanos(5000000L);
+        histogram.recordMicros(-1L);
+
+        final Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(2L, snapshot.getTotalCount());
+        assertEquals(0L, snapshot.getMin());
+        assertWithinPrecision(5000L, snapshot.getMax());
+        assertEquals(0L, histogram.snapshot().getTotalCount());
+        assertEquals(0L, histogram.snapshot().getValueAtPercentile(99));
+    }
+
+    private static void assertWithinPrecision(final long expected, final long actual)
+    {
+        assertTrue("Expected ~" + expected + " but got: " + actual,
+            (actual >= expected) && (actual <= expected + expected / 32 + 1));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InvalidClassException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BodyCodecsTestCase
+{
+    @Test
+    public void testResolution() throws Exception
+    {
+        assertTrue(BodyCodecs.get("text/plain") instanceof TextBodyCodec);
+        assertTrue(BodyCodecs.get("TEXT/XML; charset=UTF-8") instanceof TextBodyCodec);
+        // deserialization is opt-in
+        assertNull(BodyCodecs.get(SerializedObjectBodyCodec.CONTENT_TYPE));
+        assertNull(BodyCodecs.get("application/octet-stream"));
+        assertNull(BodyCodecs.get(null));
+    }
+
+    @Test
+    public void testTextCharsets() throws Exception
+    {
+        final String text = "caf\u00e9";
+
+        assertArrayEquals(text.getBytes("UTF-16"),
+            BodyCodecs.encode(new StringBuilder(text), "text/plain; charset=\"UTF-16\"", "UTF-8"));
+        assertArrayEquals(text.getBytes("UTF-8"), BodyCodecs.encode(text.toCharArray(), "text/plain", "UTF-8"));
+
+        assertEquals(text, BodyCodecs.decode(text.getBytes("UTF-16"), "text/plain;charset=UTF-16", "UTF-8"));
+        assertEquals(text, BodyCodecs.decode(text.getBytes("ISO-8859-1"), "text/plain", "ISO-8859-1"));
+    }
+
+    @Test
+    public void testSerializedObjectRoundTrip() throws Exception
+    {
+        final SerializedObjectBodyCodec codec = new SerializedObjectBodyCodec("java.util.*");
+        final List<String> list = Arrays.asList("a", "b");
+        assertEquals(list, codec.decode(codec.encode(list, "UTF-8"), "UTF-8"));
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void testSerializedClassNotAllowed() throws Exception
+    {
+        final SerializedObjectBodyCodec codec = new SerializedObjectBodyCodec("java.lang.String");
+        codec.decode(codec.encode(new Date(), "UTF-8"), "UTF-8");
+    }
+
+    @Test
+    public void testUnknownContentType() throws Exception
+    {
+        final byte[] body = new byte[]{1, 2, 3};
+        assertSame(body, BodyCodecs.decode(body, "application/octet-stream", "UTF-8"));
+        assertNull(BodyCodecs.encode(body, "application/octet-stream", "UTF-8"));
+    }
+}
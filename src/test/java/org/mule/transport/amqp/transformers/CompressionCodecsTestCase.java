@@ -0,0 +1,147 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+import org.mule.transport.amqp.AmqpConstants;
+import org.mule.transport.amqp.AmqpMessage;
+import org.mule.util.IOUtils;
+
+import com.rabbitmq.client.AMQP;
+
+public class CompressionCodecsTestCase
+{
+    private static byte[] getTestData()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"verbose json\"},");
+        }
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws Exception
+    {
+        final byte[] data = getTestData();
+        final CompressionCodec codec = CompressionCodecs.get("GZIP");
+
+        final byte[] compressed = codec.compress(data);
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, codec.decompress(compressed));
+
+        // interoperability with the JDK gzip streams
+        assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final GZIPOutputStream gzos = new GZIPOutputStream(baos);
+        gzos.write(data);
+        gzos.close();
+        assertArrayEquals(data, codec.decompress(baos.toByteArray()));
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception
+    {
+        final byte[] data = getTestData();
+        final CompressionCodec codec = CompressionCodecs.get("deflate");
+
+        final byte[] compressed = codec.compress(data);
+        assertArrayEquals(data, codec.decompress(compressed));
+        assertArrayEquals(data,
+            IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testEmptyData() throws Exception
+    {
+        final CompressionCodec codec = CompressionCodecs.get("gzip");
+        assertEquals(0, codec.decompress(codec.compress(new byte[0])).length);
+    }
+
+    @Test
+    public void testDecompressMessage() throws Exception
+    {
+        final byte[] data = getTestData();
+        final AmqpMessage compressed = new AmqpMessage(null, null,
+            new AMQP.BasicProperties.Builder().contentEncoding("gzip").build(),
+            CompressionCodecs.get("gzip").compress(data));
+
+        final AmqpMessage decompressed = CompressionCodecs.decompress(compressed);
+        assertArrayEquals(data, decompressed.getBody());
+        assertNull(decompressed.getProperties().getContentEncoding());
+
+        final AmqpMessage uncompressed = new AmqpMessage(null, null,
+            new AMQP.BasicProperties.Builder().contentEncoding("utf-8").build(), data);
+        assertSame(uncompressed, CompressionCodecs.decompress(uncompressed));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMaxInflatedSize() throws Exception
+    {
+        final byte[] data = getTestData();
+        new GzipCompressionCodec(Deflater.DEFAULT_COMPRESSION, data.length - 1).decompress(
+            CompressionCodecs.get("gzip").compress(data));
+    }
+
+    @Test
+    public void testInflatedSizeAtMaximum() throws Exception
+    {
+        final byte[] data = getTestData();
+        final CompressionCodec codec = new DeflateCompressionCodec(Deflater.DEFAULT_COMPRESSION, data.length);
+        assertArrayEquals(data, codec.decompress(codec.compress(data)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMaxInflatedSizeOfStream() throws Exception
+    {
+        final byte[] data = getTestData();
+        final StreamingCompressionCodec codec = new DeflateCompressionCodec(Deflater.DEFAULT_COMPRESSION,
+            data.length - 1);
+        IOUtils.toByteArray(codec.decompress(new ByteArrayInputStream(codec.compress(data))));
+    }
+
+    @Test
+    public void testDecompressMessageRestoresCharset() throws Exception
+    {
+        final AmqpMessage compressed = new AmqpMessage(null, null, new AMQP.BasicProperties.Builder().contentEncoding(
+            "gzip")
+            .headers(Collections.<String, Object> singletonMap(AmqpConstants.CONTENT_CHARSET, "ISO-8859-1"))
+            .build(), CompressionCodecs.get("gzip").compress(getTestData()));
+
+        final AmqpMessage decompressed = CompressionCodecs.decompress(compressed);
+        assertEquals("ISO-8859-1", decompressed.getProperties().getContentEncoding());
+        assertFalse(decompressed.getProperties().getHeaders().containsKey(AmqpConstants.CONTENT_CHARSET));
+    }
+
+    @Test
+    public void testLookupByClassName() throws Exception
+    {
+        assertTrue(CompressionCodecs.lookup(DeflateCompressionCodec.class.getName()) instanceof DeflateCompressionCodec);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.mule.DefaultMuleMessage;
+import org.mule.api.MuleMessage;
+import org.mule.tck.junit4.AbstractMuleContextTestCase;
+import org.mule.transport.amqp.AmqpMessage;
+
+public class ObjectToAmqpMessageBodyTestCase extends AbstractMuleContextTestCase
+{
+    private static final String TEST_STRING = "payload \u00e9\u00e8";
+
+    private AmqpMessage transform(final Object payload) throws Exception
+    {
+        return transformMessage(new DefaultMuleMessage(payload, muleContext));
+    }
+
+    private AmqpMessage transformMessage(final MuleMessage message) throws Exception
+    {
+        final ObjectToAmqpMessage transformer = new ObjectToAmqpMessage();
+        transformer.setMuleContext(muleContext);
+        return (AmqpMessage) transformer.transformMessage(message, "UTF-8");
+    }
+
+    @Test
+    public void testByteArrayPayloadIsNotCopied() throws Exception
+    {
+        final byte[] payload = TEST_STRING.getBytes("UTF-8");
+        assertSame(payload, transform(payload).getBody());
+    }
+
+    @Test
+    public void testStringPayload() throws Exception
+    {
+        assertArrayEquals(TEST_STRING.getBytes("UTF-8"), transform(TEST_STRING).getBody());
+    }
+
+    @Test
+    public void testInputStreamPayload() throws Exception
+    {
+        final byte[] expected = new byte[100000];
+        for (int i = 0; i < expected.length; i++)
+        {
+            expected[i] = (byte) i;
+        }
+        final MuleMessage message = new DefaultMuleMessage(new ByteArrayInputStream(expected), muleContext);
+        final AmqpMessage amqpMessage = transformMessage(message);
+        assertArrayEquals(expected, amqpMessage.getBody());
+        // the consumed stream is replaced by the bytes read out of it
+        assertSame(amqpMessage.getBody(), message.getPayload());
+    }
+
+    @Test
+    public void testByteBufferPayload() throws Exception
+    {
+        final byte[] bytes = TEST_STRING.getBytes("UTF-8");
+        assertSame(bytes, transform(ByteBuffer.wrap(bytes)).getBody());
+
+        final ByteBuffer slice = ByteBuffer.wrap(bytes, 2, 5);
+        final byte[] expected = new byte[5];
+        System.arraycopy(bytes, 2, expected, 0, 5);
+        assertArrayEquals(expected, transform(slice).getBody());
+    }
+
+    @Test
+    public void testFilePayload() throws Exception
+    {
+        final byte[] expected = TEST_STRING.getBytes("UTF-8");
+        final File file = File.createTempFile("amqp-body", ".bin");
+        file.deleteOnExit();
+        final FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            fos.write(expected);
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        final MuleMessage message = new DefaultMuleMessage(file, muleContext);
+        final AmqpMessage amqpMessage = transformMessage(message);
+        assertArrayEquals(expected, amqpMessage.getBody());
+        // files can be read again, so they are left in the message
+        assertSame(file, message.getPayload());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSoft, Inc.  All rights reserved.  http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.amqp.transformers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mule.DefaultMuleMessage;
+import org.mule.api.MuleMessage;
+import org.mule.api.MuleRuntimeException;
+import org.mule.api.transport.PropertyScope;
+import org.mule.tck.junit4.AbstractMuleContextTestCase;
+import org.mule.transport.amqp.AmqpConstants;
+
+public class OutboundHeaderMappingTestCase extends AbstractMuleContextTestCase
+{
+    private MuleMessage getTestMessage()
+    {
+        final MuleMessage message = new DefaultMuleMessage("payload", muleContext);
+        message.setProperty("region", "emea", PropertyScope.OUTBOUND);
+        message.setProperty("amount", "12.50", PropertyScope.OUTBOUND);
+        message.setProperty("sentAt", 1000L, PropertyScope.OUTBOUND);
+        message.setProperty("internal", "secret", PropertyScope.OUTBOUND);
+        message.setProperty(AmqpConstants.APP_ID, "appId", PropertyScope.OUTBOUND);
+        return message;
+    }
+
+    @Test
+    public void testCopyAll() throws Exception
+    {
+        final Map<String, Object> headers = OutboundHeaderMapping.COPY_ALL.apply(getTestMessage());
+        assertEquals(4, headers.size());
+        assertEquals("secret", headers.get("internal"));
+        assertFalse(headers.containsKey(AmqpConstants.APP_ID));
+    }
+
+    @Test
+    public void testSuppressed() throws Exception
+    {
+        assertNull(OutboundHeaderMapping.compile(null, "false", null, null, null, null).apply(
+            getTestMessage()));
+    }
+
+    @Test
+    public void testExcludedRenamedAndTyped() throws Exception
+    {
+        final Map<String, Object> headers = OutboundHeaderMapping.compile(null, null, null, "internal",
+            "region=x-region", "amount=decimal, sentAt=timestamp").apply(getTestMessage());
+
+        assertEquals(3, headers.size());
+        assertEquals("emea", headers.get("x-region"));
+        assertEquals(new BigDecimal("12.50"), headers.get("amount"));
+        assertEquals(new Date(1000L), headers.get("sentAt"));
+    }
+
+    @Test
+    public void testIncluded() throws Exception
+    {
+        final Map<String, Object> headers = OutboundHeaderMapping.compile(null, null,
+            "region,missing," + AmqpConstants.APP_ID, null, null, "region=string").apply(getTestMessage());
+
+        assertEquals(1, headers.size());
+        assertEquals("emea", headers.get("region"));
+    }
+
+    @Test(expected = MuleRuntimeException.class)
+    public void testInvalidType() throws Exception
+    {
+        OutboundHeaderMapping.compile(null, null, null, null, null, "amount=money");
+    }
+
+    @Test(expected = MuleRuntimeException.class)
+    public void testInvalidRename() throws Exception
+    {
+        OutboundHeaderMapping.compile(null, null, null, null, "region", null);
+    }
+}